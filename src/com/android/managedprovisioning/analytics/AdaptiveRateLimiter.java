@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.managedprovisioning.analytics;
+
+import android.os.SystemClock;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A token bucket whose refill rate adapts to how fast the metrics are being accepted.
+ *
+ * <p>The rate grows additively while batches are written quickly, and is halved when writing a
+ * batch takes longer than {@link #SLOW_WRITE_NANOS_PER_EVENT} per event, which is how a
+ * saturated statsd socket shows up for the caller.
+ */
+final class AdaptiveRateLimiter {
+
+    /** Measures and waits for time. */
+    interface Clock {
+        long nanoTime();
+
+        void sleepNanos(long nanos) throws InterruptedException;
+    }
+
+    static final double INITIAL_EVENTS_PER_SECOND = 100;
+    static final double MIN_EVENTS_PER_SECOND = 20;
+    static final double MAX_EVENTS_PER_SECOND = 1000;
+    private static final double RATE_INCREMENT = 20;
+    static final int CAPACITY = 50;
+    static final long SLOW_WRITE_NANOS_PER_EVENT = TimeUnit.MILLISECONDS.toNanos(2);
+
+    private static final Clock SYSTEM_CLOCK = new Clock() {
+        @Override
+        public long nanoTime() {
+            return SystemClock.elapsedRealtimeNanos();
+        }
+
+        @Override
+        public void sleepNanos(long nanos) throws InterruptedException {
+            TimeUnit.NANOSECONDS.sleep(nanos);
+        }
+    };
+
+    private final Clock mClock;
+    private double mEventsPerSecond = INITIAL_EVENTS_PER_SECOND;
+    private double mTokens = CAPACITY;
+    private long mLastRefillNanos;
+
+    AdaptiveRateLimiter() {
+        this(SYSTEM_CLOCK);
+    }
+
+    @VisibleForTesting
+    AdaptiveRateLimiter(Clock clock) {
+        mClock = clock;
+        mLastRefillNanos = clock.nanoTime();
+    }
+
+    /**
+     * Waits until {@code events} events may be written, which must not exceed {@link #CAPACITY}.
+     */
+    void acquire(int events) throws InterruptedException {
+        if (events > CAPACITY) {
+            throw new IllegalArgumentException("Cannot acquire more than " + CAPACITY);
+        }
+        refill();
+        if (mTokens < events) {
+            double missing = events - mTokens;
+            mClock.sleepNanos((long) (missing / mEventsPerSecond * TimeUnit.SECONDS.toNanos(1)));
+            refill();
+        }
+        mTokens = Math.max(0, mTokens - events);
+    }
+
+    /**
+     * Adapts the rate to the time it took to write a batch of {@code events} events.
+     */
+    void onBatchWritten(int events, long elapsedNanos) {
+        if (events <= 0) {
+            return;
+        }
+        if (elapsedNanos / events > SLOW_WRITE_NANOS_PER_EVENT) {
+            mEventsPerSecond = Math.max(MIN_EVENTS_PER_SECOND, mEventsPerSecond / 2);
+        } else {
+            mEventsPerSecond = Math.min(MAX_EVENTS_PER_SECOND, mEventsPerSecond + RATE_INCREMENT);
+        }
+    }
+
+    double getEventsPerSecond() {
+        return mEventsPerSecond;
+    }
+
+    long nanoTime() {
+        return mClock.nanoTime();
+    }
+
+    private void refill() {
+        long now = mClock.nanoTime();
+        double elapsedSeconds = (now - mLastRefillNanos) / (double) TimeUnit.SECONDS.toNanos(1);
+        mTokens = Math.min(CAPACITY, mTokens + elapsedSeconds * mEventsPerSecond);
+        mLastRefillNanos = now;
+    }
+}
@@ -0,0 +1,234 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.managedprovisioning.analytics;
+
+import android.annotation.Nullable;
+import android.util.AtomicFile;
+
+import com.android.managedprovisioning.DevicePolicyProtos.DevicePolicyEvent;
+import com.android.managedprovisioning.common.ProvisionLogger;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * The file format written by {@link DeferredMetricsWriter}.
+ *
+ * <pre>
+ *     int     magic
+ *     for each event:
+ *         int     length of the serialized {@link DevicePolicyEvent}
+ *         int     CRC32 of the serialized event
+ *         byte[]  the serialized event
+ * </pre>
+ *
+ * <p>A record that is cut short or does not match its CRC marks the end of the valid part of the
+ * file, for example after the process died in the middle of a write.
+ *
+ * <p>Older versions wrote each event with {@link DevicePolicyEvent#writeDelimitedTo} and no
+ * header; {@link #migrateLegacyFile} rewrites such files in this format.
+ */
+final class DeferredMetricsFormat {
+    static final int MAGIC = 0x4d504d31; // "MPM1"
+    static final int HEADER_SIZE = Integer.BYTES;
+    static final int RECORD_HEADER_SIZE = 2 * Integer.BYTES;
+    static final int MAX_RECORD_SIZE = 64 * 1024;
+
+    private DeferredMetricsFormat() {}
+
+    static int getRecordSize(byte[] payload) {
+        return RECORD_HEADER_SIZE + payload.length;
+    }
+
+    static void putHeader(ByteBuffer buffer) {
+        buffer.putInt(MAGIC);
+    }
+
+    static void putRecord(ByteBuffer buffer, byte[] payload) {
+        buffer.putInt(payload.length);
+        buffer.putInt(crc(payload));
+        buffer.put(payload);
+    }
+
+    /**
+     * Rewrites {@code file} in this format if it was written by an older version, keeping the
+     * events that can be parsed. Returns whether the file was rewritten.
+     */
+    static boolean migrateLegacyFile(File file) throws IOException {
+        if (file.length() == 0) {
+            return false;
+        }
+        try (Reader reader = new Reader(file, /* offset= */ 0)) {
+            if (reader.hasValidHeader()) {
+                return false;
+            }
+        }
+        final List<byte[]> payloads = new ArrayList<>();
+        int size = HEADER_SIZE;
+        try (InputStream input = new BufferedInputStream(new FileInputStream(file))) {
+            while (true) {
+                DevicePolicyEvent event;
+                try {
+                    event = DevicePolicyEvent.parseDelimitedFrom(input);
+                } catch (IOException e) {
+                    ProvisionLogger.logw("Ignoring the rest of legacy deferred metrics file", e);
+                    break;
+                }
+                if (event == null) {
+                    break;
+                }
+                final byte[] payload = event.toByteArray();
+                if (payload.length <= MAX_RECORD_SIZE) {
+                    payloads.add(payload);
+                    size += getRecordSize(payload);
+                }
+            }
+        }
+        final ByteBuffer buffer = ByteBuffer.allocate(size);
+        putHeader(buffer);
+        for (byte[] payload : payloads) {
+            putRecord(buffer, payload);
+        }
+        final AtomicFile atomicFile = new AtomicFile(file);
+        FileOutputStream output = null;
+        try {
+            output = atomicFile.startWrite();
+            output.write(buffer.array());
+            atomicFile.finishWrite(output);
+        } catch (IOException e) {
+            atomicFile.failWrite(output);
+            throw e;
+        }
+        ProvisionLogger.logi("Migrated " + payloads.size() + " legacy deferred metrics");
+        return true;
+    }
+
+    private static int crc(byte[] payload) {
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Reads the events of a file in the {@link DeferredMetricsFormat}.
+     */
+    static final class Reader implements Closeable {
+        private final DataInputStream mInput;
+        private final boolean mValidHeader;
+        private long mOffset;
+
+        /**
+         * Opens {@code file} and positions the reader at the record starting at {@code offset},
+         * or at the first record if {@code offset} is within the file header.
+         */
+        Reader(File file, long offset) throws IOException {
+            mInput = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            boolean validHeader;
+            try {
+                validHeader = mInput.readInt() == MAGIC;
+            } catch (EOFException e) {
+                validHeader = false;
+            }
+            mValidHeader = validHeader;
+            mOffset = HEADER_SIZE;
+            if (mValidHeader && offset > mOffset) {
+                long toSkip = offset - mOffset;
+                while (toSkip > 0) {
+                    long skipped = mInput.skip(toSkip);
+                    if (skipped <= 0) {
+                        break;
+                    }
+                    toSkip -= skipped;
+                    mOffset += skipped;
+                }
+            }
+        }
+
+        /**
+         * Returns whether the file starts with the expected header.
+         */
+        boolean hasValidHeader() {
+            return mValidHeader;
+        }
+
+        /**
+         * Returns the offset of the next record, which is the end of the valid part of the file
+         * once {@link #next} returned {@code null}.
+         */
+        long getOffset() {
+            return mValidHeader ? mOffset : 0;
+        }
+
+        /**
+         * Returns the payload of the next valid record, or {@code null} at the end of the valid
+         * part of the file.
+         */
+        @Nullable
+        byte[] nextPayload() throws IOException {
+            if (!mValidHeader) {
+                return null;
+            }
+            int length;
+            int crc;
+            try {
+                length = mInput.readInt();
+                crc = mInput.readInt();
+            } catch (EOFException e) {
+                return null;
+            }
+            if (length < 0 || length > MAX_RECORD_SIZE) {
+                return null;
+            }
+            byte[] payload = new byte[length];
+            try {
+                mInput.readFully(payload);
+            } catch (EOFException e) {
+                return null;
+            }
+            if (crc(payload) != crc) {
+                return null;
+            }
+            mOffset += RECORD_HEADER_SIZE + length;
+            return payload;
+        }
+
+        /**
+         * Returns the next valid event, or {@code null} at the end of the valid part of the file.
+         */
+        @Nullable
+        DevicePolicyEvent next() throws IOException {
+            byte[] payload = nextPayload();
+            return payload == null ? null : DevicePolicyEvent.parseFrom(payload);
+        }
+
+        @Override
+        public void close() throws IOException {
+            mInput.close();
+        }
+    }
+}
@@ -0,0 +1,293 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.managedprovisioning.analytics;
+
+import static com.android.internal.util.Preconditions.checkNotNull;
+
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.managedprovisioning.common.ProvisionLogger;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * An append-only log of serialized events in the {@link DeferredMetricsFormat}, with a single
+ * writer thread per file.
+ *
+ * <p>Callers only enqueue records. The writer thread drains whatever has been queued since its
+ * last write and commits it with one write and one sync on a channel that stays open until the
+ * file is {@link #rotate rotated}, and sleeps until the next record is enqueued. When the queue is
+ * full, callers wait for a short while and then drop the record.
+ */
+final class DeferredMetricsLog {
+    private static final int QUEUE_CAPACITY = 1024;
+    private static final int MAX_BATCH_SIZE = 256;
+    private static final long BACKPRESSURE_TIMEOUT_NANOS = TimeUnit.MILLISECONDS.toNanos(20);
+    private static final long BACKPRESSURE_POLL_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+
+    @GuardedBy("DeferredMetricsLog.class")
+    private static final Map<String, DeferredMetricsLog> sLogs = new HashMap<>();
+
+    private final File mFile;
+    private final ConcurrentLinkedQueue<byte[]> mQueue = new ConcurrentLinkedQueue<>();
+    /** The number of records in {@link #mQueue}, reserved before they are added. */
+    private final AtomicInteger mQueueSize = new AtomicInteger();
+    private final AtomicLong mEnqueuedCount = new AtomicLong();
+    private final AtomicLong mDroppedCount = new AtomicLong();
+    private final AtomicLong mBackpressureCount = new AtomicLong();
+    private final Thread mWriterThread;
+
+    private final Object mCommitLock = new Object();
+    /** The number of records that have been written or given up on. */
+    @GuardedBy("mCommitLock")
+    private long mProcessedCount;
+
+    /** Held while the file is written, so that it is not rotated in the middle of a write. */
+    private final Object mFileLock = new Object();
+    @GuardedBy("mFileLock")
+    private FileChannel mChannel;
+
+    /**
+     * Returns the log of the given file, starting its writer thread if necessary.
+     */
+    static synchronized DeferredMetricsLog forFile(File file) {
+        String path = file.getAbsolutePath();
+        DeferredMetricsLog log = sLogs.get(path);
+        if (log == null) {
+            log = new DeferredMetricsLog(file);
+            sLogs.put(path, log);
+        }
+        return log;
+    }
+
+    /**
+     * Moves {@code file} to {@code destination}, so that the events written so far can be read
+     * while new events go to a new {@code file}. Returns {@code false} if there was no file to
+     * move.
+     */
+    static synchronized boolean rotate(File file, File destination) {
+        DeferredMetricsLog log = sLogs.get(file.getAbsolutePath());
+        if (log == null) {
+            // Holding the class lock, no writer can open the file meanwhile.
+            return file.renameTo(destination);
+        }
+        synchronized (log.mFileLock) {
+            log.closeChannel();
+            return file.renameTo(destination);
+        }
+    }
+
+    private DeferredMetricsLog(File file) {
+        mFile = checkNotNull(file);
+        mWriterThread = new Thread(this::runWriter, "DeferredMetricsLog");
+        mWriterThread.setDaemon(true);
+        mWriterThread.start();
+    }
+
+    /**
+     * Enqueues a serialized event to be written. Returns {@code false} if it was dropped.
+     */
+    boolean append(byte[] payload) {
+        if (payload.length > DeferredMetricsFormat.MAX_RECORD_SIZE) {
+            ProvisionLogger.logw("Dropping deferred metric of " + payload.length + " bytes");
+            mDroppedCount.incrementAndGet();
+            return false;
+        }
+        if (!tryReserve()) {
+            mBackpressureCount.incrementAndGet();
+            LockSupport.unpark(mWriterThread);
+            long deadline = System.nanoTime() + BACKPRESSURE_TIMEOUT_NANOS;
+            while (!tryReserve()) {
+                if (System.nanoTime() - deadline > 0) {
+                    ProvisionLogger.logw("Deferred metrics queue is full, dropping event");
+                    mDroppedCount.incrementAndGet();
+                    return false;
+                }
+                LockSupport.parkNanos(BACKPRESSURE_POLL_NANOS);
+            }
+        }
+        mQueue.add(payload);
+        mEnqueuedCount.incrementAndGet();
+        LockSupport.unpark(mWriterThread);
+        return true;
+    }
+
+    /**
+     * Returns the number of events that were dropped because the queue stayed full or they could
+     * not be written.
+     */
+    long getDroppedCount() {
+        return mDroppedCount.get();
+    }
+
+    /**
+     * Returns the number of times a caller found the queue full and had to wait.
+     */
+    long getBackpressureCount() {
+        return mBackpressureCount.get();
+    }
+
+    /**
+     * Waits until the events enqueued before this call have been written or dropped. Returns
+     * {@code false} if that did not happen within {@code timeoutMillis}.
+     */
+    @VisibleForTesting
+    boolean flush(long timeoutMillis) {
+        long target = mEnqueuedCount.get();
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        LockSupport.unpark(mWriterThread);
+        synchronized (mCommitLock) {
+            while (mProcessedCount < target) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    return false;
+                }
+                try {
+                    mCommitLock.wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private boolean tryReserve() {
+        int size;
+        do {
+            size = mQueueSize.get();
+            if (size >= QUEUE_CAPACITY) {
+                return false;
+            }
+        } while (!mQueueSize.compareAndSet(size, size + 1));
+        return true;
+    }
+
+    private void runWriter() {
+        List<byte[]> batch = new ArrayList<>(MAX_BATCH_SIZE);
+        while (true) {
+            byte[] record;
+            while (batch.size() < MAX_BATCH_SIZE && (record = mQueue.poll()) != null) {
+                batch.add(record);
+            }
+            if (batch.isEmpty()) {
+                // Enqueuing a record unparks the writer.
+                LockSupport.park(this);
+                continue;
+            }
+            mQueueSize.addAndGet(-batch.size());
+            boolean committed;
+            synchronized (mFileLock) {
+                committed = commit(batch);
+            }
+            if (!committed) {
+                mDroppedCount.addAndGet(batch.size());
+            }
+            synchronized (mCommitLock) {
+                mProcessedCount += batch.size();
+                mCommitLock.notifyAll();
+            }
+            batch.clear();
+        }
+    }
+
+    @GuardedBy("mFileLock")
+    private boolean commit(List<byte[]> batch) {
+        try {
+            boolean needsHeader = openChannelIfNeeded();
+            int size = needsHeader ? DeferredMetricsFormat.HEADER_SIZE : 0;
+            for (byte[] payload : batch) {
+                size += DeferredMetricsFormat.getRecordSize(payload);
+            }
+            ByteBuffer buffer = ByteBuffer.allocate(size);
+            if (needsHeader) {
+                DeferredMetricsFormat.putHeader(buffer);
+            }
+            for (byte[] payload : batch) {
+                DeferredMetricsFormat.putRecord(buffer, payload);
+            }
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                mChannel.write(buffer);
+            }
+            mChannel.force(/* metaData= */ false);
+            return true;
+        } catch (IOException e) {
+            ProvisionLogger.loge("Failed to write " + batch.size() + " deferred metrics", e);
+            closeChannel();
+            return false;
+        }
+    }
+
+    /**
+     * Opens the channel unless it is open on the current file, migrating a file written by an
+     * older version and dropping any torn record left at the end of the file by a previous
+     * process. Returns whether the file header must be written.
+     */
+    @GuardedBy("mFileLock")
+    private boolean openChannelIfNeeded() throws IOException {
+        if (mChannel != null && mFile.exists()) {
+            return false;
+        }
+        closeChannel();
+        DeferredMetricsFormat.migrateLegacyFile(mFile);
+        long validLength = 0;
+        if (mFile.length() > 0) {
+            try (DeferredMetricsFormat.Reader reader =
+                         new DeferredMetricsFormat.Reader(mFile, /* offset= */ 0)) {
+                while (reader.nextPayload() != null) {}
+                validLength = reader.getOffset();
+            }
+        }
+        mChannel = FileChannel.open(mFile.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE);
+        if (mChannel.size() != validLength) {
+            ProvisionLogger.logw("Truncating deferred metrics file from " + mChannel.size()
+                    + " to " + validLength + " bytes");
+            mChannel.truncate(validLength);
+        }
+        mChannel.position(validLength);
+        return validLength == 0;
+    }
+
+    @GuardedBy("mFileLock")
+    private void closeChannel() {
+        if (mChannel == null) {
+            return;
+        }
+        try {
+            mChannel.close();
+        } catch (IOException e) {
+            ProvisionLogger.loge("Failed to close deferred metrics file", e);
+        }
+        mChannel = null;
+    }
+}
@@ -19,33 +19,26 @@ package com.android.managedprovisioning.analytics;
 import static com.android.internal.util.Preconditions.checkNotNull;
 
 import android.app.admin.DevicePolicyEventLogger;
-import android.os.AsyncTask;
 
-import com.android.internal.util.Preconditions;
+import com.android.internal.annotations.VisibleForTesting;
 import com.android.managedprovisioning.DevicePolicyProtos.DevicePolicyEvent;
-import com.android.managedprovisioning.common.ProvisionLogger;
 
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
-import java.io.IOException;
-import java.io.OutputStream;
 import java.util.Arrays;
-import java.util.List;
 import java.util.Objects;
-import java.util.stream.Collectors;
 
 /**
  * A {@link MetricsWriter} which writes the {@link DevicePolicyEventLogger} events to a file.
  *
+ * <p>Events are handed to the {@link DeferredMetricsLog} of the file, which writes them in the
+ * {@link DeferredMetricsFormat} on its own thread, so {@link #write} never blocks on disk I/O.
+ *
  * <p>To read the written logs, use {@link DeferredMetricsReader}.
  *
  * @see DeferredMetricsReader
  */
 public class DeferredMetricsWriter implements MetricsWriter {
 
-    private static final Object sLock = new Object();
-
     private final File mFile;
 
     DeferredMetricsWriter(File file) {
@@ -54,74 +47,53 @@ public class DeferredMetricsWriter implements MetricsWriter {
 
     @Override
     public void write(DevicePolicyEventLogger... loggers) {
-        try {
-            final OutputStream outputStream = new FileOutputStream(mFile, true);
-            new WriteDeferredMetricsAsyncTask(outputStream).execute(loggers);
-        } catch (FileNotFoundException e) {
-            // This is an acceptable scenario as we have a check in write(...).
-            ProvisionLogger.loge("Could not find file passed to DeferredMetricsWriter.", e);
+        final DeferredMetricsLog log = DeferredMetricsLog.forFile(mFile);
+        for (DevicePolicyEventLogger logger : loggers) {
+            log.append(eventLoggerToDevicePolicyEvent(logger).toByteArray());
         }
     }
 
-    private static class WriteDeferredMetricsAsyncTask
-            extends AsyncTask<DevicePolicyEventLogger, Void, Void> {
-
-        private final OutputStream mOutputStream;
+    /**
+     * Returns the number of events for this writer's file that were dropped because the write
+     * queue was full or the file could not be written.
+     */
+    public long getDroppedEventCount() {
+        return DeferredMetricsLog.forFile(mFile).getDroppedCount();
+    }
 
-        WriteDeferredMetricsAsyncTask(OutputStream file) {
-            mOutputStream = file;
-        }
+    /**
+     * Returns the number of times a caller had to wait for room in the write queue of this
+     * writer's file.
+     */
+    public long getBackpressureCount() {
+        return DeferredMetricsLog.forFile(mFile).getBackpressureCount();
+    }
 
-        @Override
-        protected Void doInBackground(DevicePolicyEventLogger... devicePolicyEventLoggers) {
-            final List<DevicePolicyEvent> events = Arrays.stream(devicePolicyEventLoggers)
-                    .map(WriteDeferredMetricsAsyncTask::eventLoggerToDevicePolicyEvent)
-                    .collect(Collectors.toList());
-            synchronized (sLock) {
-                writeDevicePolicyEventsToStream(events, mOutputStream);
-            }
-            return null;
-        }
+    /**
+     * Waits until the events written so far have reached the file.
+     */
+    @VisibleForTesting
+    boolean flush(long timeoutMillis) {
+        return DeferredMetricsLog.forFile(mFile).flush(timeoutMillis);
+    }
 
-        private static void writeDevicePolicyEventsToStream(
-                List<DevicePolicyEvent> events, OutputStream outputStream) {
-            for (DevicePolicyEvent event : events) {
-                try {
-                    event.writeDelimitedTo(outputStream);
-                } catch (IOException e) {
-                    ProvisionLogger.loge("Failed to write DevicePolicyEvent to OutputStream.", e);
-                }
-            }
-            try {
-                outputStream.flush();
-            } catch (IOException e) {
-                ProvisionLogger.loge("Failed to flush OutputStream.", e);
-            } finally {
-                try {
-                    outputStream.close();
-                } catch (IOException e) {
-                    ProvisionLogger.loge("Failed to close OutputStream.", e);
-                }
-            }
+    @VisibleForTesting
+    static DevicePolicyEvent eventLoggerToDevicePolicyEvent(
+            DevicePolicyEventLogger eventLogger) {
+        final DevicePolicyEvent.Builder builder = DevicePolicyEvent.newBuilder()
+                .setEventId(eventLogger.getEventId())
+                .setIntegerValue(eventLogger.getInt())
+                .setBooleanValue(eventLogger.getBoolean())
+                .setTimePeriodMillis(eventLogger.getTimePeriod());
+        if (eventLogger.getAdminPackageName() != null) {
+            builder.setAdminPackageName(eventLogger.getAdminPackageName());
         }
-
-        private static DevicePolicyEvent eventLoggerToDevicePolicyEvent(
-                DevicePolicyEventLogger eventLogger) {
-            final DevicePolicyEvent.Builder builder = DevicePolicyEvent.newBuilder()
-                    .setEventId(eventLogger.getEventId())
-                    .setIntegerValue(eventLogger.getInt())
-                    .setBooleanValue(eventLogger.getBoolean())
-                    .setTimePeriodMillis(eventLogger.getTimePeriod());
-            if (eventLogger.getAdminPackageName() != null) {
-                builder.setAdminPackageName(eventLogger.getAdminPackageName());
-            }
-            final String[] stringValues = eventLogger.getStringArray();
-            if (stringValues != null) {
-                Arrays.stream(stringValues)
-                        .filter(Objects::nonNull)
-                        .forEach(stringValue -> builder.addStringListValue(stringValue));
-            }
-            return builder.build();
+        final String[] stringValues = eventLogger.getStringArray();
+        if (stringValues != null) {
+            Arrays.stream(stringValues)
+                    .filter(Objects::nonNull)
+                    .forEach(stringValue -> builder.addStringListValue(stringValue));
         }
+        return builder.build();
     }
 }
@@ -73,6 +73,18 @@ public class MetricsLoggerWrapper {
         }
     }
 
+    /**
+     * Wrapper to increment a histogram bucket.
+     *
+     * @param context Context passed to MetricsLogger.
+     * @param histogram Name of the histogram.
+     * @param bucket Bucket to be incremented.
+     */
+    public void logHistogram(Context context, String histogram, int bucket) {
+        logd("MetricsLoggerWrapper, histogram:" + histogram + ", bucket: " + bucket);
+        MetricsLogger.histogram(context, histogram, bucket);
+    }
+
     private void logd(String logText) {
         if (LOG_ENABLED) {
             ProvisionLogger.logd(logText);
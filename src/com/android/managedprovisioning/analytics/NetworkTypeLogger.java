@@ -25,7 +25,6 @@ import android.net.NetworkInfo;
 import android.stats.devicepolicy.DevicePolicyEnums;
 import com.android.internal.annotations.VisibleForTesting;
 import com.android.managedprovisioning.common.ManagedProvisioningSharedPreferences;
-import com.android.managedprovisioning.common.SettingsFacade;
 import com.android.managedprovisioning.common.Utils;
 
 /**
@@ -43,7 +42,7 @@ public class NetworkTypeLogger {
 
     public NetworkTypeLogger(Context context) {
         this(context, new Utils(), new MetricsLoggerWrapper(),
-                MetricsWriterFactory.getMetricsWriter(context, new SettingsFacade()),
+                SetupAwareMetricsWriter.getInstance(context),
                 new ManagedProvisioningSharedPreferences(context));
     }
 
@@ -23,19 +23,23 @@ import android.app.job.JobParameters;
 import android.app.job.JobService;
 import android.os.AsyncTask;
 import android.os.PersistableBundle;
+import android.util.AtomicFile;
 
 import com.android.internal.annotations.VisibleForTesting;
 import com.android.managedprovisioning.DevicePolicyProtos.DevicePolicyEvent;
 import com.android.managedprovisioning.common.ProvisionLogger;
 
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
- * A {@link JobService} that reads the logs from the {@link InputStream} written to by
+ * A {@link JobService} that reads the logs from the {@link File} written to by
  * {@link DeferredMetricsWriter} and writes them using another {@link MetricsWriter}.
  *
  * @see DeferredMetricsWriter
@@ -44,11 +48,23 @@ public class ProcessMetricsJobService extends JobService {
 
     static String EXTRA_FILE_PATH = "extra_file_path";
 
+    private static final int DEFAULT_BATCH_SIZE = 20;
+    private static final String CHECKPOINT_SUFFIX = ".checkpoint";
+    private static final String REPLAY_SUFFIX = ".replay";
+
     private final MetricsWriter mMetricsWriter;
+    private final int mBatchSize;
+    private ReadDeferredMetricsAsyncTask mTask;
 
     @VisibleForTesting
     ProcessMetricsJobService(MetricsWriter metricsWriter) {
+        this(metricsWriter, DEFAULT_BATCH_SIZE);
+    }
+
+    @VisibleForTesting
+    ProcessMetricsJobService(MetricsWriter metricsWriter, int batchSize) {
         mMetricsWriter = metricsWriter;
+        mBatchSize = Math.min(batchSize, AdaptiveRateLimiter.CAPACITY);
     }
 
     public ProcessMetricsJobService() {
@@ -62,7 +78,8 @@ public class ProcessMetricsJobService extends JobService {
             return false;
         }
         final File metrics = new File(extras.getString(EXTRA_FILE_PATH));
-        if (!metrics.exists()) {
+        if (!metrics.exists() && !getReplayFile(metrics).exists()) {
+            getCheckpointFile(getReplayFile(metrics)).delete();
             return false;
         }
         executeReadDeferredMetrics(params, metrics);
@@ -72,25 +89,88 @@ public class ProcessMetricsJobService extends JobService {
     @VisibleForTesting
     void executeReadDeferredMetrics(JobParameters params,
             File metricsFile) {
-        new ReadDeferredMetricsAsyncTask(params, metricsFile, mMetricsWriter).execute();
+        mTask = new ReadDeferredMetricsAsyncTask(params, metricsFile, mMetricsWriter);
+        mTask.execute();
     }
 
+    /**
+     * Stops the replay after the batch being written and asks for the job to be rescheduled, so
+     * that it resumes from the last checkpoint.
+     */
     @Override
     public boolean onStopJob(JobParameters params) {
-        return false;
+        if (mTask == null || mTask.getStatus() == AsyncTask.Status.FINISHED) {
+            return false;
+        }
+        ProvisionLogger.logi("Deferred metrics replay stopped, it will resume later");
+        mTask.cancel(/* mayInterruptIfRunning= */ false);
+        mTask = null;
+        return true;
+    }
+
+    /**
+     * Returns the file that {@code metricsFile} is moved to while it is replayed, so that the
+     * events written meanwhile go to a new file.
+     */
+    @VisibleForTesting
+    static File getReplayFile(File metricsFile) {
+        return new File(metricsFile.getPath() + REPLAY_SUFFIX);
+    }
+
+    @VisibleForTesting
+    static File getCheckpointFile(File metricsFile) {
+        return new File(metricsFile.getPath() + CHECKPOINT_SUFFIX);
+    }
+
+    /**
+     * Returns the offset in {@code metricsFile} of the first event that has not been replayed.
+     */
+    private static long readCheckpoint(File metricsFile) {
+        final AtomicFile checkpoint = new AtomicFile(getCheckpointFile(metricsFile));
+        if (!checkpoint.exists()) {
+            return 0;
+        }
+        try (DataInputStream input = new DataInputStream(checkpoint.openRead())) {
+            final long offset = input.readLong();
+            // The metrics file was replaced since the checkpoint was written.
+            return offset <= metricsFile.length() ? offset : 0;
+        } catch (IOException e) {
+            ProvisionLogger.loge("Could not read deferred metrics checkpoint.", e);
+            return 0;
+        }
+    }
+
+    private static void writeCheckpoint(File metricsFile, long offset) {
+        final AtomicFile checkpoint = new AtomicFile(getCheckpointFile(metricsFile));
+        FileOutputStream output = null;
+        try {
+            output = checkpoint.startWrite();
+            final DataOutputStream dataOutput = new DataOutputStream(output);
+            dataOutput.writeLong(offset);
+            dataOutput.flush();
+            checkpoint.finishWrite(output);
+        } catch (IOException e) {
+            ProvisionLogger.loge("Could not write deferred metrics checkpoint.", e);
+            checkpoint.failWrite(output);
+        }
     }
 
     /**
      * An {@link AsyncTask} which reads the logs from the {@link File} specified in the constructor
      * and writes them to the specified {@link MetricsWriter}.
      *
-     * <p>The {@link File} will be deleted after they are written to the {@link MetricsWriter}.
+     * <p>The {@link File} is first rotated to its {@link #getReplayFile replay file}, unless a
+     * previous task left one behind. Events are written in batches, paced by an {@link
+     * AdaptiveRateLimiter} because statsd cannot handle too many metrics at once. The offset
+     * after each batch is checkpointed once the batch has been written, so that a cancelled task
+     * resumes from there without losing any event. The replay file will be deleted after
+     * all of them are written to the {@link MetricsWriter}.
      */
-    private class ReadDeferredMetricsAsyncTask extends AsyncTask<Void, Void, Void> {
-        private static final int METRICS_INTERVAL_MILLIS = 10;
+    private class ReadDeferredMetricsAsyncTask extends AsyncTask<Void, Void, Boolean> {
         private final MetricsWriter mMetricsWriter;
         private final File mFile;
         private final JobParameters mJobParameters;
+        private final AdaptiveRateLimiter mRateLimiter = new AdaptiveRateLimiter();
 
         ReadDeferredMetricsAsyncTask(JobParameters params,
                 File file,
@@ -101,39 +181,66 @@ public class ProcessMetricsJobService extends JobService {
         }
 
         @Override
-        protected Void doInBackground(Void... voids) {
-            try (InputStream inputStream =  new FileInputStream(mFile)) {
-                DevicePolicyEvent event;
-                while ((event = DevicePolicyEvent.parseDelimitedFrom(inputStream)) != null) {
-                    delayProcessMetric();
-                    mMetricsWriter.write(devicePolicyEventToLogger(event));
+        protected Boolean doInBackground(Void... voids) {
+            final File replayFile = getReplayFile(mFile);
+            if (!replayFile.exists()) {
+                // A replay that was stopped between deleting its file and its checkpoint leaves
+                // the checkpoint behind; it must not apply to the next replay file.
+                getCheckpointFile(replayFile).delete();
+                if (!DeferredMetricsLog.rotate(mFile, replayFile)) {
+                    ProvisionLogger.logw("No deferred metrics to replay");
+                    return true;
+                }
+            }
+            boolean finished = false;
+            try {
+                // A file rotated before an update may still be in the legacy format.
+                DeferredMetricsFormat.migrateLegacyFile(replayFile);
+            } catch (IOException e) {
+                ProvisionLogger.loge("Could not migrate legacy deferred metrics.", e);
+                return false;
+            }
+            try (DeferredMetricsFormat.Reader reader =
+                         new DeferredMetricsFormat.Reader(replayFile, readCheckpoint(replayFile))) {
+                final List<DevicePolicyEventLogger> batch = new ArrayList<>(mBatchSize);
+                while (!isCancelled()) {
+                    DevicePolicyEvent event;
+                    while (batch.size() < mBatchSize && (event = reader.next()) != null) {
+                        batch.add(devicePolicyEventToLogger(event));
+                    }
+                    if (batch.isEmpty()) {
+                        finished = true;
+                        break;
+                    }
+                    mRateLimiter.acquire(batch.size());
+                    final long start = mRateLimiter.nanoTime();
+                    mMetricsWriter.write(batch.toArray(new DevicePolicyEventLogger[0]));
+                    mRateLimiter.onBatchWritten(batch.size(), mRateLimiter.nanoTime() - start);
+                    // Only checkpoint the batch once it has been written: if the process dies in
+                    // between, the batch is written again rather than lost.
+                    writeCheckpoint(replayFile, reader.getOffset());
+                    batch.clear();
                 }
             } catch (IOException e) {
                 ProvisionLogger.loge(
                         "Could not parse DevicePolicyEvent while reading from stream.", e);
-            } finally {
-                mFile.delete();
-            }
-            return null;
-        }
-
-        @Override
-        protected void onPostExecute(Void aVoid) {
-            jobFinished(mJobParameters, false);
-        }
-
-        /**
-         * Waits for {@link #METRICS_INTERVAL_MILLIS}.
-         * <p>statsd cannot handle too many metrics at once, so we must wait between each
-         * {@link MetricsWriter#write(DevicePolicyEventLogger...)} call.
-         */
-        private void delayProcessMetric() {
-            try {
-                Thread.sleep(METRICS_INTERVAL_MILLIS);
+                finished = true;
             } catch (InterruptedException e) {
                 ProvisionLogger.loge(
                         "Thread interrupted while waiting to log metric.", e);
             }
+            if (!finished) {
+                return false;
+            }
+            replayFile.delete();
+            getCheckpointFile(replayFile).delete();
+            // Events written while replaying are replayed when the job runs again.
+            return !mFile.exists();
+        }
+
+        @Override
+        protected void onPostExecute(Boolean finished) {
+            jobFinished(mJobParameters, /* wantsReschedule= */ !finished);
         }
 
         private DevicePolicyEventLogger devicePolicyEventToLogger(DevicePolicyEvent event) {
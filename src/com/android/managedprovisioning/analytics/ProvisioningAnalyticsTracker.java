@@ -47,8 +47,12 @@ import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
 import android.stats.devicepolicy.DevicePolicyEnums;
+import android.util.SparseArray;
 
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.managedprovisioning.common.LatencyHistogram;
 import com.android.managedprovisioning.common.ManagedProvisioningSharedPreferences;
+import com.android.managedprovisioning.common.ProvisionLogger;
 import com.android.managedprovisioning.common.SettingsFacade;
 import com.android.managedprovisioning.model.ProvisioningParams;
 import com.android.managedprovisioning.task.AbstractProvisioningTask;
@@ -83,11 +87,39 @@ public class ProvisioningAnalyticsTracker {
     private static final int DPC_SETUP_ACTION_PROVISIONING_SUCCESSFUL = 2;
     private static final int DPC_SETUP_ACTION_ADMIN_POLICY_COMPLIANCE = 3;
 
+    private static final String HISTOGRAM_PACKAGE_HASH_THROUGHPUT_KBPS =
+            "provisioning_package_hash_throughput_kbps";
+    private static final String HISTOGRAM_WIFI_ADD_NETWORK_ATTEMPT_MS =
+            "provisioning_wifi_add_network_attempt_ms";
+    private static final String HISTOGRAM_WIFI_RECONNECT_ATTEMPT_MS =
+            "provisioning_wifi_reconnect_attempt_ms";
+    private static final String HISTOGRAM_WIFI_ADD_NETWORK_ATTEMPTS =
+            "provisioning_wifi_add_network_attempts";
+    private static final String HISTOGRAM_WIFI_RECONNECT_ATTEMPTS =
+            "provisioning_wifi_reconnect_attempts";
+
+    private static ProvisioningAnalyticsTracker sInstance;
+
     private final MetricsWriter mMetricsWriter;
 
+    /** Durations recorded since the last flush, keyed by time category. */
+    private final SparseArray<LatencyHistogram> mPendingLatencies = new SparseArray<>();
+
+    /**
+     * Returns the process-wide tracker, which writes through the {@link SetupAwareMetricsWriter}.
+     */
+    public static synchronized ProvisioningAnalyticsTracker getInstance(Context context) {
+        if (sInstance == null) {
+            Context applicationContext = context.getApplicationContext();
+            sInstance = new ProvisioningAnalyticsTracker(
+                    SetupAwareMetricsWriter.getInstance(applicationContext),
+                    new ManagedProvisioningSharedPreferences(applicationContext));
+        }
+        return sInstance;
+    }
+
     public ProvisioningAnalyticsTracker(MetricsWriter metricsWriter,
             ManagedProvisioningSharedPreferences prefs) {
-        // Disables instantiation. Use getInstance() instead.
         mMetricsWriter = metricsWriter;
         mSharedPreferences = prefs;
     }
@@ -115,6 +147,7 @@ public class ProvisioningAnalyticsTracker {
                 .createEvent(DevicePolicyEnums.PROVISIONING_CANCELLED)
                 .setInt(cancelState)
                 .setTimePeriod(AnalyticsUtils.getProvisioningTime(mSharedPreferences)));
+        flushLatencies();
     }
 
     /**
@@ -132,6 +165,7 @@ public class ProvisioningAnalyticsTracker {
                 .createEvent(DevicePolicyEnums.PROVISIONING_ERROR)
                 .setStrings(AnalyticsUtils.getErrorString(task, errorCode))
                 .setTimePeriod(AnalyticsUtils.getProvisioningTime(mSharedPreferences)));
+        flushLatencies();
     }
 
     /**
@@ -170,6 +204,7 @@ public class ProvisioningAnalyticsTracker {
         mMetricsWriter.write(DevicePolicyEventLogger
                 .createEvent(DevicePolicyEnums.PROVISIONING_SESSION_COMPLETED)
                 .setTimePeriod(AnalyticsUtils.getProvisioningTime(mSharedPreferences)));
+        flushLatencies();
     }
 
     /**
@@ -229,6 +264,120 @@ public class ProvisioningAnalyticsTracker {
                 .setTimePeriod(AnalyticsUtils.getProvisioningTime(mSharedPreferences)));
     }
 
+    /**
+     * Adds a duration to the latency histogram of its time category. Durations are kept in
+     * memory and persisted under the current provisioning id when the provisioning session
+     * completes, is cancelled or fails.
+     *
+     * @param category the {@link TimeLogger.TimeCategory} the duration was measured for
+     * @param timeMillis the duration, in milliseconds
+     */
+    public void recordLatency(int category, long timeMillis) {
+        synchronized (mPendingLatencies) {
+            LatencyHistogram histogram = mPendingLatencies.get(category);
+            if (histogram == null) {
+                histogram = new LatencyHistogram();
+                mPendingLatencies.put(category, histogram);
+            }
+            histogram.record(timeMillis);
+        }
+    }
+
+    /**
+     * Returns the p50, p95 and p99 of the durations recorded for a time category across the
+     * provisioning sessions kept on the device, including durations not persisted yet.
+     *
+     * @param category the {@link TimeLogger.TimeCategory} the durations were measured for
+     */
+    public LatencyHistogram.Summary getLatencySummary(int category) {
+        LatencyHistogram histogram = mSharedPreferences.getLatencyHistogram(category);
+        synchronized (mPendingLatencies) {
+            LatencyHistogram pending = mPendingLatencies.get(category);
+            if (pending != null) {
+                histogram.merge(pending);
+            }
+        }
+        return histogram.getSummary();
+    }
+
+    /**
+     * Persists the durations recorded since the last flush in one write and logs the
+     * cross-session summary of every time category they were recorded for.
+     */
+    @VisibleForTesting
+    void flushLatencies() {
+        SparseArray<LatencyHistogram> pending;
+        synchronized (mPendingLatencies) {
+            if (mPendingLatencies.size() == 0) {
+                return;
+            }
+            pending = mPendingLatencies.clone();
+            mPendingLatencies.clear();
+        }
+        mSharedPreferences.recordLatencies(pending);
+        for (int i = 0; i < pending.size(); i++) {
+            int category = pending.keyAt(i);
+            ProvisionLogger.logi("Latency of time category " + category + ": "
+                    + getLatencySummary(category));
+        }
+    }
+
+    /**
+     * Logs how fast a downloaded package was hashed to verify its checksum.
+     *
+     * @param context Context passed to MetricsLogger
+     * @param bytes Size of the hashed package in bytes
+     * @param durationNanos Time it took to hash the package
+     */
+    public void logPackageHashThroughput(Context context, long bytes, long durationNanos) {
+        if (durationNanos <= 0) {
+            return;
+        }
+        final long kilobytesPerSecond = bytes * 1_000_000_000L / durationNanos / 1024;
+        ProvisionLogger.logd("Hashed " + bytes + " bytes in " + durationNanos / 1_000_000
+                + " ms (" + kilobytesPerSecond + " KiB/s)");
+        mMetricsLoggerWrapper.logHistogram(context, HISTOGRAM_PACKAGE_HASH_THROUGHPUT_KBPS,
+                (int) Math.min(Integer.MAX_VALUE, kilobytesPerSecond));
+    }
+
+    /**
+     * Logs how long an attempt to add the provisioning wifi network took.
+     *
+     * @param context Context passed to MetricsLogger
+     * @param durationMillis Time the attempt took
+     */
+    public void logWifiAddNetworkAttempt(Context context, long durationMillis) {
+        mMetricsLoggerWrapper.logHistogram(context, HISTOGRAM_WIFI_ADD_NETWORK_ATTEMPT_MS,
+                (int) Math.min(Integer.MAX_VALUE, durationMillis));
+    }
+
+    /**
+     * Logs how long an attempt to reconnect to the provisioning wifi network took.
+     *
+     * @param context Context passed to MetricsLogger
+     * @param durationMillis Time the attempt took
+     */
+    public void logWifiReconnectAttempt(Context context, long durationMillis) {
+        mMetricsLoggerWrapper.logHistogram(context, HISTOGRAM_WIFI_RECONNECT_ATTEMPT_MS,
+                (int) Math.min(Integer.MAX_VALUE, durationMillis));
+    }
+
+    /**
+     * Logs how many attempts it took to add the provisioning wifi network and to connect to it,
+     * once the wifi network task is done.
+     *
+     * @param context Context passed to MetricsLogger
+     * @param addNetworkAttempts Number of attempts to add the network
+     * @param reconnectAttempts Number of reconnects after the first connection attempt
+     */
+    public void logWifiConnectAttempts(Context context, int addNetworkAttempts,
+            int reconnectAttempts) {
+        mMetricsLoggerWrapper.logHistogram(context, HISTOGRAM_WIFI_ADD_NETWORK_ATTEMPTS,
+                addNetworkAttempts);
+        mMetricsLoggerWrapper.logHistogram(context, HISTOGRAM_WIFI_RECONNECT_ATTEMPTS,
+                reconnectAttempts);
+    }
+
     /**
      * Logs the provisioning action.
      *  @param context Context passed to MetricsLogger
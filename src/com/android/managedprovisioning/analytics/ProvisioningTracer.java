@@ -0,0 +1,204 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.managedprovisioning.analytics;
+
+import static java.util.Objects.requireNonNull;
+
+import android.annotation.Nullable;
+import android.os.SystemClock;
+import android.os.Trace;
+
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * Records nested spans of the provisioning flow: session, controller, task and the sub-steps of
+ * a task.
+ *
+ * <p>Every span is also an async {@link Trace} section, so that it shows up in Perfetto. Ended
+ * spans are kept in a ring of the most recent ones, which {@link #dump} prints.
+ *
+ * <p>Spans may end on a different thread than the one they started on, so their parent is always
+ * given explicitly.
+ */
+public class ProvisioningTracer {
+
+    @VisibleForTesting
+    static final int DEFAULT_CAPACITY = 256;
+    private static final long NOT_ENDED = Long.MIN_VALUE;
+
+    private static ProvisioningTracer sInstance;
+
+    private final LongSupplier mClock;
+    private final AtomicInteger mNextId = new AtomicInteger(1);
+
+    @GuardedBy("this")
+    private final Span[] mRecentSpans;
+    @GuardedBy("this")
+    private int mNextIndex;
+    @GuardedBy("this")
+    private int mSize;
+
+    public static synchronized ProvisioningTracer getInstance() {
+        if (sInstance == null) {
+            sInstance = new ProvisioningTracer(DEFAULT_CAPACITY, SystemClock::elapsedRealtimeNanos);
+        }
+        return sInstance;
+    }
+
+    @VisibleForTesting
+    ProvisioningTracer(int capacity, LongSupplier clock) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+        mRecentSpans = new Span[capacity];
+        mClock = requireNonNull(clock);
+    }
+
+    /**
+     * Starts a span. It must be ended with {@link Span#end()}, for example with a
+     * try-with-resources statement.
+     *
+     * @param name the name of the span, also used as the {@link Trace} section name
+     * @param parent the enclosing span, or {@code null} for a top-level span
+     */
+    public Span beginSpan(String name, @Nullable Span parent) {
+        return new Span(requireNonNull(name), parent, mNextId.getAndIncrement(),
+                mClock.getAsLong());
+    }
+
+    /**
+     * Returns the most recently ended spans, oldest first.
+     */
+    public synchronized List<Span> getRecentSpans() {
+        List<Span> result = new ArrayList<>(mSize);
+        int start = mNextIndex - mSize + mRecentSpans.length;
+        for (int i = 0; i < mSize; i++) {
+            result.add(mRecentSpans[(start + i) % mRecentSpans.length]);
+        }
+        return result;
+    }
+
+    /**
+     * Prints the most recently ended spans, oldest first, indented by depth.
+     */
+    public void dump(PrintWriter pw) {
+        List<Span> spans = getRecentSpans();
+        pw.println("Recent provisioning spans (" + spans.size() + "):");
+        for (Span span : spans) {
+            StringBuilder line = new StringBuilder("  ");
+            for (int i = 0; i < span.getDepth(); i++) {
+                line.append("  ");
+            }
+            line.append(span.getName())
+                    .append(" #").append(span.getId());
+            if (span.getParent() != null) {
+                line.append(" (parent #").append(span.getParent().getId()).append(')');
+            }
+            line.append(": ").append(span.getDurationMillis()).append(" ms");
+            pw.println(line);
+        }
+    }
+
+    private synchronized void onSpanEnded(Span span) {
+        mRecentSpans[mNextIndex] = span;
+        mNextIndex = (mNextIndex + 1) % mRecentSpans.length;
+        mSize = Math.min(mSize + 1, mRecentSpans.length);
+    }
+
+    /**
+     * A timed section of the provisioning flow.
+     */
+    public final class Span implements AutoCloseable {
+        private final String mName;
+        @Nullable private final Span mParent;
+        private final int mId;
+        private final int mDepth;
+        private final long mStartNanos;
+        /** The end time, or {@link #NOT_ENDED}. */
+        private final AtomicLong mEndNanos = new AtomicLong(NOT_ENDED);
+
+        private Span(String name, @Nullable Span parent, int id, long startNanos) {
+            mName = name;
+            mParent = parent;
+            mId = id;
+            mDepth = parent == null ? 0 : parent.mDepth + 1;
+            mStartNanos = startNanos;
+            if (Trace.isEnabled()) {
+                Trace.beginAsyncSection(mName, mId);
+            }
+        }
+
+        /**
+         * Ends the span. Calls after the first one are ignored.
+         */
+        public void end() {
+            if (!mEndNanos.compareAndSet(NOT_ENDED, mClock.getAsLong())) {
+                return;
+            }
+            if (Trace.isEnabled()) {
+                Trace.endAsyncSection(mName, mId);
+            }
+            onSpanEnded(this);
+        }
+
+        @Override
+        public void close() {
+            end();
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        @Nullable
+        public Span getParent() {
+            return mParent;
+        }
+
+        public int getId() {
+            return mId;
+        }
+
+        public int getDepth() {
+            return mDepth;
+        }
+
+        public boolean isEnded() {
+            return mEndNanos.get() != NOT_ENDED;
+        }
+
+        /**
+         * Returns the duration of the span, or the time since it started if it has not ended.
+         */
+        public long getDurationMillis() {
+            long end = mEndNanos.get();
+            if (end == NOT_ENDED) {
+                end = mClock.getAsLong();
+            }
+            return TimeUnit.NANOSECONDS.toMillis(end - mStartNanos);
+        }
+    }
+}
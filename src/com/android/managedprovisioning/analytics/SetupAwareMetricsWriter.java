@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.managedprovisioning.analytics;
+
+import static com.android.internal.util.Preconditions.checkNotNull;
+
+import android.app.admin.DevicePolicyEventLogger;
+import android.content.Context;
+import android.database.ContentObserver;
+import android.provider.Settings;
+
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.managedprovisioning.common.SettingsFacade;
+import com.android.managedprovisioning.provisioning.Constants;
+
+/**
+ * The process-wide {@link MetricsWriter}, which defers the metrics while the setup wizard is
+ * running and writes them instantly afterwards.
+ *
+ * <p>Unlike {@link MetricsWriterFactory#getMetricsWriter}, the choice is made on every write
+ * rather than once when the writer is created. The setup wizard state is read once and then
+ * updated when {@link Settings.Secure#USER_SETUP_COMPLETE} changes.
+ */
+public class SetupAwareMetricsWriter implements MetricsWriter {
+
+    private static SetupAwareMetricsWriter sInstance;
+
+    private final Context mContext;
+    private final SettingsFacade mSettingsFacade;
+    private final MetricsWriter mDeferredMetricsWriter;
+    private final MetricsWriter mInstantMetricsWriter;
+    private volatile boolean mDuringSetupWizard;
+
+    public static synchronized SetupAwareMetricsWriter getInstance(Context context) {
+        if (sInstance == null) {
+            Context applicationContext = context.getApplicationContext();
+            sInstance = new SetupAwareMetricsWriter(applicationContext, new SettingsFacade(),
+                    new DeferredMetricsWriter(
+                            Constants.getDeferredMetricsFile(applicationContext)),
+                    new InstantMetricsWriter());
+            sInstance.registerSetupCompleteObserver();
+        }
+        return sInstance;
+    }
+
+    @VisibleForTesting
+    SetupAwareMetricsWriter(Context context, SettingsFacade settingsFacade,
+            MetricsWriter deferredMetricsWriter, MetricsWriter instantMetricsWriter) {
+        mContext = checkNotNull(context);
+        mSettingsFacade = checkNotNull(settingsFacade);
+        mDeferredMetricsWriter = checkNotNull(deferredMetricsWriter);
+        mInstantMetricsWriter = checkNotNull(instantMetricsWriter);
+        updateSetupWizardState();
+    }
+
+    @Override
+    public void write(DevicePolicyEventLogger... loggers) {
+        if (mDuringSetupWizard) {
+            mDeferredMetricsWriter.write(loggers);
+        } else {
+            mInstantMetricsWriter.write(loggers);
+        }
+    }
+
+    /**
+     * Re-reads whether the setup wizard is running.
+     */
+    @VisibleForTesting
+    void updateSetupWizardState() {
+        mDuringSetupWizard = mSettingsFacade.isDuringSetupWizard(mContext);
+    }
+
+    private void registerSetupCompleteObserver() {
+        if (!mDuringSetupWizard) {
+            return;
+        }
+        mContext.getContentResolver().registerContentObserver(
+                Settings.Secure.getUriFor(Settings.Secure.USER_SETUP_COMPLETE),
+                /* notifyForDescendants= */ false,
+                new ContentObserver(/* handler= */ null) {
+                    @Override
+                    public void onChange(boolean selfChange) {
+                        updateSetupWizardState();
+                        if (!mDuringSetupWizard) {
+                            mContext.getContentResolver().unregisterContentObserver(this);
+                        }
+                    }
+                });
+    }
+}
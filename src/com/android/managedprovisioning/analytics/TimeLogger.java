@@ -32,8 +32,6 @@ import android.annotation.IntDef;
 import android.app.admin.DevicePolicyEventLogger;
 import android.content.Context;
 import com.android.internal.annotations.VisibleForTesting;
-import com.android.managedprovisioning.common.ManagedProvisioningSharedPreferences;
-import com.android.managedprovisioning.common.SettingsFacade;
 
 /**
  * Utility class to log time.
@@ -61,9 +59,7 @@ public class TimeLogger {
 
     public TimeLogger(Context context, @TimeCategory int category) {
         this(context, category, new MetricsLoggerWrapper(), new AnalyticsUtils(),
-                new ProvisioningAnalyticsTracker(
-                    MetricsWriterFactory.getMetricsWriter(context, new SettingsFacade()),
-                    new ManagedProvisioningSharedPreferences(context)));
+                ProvisioningAnalyticsTracker.getInstance(context));
     }
 
     @VisibleForTesting
@@ -98,6 +94,7 @@ public class TimeLogger {
             // Clear stored start time, we shouldn't log total time twice for same start time.
             mStartTime = null;
             mMetricsLoggerWrapper.logAction(mContext, mCategory, time);
+            mProvisioningTracker.recordLatency(mCategory, time);
             final int devicePolicyEvent =
                     AnalyticsUtils.getDevicePolicyEventForCategory(mCategory);
             if (devicePolicyEvent != CATEGORY_VIEW_UNKNOWN) {
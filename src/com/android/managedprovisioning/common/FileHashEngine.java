@@ -0,0 +1,170 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.managedprovisioning.common;
+
+import static java.util.Objects.requireNonNull;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Computes the hash of a file through a {@link FileChannel}.
+ *
+ * <p>The file is either read into a large direct {@link ByteBuffer} or, in {@link
+ * #MODE_MEMORY_MAPPED}, mapped into memory in windows of {@link #MAPPED_WINDOW_SIZE} bytes, so
+ * that hashing a large apk takes a handful of system calls instead of one per few hundred bytes.
+ * In {@link #MODE_AUTO}, files of at least {@link #MEMORY_MAPPED_THRESHOLD} bytes are mapped,
+ * where saving the copy into the buffer outweighs the cost of setting up the mapping.
+ */
+public final class FileHashEngine {
+
+    /** Reads the file into a reusable direct buffer. */
+    public static final int MODE_DIRECT_BUFFER = 0;
+    /** Maps the file into memory. */
+    public static final int MODE_MEMORY_MAPPED = 1;
+    /** Maps large files into memory and reads the others into a direct buffer. */
+    public static final int MODE_AUTO = 2;
+
+    public static final int DEFAULT_BUFFER_SIZE = 1024 * 1024;
+    static final long MAPPED_WINDOW_SIZE = 64L * 1024 * 1024;
+    static final long MEMORY_MAPPED_THRESHOLD = 8L * 1024 * 1024;
+
+    private final String mAlgorithm;
+    private final int mMode;
+    private final int mBufferSize;
+
+    /**
+     * Creates an engine that hashes with {@code algorithm} in {@link #MODE_AUTO}, through a
+     * direct buffer of {@link #DEFAULT_BUFFER_SIZE} bytes for small files.
+     */
+    public FileHashEngine(String algorithm) {
+        this(algorithm, MODE_AUTO, DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * @param algorithm the {@link MessageDigest} algorithm, e.g. {@link Utils#SHA256_TYPE}
+     * @param mode {@link #MODE_DIRECT_BUFFER}, {@link #MODE_MEMORY_MAPPED} or {@link #MODE_AUTO}
+     * @param bufferSize the size of the direct buffer, ignored for {@link #MODE_MEMORY_MAPPED}
+     */
+    public FileHashEngine(String algorithm, int mode, int bufferSize) {
+        mAlgorithm = requireNonNull(algorithm);
+        if (mode != MODE_DIRECT_BUFFER && mode != MODE_MEMORY_MAPPED && mode != MODE_AUTO) {
+            throw new IllegalArgumentException("Unknown mode " + mode);
+        }
+        if (bufferSize <= 0) {
+            throw new IllegalArgumentException("Buffer size must be positive.");
+        }
+        mMode = mode;
+        mBufferSize = bufferSize;
+    }
+
+    public String getAlgorithm() {
+        return mAlgorithm;
+    }
+
+    /**
+     * Hashes the given file.
+     *
+     * @throws NoSuchAlgorithmException if the algorithm of this engine is not supported
+     * @throws IOException if the file can not be read
+     */
+    public Result hash(File file) throws IOException, NoSuchAlgorithmException {
+        MessageDigest digest = MessageDigest.getInstance(mAlgorithm);
+        long startNanos = System.nanoTime();
+        long size;
+        try (FileInputStream in = new FileInputStream(file);
+             FileChannel channel = in.getChannel()) {
+            size = getMode(channel) == MODE_MEMORY_MAPPED
+                    ? hashMapped(channel, digest)
+                    : hashBuffered(channel, digest);
+        }
+        return new Result(digest.digest(), size, System.nanoTime() - startNanos);
+    }
+
+    private int getMode(FileChannel channel) throws IOException {
+        if (mMode != MODE_AUTO) {
+            return mMode;
+        }
+        return channel.size() >= MEMORY_MAPPED_THRESHOLD ? MODE_MEMORY_MAPPED : MODE_DIRECT_BUFFER;
+    }
+
+    private long hashBuffered(FileChannel channel, MessageDigest digest) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(mBufferSize);
+        long total = 0;
+        int read;
+        while ((read = channel.read(buffer)) != -1) {
+            if (read == 0) {
+                continue;
+            }
+            buffer.flip();
+            digest.update(buffer);
+            buffer.clear();
+            total += read;
+        }
+        return total;
+    }
+
+    private static long hashMapped(FileChannel channel, MessageDigest digest) throws IOException {
+        long size = channel.size();
+        for (long position = 0; position < size; position += MAPPED_WINDOW_SIZE) {
+            MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, position,
+                    Math.min(MAPPED_WINDOW_SIZE, size - position));
+            digest.update(window);
+        }
+        return size;
+    }
+
+    /**
+     * The hash of a file together with how long it took to compute it.
+     */
+    public static final class Result {
+        private final byte[] mHash;
+        private final long mBytes;
+        private final long mDurationNanos;
+
+        public Result(byte[] hash, long bytes, long durationNanos) {
+            mHash = requireNonNull(hash);
+            mBytes = bytes;
+            mDurationNanos = durationNanos;
+        }
+
+        public byte[] getHash() {
+            return mHash;
+        }
+
+        public long getBytes() {
+            return mBytes;
+        }
+
+        public long getDurationNanos() {
+            return mDurationNanos;
+        }
+
+        /**
+         * Returns the hashing throughput in bytes per second.
+         */
+        public long getBytesPerSecond() {
+            return mDurationNanos <= 0 ? 0 : mBytes * 1_000_000_000L / mDurationNanos;
+        }
+    }
+}
@@ -0,0 +1,279 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.managedprovisioning.common;
+
+import static android.content.pm.PackageManager.MATCH_HIDDEN_UNTIL_INSTALLED_COMPONENTS;
+import static android.content.pm.PackageManager.MATCH_UNINSTALLED_PACKAGES;
+
+import static java.util.Objects.requireNonNull;
+
+import android.annotation.Nullable;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageManager;
+import android.os.UserHandle;
+import android.util.SparseArray;
+
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Per-user snapshots of the installed applications, shared by everything in the process that
+ * needs to scan them.
+ *
+ * <p>A snapshot is loaded with a single {@link PackageManager#getInstalledApplications} call that
+ * includes uninstalled packages, so that it can answer every caller. It does not include meta
+ * data, which would make every load more expensive; callers that need it query it directly. Snapshots are
+ * dropped as soon as a task of this process installed or deleted packages, and when a package is
+ * added, removed or changed for any user.
+ */
+public class InstalledApplicationsCache {
+
+    /**
+     * Loads the applications of a user.
+     */
+    public interface Loader {
+        /**
+         * Returns the applications of the given user, or {@code null} if they can't be loaded.
+         */
+        @Nullable
+        List<ApplicationInfo> load(int userId);
+    }
+
+    private static final int LOAD_FLAGS =
+            MATCH_UNINSTALLED_PACKAGES | MATCH_HIDDEN_UNTIL_INSTALLED_COMPONENTS;
+
+    private static InstalledApplicationsCache sInstance;
+
+    private final Loader mLoader;
+
+    @GuardedBy("this")
+    private final SparseArray<Snapshot> mSnapshots = new SparseArray<>();
+    /** Incremented on every invalidation, so that snapshots loaded meanwhile aren't cached. */
+    @GuardedBy("this")
+    private int mGeneration;
+
+    public static synchronized InstalledApplicationsCache getInstance(Context context) {
+        if (sInstance == null) {
+            Context applicationContext = context.getApplicationContext();
+            sInstance = new InstalledApplicationsCache(
+                    userId -> loadApplications(applicationContext, userId));
+            sInstance.registerInvalidationReceiver(applicationContext);
+        }
+        return sInstance;
+    }
+
+    @VisibleForTesting
+    public InstalledApplicationsCache(Loader loader) {
+        mLoader = requireNonNull(loader);
+    }
+
+    /**
+     * Returns the snapshot of the applications of the given user, loading it if necessary.
+     */
+    public Snapshot getSnapshot(int userId) {
+        int generation;
+        synchronized (this) {
+            Snapshot snapshot = mSnapshots.get(userId);
+            if (snapshot != null) {
+                return snapshot;
+            }
+            generation = mGeneration;
+        }
+        List<ApplicationInfo> applications = mLoader.load(userId);
+        if (applications == null) {
+            return new Snapshot(Collections.emptyList());
+        }
+        Snapshot snapshot = new Snapshot(applications);
+        synchronized (this) {
+            if (generation == mGeneration) {
+                mSnapshots.put(userId, snapshot);
+            }
+        }
+        return snapshot;
+    }
+
+    /**
+     * Drops the snapshots of all users, for example after packages have been deleted.
+     */
+    public synchronized void invalidate() {
+        mGeneration++;
+        mSnapshots.clear();
+    }
+
+    /**
+     * Drops the snapshots of the process-wide instance, if it has been created. Called right
+     * after this process installed or deleted packages, as the package broadcasts that
+     * invalidate the cache as well arrive later.
+     */
+    public static void invalidateInstance() {
+        InstalledApplicationsCache instance;
+        synchronized (InstalledApplicationsCache.class) {
+            instance = sInstance;
+        }
+        if (instance != null) {
+            instance.invalidate();
+        }
+    }
+
+    private void registerInvalidationReceiver(Context context) {
+        IntentFilter filter = new IntentFilter();
+        filter.addAction(Intent.ACTION_PACKAGE_ADDED);
+        filter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        filter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+        filter.addAction(Intent.ACTION_PACKAGE_REPLACED);
+        filter.addDataScheme("package");
+        context.registerReceiverForAllUsers(new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                invalidate();
+            }
+        }, filter, /* broadcastPermission= */ null, /* scheduler= */ null);
+    }
+
+    @Nullable
+    private static List<ApplicationInfo> loadApplications(Context context, int userId) {
+        try {
+            return context.createPackageContextAsUser(
+                    /* packageName= */ "android", /* flags= */ 0, UserHandle.of(userId))
+                    .getPackageManager()
+                    .getInstalledApplications(LOAD_FLAGS);
+        } catch (PackageManager.NameNotFoundException e) {
+            ProvisionLogger.loge("Could not load the applications of user " + userId, e);
+            return null;
+        }
+    }
+
+    /**
+     * The applications of a user, indexed by {@link ApplicationInfo#flags} and uid.
+     *
+     * <p>Unless stated otherwise, lookups include packages that are not installed for the user.
+     * The returned {@link ApplicationInfo} objects are shared and must not be modified.
+     */
+    public static class Snapshot {
+        private final List<ApplicationInfo> mApplications;
+        private final List<ApplicationInfo> mInstalledApplications = new ArrayList<>();
+        /** Applications by the index of each bit set in their {@link ApplicationInfo#flags}. */
+        private final SparseArray<List<ApplicationInfo>> mByFlag = new SparseArray<>();
+        private final SparseArray<List<ApplicationInfo>> mByUid = new SparseArray<>();
+
+        @VisibleForTesting
+        public Snapshot(List<ApplicationInfo> applications) {
+            mApplications = Collections.unmodifiableList(new ArrayList<>(applications));
+            for (ApplicationInfo applicationInfo : mApplications) {
+                if (isInstalled(applicationInfo)) {
+                    mInstalledApplications.add(applicationInfo);
+                }
+                for (int bit = 0; bit < Integer.SIZE; bit++) {
+                    if ((applicationInfo.flags & (1 << bit)) != 0) {
+                        getOrCreate(mByFlag, bit).add(applicationInfo);
+                    }
+                }
+                getOrCreate(mByUid, applicationInfo.uid).add(applicationInfo);
+            }
+        }
+
+        /**
+         * Returns all applications, including those that are not installed for the user.
+         */
+        public List<ApplicationInfo> getApplications() {
+            return mApplications;
+        }
+
+        /**
+         * Returns the applications that are installed for the user.
+         */
+        public List<ApplicationInfo> getInstalledApplications() {
+            return Collections.unmodifiableList(mInstalledApplications);
+        }
+
+        /**
+         * Returns the applications that have all of the given {@link ApplicationInfo#flags}.
+         */
+        public List<ApplicationInfo> getApplicationsWithFlags(int flags) {
+            if (flags == 0) {
+                return mApplications;
+            }
+            // Start from the smallest index among the requested flags.
+            List<ApplicationInfo> candidates = null;
+            for (int bit = 0; bit < Integer.SIZE; bit++) {
+                if ((flags & (1 << bit)) == 0) {
+                    continue;
+                }
+                List<ApplicationInfo> withFlag = mByFlag.get(bit);
+                if (withFlag == null) {
+                    return Collections.emptyList();
+                }
+                if (candidates == null || withFlag.size() < candidates.size()) {
+                    candidates = withFlag;
+                }
+            }
+            List<ApplicationInfo> result = new ArrayList<>();
+            for (ApplicationInfo applicationInfo : candidates) {
+                if ((applicationInfo.flags & flags) == flags) {
+                    result.add(applicationInfo);
+                }
+            }
+            return result;
+        }
+
+        /**
+         * Returns the package names of the applications that have all of the given {@link
+         * ApplicationInfo#flags}, as a modifiable set.
+         */
+        public Set<String> getPackageNamesWithFlags(int flags) {
+            Set<String> result = new HashSet<>();
+            for (ApplicationInfo applicationInfo : getApplicationsWithFlags(flags)) {
+                result.add(applicationInfo.packageName);
+            }
+            return result;
+        }
+
+        /**
+         * Returns the applications that share the given uid.
+         */
+        public List<ApplicationInfo> getApplicationsForUid(int uid) {
+            List<ApplicationInfo> result = mByUid.get(uid);
+            return result == null
+                    ? Collections.emptyList() : Collections.unmodifiableList(result);
+        }
+
+        private static boolean isInstalled(ApplicationInfo applicationInfo) {
+            return (applicationInfo.flags & ApplicationInfo.FLAG_INSTALLED) != 0
+                    && !applicationInfo.hiddenUntilInstalled;
+        }
+
+        private static List<ApplicationInfo> getOrCreate(
+                SparseArray<List<ApplicationInfo>> index, int key) {
+            List<ApplicationInfo> list = index.get(key);
+            if (list == null) {
+                list = new ArrayList<>();
+                index.put(key, list);
+            }
+            return list;
+        }
+    }
+}
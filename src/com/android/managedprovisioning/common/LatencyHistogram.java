@@ -0,0 +1,193 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.managedprovisioning.common;
+
+import android.annotation.Nullable;
+
+/**
+ * A histogram of durations in milliseconds with fixed log-linear buckets.
+ *
+ * <p>Values below {@link #SUB_BUCKET_COUNT} get a bucket each. Every power of two above is split
+ * into {@link #SUB_BUCKET_COUNT} equal buckets, so a percentile is off by at most 12.5% over the
+ * whole {@code int} range with {@link #BUCKET_COUNT} counters.
+ */
+public final class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 3;
+    static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    private static final int MAX_EXPONENT = Integer.SIZE - 2;
+    static final int BUCKET_COUNT =
+            SUB_BUCKET_COUNT + (MAX_EXPONENT - SUB_BUCKET_BITS + 1) * SUB_BUCKET_COUNT;
+
+    private static final String ENCODING_VERSION = "1";
+
+    private final long[] mCounts = new long[BUCKET_COUNT];
+    private long mTotalCount;
+    private long mMaxValue;
+
+    /**
+     * Records a duration. Negative values count as 0 and values above {@link Integer#MAX_VALUE}
+     * as {@link Integer#MAX_VALUE}.
+     */
+    public void record(long millis) {
+        long value = Math.max(0, Math.min(Integer.MAX_VALUE, millis));
+        mCounts[getBucketIndex(value)]++;
+        mTotalCount++;
+        mMaxValue = Math.max(mMaxValue, value);
+    }
+
+    /**
+     * Adds the values recorded in {@code other} to this histogram.
+     */
+    public void merge(LatencyHistogram other) {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            mCounts[i] += other.mCounts[i];
+        }
+        mTotalCount += other.mTotalCount;
+        mMaxValue = Math.max(mMaxValue, other.mMaxValue);
+    }
+
+    public long getCount() {
+        return mTotalCount;
+    }
+
+    /**
+     * Returns the smallest recorded bucket bound below which {@code percentile} percent of the
+     * values fall, or 0 if nothing has been recorded.
+     */
+    public long getPercentile(double percentile) {
+        if (mTotalCount == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * mTotalCount));
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += mCounts[i];
+            if (seen >= rank) {
+                return Math.min(getBucketUpperBound(i), mMaxValue);
+            }
+        }
+        return mMaxValue;
+    }
+
+    /**
+     * Returns the p50, p95 and p99 of the recorded values.
+     */
+    public Summary getSummary() {
+        return new Summary(mTotalCount, getPercentile(50), getPercentile(95), getPercentile(99),
+                mMaxValue);
+    }
+
+    /**
+     * Returns a compact string form of the non-empty buckets, which {@link #decode} reads back.
+     */
+    public String encode() {
+        StringBuilder builder = new StringBuilder(ENCODING_VERSION)
+                .append(';').append(mMaxValue).append(';');
+        boolean first = true;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            if (mCounts[i] == 0) {
+                continue;
+            }
+            if (!first) {
+                builder.append(',');
+            }
+            builder.append(i).append(':').append(mCounts[i]);
+            first = false;
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Reads a histogram written by {@link #encode}. Returns an empty histogram if {@code encoded}
+     * is {@code null} or malformed.
+     */
+    public static LatencyHistogram decode(@Nullable String encoded) {
+        LatencyHistogram histogram = new LatencyHistogram();
+        if (encoded == null) {
+            return histogram;
+        }
+        String[] parts = encoded.split(";", -1);
+        if (parts.length != 3 || !ENCODING_VERSION.equals(parts[0])) {
+            ProvisionLogger.logw("Ignoring latency histogram in unknown format");
+            return histogram;
+        }
+        try {
+            long maxValue = Long.parseLong(parts[1]);
+            if (!parts[2].isEmpty()) {
+                for (String bucket : parts[2].split(",")) {
+                    int separator = bucket.indexOf(':');
+                    int index = Integer.parseInt(bucket.substring(0, separator));
+                    long count = Long.parseLong(bucket.substring(separator + 1));
+                    if (index < 0 || index >= BUCKET_COUNT || count < 0) {
+                        throw new IllegalArgumentException("Invalid bucket " + bucket);
+                    }
+                    histogram.mCounts[index] += count;
+                    histogram.mTotalCount += count;
+                }
+            }
+            histogram.mMaxValue = maxValue;
+        } catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+            ProvisionLogger.logw("Ignoring malformed latency histogram", e);
+            return new LatencyHistogram();
+        }
+        return histogram;
+    }
+
+    static int getBucketIndex(long value) {
+        if (value < SUB_BUCKET_COUNT) {
+            return (int) value;
+        }
+        int exponent = Long.SIZE - 1 - Long.numberOfLeadingZeros(value);
+        int shift = exponent - SUB_BUCKET_BITS;
+        int subBucket = (int) (value >> shift) - SUB_BUCKET_COUNT;
+        return SUB_BUCKET_COUNT + shift * SUB_BUCKET_COUNT + subBucket;
+    }
+
+    static long getBucketUpperBound(int index) {
+        if (index < SUB_BUCKET_COUNT) {
+            return index;
+        }
+        int shift = (index - SUB_BUCKET_COUNT) / SUB_BUCKET_COUNT;
+        int subBucket = (index - SUB_BUCKET_COUNT) % SUB_BUCKET_COUNT;
+        return ((long) (SUB_BUCKET_COUNT + subBucket + 1) << shift) - 1;
+    }
+
+    /**
+     * Percentiles of a {@link LatencyHistogram}, in milliseconds.
+     */
+    public static final class Summary {
+        public final long count;
+        public final long p50;
+        public final long p95;
+        public final long p99;
+        public final long max;
+
+        Summary(long count, long p50, long p95, long p99, long max) {
+            this.count = count;
+            this.p50 = p50;
+            this.p95 = p95;
+            this.p99 = p99;
+            this.max = max;
+        }
+
+        @Override
+        public String toString() {
+            return "count=" + count + " p50=" + p50 + "ms p95=" + p95 + "ms p99=" + p99
+                    + "ms max=" + max + "ms";
+        }
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.managedprovisioning.common;
+
+import android.annotation.Nullable;
+import android.util.Log;
+
+import com.android.internal.annotations.GuardedBy;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * A fixed-size ring of the most recent log records.
+ *
+ * <p>The record slots are allocated once and reused. Records keep the formatted message and the
+ * description of the throwable, never the logged objects themselves, so the ring does not keep
+ * them alive.
+ */
+final class LogFlightRecorder {
+
+    private static final class Record {
+        long mTimeMillis;
+        int mPriority;
+        String mThreadName;
+        String mMessage;
+        String mThrowable;
+    }
+
+    @GuardedBy("this")
+    private final Record[] mRecords;
+    @GuardedBy("this")
+    private int mNextIndex;
+    @GuardedBy("this")
+    private int mSize;
+
+    LogFlightRecorder(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+        mRecords = new Record[capacity];
+        for (int i = 0; i < capacity; i++) {
+            mRecords[i] = new Record();
+        }
+    }
+
+    /**
+     * Records a log call.
+     */
+    void record(int priority, String message, @Nullable Throwable throwable) {
+        String throwableDescription = throwable == null ? null : throwable.toString();
+        String threadName = Thread.currentThread().getName();
+        synchronized (this) {
+            Record record = mRecords[mNextIndex];
+            record.mTimeMillis = System.currentTimeMillis();
+            record.mPriority = priority;
+            record.mThreadName = threadName;
+            record.mMessage = message;
+            record.mThrowable = throwableDescription;
+            mNextIndex = (mNextIndex + 1) % mRecords.length;
+            mSize = Math.min(mSize + 1, mRecords.length);
+        }
+    }
+
+    /**
+     * Returns the records, oldest first.
+     */
+    List<String> dump() {
+        List<String> lines = new ArrayList<>();
+        SimpleDateFormat dateFormat = new SimpleDateFormat("MM-dd HH:mm:ss.SSS", Locale.US);
+        synchronized (this) {
+            int start = mNextIndex - mSize + mRecords.length;
+            for (int i = 0; i < mSize; i++) {
+                Record record = mRecords[(start + i) % mRecords.length];
+                StringBuilder line = new StringBuilder()
+                        .append(dateFormat.format(new Date(record.mTimeMillis)))
+                        .append(' ').append(priorityLetter(record.mPriority))
+                        .append(' ').append(record.mThreadName)
+                        .append(": ").append(record.mMessage);
+                if (record.mThrowable != null) {
+                    line.append(" [").append(record.mThrowable).append(']');
+                }
+                lines.add(line.toString());
+            }
+        }
+        return lines;
+    }
+
+    synchronized void clear() {
+        for (Record record : mRecords) {
+            record.mMessage = null;
+            record.mThrowable = null;
+        }
+        mNextIndex = 0;
+        mSize = 0;
+    }
+
+    private static char priorityLetter(int priority) {
+        switch (priority) {
+            case Log.VERBOSE:
+                return 'V';
+            case Log.DEBUG:
+                return 'D';
+            case Log.INFO:
+                return 'I';
+            case Log.WARN:
+                return 'W';
+            default:
+                return 'E';
+        }
+    }
+}
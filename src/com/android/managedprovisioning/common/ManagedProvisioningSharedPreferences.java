@@ -17,9 +17,14 @@ package com.android.managedprovisioning.common;
 
 import android.content.Context;
 import android.content.SharedPreferences;
+import android.text.TextUtils;
+import android.util.SparseArray;
 
 import androidx.annotation.VisibleForTesting;
 
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  * Default implementation of {@link com.android.managedprovisioning.common.SharedPreferences}.
  */
@@ -54,6 +59,12 @@ public class ManagedProvisioningSharedPreferences implements
             "is_provisioning_flow_delegated_to_role_holder";
     private static final String KEY_IS_ESTABLISH_NETWORK_CONNECTION_RUN =
             "is_establish_network_connection_run";
+    @VisibleForTesting
+    static final String KEY_LATENCY_HISTOGRAM_PREFIX = "latency_histogram_";
+    private static final String KEY_LATENCY_PROVISIONING_IDS = "latency_histogram_provisioning_ids";
+    private static final String KEY_LATENCY_CATEGORIES = "latency_histogram_categories";
+    @VisibleForTesting
+    static final int MAX_LATENCY_PROVISIONING_SESSIONS = 10;
 
     private final SharedPreferences mSharedPreferences;
 
@@ -80,6 +91,108 @@ public class ManagedProvisioningSharedPreferences implements
         }
     }
 
+    /**
+     * Merges the durations recorded during the current provisioning session into the histograms
+     * kept under its provisioning id, in a single write. Only the histograms of the last
+     * {@link #MAX_LATENCY_PROVISIONING_SESSIONS} provisioning sessions are kept.
+     *
+     * @param histograms the histograms to merge, keyed by time category
+     */
+    public void recordLatencies(SparseArray<LatencyHistogram> histograms) {
+        if (histograms.size() == 0) {
+            return;
+        }
+        synchronized (sWriteLock) {
+            long provisioningId = getProvisioningId();
+            SharedPreferences.Editor editor = mSharedPreferences.edit();
+            List<Integer> categories = getLatencyCategories();
+            boolean newCategories = false;
+            for (int i = 0; i < histograms.size(); i++) {
+                int category = histograms.keyAt(i);
+                LatencyHistogram histogram = getLatencyHistogram(category, provisioningId);
+                histogram.merge(histograms.valueAt(i));
+                editor.putString(getLatencyHistogramKey(provisioningId, category),
+                        histogram.encode());
+                if (!categories.contains(category)) {
+                    categories.add(category);
+                    newCategories = true;
+                }
+            }
+            if (newCategories) {
+                editor.putString(KEY_LATENCY_CATEGORIES, TextUtils.join(",", categories));
+            }
+            List<Long> provisioningIds = getLatencyProvisioningIds();
+            if (!provisioningIds.contains(provisioningId)) {
+                provisioningIds.add(provisioningId);
+            }
+            while (provisioningIds.size() > MAX_LATENCY_PROVISIONING_SESSIONS) {
+                long removedProvisioningId = provisioningIds.remove(0);
+                for (int category : categories) {
+                    editor.remove(getLatencyHistogramKey(removedProvisioningId, category));
+                }
+            }
+            editor.putString(KEY_LATENCY_PROVISIONING_IDS, TextUtils.join(",", provisioningIds))
+                    .apply();
+        }
+    }
+
+    /**
+     * Returns the histogram of the durations recorded for the given time category across the
+     * provisioning sessions that are still kept.
+     */
+    public LatencyHistogram getLatencyHistogram(int category) {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long provisioningId : getLatencyProvisioningIds()) {
+            histogram.merge(getLatencyHistogram(category, provisioningId));
+        }
+        return histogram;
+    }
+
+    /**
+     * Returns the histogram of the durations recorded for the given time category during the
+     * provisioning session with the given id.
+     */
+    public LatencyHistogram getLatencyHistogram(int category, long provisioningId) {
+        return LatencyHistogram.decode(mSharedPreferences.getString(
+                getLatencyHistogramKey(provisioningId, category), null));
+    }
+
+    /**
+     * Returns the ids of the provisioning sessions whose histograms are kept, oldest first.
+     */
+    public List<Long> getLatencyProvisioningIds() {
+        List<Long> provisioningIds = new ArrayList<>();
+        String encoded = mSharedPreferences.getString(KEY_LATENCY_PROVISIONING_IDS, "");
+        for (String provisioningId : TextUtils.split(encoded, ",")) {
+            try {
+                provisioningIds.add(Long.parseLong(provisioningId));
+            } catch (NumberFormatException e) {
+                ProvisionLogger.logw("Ignoring malformed provisioning id " + provisioningId);
+            }
+        }
+        return provisioningIds;
+    }
+
+    /**
+     * Returns the time categories histograms have been recorded for.
+     */
+    private List<Integer> getLatencyCategories() {
+        List<Integer> categories = new ArrayList<>();
+        String encoded = mSharedPreferences.getString(KEY_LATENCY_CATEGORIES, "");
+        for (String category : TextUtils.split(encoded, ",")) {
+            try {
+                categories.add(Integer.parseInt(category));
+            } catch (NumberFormatException e) {
+                ProvisionLogger.logw("Ignoring malformed time category " + category);
+            }
+        }
+        return categories;
+    }
+
+    private static String getLatencyHistogramKey(long provisioningId, int category) {
+        return KEY_LATENCY_HISTOGRAM_PREFIX + provisioningId + "_" + category;
+    }
+
     /**
      * @param time the provisioning started timestamp, in milliseconds
      */
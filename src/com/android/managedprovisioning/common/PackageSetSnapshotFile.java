@@ -0,0 +1,330 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.managedprovisioning.common;
+
+import static java.util.Objects.requireNonNull;
+
+import android.util.AtomicFile;
+import android.util.Xml;
+
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A set of package names persisted in a compact binary file.
+ *
+ * <p>The file is written through {@link AtomicFile} and has the following layout:
+ * <pre>
+ *     int     magic
+ *     int     version
+ *     varint  number of package names
+ *     for each package name, in sorted order:
+ *         varint  length of the prefix shared with the previous package name
+ *         varint  length of the remaining suffix, in bytes
+ *         byte[]  the suffix, UTF-8 encoded
+ * </pre>
+ * Package names share long prefixes such as {@code com.android.}, so front coding them keeps the
+ * file small and the parse a single pass without any allocation besides the strings themselves.
+ *
+ * <p>If only the XML file written by earlier versions exists, it is read and transparently
+ * migrated to the binary format.
+ *
+ * <p>Read snapshots are cached for the lifetime of the process, keyed by file and validated
+ * against its size and modification time, so that repeated reads don't parse the file again.
+ */
+public final class PackageSetSnapshotFile {
+    private static final int MAGIC = 0x4d505353; // "MPSS"
+    private static final int VERSION = 1;
+    private static final String BINARY_SUFFIX = ".bin";
+    private static final String XML_SUFFIX = ".xml";
+    private static final String TAG_PACKAGE_LIST_ITEM = "item";
+    private static final String ATTR_VALUE = "value";
+
+    @GuardedBy("sCache")
+    private static final Map<String, CacheEntry> sCache = new HashMap<>();
+
+    private final File mBinaryFile;
+    private final File mXmlFile;
+
+    /**
+     * @param folder the folder the snapshot is stored in
+     * @param baseName the file name of the snapshot, without extension
+     */
+    public PackageSetSnapshotFile(File folder, String baseName) {
+        requireNonNull(folder);
+        requireNonNull(baseName);
+        mBinaryFile = new File(folder, baseName + BINARY_SUFFIX);
+        mXmlFile = new File(folder, baseName + XML_SUFFIX);
+    }
+
+    /**
+     * Returns whether a snapshot has been written, in either format.
+     */
+    public boolean exists() {
+        return mBinaryFile.exists() || mXmlFile.exists();
+    }
+
+    /**
+     * Returns a modifiable copy of the stored package names, or an empty set if there is no
+     * snapshot or it can't be read.
+     */
+    public Set<String> read() {
+        if (!mBinaryFile.exists() && mXmlFile.exists()) {
+            migrateFromXml();
+        }
+        synchronized (sCache) {
+            String key = mBinaryFile.getAbsolutePath();
+            if (!mBinaryFile.exists()) {
+                sCache.remove(key);
+                return new HashSet<>();
+            }
+            CacheEntry entry = sCache.get(key);
+            if (entry == null || !entry.matches(mBinaryFile)) {
+                try {
+                    entry = new CacheEntry(mBinaryFile, readBinary(mBinaryFile));
+                } catch (IOException e) {
+                    ProvisionLogger.loge("IOException trying to read " + mBinaryFile, e);
+                    return new HashSet<>();
+                }
+                sCache.put(key, entry);
+            }
+            return new HashSet<>(entry.mPackageNames);
+        }
+    }
+
+    /**
+     * Replaces the stored package names with {@code packageNames}.
+     */
+    public void write(Set<String> packageNames) {
+        mBinaryFile.getParentFile().mkdirs(); // Creating the folder if it does not exist
+        synchronized (sCache) {
+            AtomicFile atomicFile = new AtomicFile(mBinaryFile);
+            FileOutputStream stream = null;
+            try {
+                stream = atomicFile.startWrite();
+                stream.write(encode(packageNames));
+                atomicFile.finishWrite(stream);
+            } catch (IOException e) {
+                ProvisionLogger.loge("IOException trying to write " + mBinaryFile, e);
+                atomicFile.failWrite(stream);
+                return;
+            }
+            sCache.put(mBinaryFile.getAbsolutePath(), new CacheEntry(mBinaryFile,
+                    Collections.unmodifiableSet(new HashSet<>(packageNames))));
+        }
+        mXmlFile.delete();
+    }
+
+    private void migrateFromXml() {
+        ProvisionLogger.logi("Migrating " + mXmlFile + " to the binary snapshot format");
+        Set<String> packageNames;
+        try (InputStream stream = new BufferedInputStream(new FileInputStream(mXmlFile))) {
+            packageNames = readXml(stream);
+        } catch (IOException | XmlPullParserException e) {
+            ProvisionLogger.loge("Exception trying to read " + mXmlFile, e);
+            return;
+        }
+        write(packageNames);
+    }
+
+    @VisibleForTesting
+    static void clearCache() {
+        synchronized (sCache) {
+            sCache.clear();
+        }
+    }
+
+    /**
+     * Encodes {@code packageNames} in the binary snapshot format.
+     */
+    @VisibleForTesting
+    static byte[] encode(Collection<String> packageNames) throws IOException {
+        List<byte[]> sorted = new ArrayList<>(packageNames.size());
+        for (String packageName : packageNames) {
+            sorted.add(packageName.getBytes(StandardCharsets.UTF_8));
+        }
+        sorted.sort(PackageSetSnapshotFile::compareBytes);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(16 * sorted.size() + 16);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        writeVarInt(out, sorted.size());
+        byte[] previous = new byte[0];
+        for (byte[] current : sorted) {
+            int prefix = commonPrefixLength(previous, current);
+            writeVarInt(out, prefix);
+            writeVarInt(out, current.length - prefix);
+            out.write(current, prefix, current.length - prefix);
+            previous = current;
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Decodes a set of package names written by {@link #encode}.
+     */
+    @VisibleForTesting
+    static Set<String> decode(InputStream stream) throws IOException {
+        DataInputStream in = new DataInputStream(stream);
+        if (in.readInt() != MAGIC) {
+            throw new IOException("Not a package snapshot");
+        }
+        int version = in.readInt();
+        if (version != VERSION) {
+            throw new IOException("Unsupported package snapshot version " + version);
+        }
+        int count = readVarInt(in);
+        Set<String> result = new HashSet<>(Math.max(16, count * 4 / 3 + 1));
+        byte[] buffer = new byte[256];
+        int previousLength = 0;
+        for (int i = 0; i < count; i++) {
+            int prefix = readVarInt(in);
+            int suffix = readVarInt(in);
+            if (prefix > previousLength) {
+                throw new IOException("Corrupt package snapshot");
+            }
+            int length = prefix + suffix;
+            if (length > buffer.length) {
+                byte[] grown = new byte[Math.max(length, buffer.length * 2)];
+                System.arraycopy(buffer, 0, grown, 0, prefix);
+                buffer = grown;
+            }
+            in.readFully(buffer, prefix, suffix);
+            result.add(new String(buffer, 0, length, StandardCharsets.UTF_8));
+            previousLength = length;
+        }
+        return Collections.unmodifiableSet(result);
+    }
+
+    private static Set<String> readBinary(File file) throws IOException {
+        try (InputStream stream = new BufferedInputStream(new FileInputStream(file))) {
+            return decode(stream);
+        }
+    }
+
+    /**
+     * Reads the package names of the XML format written by earlier versions. Every {@code item}
+     * tag holds one package name in its {@code value} attribute.
+     */
+    private static Set<String> readXml(InputStream stream)
+            throws IOException, XmlPullParserException {
+        Set<String> result = new HashSet<>();
+        XmlPullParser parser = Xml.newPullParser();
+        parser.setInput(stream, null);
+        parser.next();
+
+        int type;
+        int outerDepth = parser.getDepth();
+        while ((type = parser.next()) != XmlPullParser.END_DOCUMENT
+                && (type != XmlPullParser.END_TAG || parser.getDepth() > outerDepth)) {
+            if (type == XmlPullParser.END_TAG || type == XmlPullParser.TEXT) {
+                continue;
+            }
+            String tag = parser.getName();
+            if (tag.equals(TAG_PACKAGE_LIST_ITEM)) {
+                result.add(parser.getAttributeValue(null, ATTR_VALUE));
+            } else {
+                ProvisionLogger.loge("Unknown tag: " + tag);
+            }
+        }
+        return result;
+    }
+
+    private static int compareBytes(byte[] a, byte[] b) {
+        int length = Math.min(a.length, b.length);
+        for (int i = 0; i < length; i++) {
+            int diff = (a[i] & 0xff) - (b[i] & 0xff);
+            if (diff != 0) {
+                return diff;
+            }
+        }
+        return a.length - b.length;
+    }
+
+    private static int commonPrefixLength(byte[] a, byte[] b) {
+        int length = Math.min(a.length, b.length);
+        int i = 0;
+        while (i < length && a[i] == b[i]) {
+            i++;
+        }
+        return i;
+    }
+
+    private static void writeVarInt(DataOutputStream out, int value) throws IOException {
+        while ((value & ~0x7f) != 0) {
+            out.writeByte((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    private static int readVarInt(DataInputStream in) throws IOException {
+        int result = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = in.read();
+            if (b < 0) {
+                throw new EOFException();
+            }
+            result |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return result;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    private static final class CacheEntry {
+        final long mLength;
+        final long mLastModified;
+        final Set<String> mPackageNames;
+
+        CacheEntry(File file, Set<String> packageNames) {
+            mLength = file.length();
+            mLastModified = file.lastModified();
+            mPackageNames = packageNames;
+        }
+
+        boolean matches(File file) {
+            return file.length() == mLength && file.lastModified() == mLastModified;
+        }
+    }
+}
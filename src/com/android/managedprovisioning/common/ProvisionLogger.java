@@ -20,12 +20,27 @@ import android.content.Context;
 import android.util.Log;
 import android.widget.Toast;
 
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.IllegalFormatException;
+import java.util.List;
+import java.util.Locale;
+
 /**
  * Utility class to centralize the logging in the Provisioning app.
+ *
+ * <p>Every call is also kept by an in-memory flight recorder of the most recent records, see
+ * {@link #dumpFlightRecorder()}.
  */
 public class ProvisionLogger {
     private static final String TAG = "ManagedProvisioning";
     private static final boolean LOG_ENABLED = true;
+    private static final int FLIGHT_RECORDER_CAPACITY = 512;
+
+    private static final LogFlightRecorder sFlightRecorder =
+            new LogFlightRecorder(FLIGHT_RECORDER_CAPACITY);
 
     // Never commit this as true.
     public static final boolean IS_DEBUG_BUILD = false;
@@ -34,6 +49,7 @@ public class ProvisionLogger {
      * Log the message at DEBUG level.
      */
     public static void logd(String message) {
+        recordMessage(Log.DEBUG, message, null);
         if (LOG_ENABLED) {
             Log.d(getTag(), message);
         }
@@ -43,6 +59,7 @@ public class ProvisionLogger {
      * Log the message at DEBUG level.
      */
     public static void logd(String message, Throwable t) {
+        recordMessage(Log.DEBUG, message, t);
         if (LOG_ENABLED) {
             Log.d(getTag(), message, t);
         }
@@ -52,6 +69,7 @@ public class ProvisionLogger {
      * Log the message at DEBUG level.
      */
     public static void logd(Throwable t) {
+        recordMessage(Log.DEBUG, "", t);
         if (LOG_ENABLED) {
             Log.d(getTag(), "", t);
         }
@@ -61,6 +79,7 @@ public class ProvisionLogger {
      * Log the message at VERBOSE level.
      */
     public static void logv(String message) {
+        recordMessage(Log.VERBOSE, message, null);
         if (LOG_ENABLED) {
             Log.v(getTag(), message);
         }
@@ -70,6 +89,7 @@ public class ProvisionLogger {
      * Log the message at VERBOSE level.
      */
     public static void logv(String message, Throwable t) {
+        recordMessage(Log.VERBOSE, message, t);
         if (LOG_ENABLED) {
             Log.v(getTag(), message, t);
         }
@@ -79,6 +99,7 @@ public class ProvisionLogger {
      * Log the message at VERBOSE level.
      */
     public static void logv(Throwable t) {
+        recordMessage(Log.VERBOSE, "", t);
         if (LOG_ENABLED) {
             Log.v(getTag(), "", t);
         }
@@ -88,6 +109,7 @@ public class ProvisionLogger {
      * Log the message at INFO level.
      */
     public static void logi(String message) {
+        recordMessage(Log.INFO, message, null);
         if (LOG_ENABLED) {
             Log.i(getTag(), message);
         }
@@ -97,6 +119,7 @@ public class ProvisionLogger {
      * Log the message at INFO level.
      */
     public static void logi(String message, Throwable t) {
+        recordMessage(Log.INFO, message, t);
         if (LOG_ENABLED) {
             Log.i(getTag(), message, t);
         }
@@ -106,6 +129,7 @@ public class ProvisionLogger {
      * Log the message at INFO level.
      */
     public static void logi(Throwable t) {
+        recordMessage(Log.INFO, "", t);
         if (LOG_ENABLED) {
             Log.i(getTag(), "", t);
         }
@@ -115,6 +139,7 @@ public class ProvisionLogger {
      * Log the message at WARNING level.
      */
     public static void logw(String message) {
+        recordMessage(Log.WARN, message, null);
         if (LOG_ENABLED) {
             Log.w(getTag(), message);
         }
@@ -124,6 +149,7 @@ public class ProvisionLogger {
      * Log the message at WARNING level.
      */
     public static void logw(String message, Throwable t) {
+        recordMessage(Log.WARN, message, t);
         if (LOG_ENABLED) {
             Log.w(getTag(), message, t);
         }
@@ -133,6 +159,7 @@ public class ProvisionLogger {
      * Log the message at WARNING level.
      */
     public static void logw(Throwable t) {
+        recordMessage(Log.WARN, "", t);
         if (LOG_ENABLED) {
             Log.w(getTag(), "", t);
         }
@@ -142,6 +169,7 @@ public class ProvisionLogger {
      * Log the message at ERROR level.
      */
     public static void loge(String message) {
+        recordMessage(Log.ERROR, message, null);
         if (LOG_ENABLED) {
             Log.e(getTag(), message);
         }
@@ -151,6 +179,7 @@ public class ProvisionLogger {
      * Log the message at ERROR level.
      */
     public static void loge(String message, Throwable t) {
+        recordMessage(Log.ERROR, message, t);
         if (LOG_ENABLED) {
             Log.e(getTag(), message, t);
         }
@@ -160,11 +189,97 @@ public class ProvisionLogger {
      * Log the message at ERROR level.
      */
     public static void loge(Throwable t) {
+        recordMessage(Log.ERROR, "", t);
         if (LOG_ENABLED) {
             Log.e(getTag(), "", t);
         }
     }
 
+    /**
+     * Log at DEBUG level a message formatted with {@link String#format}.
+     */
+    public static void logd(String format, Object... args) {
+        logFormatted(Log.DEBUG, format, args);
+    }
+
+    /**
+     * Log at VERBOSE level a message formatted with {@link String#format}.
+     */
+    public static void logv(String format, Object... args) {
+        logFormatted(Log.VERBOSE, format, args);
+    }
+
+    /**
+     * Log at INFO level a message formatted with {@link String#format}.
+     */
+    public static void logi(String format, Object... args) {
+        logFormatted(Log.INFO, format, args);
+    }
+
+    /**
+     * Log at WARNING level a message formatted with {@link String#format}.
+     */
+    public static void logw(String format, Object... args) {
+        logFormatted(Log.WARN, format, args);
+    }
+
+    /**
+     * Log at ERROR level a message formatted with {@link String#format}.
+     */
+    public static void loge(String format, Object... args) {
+        logFormatted(Log.ERROR, format, args);
+    }
+
+    /**
+     * Writes the most recent log records to logcat at ERROR level. Meant to be called when
+     * provisioning fails; writes up to {@link #FLIGHT_RECORDER_CAPACITY} lines, so do not call it
+     * while holding a lock.
+     */
+    public static void dumpFlightRecorder() {
+        List<String> lines = sFlightRecorder.dump();
+        Log.e(TAG, "Last " + lines.size() + " log records:");
+        for (String line : lines) {
+            Log.e(TAG, line);
+        }
+    }
+
+    /**
+     * Prints the most recent log records.
+     */
+    public static void dumpFlightRecorder(PrintWriter pw) {
+        List<String> lines = sFlightRecorder.dump();
+        pw.println("Last " + lines.size() + " log records:");
+        for (String line : lines) {
+            pw.println("  " + line);
+        }
+    }
+
+    @VisibleForTesting
+    static LogFlightRecorder getFlightRecorder() {
+        return sFlightRecorder;
+    }
+
+    private static void recordMessage(int priority, String message, Throwable t) {
+        sFlightRecorder.record(priority, message, t);
+    }
+
+    private static void logFormatted(int priority, String format, Object[] args) {
+        String message = format(format, args);
+        recordMessage(priority, message, null);
+        if (LOG_ENABLED) {
+            Log.println(priority, getTag(), message);
+        }
+    }
+
+    @VisibleForTesting
+    static String format(String format, Object[] args) {
+        try {
+            return String.format(Locale.US, format, args);
+        } catch (IllegalFormatException e) {
+            return format + " " + Arrays.toString(args);
+        }
+    }
+
     /**
      * Walks the stack trace to figure out where the logging call came from.
      */
@@ -38,7 +38,6 @@ import androidx.appcompat.app.AppCompatDelegate;
 import com.android.managedprovisioning.ManagedProvisioningBaseApplication;
 import com.android.managedprovisioning.ManagedProvisioningScreens;
 import com.android.managedprovisioning.R;
-import com.android.managedprovisioning.analytics.MetricsWriterFactory;
 import com.android.managedprovisioning.analytics.ProvisioningAnalyticsTracker;
 import com.android.managedprovisioning.analytics.TimeLogger;
 import com.android.managedprovisioning.common.ThemeHelper.DefaultNightModeChecker;
@@ -122,9 +121,8 @@ public abstract class SetupLayoutActivity extends AppCompatActivity {
 
     private void logMetrics() {
         // TODO(b/183036855): Add dependency injection in ManagedProvisioning
-        ProvisioningAnalyticsTracker analyticsTracker = new ProvisioningAnalyticsTracker(
-                MetricsWriterFactory.getMetricsWriter(this, new SettingsFacade()),
-                new ManagedProvisioningSharedPreferences(this));
+        ProvisioningAnalyticsTracker analyticsTracker =
+                ProvisioningAnalyticsTracker.getInstance(this);
         final int orientation = getResources().getConfiguration().orientation;
         analyticsTracker.logIsLandscape(
                 orientation == Configuration.ORIENTATION_LANDSCAPE,
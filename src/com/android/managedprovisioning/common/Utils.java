@@ -21,8 +21,6 @@ import static android.app.admin.DevicePolicyManager.ACTION_PROVISION_MANAGED_DEV
 import static android.app.admin.DevicePolicyManager.ACTION_PROVISION_MANAGED_PROFILE;
 import static android.app.admin.DevicePolicyManager.FLAG_SUPPORTED_MODES_DEVICE_OWNER;
 import static android.app.admin.DevicePolicyManager.FLAG_SUPPORTED_MODES_ORGANIZATION_OWNED;
-import static android.content.pm.PackageManager.MATCH_HIDDEN_UNTIL_INSTALLED_COMPONENTS;
-import static android.content.pm.PackageManager.MATCH_UNINSTALLED_PACKAGES;
 import static android.net.NetworkCapabilities.NET_CAPABILITY_INTERNET;
 import static android.net.NetworkCapabilities.NET_CAPABILITY_VALIDATED;
 import static android.net.NetworkCapabilities.TRANSPORT_CELLULAR;
@@ -76,13 +74,11 @@ import com.google.android.setupcompat.template.FooterButton;
 import com.google.android.setupcompat.template.FooterButton.ButtonType;
 import com.google.android.setupdesign.GlifLayout;
 
-import java.io.FileInputStream;
+import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Objects;
 import java.util.Set;
@@ -102,28 +98,16 @@ public class Utils {
     /**
      * Returns the system apps currently available to a given user.
      *
-     * <p>Calls the {@link IPackageManager} to retrieve all system apps available to a user and
-     * returns their package names.
+     * <p>Looks up all system apps available to a user in the snapshot of {@code
+     * installedApplications} and returns their package names.
      *
-     * @param ipm an {@link IPackageManager} object
+     * @param installedApplications the {@link InstalledApplicationsCache} to look the apps up in
      * @param userId the id of the user to check the apps for
      */
-    public Set<String> getCurrentSystemApps(IPackageManager ipm, int userId) {
-        Set<String> apps = new HashSet<>();
-        List<ApplicationInfo> aInfos = null;
-        try {
-            aInfos = ipm.getInstalledApplications(
-                    MATCH_UNINSTALLED_PACKAGES | MATCH_HIDDEN_UNTIL_INSTALLED_COMPONENTS, userId)
-                    .getList();
-        } catch (RemoteException neverThrown) {
-            ProvisionLogger.loge("This should not happen.", neverThrown);
-        }
-        for (ApplicationInfo aInfo : aInfos) {
-            if ((aInfo.flags & ApplicationInfo.FLAG_SYSTEM) != 0) {
-                apps.add(aInfo.packageName);
-            }
-        }
-        return apps;
+    public Set<String> getCurrentSystemApps(InstalledApplicationsCache installedApplications,
+            int userId) {
+        return installedApplications.getSnapshot(userId)
+                .getPackageNamesWithFlags(ApplicationInfo.FLAG_SYSTEM);
     }
 
     /**
@@ -541,6 +525,24 @@ public class Utils {
         return cm.getActiveNetworkInfo();
     }
 
+    /**
+     * Returns whether the management app should be streamed straight into the package installer
+     * instead of being downloaded to disk, verified and installed in separate passes.
+     */
+    public boolean isStreamingPackageInstallEnabled() {
+        return SystemProperties.getBoolean(
+                "persist.managed_provisioning.streaming_install", false);
+    }
+
+    /**
+     * Returns whether downloaded packages should be kept in a cache keyed by their checksum, so
+     * that retries can reuse verified packages and resume interrupted downloads.
+     */
+    public boolean isPackageDownloadCacheEnabled() {
+        return SystemProperties.getBoolean(
+                "persist.managed_provisioning.download_cache", false);
+    }
+
     /**
      * Returns whether encryption is required on this device.
      *
@@ -633,43 +635,25 @@ public class Utils {
     /**
      * Computes a hash of a file with a spcific hash algorithm.
      */
-    // TODO: Add unit tests
     @Nullable
     public byte[] computeHashOfFile(String fileLocation, String hashType) {
-        InputStream fis = null;
-        MessageDigest md;
-        byte hash[] = null;
+        FileHashEngine.Result result = hashFile(fileLocation, hashType);
+        return result == null ? null : result.getHash();
+    }
+
+    /**
+     * Computes a hash of a file with a specific hash algorithm, together with how long it took.
+     */
+    @Nullable
+    public FileHashEngine.Result hashFile(String fileLocation, String hashType) {
         try {
-            md = MessageDigest.getInstance(hashType);
+            return new FileHashEngine(hashType).hash(new File(fileLocation));
         } catch (NoSuchAlgorithmException e) {
             ProvisionLogger.loge("Hashing algorithm " + hashType + " not supported.", e);
-            return null;
-        }
-        try {
-            fis = new FileInputStream(fileLocation);
-
-            byte[] buffer = new byte[256];
-            int n = 0;
-            while (n != -1) {
-                n = fis.read(buffer);
-                if (n > 0) {
-                    md.update(buffer, 0, n);
-                }
-            }
-            hash = md.digest();
         } catch (IOException e) {
             ProvisionLogger.loge("IO error.", e);
-        } finally {
-            // Close input stream quietly.
-            try {
-                if (fis != null) {
-                    fis.close();
-                }
-            } catch (IOException e) {
-                // Ignore.
-            }
         }
-        return hash;
+        return null;
     }
 
     /**
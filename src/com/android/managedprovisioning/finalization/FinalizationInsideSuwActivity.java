@@ -18,11 +18,8 @@ package com.android.managedprovisioning.finalization;
 
 import android.content.Intent;
 
-import com.android.managedprovisioning.analytics.MetricsWriterFactory;
 import com.android.managedprovisioning.analytics.ProvisioningAnalyticsTracker;
-import com.android.managedprovisioning.common.ManagedProvisioningSharedPreferences;
 import com.android.managedprovisioning.common.ProvisionLogger;
-import com.android.managedprovisioning.common.SettingsFacade;
 import com.android.managedprovisioning.common.TransitionHelper;
 
 /**
@@ -80,9 +77,7 @@ public class FinalizationInsideSuwActivity extends FinalizationActivityBase {
 
     private void logDpcSetupCompleted(int resultCode) {
         final ProvisioningAnalyticsTracker provisioningAnalyticsTracker =
-                new ProvisioningAnalyticsTracker(
-                        MetricsWriterFactory.getMetricsWriter(this, new SettingsFacade()),
-                        new ManagedProvisioningSharedPreferences(this));
+                ProvisioningAnalyticsTracker.getInstance(this);
         provisioningAnalyticsTracker.logDpcSetupCompleted(this, resultCode);
     }
 }
@@ -24,12 +24,9 @@ import android.app.Activity;
 import android.os.Bundle;
 import android.os.UserHandle;
 
-import com.android.managedprovisioning.analytics.MetricsWriterFactory;
 import com.android.managedprovisioning.analytics.ProvisioningAnalyticsTracker;
-import com.android.managedprovisioning.common.ManagedProvisioningSharedPreferences;
 import com.android.managedprovisioning.common.PolicyComplianceUtils;
 import com.android.managedprovisioning.common.ProvisionLogger;
-import com.android.managedprovisioning.common.SettingsFacade;
 import com.android.managedprovisioning.common.StartDpcInsideSuwServiceConnection;
 import com.android.managedprovisioning.common.TransitionHelper;
 import com.android.managedprovisioning.common.Utils;
@@ -52,9 +49,7 @@ public class FinalizationInsideSuwControllerLogic implements FinalizationControl
 
     public FinalizationInsideSuwControllerLogic(Activity activity) {
         this(activity, new Utils(), new PolicyComplianceUtils(),
-                new ProvisioningAnalyticsTracker(
-                        MetricsWriterFactory.getMetricsWriter(activity, new SettingsFacade()),
-                        new ManagedProvisioningSharedPreferences(activity)),
+                ProvisioningAnalyticsTracker.getInstance(activity),
                 new TransitionHelper());
     }
 
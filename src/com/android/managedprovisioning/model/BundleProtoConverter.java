@@ -0,0 +1,185 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.managedprovisioning.model;
+
+import android.os.PersistableBundle;
+
+import com.android.managedprovisioning.ProvisioningParamsProtos.BundleProto;
+import com.android.managedprovisioning.ProvisioningParamsProtos.BundleProto.Entry;
+
+/**
+ * Converts a {@link PersistableBundle} to and from a {@link BundleProto}, keeping the type of
+ * every value.
+ */
+final class BundleProtoConverter {
+
+    private BundleProtoConverter() {}
+
+    static BundleProto toProto(PersistableBundle bundle) {
+        BundleProto.Builder builder = BundleProto.newBuilder();
+        for (String key : bundle.keySet()) {
+            builder.addEntries(toEntry(key, bundle.get(key)));
+        }
+        return builder.build();
+    }
+
+    /**
+     * @throws IllegalArgumentException if an entry has no key or no value
+     */
+    static PersistableBundle fromProto(BundleProto proto) {
+        PersistableBundle bundle = new PersistableBundle(proto.getEntriesCount());
+        for (Entry entry : proto.getEntriesList()) {
+            if (!entry.hasKey()) {
+                throw new IllegalArgumentException("Bundle entry without a key");
+            }
+            putEntry(bundle, entry);
+        }
+        return bundle;
+    }
+
+    private static Entry toEntry(String key, Object value) {
+        Entry.Builder entry = Entry.newBuilder().setKey(key);
+        if (value == null) {
+            entry.setNullValue(true);
+        } else if (value instanceof String) {
+            entry.setStringValue((String) value);
+        } else if (value instanceof Integer) {
+            entry.setIntValue((Integer) value);
+        } else if (value instanceof Long) {
+            entry.setLongValue((Long) value);
+        } else if (value instanceof Double) {
+            entry.setDoubleValue((Double) value);
+        } else if (value instanceof Boolean) {
+            entry.setBooleanValue((Boolean) value);
+        } else if (value instanceof String[]) {
+            BundleProto.StringArray.Builder array = BundleProto.StringArray.newBuilder();
+            String[] values = (String[]) value;
+            for (int i = 0; i < values.length; i++) {
+                if (values[i] == null) {
+                    array.addValues("").addNullIndexes(i);
+                } else {
+                    array.addValues(values[i]);
+                }
+            }
+            entry.setStringArrayValue(array);
+        } else if (value instanceof int[]) {
+            BundleProto.IntArray.Builder array = BundleProto.IntArray.newBuilder();
+            for (int element : (int[]) value) {
+                array.addValues(element);
+            }
+            entry.setIntArrayValue(array);
+        } else if (value instanceof long[]) {
+            BundleProto.LongArray.Builder array = BundleProto.LongArray.newBuilder();
+            for (long element : (long[]) value) {
+                array.addValues(element);
+            }
+            entry.setLongArrayValue(array);
+        } else if (value instanceof double[]) {
+            BundleProto.DoubleArray.Builder array = BundleProto.DoubleArray.newBuilder();
+            for (double element : (double[]) value) {
+                array.addValues(element);
+            }
+            entry.setDoubleArrayValue(array);
+        } else if (value instanceof boolean[]) {
+            BundleProto.BooleanArray.Builder array = BundleProto.BooleanArray.newBuilder();
+            for (boolean element : (boolean[]) value) {
+                array.addValues(element);
+            }
+            entry.setBooleanArrayValue(array);
+        } else if (value instanceof PersistableBundle) {
+            entry.setBundleValue(toProto((PersistableBundle) value));
+        } else {
+            throw new IllegalArgumentException(
+                    "Unsupported type " + value.getClass() + " for key " + key);
+        }
+        return entry.build();
+    }
+
+    private static void putEntry(PersistableBundle bundle, Entry entry) {
+        String key = entry.getKey();
+        switch (entry.getValueCase()) {
+            case NULL_VALUE:
+                bundle.putString(key, null);
+                break;
+            case STRING_VALUE:
+                bundle.putString(key, entry.getStringValue());
+                break;
+            case INT_VALUE:
+                bundle.putInt(key, entry.getIntValue());
+                break;
+            case LONG_VALUE:
+                bundle.putLong(key, entry.getLongValue());
+                break;
+            case DOUBLE_VALUE:
+                bundle.putDouble(key, entry.getDoubleValue());
+                break;
+            case BOOLEAN_VALUE:
+                bundle.putBoolean(key, entry.getBooleanValue());
+                break;
+            case STRING_ARRAY_VALUE: {
+                BundleProto.StringArray array = entry.getStringArrayValue();
+                String[] values = array.getValuesList().toArray(new String[0]);
+                for (int index : array.getNullIndexesList()) {
+                    values[index] = null;
+                }
+                bundle.putStringArray(key, values);
+                break;
+            }
+            case INT_ARRAY_VALUE: {
+                BundleProto.IntArray array = entry.getIntArrayValue();
+                int[] values = new int[array.getValuesCount()];
+                for (int i = 0; i < values.length; i++) {
+                    values[i] = array.getValues(i);
+                }
+                bundle.putIntArray(key, values);
+                break;
+            }
+            case LONG_ARRAY_VALUE: {
+                BundleProto.LongArray array = entry.getLongArrayValue();
+                long[] values = new long[array.getValuesCount()];
+                for (int i = 0; i < values.length; i++) {
+                    values[i] = array.getValues(i);
+                }
+                bundle.putLongArray(key, values);
+                break;
+            }
+            case DOUBLE_ARRAY_VALUE: {
+                BundleProto.DoubleArray array = entry.getDoubleArrayValue();
+                double[] values = new double[array.getValuesCount()];
+                for (int i = 0; i < values.length; i++) {
+                    values[i] = array.getValues(i);
+                }
+                bundle.putDoubleArray(key, values);
+                break;
+            }
+            case BOOLEAN_ARRAY_VALUE: {
+                BundleProto.BooleanArray array = entry.getBooleanArrayValue();
+                boolean[] values = new boolean[array.getValuesCount()];
+                for (int i = 0; i < values.length; i++) {
+                    values[i] = array.getValues(i);
+                }
+                bundle.putBooleanArray(key, values);
+                break;
+            }
+            case BUNDLE_VALUE:
+                bundle.putPersistableBundle(key, fromProto(entry.getBundleValue()));
+                break;
+            default:
+                throw new IllegalArgumentException("Bundle entry " + key + " has no value");
+        }
+    }
+}
@@ -32,7 +32,10 @@ import com.android.internal.annotations.Immutable;
 import com.android.managedprovisioning.common.PersistableBundlable;
 import com.android.managedprovisioning.common.StoreUtils;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.Objects;
 import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
@@ -47,6 +50,12 @@ public final class PackageDownloadInfo extends PersistableBundlable {
     public static final byte[] DEFAULT_SIGNATURE_CHECKSUM = new byte[0];
     // Always download packages if no minimum version given.
     public static final int DEFAULT_MINIMUM_VERSION = Integer.MAX_VALUE;
+    // Download over a single connection unless more segments are requested.
+    public static final int DEFAULT_DOWNLOAD_SEGMENTS = 1;
+    public static final int MAX_DOWNLOAD_SEGMENTS = 8;
+
+    private static final String TAG_DOWNLOAD_SEGMENTS = "download-segments";
+    private static final String TAG_SPLITS = "splits";
 
     public static final Parcelable.Creator<PackageDownloadInfo> CREATOR
             = new Parcelable.Creator<PackageDownloadInfo>() {
@@ -78,6 +87,16 @@ public final class PackageDownloadInfo extends PersistableBundlable {
     public final byte[] signatureChecksum;
     /** Minimum supported version code of the downloaded package. */
     public final int minVersion;
+    /**
+     * Number of http range requests the package is downloaded with in parallel. {@link
+     * #DEFAULT_DOWNLOAD_SEGMENTS} downloads it over a single connection.
+     */
+    public final int downloadSegments;
+    /**
+     * Split apks installed together with the package, such as the splits carrying native
+     * libraries. Each is downloaded from its own location and verified by its package checksum.
+     */
+    public final List<PackageDownloadInfo> splits;
 
     private PackageDownloadInfo(Builder builder) {
         location = builder.mLocation;
@@ -86,6 +105,8 @@ public final class PackageDownloadInfo extends PersistableBundlable {
         signatureChecksum = checkNotNull(builder.mSignatureChecksum,
                 "signature checksum can't be null");
         minVersion = builder.mMinVersion;
+        downloadSegments = builder.mDownloadSegments;
+        splits = Collections.unmodifiableList(new ArrayList<>(builder.mSplits));
 
         validateFields();
     }
@@ -103,6 +124,18 @@ public final class PackageDownloadInfo extends PersistableBundlable {
             throw new IllegalArgumentException("Package checksum or signature checksum must be "
                     + "provided.");
         }
+        if (downloadSegments < 1 || downloadSegments > MAX_DOWNLOAD_SEGMENTS) {
+            throw new IllegalArgumentException("Download segments must be between 1 and "
+                    + MAX_DOWNLOAD_SEGMENTS + ".");
+        }
+        for (PackageDownloadInfo split : splits) {
+            if (split.packageChecksum.length == 0) {
+                throw new IllegalArgumentException("Split apks must have a package checksum.");
+            }
+            if (!split.splits.isEmpty()) {
+                throw new IllegalArgumentException("Split apks can't have splits.");
+            }
+        }
     }
 
     /* package */ static PackageDownloadInfo fromPersistableBundle(PersistableBundle bundle) {
@@ -120,6 +153,17 @@ public final class PackageDownloadInfo extends PersistableBundlable {
                 EXTRA_PROVISIONING_DEVICE_ADMIN_PACKAGE_CHECKSUM)));
         builder.setSignatureChecksum(StoreUtils.stringToByteArray(bundle.getString(
                 EXTRA_PROVISIONING_DEVICE_ADMIN_SIGNATURE_CHECKSUM)));
+        builder.setDownloadSegments(
+                bundle.getInt(TAG_DOWNLOAD_SEGMENTS, DEFAULT_DOWNLOAD_SEGMENTS));
+        PersistableBundle splitsBundle = bundle.getPersistableBundle(TAG_SPLITS);
+        if (splitsBundle != null) {
+            List<PackageDownloadInfo> splits = new ArrayList<>();
+            for (int i = 0; splitsBundle.containsKey(Integer.toString(i)); i++) {
+                splits.add(fromPersistableBundle(
+                        splitsBundle.getPersistableBundle(Integer.toString(i))));
+            }
+            builder.setSplits(splits);
+        }
         return builder;
     }
 
@@ -135,6 +179,15 @@ public final class PackageDownloadInfo extends PersistableBundlable {
                 StoreUtils.byteArrayToString(packageChecksum));
         bundle.putString(EXTRA_PROVISIONING_DEVICE_ADMIN_SIGNATURE_CHECKSUM,
                 StoreUtils.byteArrayToString(signatureChecksum));
+        bundle.putInt(TAG_DOWNLOAD_SEGMENTS, downloadSegments);
+        if (!splits.isEmpty()) {
+            PersistableBundle splitsBundle = new PersistableBundle();
+            for (int i = 0; i < splits.size(); i++) {
+                splitsBundle.putPersistableBundle(Integer.toString(i),
+                        splits.get(i).toPersistableBundle());
+            }
+            bundle.putPersistableBundle(TAG_SPLITS, splitsBundle);
+        }
         return bundle;
     }
 
@@ -144,6 +197,8 @@ public final class PackageDownloadInfo extends PersistableBundlable {
         private byte[] mPackageChecksum = DEFAULT_PACKAGE_CHECKSUM;
         private byte[] mSignatureChecksum = DEFAULT_SIGNATURE_CHECKSUM;
         private int mMinVersion = DEFAULT_MINIMUM_VERSION;
+        private int mDownloadSegments = DEFAULT_DOWNLOAD_SEGMENTS;
+        private List<PackageDownloadInfo> mSplits = Collections.emptyList();
 
         public Builder setLocation(String location) {
             mLocation = location;
@@ -170,6 +225,16 @@ public final class PackageDownloadInfo extends PersistableBundlable {
             return this;
         }
 
+        public Builder setDownloadSegments(int downloadSegments) {
+            mDownloadSegments = downloadSegments;
+            return this;
+        }
+
+        public Builder setSplits(List<PackageDownloadInfo> splits) {
+            mSplits = checkNotNull(splits);
+            return this;
+        }
+
         public PackageDownloadInfo build() {
             return new PackageDownloadInfo(this);
         }
@@ -58,19 +58,23 @@ import android.util.Xml;
 
 import androidx.annotation.Nullable;
 
+import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.util.FastXmlSerializer;
+import com.android.managedprovisioning.ProvisioningParamsProtos.ProvisioningParamsFile;
 import com.android.managedprovisioning.common.IllegalProvisioningArgumentException;
 import com.android.managedprovisioning.common.PersistableBundlable;
 import com.android.managedprovisioning.common.ProvisionLogger;
 import com.android.managedprovisioning.common.StoreUtils;
 import com.android.managedprovisioning.common.Utils;
 
+import com.google.protobuf.CodedInputStream;
+
 import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
 import org.xmlpull.v1.XmlSerializer;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.lang.annotation.Retention;
@@ -130,6 +134,10 @@ public final class ProvisioningParams extends PersistableBundlable {
     @Retention(RetentionPolicy.SOURCE)
     public @interface FlowType {}
 
+    /** Starts a file written by {@link #save}; XML files written before start with '<'. */
+    private static final byte[] BINARY_FORMAT_MAGIC = {'M', 'P', 'P', 0x01};
+    private static final int BINARY_FORMAT_VERSION = 1;
+
     private static final String TAG_PROVISIONING_ID = "provisioning-id";
     private static final String TAG_PROVISIONING_PARAMS = "provisioning-params";
     private static final String TAG_WIFI_INFO = "wifi-info";
@@ -568,20 +576,95 @@ public final class ProvisioningParams extends PersistableBundlable {
         return arrayList.stream().mapToInt(Integer::valueOf).toArray();
     }
 
+    /**
+     * Returns a {@link Builder} initialized with the fields of these params.
+     *
+     * <p>The fields are copied directly, so the sub-objects, including {@link
+     * #adminExtrasBundle}, are shared with these params until they are replaced in the builder.
+     */
     public Builder toBuilder() {
-        return createBuilderFromPersistableBundle(toPersistableBundle());
+        return new Builder(this);
     }
 
+    /**
+     * Returns a summary of the params. Secrets such as the Wi-Fi password and the contents of the
+     * admin extras are left out.
+     */
     @Override
     public String toString() {
-        return "ProvisioningParams values: " + toPersistableBundle().toString();
+        return "ProvisioningParams{"
+                + "provisioningId=" + provisioningId
+                + ", provisioningAction=" + provisioningAction
+                + ", deviceAdminPackageName=" + deviceAdminPackageName
+                + ", deviceAdminComponentName=" + deviceAdminComponentName
+                + ", flowType=" + flowType
+                + ", provisioningTrigger=" + provisioningTrigger
+                + ", isOrganizationOwnedProvisioning=" + isOrganizationOwnedProvisioning
+                + ", allowedProvisioningModes=" + allowedProvisioningModes
+                + ", initiatorRequestedProvisioningModes=" + initiatorRequestedProvisioningModes
+                + ", timeZone=" + timeZone
+                + ", localTime=" + localTime
+                + ", locale=" + locale
+                + ", wifiSsid=" + (wifiInfo == null ? null : wifiInfo.ssid)
+                + ", useMobileData=" + useMobileData
+                + ", organizationName=" + organizationName
+                + ", supportUrl=" + supportUrl
+                + ", hasAccountToMigrate=" + (accountToMigrate != null)
+                + ", keepAccountMigrated=" + keepAccountMigrated
+                + ", deviceAdminDownloadLocation="
+                + (deviceAdminDownloadInfo == null ? null : deviceAdminDownloadInfo.location)
+                + ", disclaimerCount=" + (disclaimersParam == null
+                        ? 0 : disclaimersParam.mDisclaimers.length)
+                + ", adminExtrasCount=" + (adminExtrasBundle == null
+                        ? 0 : adminExtrasBundle.size())
+                + ", startedByTrustedSource=" + startedByTrustedSource
+                + ", isNfc=" + isNfc
+                + ", isQrProvisioning=" + isQrProvisioning
+                + ", leaveAllSystemAppsEnabled=" + leaveAllSystemAppsEnabled
+                + ", skipEncryption=" + skipEncryption
+                + ", skipEducationScreens=" + skipEducationScreens
+                + ", allowProvisioningAfterUserSetupComplete="
+                + allowProvisioningAfterUserSetupComplete
+                + ", skipOwnershipDisclaimer=" + skipOwnershipDisclaimer
+                + ", returnBeforePolicyCompliance=" + returnBeforePolicyCompliance
+                + ", deviceOwnerPermissionGrantOptOut=" + deviceOwnerPermissionGrantOptOut
+                + ", keepScreenOn=" + keepScreenOn
+                + ", allowOffline=" + allowOffline
+                + ", roleHolderDownloadLocation="
+                + (roleHolderDownloadInfo == null ? null : roleHolderDownloadInfo.location)
+                + ", provisioningShouldLaunchResultIntent=" + provisioningShouldLaunchResultIntent
+                + "}";
     }
 
     /**
      * Saves the ProvisioningParams to the specified file.
      */
     public void save(File file) {
-        ProvisionLogger.logd("Saving ProvisioningParams to " + file);
+        ProvisionLogger.logd("Saving ProvisioningParams to %s", file);
+        AtomicFile atomicFile = new AtomicFile(file);
+        FileOutputStream stream = null;
+        try {
+            ProvisioningParamsFile proto = ProvisioningParamsFile.newBuilder()
+                    .setVersion(BINARY_FORMAT_VERSION)
+                    .setParams(BundleProtoConverter.toProto(toPersistableBundle()))
+                    .build();
+            stream = atomicFile.startWrite();
+            stream.write(BINARY_FORMAT_MAGIC);
+            proto.writeTo(stream);
+            atomicFile.finishWrite(stream);
+        } catch (IOException | IllegalArgumentException e) {
+            ProvisionLogger.loge("Caught exception while trying to save Provisioning Params to "
+                    + " file " + file, e);
+            atomicFile.failWrite(stream);
+        }
+    }
+
+    /**
+     * Saves the ProvisioningParams in the XML format used before {@link #save}, which {@link
+     * #load} still reads.
+     */
+    @VisibleForTesting
+    public void saveAsXml(File file) {
         AtomicFile atomicFile = null;
         FileOutputStream stream = null;
         try {
@@ -612,24 +695,55 @@ public final class ProvisioningParams extends PersistableBundlable {
     }
 
     /**
-     * Loads the ProvisioningParams From the specified file.
+     * Loads the ProvisioningParams From the specified file, written by {@link #save} or by an
+     * older version in XML.
      */
     public static ProvisioningParams load(File file) {
-        if (!file.exists()) {
+        AtomicFile atomicFile = new AtomicFile(file);
+        if (!atomicFile.exists()) {
             return null;
         }
-        ProvisionLogger.logd("Loading ProvisioningParams from " + file);
-        try (FileInputStream stream = new FileInputStream(file)) {
+        ProvisionLogger.logd("Loading ProvisioningParams from %s", file);
+        try {
+            byte[] content = atomicFile.readFully();
+            if (hasBinaryFormatMagic(content)) {
+                return loadBinary(content);
+            }
             XmlPullParser parser = Xml.newPullParser();
-            parser.setInput(stream, null);
+            parser.setInput(new ByteArrayInputStream(content), null);
             return load(parser);
-        } catch (IOException | XmlPullParserException e) {
+        } catch (IOException | XmlPullParserException | IllegalArgumentException
+                | IndexOutOfBoundsException e) {
             ProvisionLogger.loge("Caught exception while trying to load the provisioning params"
                     + " from file " + file, e);
             return null;
         }
     }
 
+    private static boolean hasBinaryFormatMagic(byte[] content) {
+        if (content.length < BINARY_FORMAT_MAGIC.length) {
+            return false;
+        }
+        for (int i = 0; i < BINARY_FORMAT_MAGIC.length; i++) {
+            if (content[i] != BINARY_FORMAT_MAGIC[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static ProvisioningParams loadBinary(byte[] content) throws IOException {
+        ProvisioningParamsFile proto = ProvisioningParamsFile.parseFrom(
+                CodedInputStream.newInstance(content, BINARY_FORMAT_MAGIC.length,
+                        content.length - BINARY_FORMAT_MAGIC.length));
+        if (proto.getVersion() > BINARY_FORMAT_VERSION) {
+            throw new IOException("Unsupported provisioning params version "
+                    + proto.getVersion());
+        }
+        return createBuilderFromPersistableBundle(
+                BundleProtoConverter.fromProto(proto.getParams())).build();
+    }
+
     private static ProvisioningParams load(XmlPullParser parser) throws XmlPullParserException,
             IOException {
         int type;
@@ -702,6 +816,47 @@ public final class ProvisioningParams extends PersistableBundlable {
             mSkipValidation = skipValidation;
         }
 
+        private Builder(ProvisioningParams params) {
+            this(/* skipValidation= */ false);
+            mProvisioningId = params.provisioningId;
+            mTimeZone = params.timeZone;
+            mLocalTime = params.localTime;
+            mLocale = params.locale;
+            mWifiInfo = params.wifiInfo;
+            mDeviceAdminPackageName = params.deviceAdminPackageName;
+            mDeviceAdminComponentName = params.deviceAdminComponentName;
+            mOrganizationName = params.organizationName;
+            mSupportUrl = params.supportUrl;
+            mAccountToMigrate = params.accountToMigrate;
+            mProvisioningAction = params.provisioningAction;
+            mDeviceAdminDownloadInfo = params.deviceAdminDownloadInfo;
+            mDisclaimersParam = params.disclaimersParam;
+            mAdminExtrasBundle = params.adminExtrasBundle;
+            mStartedByTrustedSource = params.startedByTrustedSource;
+            mIsNfc = params.isNfc;
+            mIsQrProvisioning = params.isQrProvisioning;
+            mLeaveAllSystemAppsEnabled = params.leaveAllSystemAppsEnabled;
+            mSkipEncryption = params.skipEncryption;
+            mSkipEducationScreens = params.skipEducationScreens;
+            mKeepAccountMigrated = params.keepAccountMigrated;
+            mUseMobileData = params.useMobileData;
+            mIsOrganizationOwnedProvisioning = params.isOrganizationOwnedProvisioning;
+            // The list is mutable, so it is the only field that is not shared.
+            mAllowedProvisioningModes = new ArrayList<>(params.allowedProvisioningModes);
+            mInitiatorRequestedProvisioningModes = params.initiatorRequestedProvisioningModes;
+            mFlowType = params.flowType;
+            mAllowProvisioningAfterUserSetupComplete =
+                    params.allowProvisioningAfterUserSetupComplete;
+            mProvisioningTrigger = params.provisioningTrigger;
+            mSkipOwnershipDisclaimer = params.skipOwnershipDisclaimer;
+            mReturnBeforePolicyCompliance = params.returnBeforePolicyCompliance;
+            mDeviceOwnerPermissionGrantOptOut = params.deviceOwnerPermissionGrantOptOut;
+            mKeepScreenOn = params.keepScreenOn;
+            mAllowOffline = params.allowOffline;
+            mRoleHolderDownloadInfo = params.roleHolderDownloadInfo;
+            mProvisioningShouldLaunchResultIntent = params.provisioningShouldLaunchResultIntent;
+        }
+
         public Builder setProvisioningId(long provisioningId) {
             mProvisioningId = provisioningId;
             return this;
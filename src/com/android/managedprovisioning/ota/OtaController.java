@@ -29,17 +29,15 @@ import android.content.Intent;
 import android.content.pm.PackageManager;
 import android.content.pm.ResolveInfo;
 import android.content.pm.UserInfo;
+import android.os.SystemClock;
 import android.os.UserHandle;
 import android.os.UserManager;
 import android.util.ArraySet;
 import android.view.inputmethod.InputMethod;
 
 import com.android.internal.annotations.VisibleForTesting;
-import com.android.managedprovisioning.analytics.MetricsWriterFactory;
 import com.android.managedprovisioning.analytics.ProvisioningAnalyticsTracker;
-import com.android.managedprovisioning.common.ManagedProvisioningSharedPreferences;
 import com.android.managedprovisioning.common.ProvisionLogger;
-import com.android.managedprovisioning.common.SettingsFacade;
 import com.android.managedprovisioning.model.ProvisioningParams;
 import com.android.managedprovisioning.task.DeleteNonRequiredAppsTask;
 import com.android.managedprovisioning.task.DisallowAddUserTask;
@@ -48,6 +46,7 @@ import com.android.managedprovisioning.task.MigrateSystemAppsSnapshotTask;
 import com.android.managedprovisioning.task.UpdateInteractAcrossProfilesAppOpTask;
 
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 import java.util.function.IntFunction;
 
 /**
@@ -58,6 +57,7 @@ import java.util.function.IntFunction;
 public class OtaController {
 
     private static final String TELECOM_PACKAGE = "com.android.server.telecom";
+    private static final long DEADLINE_MILLIS = TimeUnit.MINUTES.toMillis(1);
 
     private final Context mContext;
     private final TaskExecutor mTaskExecutor;
@@ -69,11 +69,9 @@ public class OtaController {
     private final ProvisioningAnalyticsTracker mProvisioningAnalyticsTracker;
 
     public OtaController(Context context) {
-        this(context, new TaskExecutor(),
+        this(context, new ParallelTaskExecutor(),
                 userId -> getMissingSystemImePackages(context, UserHandle.of(userId)),
-                new ProvisioningAnalyticsTracker(
-                        MetricsWriterFactory.getMetricsWriter(context, new SettingsFacade()),
-                        new ManagedProvisioningSharedPreferences(context)));
+                ProvisioningAnalyticsTracker.getInstance(context));
     }
 
     @VisibleForTesting
@@ -95,26 +93,40 @@ public class OtaController {
         if (mContext.getUserId() != UserHandle.USER_SYSTEM) {
             return;
         }
-        // Migrate snapshot files to use user serial number as file name.
+        final long deadline = SystemClock.elapsedRealtime() + DEADLINE_MILLIS;
+
+        // Migrate snapshot files to use user serial number as file name. The tasks of all users
+        // read the snapshots, so they are only submitted once the migration has run.
         mTaskExecutor.execute(
                 UserHandle.USER_SYSTEM, new MigrateSystemAppsSnapshotTask(
                         mContext, mTaskExecutor, mProvisioningAnalyticsTracker));
+        mTaskExecutor.runForUser(UserHandle.USER_SYSTEM, this::addUserTasks);
+
+        if (!mTaskExecutor.awaitIdle(deadline - SystemClock.elapsedRealtime())) {
+            ProvisionLogger.loge("OTA tasks did not finish within " + DEADLINE_MILLIS
+                    + "ms, finishing in the background");
+        }
+    }
 
+    private void addUserTasks() {
         // Check for device owner.
         final int deviceOwnerUserId = mDevicePolicyManager.getDeviceOwnerUserId();
         if (deviceOwnerUserId != UserHandle.USER_NULL) {
-            addDeviceOwnerTasks(deviceOwnerUserId, mContext);
+            mTaskExecutor.runForUser(deviceOwnerUserId,
+                    () -> addDeviceOwnerTasks(deviceOwnerUserId, mContext));
         }
 
+        // The work of different users is independent, so it runs in parallel.
         for (UserInfo userInfo : mUserManager.getUsers()) {
+            final int userId = userInfo.id;
             if (userInfo.isManagedProfile()) {
-                addManagedProfileTasks(userInfo.id, mContext);
-            } else if (mDevicePolicyManager.getProfileOwnerAsUser(userInfo.id) != null) {
-                addManagedUserTasks(userInfo.id, mContext);
+                mTaskExecutor.runForUser(userId, () -> addManagedProfileTasks(userId, mContext));
+            } else if (mDevicePolicyManager.getProfileOwnerAsUser(userId) != null) {
+                mTaskExecutor.runForUser(userId, () -> addManagedUserTasks(userId, mContext));
             } else {
                 // if this user has managed profiles, reset the cross-profile intent filters between
                 // this user and its managed profiles.
-                mDevicePolicyManager.resetDefaultCrossProfileIntentFilters(userInfo.id);
+                mDevicePolicyManager.resetDefaultCrossProfileIntentFilters(userId);
             }
         }
 
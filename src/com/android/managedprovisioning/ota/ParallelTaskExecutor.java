@@ -0,0 +1,181 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.managedprovisioning.ota;
+
+import static java.util.Objects.requireNonNull;
+
+import android.os.SystemClock;
+import android.util.SparseArray;
+
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.managedprovisioning.common.ProvisionLogger;
+import com.android.managedprovisioning.task.AbstractProvisioningTask;
+
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * {@link TaskExecutor} that runs the work of different users in parallel on a bounded thread
+ * pool, while the work of each user still runs in submission order.
+ *
+ * <p>The time from starting a task until it reports success or failure is logged.
+ */
+public class ParallelTaskExecutor extends TaskExecutor {
+    private static final int MAX_THREADS = 4;
+    private static final long KEEP_ALIVE_SECONDS = 10;
+
+    private final Executor mExecutor;
+    private final Map<AbstractProvisioningTask, Long> mStartTimes = new ConcurrentHashMap<>();
+
+    private final Object mLock = new Object();
+    /** Work of each user that is running or waiting to run; the head of each queue is running. */
+    @GuardedBy("mLock")
+    private final SparseArray<ArrayDeque<Runnable>> mQueues = new SparseArray<>();
+    @GuardedBy("mLock")
+    private int mPendingCount;
+
+    public ParallelTaskExecutor() {
+        this(createThreadPool());
+    }
+
+    @VisibleForTesting
+    ParallelTaskExecutor(Executor executor) {
+        mExecutor = requireNonNull(executor);
+    }
+
+    @Override
+    public void execute(int userId, AbstractProvisioningTask task) {
+        runForUser(userId, () -> runTask(userId, task));
+    }
+
+    @Override
+    public void runForUser(int userId, Runnable work) {
+        requireNonNull(work);
+        synchronized (mLock) {
+            mPendingCount++;
+            ArrayDeque<Runnable> queue = mQueues.get(userId);
+            if (queue != null) {
+                queue.add(work);
+                return;
+            }
+            queue = new ArrayDeque<>();
+            queue.add(work);
+            mQueues.put(userId, queue);
+        }
+        mExecutor.execute(() -> drain(userId));
+    }
+
+    @Override
+    public boolean awaitIdle(long timeoutMillis) {
+        long startMillis = SystemClock.elapsedRealtime();
+        synchronized (mLock) {
+            while (mPendingCount > 0) {
+                long remainingMillis =
+                        timeoutMillis - (SystemClock.elapsedRealtime() - startMillis);
+                if (remainingMillis <= 0) {
+                    return false;
+                }
+                try {
+                    mLock.wait(remainingMillis);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    @Override
+    public void onSuccess(AbstractProvisioningTask task) {
+        logDuration(task);
+        super.onSuccess(task);
+    }
+
+    @Override
+    public void onError(AbstractProvisioningTask task, int errorMsg, String errorMessage) {
+        logDuration(task);
+        super.onError(task, errorMsg, errorMessage);
+    }
+
+    private void drain(int userId) {
+        Runnable work;
+        synchronized (mLock) {
+            work = mQueues.get(userId).peek();
+        }
+        while (work != null) {
+            try {
+                work.run();
+            } catch (RuntimeException e) {
+                ProvisionLogger.loge("Exception running OTA work for user " + userId, e);
+            }
+            synchronized (mLock) {
+                ArrayDeque<Runnable> queue = mQueues.get(userId);
+                queue.poll();
+                mPendingCount--;
+                work = queue.peek();
+                if (work == null) {
+                    mQueues.remove(userId);
+                }
+                if (mPendingCount == 0) {
+                    mLock.notifyAll();
+                }
+            }
+        }
+    }
+
+    private void runTask(int userId, AbstractProvisioningTask task) {
+        mStartTimes.put(task, SystemClock.elapsedRealtime());
+        try {
+            task.run(userId);
+        } catch (RuntimeException e) {
+            mStartTimes.remove(task);
+            throw e;
+        }
+    }
+
+    private void logDuration(AbstractProvisioningTask task) {
+        Long startTime = mStartTimes.remove(task);
+        if (startTime != null) {
+            ProvisionLogger.logi(task.getClass().getSimpleName() + " finished in "
+                    + (SystemClock.elapsedRealtime() - startTime) + "ms");
+        }
+    }
+
+    private static Executor createThreadPool() {
+        int threads = Math.max(1, Math.min(MAX_THREADS,
+                Runtime.getRuntime().availableProcessors()));
+        AtomicInteger threadCount = new AtomicInteger();
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads,
+                KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+                runnable -> {
+                    Thread thread = new Thread(runnable,
+                            "ManagedProvisioning OTA #" + threadCount.incrementAndGet());
+                    thread.setPriority(Thread.MAX_PRIORITY);
+                    return thread;
+                });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+}
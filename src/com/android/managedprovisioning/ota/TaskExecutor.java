@@ -28,6 +28,23 @@ public class TaskExecutor implements AbstractProvisioningTask.Callback {
         task.run(userId);
     }
 
+    /**
+     * Runs {@code work} on behalf of the given user. Work submitted for the same user runs in
+     * submission order.
+     */
+    public void runForUser(int userId, Runnable work) {
+        work.run();
+    }
+
+    /**
+     * Waits for at most {@code timeoutMillis} until all submitted tasks and work have run.
+     *
+     * @return whether everything has run
+     */
+    public boolean awaitIdle(long timeoutMillis) {
+        return true;
+    }
+
     @Override
     public void onSuccess(AbstractProvisioningTask task) {
         ProvisionLogger.logd("Task ran successfully: " + task.getClass().getSimpleName());
@@ -100,10 +100,12 @@ import com.android.managedprovisioning.model.PackageDownloadInfo;
 import com.android.managedprovisioning.model.ProvisioningParams;
 import com.android.managedprovisioning.model.WifiInfo;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.IllformedLocaleException;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
@@ -124,6 +126,57 @@ public class ExtrasProvisioningDataParser implements ProvisioningDataParser {
                     ACTION_PROVISION_MANAGED_PROFILE,
                     ACTION_PROVISION_MANAGED_DEVICE_SILENTLY));
 
+    /**
+     * Number of http range requests the device admin package is downloaded with in parallel, up
+     * to {@link PackageDownloadInfo#MAX_DOWNLOAD_SEGMENTS}. Only worth it for large packages
+     * served by hosts that throttle each connection.
+     */
+    @VisibleForTesting
+    static final String EXTRA_PROVISIONING_DEVICE_ADMIN_PACKAGE_DOWNLOAD_SEGMENTS =
+            "com.android.managedprovisioning.extra.DEVICE_ADMIN_PACKAGE_DOWNLOAD_SEGMENTS";
+
+    /**
+     * Like {@link #EXTRA_PROVISIONING_DEVICE_ADMIN_PACKAGE_DOWNLOAD_SEGMENTS}, for the role holder
+     * package.
+     */
+    @VisibleForTesting
+    static final String EXTRA_PROVISIONING_ROLE_HOLDER_PACKAGE_DOWNLOAD_SEGMENTS =
+            "com.android.managedprovisioning.extra.ROLE_HOLDER_PACKAGE_DOWNLOAD_SEGMENTS";
+
+    /**
+     * Download locations of the split apks of the device admin package, such as the splits
+     * carrying native libraries, as a string array.
+     */
+    @VisibleForTesting
+    static final String EXTRA_PROVISIONING_DEVICE_ADMIN_PACKAGE_SPLIT_LOCATIONS =
+            "com.android.managedprovisioning.extra.DEVICE_ADMIN_PACKAGE_SPLIT_LOCATIONS";
+
+    /**
+     * SHA-256 checksums of the split apks at {@link
+     * #EXTRA_PROVISIONING_DEVICE_ADMIN_PACKAGE_SPLIT_LOCATIONS}, in the same order, as a string
+     * array. Each is encoded like {@link
+     * DevicePolicyManager#EXTRA_PROVISIONING_DEVICE_ADMIN_PACKAGE_CHECKSUM}.
+     */
+    @VisibleForTesting
+    static final String EXTRA_PROVISIONING_DEVICE_ADMIN_PACKAGE_SPLIT_CHECKSUMS =
+            "com.android.managedprovisioning.extra.DEVICE_ADMIN_PACKAGE_SPLIT_CHECKSUMS";
+
+    /**
+     * Like {@link #EXTRA_PROVISIONING_DEVICE_ADMIN_PACKAGE_SPLIT_LOCATIONS}, for the role holder
+     * package.
+     */
+    @VisibleForTesting
+    static final String EXTRA_PROVISIONING_ROLE_HOLDER_PACKAGE_SPLIT_LOCATIONS =
+            "com.android.managedprovisioning.extra.ROLE_HOLDER_PACKAGE_SPLIT_LOCATIONS";
+
+    /**
+     * Like {@link #EXTRA_PROVISIONING_DEVICE_ADMIN_PACKAGE_SPLIT_CHECKSUMS}, for the role holder
+     * package.
+     */
+    @VisibleForTesting
+    static final String EXTRA_PROVISIONING_ROLE_HOLDER_PACKAGE_SPLIT_CHECKSUMS =
+            "com.android.managedprovisioning.extra.ROLE_HOLDER_PACKAGE_SPLIT_CHECKSUMS";
+
     @VisibleForTesting
     static final String EXTRA_PROVISIONING_ADMIN_EXTRAS_BUNDLE_SHORT = "a.a.e.PAEB";
 
@@ -818,6 +871,13 @@ public class ExtrasProvisioningDataParser implements ProvisioningDataParser {
         if (sigHash != null) {
             downloadInfoBuilder.setSignatureChecksum(StoreUtils.stringToByteArray(sigHash));
         }
+        setDownloadSegments(downloadInfoBuilder, intent,
+                EXTRA_PROVISIONING_DEVICE_ADMIN_PACKAGE_DOWNLOAD_SEGMENTS);
+        setSplits(downloadInfoBuilder, intent,
+                EXTRA_PROVISIONING_DEVICE_ADMIN_PACKAGE_SPLIT_LOCATIONS,
+                EXTRA_PROVISIONING_DEVICE_ADMIN_PACKAGE_SPLIT_CHECKSUMS,
+                getStringExtraFromLongName(
+                        intent, EXTRA_PROVISIONING_DEVICE_ADMIN_PACKAGE_DOWNLOAD_COOKIE_HEADER));
         return downloadInfoBuilder.build();
     }
 
@@ -856,6 +916,52 @@ public class ExtrasProvisioningDataParser implements ProvisioningDataParser {
                 .setCookieHeader(getStringExtraFromLongName(
                         intent, EXTRA_PROVISIONING_ROLE_HOLDER_PACKAGE_DOWNLOAD_COOKIE_HEADER));
         downloadInfoBuilder.setSignatureChecksum(StoreUtils.stringToByteArray(sigHash));
+        setDownloadSegments(downloadInfoBuilder, intent,
+                EXTRA_PROVISIONING_ROLE_HOLDER_PACKAGE_DOWNLOAD_SEGMENTS);
+        setSplits(downloadInfoBuilder, intent,
+                EXTRA_PROVISIONING_ROLE_HOLDER_PACKAGE_SPLIT_LOCATIONS,
+                EXTRA_PROVISIONING_ROLE_HOLDER_PACKAGE_SPLIT_CHECKSUMS,
+                getStringExtraFromLongName(
+                        intent, EXTRA_PROVISIONING_ROLE_HOLDER_PACKAGE_DOWNLOAD_COOKIE_HEADER));
         return downloadInfoBuilder.build();
     }
+
+    /**
+     * Downloads the package with as many parallel range requests as {@code extraName} asks for.
+     * Out of range values are clamped, so that a misconfigured package still downloads.
+     */
+    private void setDownloadSegments(PackageDownloadInfo.Builder downloadInfoBuilder,
+            Intent intent, String extraName) {
+        int downloadSegments = getIntExtraFromLongName(
+                intent, extraName, PackageDownloadInfo.DEFAULT_DOWNLOAD_SEGMENTS);
+        downloadInfoBuilder.setDownloadSegments(
+                Math.max(PackageDownloadInfo.DEFAULT_DOWNLOAD_SEGMENTS,
+                        Math.min(downloadSegments, PackageDownloadInfo.MAX_DOWNLOAD_SEGMENTS)));
+    }
+
+    /**
+     * Adds the split apks at the locations of {@code locationsExtra}, each checked against the
+     * checksum at the same index of {@code checksumsExtra}. They are downloaded with the cookie
+     * header of the package.
+     */
+    private void setSplits(PackageDownloadInfo.Builder downloadInfoBuilder, Intent intent,
+            String locationsExtra, String checksumsExtra, @Nullable String cookieHeader) {
+        String[] locations = intent.getStringArrayExtra(locationsExtra);
+        if (locations == null) {
+            return;
+        }
+        String[] checksums = intent.getStringArrayExtra(checksumsExtra);
+        if (checksums == null || checksums.length != locations.length) {
+            throw new IllegalArgumentException("Every split apk needs a package checksum.");
+        }
+        List<PackageDownloadInfo> splits = new ArrayList<>();
+        for (int i = 0; i < locations.length; i++) {
+            splits.add(PackageDownloadInfo.Builder.builder()
+                    .setLocation(locations[i])
+                    .setCookieHeader(cookieHeader)
+                    .setPackageChecksum(StoreUtils.stringToByteArray(checksums[i]))
+                    .build());
+        }
+        downloadInfoBuilder.setSplits(splits);
+    }
 }
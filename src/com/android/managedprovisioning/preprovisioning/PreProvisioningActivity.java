@@ -65,7 +65,6 @@ import androidx.annotation.VisibleForTesting;
 import com.android.managedprovisioning.ManagedProvisioningBaseApplication;
 import com.android.managedprovisioning.ManagedProvisioningScreens;
 import com.android.managedprovisioning.R;
-import com.android.managedprovisioning.analytics.MetricsWriterFactory;
 import com.android.managedprovisioning.analytics.ProvisioningAnalyticsTracker;
 import com.android.managedprovisioning.common.AccessibilityContextMenuMaker;
 import com.android.managedprovisioning.common.DefaultFeatureFlagChecker;
@@ -73,7 +72,6 @@ import com.android.managedprovisioning.common.DefaultIntentResolverChecker;
 import com.android.managedprovisioning.common.DefaultPackageInstallChecker;
 import com.android.managedprovisioning.common.DeviceManagementRoleHolderUpdaterHelper;
 import com.android.managedprovisioning.common.GetProvisioningModeUtils;
-import com.android.managedprovisioning.common.ManagedProvisioningSharedPreferences;
 import com.android.managedprovisioning.common.ProvisionLogger;
 import com.android.managedprovisioning.common.RetryLaunchActivity;
 import com.android.managedprovisioning.common.RoleHolderProvider;
@@ -177,9 +175,7 @@ public class PreProvisioningActivity extends SetupGlifLayoutActivity implements
         mController.getState().observe(this, this::onStateChanged);
 
         mAnalyticsTracker =
-                new ProvisioningAnalyticsTracker(
-                        MetricsWriterFactory.getMetricsWriter(this, new SettingsFacade()),
-                        new ManagedProvisioningSharedPreferences(this));
+                ProvisioningAnalyticsTracker.getInstance(this);
         logMetrics();
     }
 
@@ -251,6 +247,7 @@ public class PreProvisioningActivity extends SetupGlifLayoutActivity implements
         }
         getEncryptionController().cancelEncryptionReminder();
         getApplicationContext().stopService(PROVISIONING_SERVICE_INTENT);
+        mController.cancelSpeculativePrefetch();
         super.finish();
     }
 
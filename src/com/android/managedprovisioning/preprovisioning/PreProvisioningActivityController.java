@@ -111,6 +111,7 @@ import com.android.managedprovisioning.common.SettingsFacade;
 import com.android.managedprovisioning.common.StoreUtils;
 import com.android.managedprovisioning.common.Utils;
 import com.android.managedprovisioning.model.DisclaimersParam;
+import com.android.managedprovisioning.model.PackageDownloadInfo;
 import com.android.managedprovisioning.model.ProvisioningParams;
 import com.android.managedprovisioning.model.ProvisioningParams.FlowType;
 import com.android.managedprovisioning.parser.DisclaimerParser;
@@ -118,6 +119,7 @@ import com.android.managedprovisioning.parser.DisclaimersParserImpl;
 import com.android.managedprovisioning.preprovisioning.PreProvisioningViewModel.DefaultConfig;
 import com.android.managedprovisioning.preprovisioning.PreProvisioningViewModel.PreProvisioningViewModelFactory;
 import com.android.managedprovisioning.provisioning.Constants;
+import com.android.managedprovisioning.task.download.PackagePrefetcher;
 
 import java.util.IllformedLocaleException;
 import java.util.List;
@@ -149,6 +151,8 @@ public class PreProvisioningActivityController {
     private final BiFunction<Context, Long, DisclaimerParser> mDisclaimerParserProvider;
     private final DeviceManagementRoleHolderHelper mRoleHolderHelper;
     private final DeviceManagementRoleHolderUpdaterHelper mRoleHolderUpdaterHelper;
+    private final PackagePrefetcher mPackagePrefetcher;
+    private PackageDownloadInfo mPrefetchedDownloadInfo;
 
     public PreProvisioningActivityController(
             @NonNull ComponentActivity activity,
@@ -178,7 +182,8 @@ public class PreProvisioningActivityController {
                         RoleHolderProvider.DEFAULT.getPackageName(activity),
                         new DefaultPackageInstallChecker(activity.getPackageManager(), new Utils()),
                         new DefaultIntentResolverChecker(activity.getPackageManager()),
-                        new DefaultFeatureFlagChecker(activity.getContentResolver())));
+                        new DefaultFeatureFlagChecker(activity.getContentResolver())),
+                PackagePrefetcher.getInstance(activity));
     }
     @VisibleForTesting
     PreProvisioningActivityController(
@@ -192,7 +197,8 @@ public class PreProvisioningActivityController {
             @NonNull PreProvisioningViewModel viewModel,
             @NonNull BiFunction<Context, Long, DisclaimerParser> disclaimerParserProvider,
             @NonNull DeviceManagementRoleHolderHelper roleHolderHelper,
-            @NonNull DeviceManagementRoleHolderUpdaterHelper roleHolderUpdaterHelper) {
+            @NonNull DeviceManagementRoleHolderUpdaterHelper roleHolderUpdaterHelper,
+            @NonNull PackagePrefetcher packagePrefetcher) {
         mContext = requireNonNull(context, "Context must not be null");
         mUi = requireNonNull(ui, "Ui must not be null");
         mSettingsFacade = requireNonNull(settingsFacade);
@@ -216,6 +222,7 @@ public class PreProvisioningActivityController {
         mDisclaimerParserProvider = requireNonNull(disclaimerParserProvider);
         mRoleHolderHelper = requireNonNull(roleHolderHelper);
         mRoleHolderUpdaterHelper = requireNonNull(roleHolderUpdaterHelper);
+        mPackagePrefetcher = requireNonNull(packagePrefetcher);
     }
 
     /**
@@ -435,6 +442,7 @@ public class PreProvisioningActivityController {
         }
 
         mUi.onParamsValidated(params);
+        startSpeculativePrefetch(params);
 
         // TODO(b/207376815): Have a PreProvisioningForwarderActivity to forward to either
         //  platform-provided provisioning or DMRH
@@ -466,7 +474,7 @@ public class PreProvisioningActivityController {
         }
         ProvisionLogger.logi("Start logging provisioning extras");
         for (String key : extras.keySet()) {
-            ProvisionLogger.logi("Extra key: " + key + ", extra value: " + extras.get(key));
+            ProvisionLogger.logi("Extra key: %s, extra value: %s", key, extras.get(key));
         }
         ProvisionLogger.logi("Finish logging provisioning extras");
     }
@@ -1042,6 +1050,37 @@ public class PreProvisioningActivityController {
         mViewModel.getTimeLogger().stop();
     }
 
+    /**
+     * Starts downloading and hashing the device admin package while the user goes through the
+     * consent screens. {@link com.android.managedprovisioning.task.DownloadPackageTask} adopts
+     * the prefetched package later on.
+     */
+    private void startSpeculativePrefetch(ProvisioningParams params) {
+        PackageDownloadInfo downloadInfo = params.deviceAdminDownloadInfo;
+        String packageName = params.inferDeviceAdminPackageName();
+        if (downloadInfo == null
+                || packageName == null
+                || !mUtils.isPackageDownloadCacheEnabled()
+                || !mUtils.isConnectedToNetwork(mContext)
+                || !mUtils.packageRequiresUpdate(packageName, downloadInfo.minVersion, mContext)) {
+            return;
+        }
+        mPackagePrefetcher.prefetch(downloadInfo);
+        mPrefetchedDownloadInfo = downloadInfo;
+    }
+
+    /**
+     * Cancels the download started by {@link #startSpeculativePrefetch} and discards the
+     * downloaded package once the package is no longer needed, whether provisioning was
+     * cancelled, failed or finished.
+     */
+    public void cancelSpeculativePrefetch() {
+        if (mPrefetchedDownloadInfo != null) {
+            mPackagePrefetcher.cancel(mPrefetchedDownloadInfo);
+            mPrefetchedDownloadInfo = null;
+        }
+    }
+
     /**
      * Log if PreProvisioning was cancelled.
      */
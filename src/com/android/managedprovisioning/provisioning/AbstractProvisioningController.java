@@ -19,6 +19,7 @@ package com.android.managedprovisioning.provisioning;
 import static com.android.internal.util.Preconditions.checkNotNull;
 
 import android.annotation.MainThread;
+import android.annotation.Nullable;
 import android.content.Context;
 import android.os.Handler;
 import android.os.HandlerThread;
@@ -28,20 +29,31 @@ import android.os.UserHandle;
 import android.os.UserManager;
 
 import com.android.internal.annotations.VisibleForTesting;
-import com.android.managedprovisioning.analytics.MetricsWriterFactory;
 import com.android.managedprovisioning.analytics.ProvisioningAnalyticsTracker;
-import com.android.managedprovisioning.common.ManagedProvisioningSharedPreferences;
+import com.android.managedprovisioning.analytics.ProvisioningTracer;
 import com.android.managedprovisioning.common.ProvisionLogger;
-import com.android.managedprovisioning.common.SettingsFacade;
+import com.android.managedprovisioning.common.Utils;
 import com.android.managedprovisioning.model.ProvisioningParams;
 import com.android.managedprovisioning.task.AbstractProvisioningTask;
 import com.android.managedprovisioning.task.DownloadPackageTask;
 import com.android.managedprovisioning.task.InstallExistingPackageTask;
 import com.android.managedprovisioning.task.InstallPackageTask;
+import com.android.managedprovisioning.task.StreamingInstallPackageTask;
 import com.android.managedprovisioning.task.VerifyAdminPackageTask;
+import com.android.managedprovisioning.task.wifi.ProvisioningNetwork;
 
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Controller that manages the provisioning process. It controls the order of provisioning tasks,
@@ -58,7 +70,12 @@ public abstract class AbstractProvisioningController implements AbstractProvisio
 
     private final ProvisioningAnalyticsTracker mProvisioningAnalyticsTracker;
     private final ProvisioningControllerCallback mCallback;
+    private final ProvisioningTracer mTracer = ProvisioningTracer.getInstance();
     private Handler mWorkerHandler;
+    @Nullable private ProvisioningTracer.Span mParentSpan;
+    private ProvisioningTracer.Span mControllerSpan;
+    private final Map<AbstractProvisioningTask, ProvisioningTracer.Span> mTaskSpans =
+            new HashMap<>();
 
     // Provisioning hasn't started yet
     private static final int STATUS_NOT_STARTED = 0;
@@ -73,8 +90,21 @@ public abstract class AbstractProvisioningController implements AbstractProvisio
     // Cleanup has completed. This happens after STATUS_ERROR or STATUS_CANCELLING
     private static final int STATUS_CLEANED_UP = 5;
 
+    // Maximum number of tasks whose prerequisites are met that are in flight at the same time.
+    @VisibleForTesting
+    static final int MAX_CONCURRENT_TASKS = 3;
+    private static final int KEEP_ALIVE_SECONDS = 30;
+
+    // Runs the tasks that can run in the background, one thread per task in flight.
+    private static final Executor sTaskExecutor = createTaskExecutor();
+
     private int mStatus = STATUS_NOT_STARTED;
     private List<AbstractProvisioningTask> mTasks = new ArrayList<>();
+    private final Map<AbstractProvisioningTask, Set<AbstractProvisioningTask>> mPrerequisites =
+            new HashMap<>();
+    private final Set<AbstractProvisioningTask> mRunningTasks = new LinkedHashSet<>();
+    private final Set<AbstractProvisioningTask> mCompletedTasks = new HashSet<>();
+    private final Set<AbstractProvisioningTask> mBackgroundTasks = new HashSet<>();
 
     protected int mCurrentTaskIndex;
 
@@ -87,18 +117,68 @@ public abstract class AbstractProvisioningController implements AbstractProvisio
         mParams = checkNotNull(params);
         mUserId = userId;
         mCallback = checkNotNull(callback);
-        mProvisioningAnalyticsTracker = new ProvisioningAnalyticsTracker(
-                MetricsWriterFactory.getMetricsWriter(mContext, new SettingsFacade()),
-                new ManagedProvisioningSharedPreferences(context));
+        mProvisioningAnalyticsTracker = ProvisioningAnalyticsTracker.getInstance(mContext);
     }
 
+    /**
+     * Adds tasks that run strictly in order, each one after all previously added tasks.
+     */
     @MainThread
     protected synchronized void addTasks(AbstractProvisioningTask... tasks) {
         for (AbstractProvisioningTask task : tasks) {
-            mTasks.add(task);
+            addTaskWithPrerequisites(task, new HashSet<>(mTasks));
+        }
+    }
+
+    /**
+     * Adds a task that runs as soon as all of {@code prerequisites} have succeeded. Tasks whose
+     * prerequisites are met are started without waiting for each other, so tasks that spend most
+     * of their time waiting for the network or the system can overlap.
+     *
+     * <p>All prerequisites must have been added before.
+     */
+    @MainThread
+    protected synchronized void addTask(AbstractProvisioningTask task,
+            AbstractProvisioningTask... prerequisites) {
+        Set<AbstractProvisioningTask> prerequisiteSet = new HashSet<>();
+        for (AbstractProvisioningTask prerequisite : prerequisites) {
+            if (!mPrerequisites.containsKey(prerequisite)) {
+                throw new IllegalArgumentException("Prerequisite "
+                        + prerequisite.getClass().getSimpleName() + " has not been added.");
+            }
+            prerequisiteSet.add(prerequisite);
+        }
+        addTaskWithPrerequisites(task, prerequisiteSet);
+    }
+
+    /**
+     * Adds a task that runs once {@code prerequisite} has succeeded, or right away if it is
+     * {@code null}.
+     */
+    @MainThread
+    protected void addTaskAfter(AbstractProvisioningTask task,
+            @Nullable AbstractProvisioningTask prerequisite) {
+        if (prerequisite == null) {
+            addTask(task);
+        } else {
+            addTask(task, prerequisite);
         }
     }
 
+    private void addTaskWithPrerequisites(AbstractProvisioningTask task,
+            Set<AbstractProvisioningTask> prerequisites) {
+        mTasks.add(task);
+        mPrerequisites.put(task, prerequisites);
+    }
+
+    /**
+     * Sets the span under which the spans of this controller and its tasks are nested. Must be
+     * called before {@link #start}.
+     */
+    public synchronized void setParentSpan(@Nullable ProvisioningTracer.Span parentSpan) {
+        mParentSpan = parentSpan;
+    }
+
     protected abstract void setUpTasks();
     protected abstract int getErrorTitle();
     protected abstract int getErrorMsgId(AbstractProvisioningTask task, int errorCode);
@@ -106,7 +186,8 @@ public abstract class AbstractProvisioningController implements AbstractProvisio
 
     /**
      * Start the provisioning process. The tasks loaded in {@link #setUpTasks()} ()} will be
-     * processed one by one and the respective callbacks will be given to the UI.
+     * processed once their prerequisites have succeeded and the respective callbacks will be
+     * given to the UI.
      */
     @MainThread
     public synchronized void start(Looper looper) {
@@ -119,9 +200,10 @@ public abstract class AbstractProvisioningController implements AbstractProvisio
             return;
         }
         mWorkerHandler = checkNotNull(handler);
+        mControllerSpan = mTracer.beginSpan(getClass().getSimpleName(), mParentSpan);
 
         mStatus = STATUS_RUNNING;
-        runTask(0);
+        runReadyTasks();
     }
 
     /**
@@ -132,22 +214,53 @@ public abstract class AbstractProvisioningController implements AbstractProvisio
     public synchronized void cancel() {
         ProvisionLogger.logd("Cancel called, current status is " + mStatus);
         mStatus = STATUS_CANCELLING;
+        endSpans();
         cleanup(STATUS_CLEANED_UP);
     }
 
-    private void runTask(int index) {
+    private void runReadyTasks() {
         if (mTasks.isEmpty()) {
             tasksCompleted();
             return;
         }
-        AbstractProvisioningTask nextTask = mTasks.get(index);
+        for (AbstractProvisioningTask task : mTasks) {
+            if (mRunningTasks.size() >= MAX_CONCURRENT_TASKS) {
+                return;
+            }
+            if (mRunningTasks.contains(task) || mCompletedTasks.contains(task)
+                    || !mCompletedTasks.containsAll(mPrerequisites.get(task))) {
+                continue;
+            }
+            mRunningTasks.add(task);
+            ProvisioningTracer.Span taskSpan =
+                    mTracer.beginSpan(task.getClass().getSimpleName(), mControllerSpan);
+            mTaskSpans.put(task, taskSpan);
+            task.setTraceSpan(taskSpan);
+            runTask(task);
+        }
+    }
+
+    private void runTask(AbstractProvisioningTask task) {
         Message msg = mWorkerHandler.obtainMessage(MSG_RUN_TASK, mUserId, 0 /* arg2 not used */,
-                nextTask);
+                task);
         mWorkerHandler.sendMessage(msg);
     }
 
+    /**
+     * Runs {@code task} on {@link #sTaskExecutor}, so that it can overlap with other tasks. Its
+     * result is posted back to the worker thread.
+     */
+    private void runInBackground(AbstractProvisioningTask task, int userId) {
+        synchronized (this) {
+            mBackgroundTasks.add(task);
+        }
+        sTaskExecutor.execute(() -> task.run(userId));
+    }
+
     private void tasksCompleted() {
         mStatus = STATUS_TASKS_COMPLETED;
+        endSpans();
+        ProvisioningNetwork.getInstance().unbind();
         mCurrentTaskIndex = -1;
         mCallback.provisioningTasksCompleted();
     }
@@ -155,23 +268,56 @@ public abstract class AbstractProvisioningController implements AbstractProvisio
     @Override
     // Note that this callback might come on the main thread
     public synchronized void onSuccess(AbstractProvisioningTask task) {
+        if (postToWorkerThread(task, () -> onSuccess(task))) {
+            return;
+        }
         if (mStatus != STATUS_RUNNING) {
             return;
         }
 
-        mCurrentTaskIndex++;
+        if (!mRunningTasks.remove(task)) {
+            ProvisionLogger.logw("Ignoring success of task that is not running: "
+                    + task.getClass().getSimpleName());
+            return;
+        }
+        mCompletedTasks.add(task);
+        endTaskSpan(task);
+
+        mCurrentTaskIndex = mCompletedTasks.size();
         if (mCurrentTaskIndex == mTasks.size()) {
             tasksCompleted();
         } else {
-            runTask(mCurrentTaskIndex);
+            runReadyTasks();
         }
     }
 
     @Override
     // Note that this callback might come on the main thread
-    public synchronized void onError(AbstractProvisioningTask task, int errorCode,
+    public void onError(AbstractProvisioningTask task, int errorCode, String errorMessage) {
+        if (postToWorkerThread(task, () -> onError(task, errorCode, errorMessage))) {
+            return;
+        }
+        if (handleError(task, errorCode, errorMessage)) {
+            // Outside of the lock, so that tasks reporting progress are not blocked meanwhile.
+            ProvisionLogger.dumpFlightRecorder();
+        }
+    }
+
+    /**
+     * Fails provisioning with the first error reported. Returns whether this was the first error.
+     */
+    private synchronized boolean handleError(AbstractProvisioningTask task, int errorCode,
             String errorMessage) {
+        if (mStatus == STATUS_ERROR) {
+            // The first error wins; tasks still in flight may report more errors after it.
+            ProvisionLogger.logw("Ignoring error " + errorCode + " of "
+                    + task.getClass().getSimpleName() + " after an earlier error");
+            return false;
+        }
         mStatus = STATUS_ERROR;
+        ProvisionLogger.loge("Provisioning failed in " + task.getClass().getSimpleName()
+                + " with error code " + errorCode);
+        endSpans();
         cleanup(STATUS_ERROR);
         mProvisioningAnalyticsTracker.logProvisioningError(mContext, task, errorCode);
         if (errorMessage == null) {
@@ -181,44 +327,113 @@ public abstract class AbstractProvisioningController implements AbstractProvisio
             mCallback.error(
                     getErrorTitle(), errorMessage, getRequireFactoryReset(task, errorCode));
         }
+        return true;
+    }
+
+    /**
+     * Posts {@code callback} to the worker thread if {@code task} ran in the background and
+     * reported its result from there, so that results are always handled on the worker thread.
+     *
+     * @return whether {@code callback} was posted
+     */
+    private synchronized boolean postToWorkerThread(AbstractProvisioningTask task,
+            Runnable callback) {
+        if (!mBackgroundTasks.contains(task) || mWorkerHandler.getLooper().isCurrentThread()) {
+            return false;
+        }
+        mWorkerHandler.post(callback);
+        return true;
+    }
+
+    private void endTaskSpan(AbstractProvisioningTask task) {
+        ProvisioningTracer.Span span = mTaskSpans.remove(task);
+        if (span != null) {
+            span.end();
+        }
+    }
+
+    /**
+     * Ends the spans of the running tasks and of the controller.
+     */
+    private void endSpans() {
+        for (ProvisioningTracer.Span span : mTaskSpans.values()) {
+            span.end();
+        }
+        mTaskSpans.clear();
+        if (mControllerSpan != null) {
+            mControllerSpan.end();
+        }
     }
 
     private void cleanup(final int newStatus) {
+        for (AbstractProvisioningTask task : mRunningTasks) {
+            task.cancel();
+        }
+        ProvisioningNetwork.getInstance().unbind();
         mWorkerHandler.post(() -> {
                 mStatus = newStatus;
                 mCallback.cleanUpCompleted();
             });
     }
 
-    protected final void addDownloadAndInstallDeviceOwnerPackageTasks() {
+    /**
+     * Adds the tasks that download and install the device owner package. They start once {@code
+     * prerequisite}, if any, has succeeded, without waiting for other tasks added before.
+     */
+    protected final void addDownloadAndInstallDeviceOwnerPackageTasks(
+            @Nullable AbstractProvisioningTask prerequisite) {
         if (mParams.deviceAdminDownloadInfo == null) {
             return;
         }
 
-        DownloadPackageTask downloadTask = new DownloadPackageTask(
-                mContext, mParams, mParams.deviceAdminDownloadInfo, this);
-        addTasks(downloadTask,
-                new VerifyAdminPackageTask(
-                        downloadTask, mContext, mParams, mParams.deviceAdminDownloadInfo, this),
-                new InstallPackageTask(downloadTask, mContext, mParams, this,
-                        mParams.inferDeviceAdminPackageName()));
+        AbstractProvisioningTask installTask;
+        if (new Utils().isStreamingPackageInstallEnabled()
+                && StreamingInstallPackageTask.canStream(mParams.deviceAdminDownloadInfo)) {
+            installTask = new StreamingInstallPackageTask(mContext, mParams,
+                    mParams.deviceAdminDownloadInfo, this, mParams.inferDeviceAdminPackageName());
+            addTaskAfter(installTask, prerequisite);
+        } else {
+            DownloadPackageTask downloadTask = new DownloadPackageTask(
+                    mContext, mParams, mParams.deviceAdminDownloadInfo, this);
+            addTaskAfter(downloadTask, prerequisite);
+            AbstractProvisioningTask verifyTask = new VerifyAdminPackageTask(
+                    downloadTask, mContext, mParams, mParams.deviceAdminDownloadInfo, this);
+            addTask(verifyTask, downloadTask);
+            installTask = new InstallPackageTask(downloadTask, mContext, mParams, this,
+                    mParams.inferDeviceAdminPackageName());
+            addTask(installTask, verifyTask);
+        }
 
         // TODO(b/170333009): add unit test for headless system user mode
         if (UserManager.isHeadlessSystemUserMode() && mUserId != UserHandle.USER_SYSTEM) {
             ProvisionLogger.logd("Adding InstallExistingPackageTask for system user on "
                       + "headless system user mode");
-            addTasks(new InstallExistingPackageTask(mParams.inferDeviceAdminPackageName(), mContext,
-                    mParams, /* callback= */ this, UserHandle.USER_SYSTEM));
+            // Installing an existing package for another user needs the apk to be installed on
+            // the device already, so this waits for the install of the current user.
+            addTask(new InstallExistingPackageTask(mParams.inferDeviceAdminPackageName(), mContext,
+                    mParams, /* callback= */ this, UserHandle.USER_SYSTEM), installTask);
         }
     }
 
+    private static Executor createTaskExecutor() {
+        AtomicInteger threadCount = new AtomicInteger();
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(MAX_CONCURRENT_TASKS,
+                MAX_CONCURRENT_TASKS, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(),
+                runnable -> new Thread(runnable,
+                        "ManagedProvisioning task #" + threadCount.incrementAndGet()));
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
     /**
      * Handler that runs the provisioning tasks.
      *
      * <p>We're using a {@link HandlerThread} for all the provisioning tasks in order to not
-     * block the UI thread.</p>
+     * block the UI thread. Tasks that {@link AbstractProvisioningTask#canRunInBackground() can
+     * run in the background} are handed to a thread pool instead.</p>
      */
-    protected static class ProvisioningTaskHandler extends Handler {
+    protected class ProvisioningTaskHandler extends Handler {
         public ProvisioningTaskHandler(Looper looper) {
             super(looper);
         }
@@ -229,7 +444,11 @@ public abstract class AbstractProvisioningController implements AbstractProvisio
                 int userId = msg.arg1;
                 ProvisionLogger.logd("Running task: " + task.getClass().getSimpleName()
                         + " for user " + userId);
-                task.run(userId);
+                if (task.canRunInBackground()) {
+                    runInBackground(task, userId);
+                } else {
+                    task.run(userId);
+                }
             } else {
                 ProvisionLogger.loge("Unknown message: " + msg.what);
             }
@@ -29,6 +29,7 @@ import com.android.managedprovisioning.task.AddWifiNetworkTask;
 import com.android.managedprovisioning.task.ConnectMobileNetworkTask;
 import com.android.managedprovisioning.task.DownloadPackageTask;
 import com.android.managedprovisioning.task.InstallPackageTask;
+import com.android.managedprovisioning.task.StreamingInstallPackageTask;
 import com.android.managedprovisioning.task.VerifyAdminPackageTask;
 
 /**
@@ -74,13 +75,16 @@ public class AdminIntegratedFlowPrepareController extends AbstractProvisioningCo
 
     @Override
     protected void setUpTasks() {
+        AbstractProvisioningTask networkTask = null;
         if (mParams.wifiInfo != null) {
-            addTasks(new AddWifiNetworkTask(mContext, mParams, this));
+            networkTask = new AddWifiNetworkTask(mContext, mParams, this);
+            addTask(networkTask);
         } else if (mParams.useMobileData) {
-            addTasks(new ConnectMobileNetworkTask(mContext, mParams, this));
+            networkTask = new ConnectMobileNetworkTask(mContext, mParams, this);
+            addTask(networkTask);
         }
 
-        addDownloadAndInstallDeviceOwnerPackageTasks();
+        addDownloadAndInstallDeviceOwnerPackageTasks(networkTask);
     }
 
     @Override
@@ -106,6 +110,18 @@ public class AdminIntegratedFlowPrepareController extends AbstractProvisioningCo
                 case VerifyAdminPackageTask.ERROR_DEVICE_ADMIN_MISSING:
                     return R.string.error_package_invalid;
             }
+        } else if (task instanceof StreamingInstallPackageTask) {
+            switch (errorCode) {
+                case StreamingInstallPackageTask.ERROR_DOWNLOAD_FAILED:
+                    return R.string.error_download_failed;
+                case StreamingInstallPackageTask.ERROR_HASH_MISMATCH:
+                    return R.string.error_hash_mismatch;
+                case StreamingInstallPackageTask.ERROR_DEVICE_ADMIN_MISSING:
+                case InstallPackageTask.ERROR_PACKAGE_INVALID:
+                    return R.string.error_package_invalid;
+                case InstallPackageTask.ERROR_INSTALLATION_FAILED:
+                    return R.string.error_installation_failed;
+            }
         } else if (task instanceof InstallPackageTask) {
             switch (errorCode) {
                 case InstallPackageTask.ERROR_PACKAGE_INVALID:
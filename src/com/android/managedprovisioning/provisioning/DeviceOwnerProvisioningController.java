@@ -16,6 +16,7 @@
 
 package com.android.managedprovisioning.provisioning;
 
+import android.annotation.Nullable;
 import android.content.Context;
 
 import com.android.managedprovisioning.R;
@@ -27,7 +28,9 @@ import com.android.managedprovisioning.task.ConnectMobileNetworkTask;
 import com.android.managedprovisioning.task.DownloadPackageTask;
 import com.android.managedprovisioning.task.InstallPackageTask;
 import com.android.managedprovisioning.task.ProvisionFullyManagedDeviceTask;
+import com.android.managedprovisioning.task.StreamingInstallPackageTask;
 import com.android.managedprovisioning.task.VerifyAdminPackageTask;
+import com.android.managedprovisioning.task.WarmUpConnectionTask;
 
 /**
  * Controller for Device Owner provisioning.
@@ -68,17 +71,36 @@ public class DeviceOwnerProvisioningController extends AbstractProvisioningContr
         // installed as part of the admin-integrated flow preparation.
         // We must install the admin app here instead.
         if (!mUtils.checkAdminIntegratedFlowPreconditions(mParams)) {
+            AbstractProvisioningTask networkTask = null;
             if (mParams.wifiInfo != null) {
-                addTasks(new AddWifiNetworkTask(mContext, mParams, this));
+                networkTask = new AddWifiNetworkTask(mContext, mParams, this);
+                addTask(networkTask);
             } else if (mParams.useMobileData) {
-                addTasks(new ConnectMobileNetworkTask(mContext, mParams, this));
+                networkTask = new ConnectMobileNetworkTask(mContext, mParams, this);
+                addTask(networkTask);
             }
+            addWarmUpConnectionTask(networkTask);
 
-            addDownloadAndInstallDeviceOwnerPackageTasks();
+            // The download does not wait for the warm-up, which it joins if it is still running.
+            addDownloadAndInstallDeviceOwnerPackageTasks(networkTask);
         }
         addTasks(new ProvisionFullyManagedDeviceTask(mContext, mParams, this));
     }
 
+    /**
+     * Starts warming up the connection to the host of the device owner package once {@code
+     * networkTask}, if any, connected the network that the download runs on.
+     */
+    private void addWarmUpConnectionTask(@Nullable AbstractProvisioningTask networkTask) {
+        String packageName = mParams.inferDeviceAdminPackageName();
+        if (mParams.deviceAdminDownloadInfo == null || packageName == null) {
+            return;
+        }
+        WarmUpConnectionTask task = new WarmUpConnectionTask(mContext, mParams,
+                mParams.deviceAdminDownloadInfo, packageName, this);
+        addTaskAfter(task, networkTask);
+    }
+
     @Override protected int getErrorTitle() {
         return R.string.cant_set_up_device;
     }
@@ -101,6 +123,18 @@ public class DeviceOwnerProvisioningController extends AbstractProvisioningContr
                 case VerifyAdminPackageTask.ERROR_DEVICE_ADMIN_MISSING:
                     return R.string.error_package_invalid;
             }
+        } else if (task instanceof StreamingInstallPackageTask) {
+            switch (errorCode) {
+                case StreamingInstallPackageTask.ERROR_DOWNLOAD_FAILED:
+                    return R.string.error_download_failed;
+                case StreamingInstallPackageTask.ERROR_HASH_MISMATCH:
+                    return R.string.error_hash_mismatch;
+                case StreamingInstallPackageTask.ERROR_DEVICE_ADMIN_MISSING:
+                case InstallPackageTask.ERROR_PACKAGE_INVALID:
+                    return R.string.error_package_invalid;
+                case InstallPackageTask.ERROR_INSTALLATION_FAILED:
+                    return R.string.error_installation_failed;
+            }
         } else if (task instanceof InstallPackageTask) {
             switch (errorCode) {
                 case InstallPackageTask.ERROR_PACKAGE_INVALID:
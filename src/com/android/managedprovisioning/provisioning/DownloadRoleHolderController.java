@@ -18,6 +18,7 @@ package com.android.managedprovisioning.provisioning;
 
 import static java.util.Objects.requireNonNull;
 
+import android.annotation.Nullable;
 import android.content.Context;
 
 import com.android.managedprovisioning.R;
@@ -29,8 +30,10 @@ import com.android.managedprovisioning.task.AddWifiNetworkTask;
 import com.android.managedprovisioning.task.ConnectMobileNetworkTask;
 import com.android.managedprovisioning.task.DownloadPackageTask;
 import com.android.managedprovisioning.task.InstallPackageTask;
+import com.android.managedprovisioning.task.PrefetchPackageTask;
 import com.android.managedprovisioning.task.VerifyAdminPackageTask;
 import com.android.managedprovisioning.task.VerifyRoleHolderPackageTask;
+import com.android.managedprovisioning.task.WarmUpConnectionTask;
 
 /**
  * Controller which establishes network connection and downloads the device policy management
@@ -77,27 +80,64 @@ public class DownloadRoleHolderController extends AbstractProvisioningController
 
     @Override
     protected void setUpTasks() {
+        AbstractProvisioningTask networkTask = null;
         if (mParams.wifiInfo != null) {
-            addTasks(new AddWifiNetworkTask(mContext, mParams, this));
+            networkTask = new AddWifiNetworkTask(mContext, mParams, this);
+            addTask(networkTask);
         } else if (mParams.useMobileData) {
-            addTasks(new ConnectMobileNetworkTask(mContext, mParams, this));
+            networkTask = new ConnectMobileNetworkTask(mContext, mParams, this);
+            addTask(networkTask);
         }
+        addWarmUpConnectionTasks(networkTask);
 
-        addDownloadAndInstallRoleHolderPackageTasks();
+        addPrefetchDeviceOwnerPackageTask(networkTask);
+        addDownloadAndInstallRoleHolderPackageTasks(networkTask);
     }
 
-    private void addDownloadAndInstallRoleHolderPackageTasks() {
+    /**
+     * Starts warming up the connections to the hosts of the role holder and the device owner
+     * package once {@code networkTask}, if any, connected the network that the downloads run on.
+     */
+    private void addWarmUpConnectionTasks(@Nullable AbstractProvisioningTask networkTask) {
+        if (mParams.roleHolderDownloadInfo != null) {
+            addTaskAfter(new WarmUpConnectionTask(mContext, mParams,
+                    mParams.roleHolderDownloadInfo, mRoleHolderPackageName, this), networkTask);
+        }
+        String packageName = mParams.inferDeviceAdminPackageName();
+        if (mParams.deviceAdminDownloadInfo != null && packageName != null) {
+            addTaskAfter(new WarmUpConnectionTask(mContext, mParams,
+                    mParams.deviceAdminDownloadInfo, packageName, this), networkTask);
+        }
+    }
+
+    /**
+     * Starts downloading the device owner package once the network is up, so that it is
+     * downloaded while the role holder is downloaded and installed.
+     */
+    private void addPrefetchDeviceOwnerPackageTask(
+            @Nullable AbstractProvisioningTask networkTask) {
+        String packageName = mParams.inferDeviceAdminPackageName();
+        if (mParams.deviceAdminDownloadInfo == null || packageName == null) {
+            return;
+        }
+        addTaskAfter(new PrefetchPackageTask(mContext, mParams, mParams.deviceAdminDownloadInfo,
+                packageName, this), networkTask);
+    }
+
+    private void addDownloadAndInstallRoleHolderPackageTasks(
+            @Nullable AbstractProvisioningTask networkTask) {
         if (mParams.roleHolderDownloadInfo == null) {
             return;
         }
 
         DownloadPackageTask downloadTask = new DownloadPackageTask(
                 mContext, mParams, mParams.roleHolderDownloadInfo, this);
-        addTasks(downloadTask,
-                new VerifyRoleHolderPackageTask(
-                        downloadTask, mContext, mParams, mParams.roleHolderDownloadInfo, this),
-                new InstallPackageTask(downloadTask, mContext, mParams, this,
-                        mRoleHolderPackageName));
+        addTaskAfter(downloadTask, networkTask);
+        AbstractProvisioningTask verifyTask = new VerifyRoleHolderPackageTask(
+                downloadTask, mContext, mParams, mParams.roleHolderDownloadInfo, this);
+        addTask(verifyTask, downloadTask);
+        addTask(new InstallPackageTask(downloadTask, mContext, mParams, this,
+                mRoleHolderPackageName), verifyTask);
     }
 
     @Override
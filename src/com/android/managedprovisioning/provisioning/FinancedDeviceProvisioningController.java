@@ -58,9 +58,11 @@ public final class FinancedDeviceProvisioningController extends AbstractProvisio
 
     @Override
     protected void setUpTasks() {
-        addTasks(new DeviceOwnerInitializeProvisioningTask(mContext, mParams, this));
+        AbstractProvisioningTask initializeTask =
+                new DeviceOwnerInitializeProvisioningTask(mContext, mParams, this);
+        addTasks(initializeTask);
 
-        addDownloadAndInstallDeviceOwnerPackageTasks();
+        addDownloadAndInstallDeviceOwnerPackageTasks(initializeTask);
 
         addTasks(
                 new SetDeviceOwnerPolicyTask(mContext, mParams, this),
@@ -30,12 +30,10 @@ import androidx.lifecycle.ViewModelStoreOwner;
 
 import com.android.internal.annotations.GuardedBy;
 import com.android.internal.annotations.VisibleForTesting;
-import com.android.managedprovisioning.analytics.MetricsWriterFactory;
 import com.android.managedprovisioning.analytics.ProvisioningAnalyticsTracker;
+import com.android.managedprovisioning.analytics.ProvisioningTracer;
 import com.android.managedprovisioning.analytics.TimeLogger;
-import com.android.managedprovisioning.common.ManagedProvisioningSharedPreferences;
 import com.android.managedprovisioning.common.ProvisionLogger;
-import com.android.managedprovisioning.common.SettingsFacade;
 import com.android.managedprovisioning.model.ProvisioningParams;
 import com.android.managedprovisioning.provisioning.ProvisioningViewModel.ProvisioningViewModelFactory;
 import com.android.managedprovisioning.provisioning.TransitionAnimationHelper.TransitionAnimationState;
@@ -63,6 +61,8 @@ public class ProvisioningManager implements ProvisioningControllerCallback,
 
     @GuardedBy("this")
     private AbstractProvisioningController mController;
+    @GuardedBy("this")
+    private ProvisioningTracer.Span mSessionSpan;
 
     public static ProvisioningManager getInstance(Context context) {
         if (sInstance == null) {
@@ -75,9 +75,7 @@ public class ProvisioningManager implements ProvisioningControllerCallback,
         this(
                 context,
                 new ProvisioningControllerFactory(),
-                new ProvisioningAnalyticsTracker(
-                        MetricsWriterFactory.getMetricsWriter(context, new SettingsFacade()),
-                        new ManagedProvisioningSharedPreferences(context)),
+                ProvisioningAnalyticsTracker.getInstance(context),
                 new TimeLogger(context, PROVISIONING_TOTAL_TASK_TIME_MS));
     }
 
@@ -120,7 +118,10 @@ public class ProvisioningManager implements ProvisioningControllerCallback,
         synchronized (this) {
             if (mController == null) {
                 mTimeLogger.start();
+                mSessionSpan = ProvisioningTracer.getInstance()
+                        .beginSpan("ProvisioningSession", /* parent= */ null);
                 mController = getController(params);
+                mController.setParentSpan(mSessionSpan);
                 mHelper.startNewProvisioningLocked(mController);
                 mProvisioningAnalyticsTracker.logProvisioningStarted(mContext, params);
             } else {
@@ -199,6 +200,10 @@ public class ProvisioningManager implements ProvisioningControllerCallback,
 
     private void clearControllerLocked() {
         mController = null;
+        if (mSessionSpan != null) {
+            mSessionSpan.end();
+            mSessionSpan = null;
+        }
         mHelper.clearResourcesLocked();
     }
 }
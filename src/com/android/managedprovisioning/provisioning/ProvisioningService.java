@@ -20,6 +20,12 @@ import android.app.Service;
 import android.content.Intent;
 import android.os.IBinder;
 
+import com.android.managedprovisioning.analytics.ProvisioningTracer;
+import com.android.managedprovisioning.common.ProvisionLogger;
+
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+
 /**
  * Service that keeps the provisioning process alive.
  */
@@ -29,4 +35,10 @@ public class ProvisioningService extends Service {
     public IBinder onBind(Intent intent) {
         return null;
     }
+
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        ProvisioningTracer.getInstance().dump(writer);
+        ProvisionLogger.dumpFlightRecorder(writer);
+    }
 }
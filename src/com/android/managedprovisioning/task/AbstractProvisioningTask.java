@@ -19,16 +19,15 @@ package com.android.managedprovisioning.task;
 import static com.android.internal.logging.nano.MetricsProto.MetricsEvent.VIEW_UNKNOWN;
 import static com.android.internal.util.Preconditions.checkNotNull;
 
+import android.annotation.Nullable;
 import android.content.Context;
 
 import com.android.internal.annotations.VisibleForTesting;
 import com.android.managedprovisioning.analytics.AnalyticsUtils;
 import com.android.managedprovisioning.analytics.MetricsLoggerWrapper;
-import com.android.managedprovisioning.analytics.MetricsWriterFactory;
 import com.android.managedprovisioning.analytics.ProvisioningAnalyticsTracker;
+import com.android.managedprovisioning.analytics.ProvisioningTracer;
 import com.android.managedprovisioning.analytics.TimeLogger;
-import com.android.managedprovisioning.common.ManagedProvisioningSharedPreferences;
-import com.android.managedprovisioning.common.SettingsFacade;
 import com.android.managedprovisioning.model.ProvisioningParams;
 
 /**
@@ -39,6 +38,7 @@ public abstract class AbstractProvisioningTask {
     protected final ProvisioningParams mProvisioningParams;
     private final Callback mCallback;
     private TimeLogger mTimeLogger;
+    @Nullable private volatile ProvisioningTracer.Span mTraceSpan;
 
     /**
      * Constructor for a provisioning task
@@ -52,9 +52,7 @@ public abstract class AbstractProvisioningTask {
             ProvisioningParams provisioningParams,
             Callback callback) {
         this(context, provisioningParams, callback,
-                new ProvisioningAnalyticsTracker(
-                        MetricsWriterFactory.getMetricsWriter(context, new SettingsFacade()),
-                        new ManagedProvisioningSharedPreferences(context)));
+                ProvisioningAnalyticsTracker.getInstance(context));
     }
 
     @VisibleForTesting
@@ -104,6 +102,26 @@ public abstract class AbstractProvisioningTask {
         mTimeLogger.stop();
     }
 
+    /**
+     * Sets the span that times this task, under which {@link #beginSubSpan} nests its spans.
+     */
+    public void setTraceSpan(@Nullable ProvisioningTracer.Span span) {
+        mTraceSpan = span;
+    }
+
+    @VisibleForTesting
+    @Nullable
+    public ProvisioningTracer.Span getTraceSpan() {
+        return mTraceSpan;
+    }
+
+    /**
+     * Starts a span for a sub-step of this task, such as a network wait, a binder call or hashing.
+     */
+    protected ProvisioningTracer.Span beginSubSpan(String name) {
+        return ProvisioningTracer.getInstance().beginSpan(name, mTraceSpan);
+    }
+
     protected int getMetricsCategory() {
         return VIEW_UNKNOWN;
     }
@@ -115,6 +133,21 @@ public abstract class AbstractProvisioningTask {
      */
     public abstract void run(int userId);
 
+    /**
+     * Returns whether {@link #run} can be called on a background thread. Tasks that block on
+     * binder calls or disk and don't need a looper return {@code true}, so that they don't hold
+     * back other tasks. Their results are still handled on the provisioning thread.
+     */
+    public boolean canRunInBackground() {
+        return false;
+    }
+
+    /**
+     * Stops work this task still has in progress because provisioning is being cleaned up. A
+     * cancelled task does not report a result. Does nothing by default.
+     */
+    public void cancel() {}
+
     /**
      * Callback class for provisioning tasks.
      *
@@ -18,58 +18,101 @@ package com.android.managedprovisioning.task;
 
 import static com.android.internal.util.Preconditions.checkNotNull;
 
+import android.content.BroadcastReceiver;
 import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
 import android.net.ConnectivityManager;
+import android.net.NetworkCapabilities;
+import android.net.NetworkInfo;
 import android.net.wifi.WifiConfiguration;
 import android.net.wifi.WifiInfo;
 import android.net.wifi.WifiManager;
 import android.os.Handler;
+import android.os.SystemClock;
+import android.os.SystemProperties;
 
 import com.android.internal.annotations.VisibleForTesting;
-import com.android.managedprovisioning.analytics.MetricsWriterFactory;
 import com.android.managedprovisioning.analytics.ProvisioningAnalyticsTracker;
-import com.android.managedprovisioning.common.ManagedProvisioningSharedPreferences;
+import com.android.managedprovisioning.analytics.ProvisioningTracer;
 import com.android.managedprovisioning.common.ProvisionLogger;
-import com.android.managedprovisioning.common.SettingsFacade;
 import com.android.managedprovisioning.common.Utils;
 import com.android.managedprovisioning.model.ProvisioningParams;
 import com.android.managedprovisioning.task.wifi.NetworkMonitor;
+import com.android.managedprovisioning.task.wifi.ProvisioningNetwork;
 import com.android.managedprovisioning.task.wifi.WifiConfigurationProvider;
 
 /**
  * Adds a wifi network to the system and waits for it to successfully connect. If the system does
  * not support wifi, the adding or connection times out {@link #error(int)} will be called.
+ *
+ * <p>The wifi network is requested rather than waited for as the default network, and once
+ * connected it is bound to {@link ProvisioningNetwork} for the downloads that follow.
+ *
+ * <p>Adding the network is retried by messages posted to the handler of the thread the task runs
+ * on, as described by a {@link RetryPolicy}, so that the thread is never blocked. Once the network
+ * is added, the connection is only attempted again when wifi reports a disconnection, when wifi is
+ * enabled again or when a reconnect fails, so that a connection in progress is not restarted. A
+ * wifi state broadcast retries the pending step right away. Each attempt is timed by a span and
+ * reported to {@link ProvisioningAnalyticsTracker}.
  */
 public class AddWifiNetworkTask extends AbstractProvisioningTask
         implements NetworkMonitor.NetworkConnectedCallback {
-    private static final int RETRY_SLEEP_DURATION_BASE_MS = 500;
-    private static final int RETRY_SLEEP_MULTIPLIER = 2;
-    private static final int MAX_RETRIES = 6;
-    private static final int RECONNECT_TIMEOUT_MS = 60000;
     @VisibleForTesting  static final int ADD_NETWORK_FAIL = -1;
 
+    private static final int STATE_ADDING_NETWORK = 1;
+    private static final int STATE_CONNECTING = 2;
+    // Leaves the supplicant time to act on a reconnect before a disconnection triggers another.
+    private static final long MIN_BROADCAST_RECONNECT_SPACING_MS = 2_000;
+
     private final WifiConfigurationProvider mWifiConfigurationProvider;
     private final WifiManager mWifiManager;
     private final NetworkMonitor mNetworkMonitor;
+    private final RetryPolicy mRetryPolicy;
+    private final ProvisioningAnalyticsTracker mProvisioningAnalyticsTracker;
 
     private Handler mHandler;
     private boolean mTaskDone = false;
+    private int mState;
+    private WifiConfiguration mWifiConfiguration;
+    private int mNetId = ADD_NETWORK_FAIL;
+    private int mAddNetworkAttempts;
+    private int mReconnectAttempts;
+    private long mNextRetryDelayMs;
+    private long mLastReconnectMillis;
+    private boolean mReceiverRegistered;
 
     private final Utils mUtils;
-    private Runnable mTimeoutRunnable;
-    private Injector mInjector;
+    private final Runnable mTimeoutRunnable = () -> {
+        ProvisionLogger.loge("Timed out connecting to wifi");
+        finishTask(false);
+    };
+    private final Runnable mAddNetworkRunnable = this::addNetwork;
+    private final Runnable mReconnectRunnable = this::reconnect;
+    private ProvisioningTracer.Span mNetworkWaitSpan;
+    private ProvisioningTracer.Span mAddNetworkSpan;
+
+    private final BroadcastReceiver mWifiStateReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            // The sticky wifi state describes no change.
+            if (!isInitialStickyBroadcast()) {
+                onWifiStateChanged(intent);
+            }
+        }
+    };
 
     public AddWifiNetworkTask(
             Context context,
             ProvisioningParams provisioningParams,
             Callback callback) {
         this(
-                new NetworkMonitor(context, /* waitForValidated */ false),
+                new NetworkMonitor(context, NetworkCapabilities.TRANSPORT_WIFI,
+                        /* waitForValidated */ false),
                 new WifiConfigurationProvider(),
-                context, provisioningParams, callback, new Utils(), new Injector(),
-                new ProvisioningAnalyticsTracker(
-                        MetricsWriterFactory.getMetricsWriter(context, new SettingsFacade()),
-                        new ManagedProvisioningSharedPreferences(context)));
+                context, provisioningParams, callback, new Utils(),
+                RetryPolicy.fromSystemProperties(),
+                ProvisioningAnalyticsTracker.getInstance(context));
     }
 
     @VisibleForTesting
@@ -80,7 +123,7 @@ public class AddWifiNetworkTask extends AbstractProvisioningTask
             ProvisioningParams provisioningParams,
             Callback callback,
             Utils utils,
-            Injector injector,
+            RetryPolicy retryPolicy,
             ProvisioningAnalyticsTracker provisioningAnalyticsTracker) {
         super(context, provisioningParams, callback, provisioningAnalyticsTracker);
 
@@ -88,7 +131,8 @@ public class AddWifiNetworkTask extends AbstractProvisioningTask
         mWifiConfigurationProvider = checkNotNull(wifiConfigurationProvider);
         mWifiManager  = (WifiManager) context.getSystemService(Context.WIFI_SERVICE);
         mUtils = checkNotNull(utils);
-        mInjector = checkNotNull(injector);
+        mRetryPolicy = checkNotNull(retryPolicy);
+        mProvisioningAnalyticsTracker = checkNotNull(provisioningAnalyticsTracker);
     }
 
     @Override
@@ -109,64 +153,144 @@ public class AddWifiNetworkTask extends AbstractProvisioningTask
             return;
         }
 
-        mTaskDone = false;
-        mHandler = new Handler();
-        mNetworkMonitor.startListening(this);
-        connectToProvidedNetwork();
-    }
-
-    private void connectToProvidedNetwork() {
-        WifiConfiguration wifiConf =
+        mWifiConfiguration =
                 mWifiConfigurationProvider.generateWifiConfiguration(mProvisioningParams.wifiInfo);
-
-        if (wifiConf == null) {
+        if (mWifiConfiguration == null) {
             ProvisionLogger.loge("WifiConfiguration is null");
             error(0);
             return;
         }
 
-        int netId = tryAddingNetwork(wifiConf);
+        synchronized (this) {
+            mTaskDone = false;
+            mHandler = new Handler();
+            mNetworkWaitSpan = beginSubSpan("network_wait");
+            mNetworkMonitor.startListening(this);
+            IntentFilter filter = new IntentFilter(WifiManager.WIFI_STATE_CHANGED_ACTION);
+            filter.addAction(WifiManager.NETWORK_STATE_CHANGED_ACTION);
+            mContext.registerReceiver(mWifiStateReceiver, filter, /* broadcastPermission= */ null,
+                    mHandler);
+            mReceiverRegistered = true;
 
-        if (netId == ADD_NETWORK_FAIL) {
-            ProvisionLogger.loge("Unable to add network after trying " +  MAX_RETRIES + " times.");
-            error(0);
+            mState = STATE_ADDING_NETWORK;
+            mAddNetworkAttempts = 0;
+            mReconnectAttempts = 0;
+            mNextRetryDelayMs = mRetryPolicy.addNetworkInitialDelayMs;
+            mAddNetworkSpan = beginSubSpan("add_network");
+            addNetwork();
+        }
+    }
+
+    private synchronized void addNetwork() {
+        if (mTaskDone || mState != STATE_ADDING_NETWORK) {
             return;
         }
+        mHandler.removeCallbacks(mAddNetworkRunnable);
+        mAddNetworkAttempts++;
+        long startMillis = SystemClock.elapsedRealtime();
+        try (ProvisioningTracer.Span span = beginSubSpan("add_network_attempt")) {
+            mNetId = mWifiManager.addNetwork(mWifiConfiguration);
+        }
+        long durationMillis = SystemClock.elapsedRealtime() - startMillis;
+        ProvisionLogger.logd("addNetwork attempt %d took %d ms", mAddNetworkAttempts,
+                durationMillis);
+        mProvisioningAnalyticsTracker.logWifiAddNetworkAttempt(mContext, durationMillis);
 
+        if (mNetId != ADD_NETWORK_FAIL) {
+            mAddNetworkSpan.end();
+            connectToAddedNetwork();
+            return;
+        }
+        if (mAddNetworkAttempts > mRetryPolicy.addNetworkRetries) {
+            ProvisionLogger.loge("Unable to add network after " + mAddNetworkAttempts
+                    + " attempts.");
+            mAddNetworkSpan.end();
+            finishTask(false);
+            return;
+        }
+        ProvisionLogger.loge("Retrying in " + mNextRetryDelayMs + " ms.");
+        mHandler.postDelayed(mAddNetworkRunnable, mNextRetryDelayMs);
+        mNextRetryDelayMs *= mRetryPolicy.addNetworkDelayMultiplier;
+    }
+
+    private void connectToAddedNetwork() {
         // Setting disableOthers to 'true' should trigger a connection attempt.
-        mWifiManager.enableNetwork(netId, true);
+        mWifiManager.enableNetwork(mNetId, true);
         mWifiManager.saveConfiguration();
 
         // Network was successfully saved, now connect to it.
+        mLastReconnectMillis = SystemClock.elapsedRealtime();
         if (!mWifiManager.reconnect()) {
             ProvisionLogger.loge("Unable to connect to wifi");
-            error(0);
+            finishTask(false);
             return;
         }
 
-        // NetworkMonitor will call onNetworkConnected when in Wifi mode.
+        // NetworkMonitor will call onNetworkConnected when in Wifi mode. Until then, or until the
+        // time out, the connection is only attempted again if wifi reports a disconnection.
+        mState = STATE_CONNECTING;
         // Post time out event in case the NetworkMonitor doesn't call back.
-        mTimeoutRunnable = () -> finishTask(false);
-        mHandler.postDelayed(mTimeoutRunnable, RECONNECT_TIMEOUT_MS);
+        mHandler.postDelayed(mTimeoutRunnable, mRetryPolicy.connectTimeoutMs);
+    }
+
+    private synchronized void reconnect() {
+        if (mTaskDone || mState != STATE_CONNECTING) {
+            return;
+        }
+        mHandler.removeCallbacks(mReconnectRunnable);
+        if (isConnectedToSpecifiedWifi()) {
+            return;
+        }
+        mReconnectAttempts++;
+        mLastReconnectMillis = SystemClock.elapsedRealtime();
+        boolean reconnecting;
+        try (ProvisioningTracer.Span span = beginSubSpan("reconnect_attempt")) {
+            mWifiManager.enableNetwork(mNetId, true);
+            reconnecting = mWifiManager.reconnect();
+        }
+        long durationMillis = SystemClock.elapsedRealtime() - mLastReconnectMillis;
+        ProvisionLogger.logd("reconnect attempt %d took %d ms", mReconnectAttempts,
+                durationMillis);
+        mProvisioningAnalyticsTracker.logWifiReconnectAttempt(mContext, durationMillis);
+        if (!reconnecting) {
+            ProvisionLogger.loge("Reconnecting failed, retrying in "
+                    + mRetryPolicy.reconnectRetryDelayMs + " ms.");
+            mHandler.postDelayed(mReconnectRunnable, mRetryPolicy.reconnectRetryDelayMs);
+        }
     }
 
-    private int tryAddingNetwork(WifiConfiguration wifiConf) {
-        int netId = mWifiManager.addNetwork(wifiConf);
-        int retriesLeft = MAX_RETRIES;
-        int durationNextSleep = RETRY_SLEEP_DURATION_BASE_MS;
-
-        while(netId == -1 && retriesLeft > 0) {
-            ProvisionLogger.loge("Retrying in " + durationNextSleep + " ms.");
-            try {
-                mInjector.threadSleep(durationNextSleep);
-            } catch (InterruptedException e) {
-                ProvisionLogger.loge("Retry interrupted.");
+    private synchronized void onWifiStateChanged(Intent intent) {
+        if (mTaskDone) {
+            return;
+        }
+        if (WifiManager.WIFI_STATE_CHANGED_ACTION.equals(intent.getAction())) {
+            int wifiState = intent.getIntExtra(WifiManager.EXTRA_WIFI_STATE,
+                    WifiManager.WIFI_STATE_UNKNOWN);
+            if (wifiState != WifiManager.WIFI_STATE_ENABLED) {
+                return;
+            }
+            ProvisionLogger.logd("Wifi enabled, retrying now");
+            if (mState == STATE_ADDING_NETWORK) {
+                addNetwork();
+            } else {
+                reconnect();
+            }
+        } else if (mState == STATE_CONNECTING) {
+            NetworkInfo networkInfo = intent.getParcelableExtra(WifiManager.EXTRA_NETWORK_INFO);
+            if (networkInfo == null
+                    || networkInfo.getState() != NetworkInfo.State.DISCONNECTED) {
+                return;
+            }
+            long sinceLastReconnectMs = SystemClock.elapsedRealtime() - mLastReconnectMillis;
+            if (sinceLastReconnectMs >= MIN_BROADCAST_RECONNECT_SPACING_MS) {
+                ProvisionLogger.logd("Wifi disconnected, reconnecting now");
+                reconnect();
+            } else if (!mHandler.hasCallbacks(mReconnectRunnable)) {
+                // Don't drop the disconnection, but leave the last attempt time to act first.
+                mHandler.postDelayed(mReconnectRunnable,
+                        MIN_BROADCAST_RECONNECT_SPACING_MS - sinceLastReconnectMs);
             }
-            durationNextSleep *= RETRY_SLEEP_MULTIPLIER;
-            retriesLeft--;
-            netId = mWifiManager.addNetwork(wifiConf);
         }
-        return netId;
     }
 
     private boolean enableWifi() {
@@ -179,8 +303,6 @@ public class AddWifiNetworkTask extends AbstractProvisioningTask
         if (isConnectedToSpecifiedWifi()) {
             ProvisionLogger.logd("Connected to the correct network");
             finishTask(true);
-            // Remove time out callback.
-            mHandler.removeCallbacks(mTimeoutRunnable);
         }
     }
 
@@ -190,7 +312,24 @@ public class AddWifiNetworkTask extends AbstractProvisioningTask
         }
 
         mTaskDone = true;
-        mNetworkMonitor.stopListening();
+        mProvisioningAnalyticsTracker.logWifiConnectAttempts(mContext, mAddNetworkAttempts,
+                mReconnectAttempts);
+        mHandler.removeCallbacks(mTimeoutRunnable);
+        mHandler.removeCallbacks(mAddNetworkRunnable);
+        mHandler.removeCallbacks(mReconnectRunnable);
+        if (mReceiverRegistered) {
+            mContext.unregisterReceiver(mWifiStateReceiver);
+            mReceiverRegistered = false;
+        }
+        if (isSuccess && mNetworkMonitor.getConnectedNetwork() != null) {
+            // Keeps the network request alive for the downloads that follow.
+            ProvisioningNetwork.getInstance().bind(mNetworkMonitor);
+        } else {
+            mNetworkMonitor.stopListening();
+        }
+        if (mNetworkWaitSpan != null) {
+            mNetworkWaitSpan.end();
+        }
         if (isSuccess) {
             success();
         } else {
@@ -217,10 +356,39 @@ public class AddWifiNetworkTask extends AbstractProvisioningTask
         return true;
     }
 
+    /**
+     * How often and for how long adding the network and connecting to it are attempted.
+     */
     @VisibleForTesting
-    static class Injector {
-        public void threadSleep(long milliseconds) throws InterruptedException {
-            Thread.sleep(milliseconds);
+    static final class RetryPolicy {
+        private static final String PROPERTY_PREFIX = "persist.managed_provisioning.wifi_";
+
+        final int addNetworkRetries;
+        final long addNetworkInitialDelayMs;
+        final int addNetworkDelayMultiplier;
+        final long reconnectRetryDelayMs;
+        final long connectTimeoutMs;
+
+        RetryPolicy(int addNetworkRetries, long addNetworkInitialDelayMs,
+                int addNetworkDelayMultiplier, long reconnectRetryDelayMs, long connectTimeoutMs) {
+            this.addNetworkRetries = addNetworkRetries;
+            this.addNetworkInitialDelayMs = addNetworkInitialDelayMs;
+            this.addNetworkDelayMultiplier = addNetworkDelayMultiplier;
+            this.reconnectRetryDelayMs = reconnectRetryDelayMs;
+            this.connectTimeoutMs = connectTimeoutMs;
+        }
+
+        /**
+         * Returns the default policy, of which each budget can be overridden by a {@code
+         * persist.managed_provisioning.wifi_*} system property.
+         */
+        static RetryPolicy fromSystemProperties() {
+            return new RetryPolicy(
+                    SystemProperties.getInt(PROPERTY_PREFIX + "add_network_retries", 6),
+                    SystemProperties.getLong(PROPERTY_PREFIX + "add_network_delay_ms", 500),
+                    /* addNetworkDelayMultiplier= */ 2,
+                    SystemProperties.getLong(PROPERTY_PREFIX + "reconnect_retry_delay_ms", 5_000),
+                    SystemProperties.getLong(PROPERTY_PREFIX + "connect_timeout_ms", 60_000));
         }
     }
 }
@@ -18,9 +18,13 @@ package com.android.managedprovisioning.task;
 
 import static java.util.Objects.requireNonNull;
 
+import android.annotation.Nullable;
+import android.content.Context;
 import android.content.pm.PackageInfo;
 import android.content.pm.Signature;
 
+import com.android.managedprovisioning.analytics.ProvisioningAnalyticsTracker;
+import com.android.managedprovisioning.common.FileHashEngine;
 import com.android.managedprovisioning.common.ProvisionLogger;
 import com.android.managedprovisioning.common.StoreUtils;
 import com.android.managedprovisioning.common.Utils;
@@ -36,9 +40,22 @@ import java.util.List;
 final class ChecksumUtils {
 
     private final Utils mUtils;
+    @Nullable private final Context mContext;
+    @Nullable private final ProvisioningAnalyticsTracker mProvisioningAnalyticsTracker;
 
     ChecksumUtils(Utils utils) {
+        this(utils, /* context= */ null, /* provisioningAnalyticsTracker= */ null);
+    }
+
+    /**
+     * Creates a {@link ChecksumUtils} that reports the package hashing throughput to {@code
+     * provisioningAnalyticsTracker}.
+     */
+    ChecksumUtils(Utils utils, @Nullable Context context,
+            @Nullable ProvisioningAnalyticsTracker provisioningAnalyticsTracker) {
         mUtils = requireNonNull(utils);
+        mContext = context;
+        mProvisioningAnalyticsTracker = provisioningAnalyticsTracker;
     }
 
     /**
@@ -80,7 +97,14 @@ final class ChecksumUtils {
         byte[] packageSha256Hash = null;
 
         ProvisionLogger.logd("Checking file hash of entire apk file.");
-        packageSha256Hash = mUtils.computeHashOfFile(downloadLocation, Utils.SHA256_TYPE);
+        FileHashEngine.Result result = mUtils.hashFile(downloadLocation, Utils.SHA256_TYPE);
+        if (result != null) {
+            packageSha256Hash = result.getHash();
+            if (mProvisioningAnalyticsTracker != null) {
+                mProvisioningAnalyticsTracker.logPackageHashThroughput(mContext,
+                        result.getBytes(), result.getDurationNanos());
+            }
+        }
         if (Arrays.equals(packageChecksum, packageSha256Hash)) {
             return true;
         }
@@ -17,6 +17,7 @@
 package com.android.managedprovisioning.task;
 
 import android.content.Context;
+import android.net.NetworkCapabilities;
 import android.os.Handler;
 import android.provider.Settings;
 
@@ -24,10 +25,15 @@ import com.android.managedprovisioning.common.ProvisionLogger;
 import com.android.managedprovisioning.common.Utils;
 import com.android.managedprovisioning.model.ProvisioningParams;
 import com.android.managedprovisioning.task.wifi.NetworkMonitor;
+import com.android.managedprovisioning.task.wifi.ProvisioningNetwork;
 
 /**
  * A task that enables mobile data and waits for it to successfully connect. If connection times out
  * {@link #error(int)} will be called.
+ *
+ * <p>A validated cellular network is requested, so that the task completes as soon as mobile data
+ * is usable even if another network stays the default. That network is then bound to {@link
+ * ProvisioningNetwork} for the downloads that follow.
  */
 public class ConnectMobileNetworkTask extends AbstractProvisioningTask
         implements NetworkMonitor.NetworkConnectedCallback {
@@ -46,7 +52,8 @@ public class ConnectMobileNetworkTask extends AbstractProvisioningTask
             ProvisioningParams provisioningParams,
             Callback callback) {
         super(context, provisioningParams, callback);
-        mNetworkMonitor = new NetworkMonitor(context, /* waitForValidated */ true);
+        mNetworkMonitor = new NetworkMonitor(context, NetworkCapabilities.TRANSPORT_CELLULAR,
+                /* waitForValidated */ true);
         mUtils = new Utils();
     }
 
@@ -84,25 +91,11 @@ public class ConnectMobileNetworkTask extends AbstractProvisioningTask
 
     @Override
     public void onNetworkConnected() {
-        ProvisionLogger.logd("onNetworkConnected");
-        if (isLegacyConnected()
-                || ((mProvisioningParams.isNfc || mProvisioningParams.isQrProvisioning)
-                // TODO: instead of having NetworkMonitor wait for any default network (which could
-                // be wifi), and checking that any mobile network (which may not be the default) is
-                // connected, either:
-                // - If the device should wait for mobile data to be default before continuing,
-                //   have NetworkMonitor check that the default network it obtains has
-                //   TRANSPORT_MOBILE. This will typically never happen when wifi is usable.
-                // - If the device should continue when mobile data is connected but not default,
-                //   have NetworkMonitor use requestNetwork with TRANSPORT_MOBILE and have
-                //   all subsequent network usage explicitly specify the obtained mobile network
-                //   with APIs such as Network.openConnection or Network.bindSocket.
-                && mUtils.isMobileNetworkConnectedToInternet(mContext))) {
-            ProvisionLogger.logd("Connected to mobile data");
-            finishTask(true);
-            // Remove time out callback.
-            mHandler.removeCallbacks(mTimeoutRunnable);
-        }
+        // The monitor only calls back once the requested cellular network is validated.
+        ProvisionLogger.logd("Connected to mobile data");
+        finishTask(true);
+        // Remove time out callback.
+        mHandler.removeCallbacks(mTimeoutRunnable);
     }
 
     private boolean isLegacyConnected() {
@@ -117,7 +110,12 @@ public class ConnectMobileNetworkTask extends AbstractProvisioningTask
         }
 
         mTaskDone = true;
-        mNetworkMonitor.stopListening();
+        if (isSuccess && mNetworkMonitor.getConnectedNetwork() != null) {
+            // Keeps the network request alive for the downloads that follow.
+            ProvisioningNetwork.getInstance().bind(mNetworkMonitor);
+        } else {
+            mNetworkMonitor.stopListening();
+        }
         if (isSuccess) {
             success();
         } else {
@@ -19,22 +19,16 @@ package com.android.managedprovisioning.task;
 import static com.android.internal.util.Preconditions.checkNotNull;
 
 import android.content.Context;
-import android.content.pm.IPackageDeleteObserver;
-import android.content.pm.PackageInfo;
-import android.content.pm.PackageManager;
 
 import com.android.internal.annotations.VisibleForTesting;
-import com.android.managedprovisioning.analytics.MetricsWriterFactory;
 import com.android.managedprovisioning.analytics.ProvisioningAnalyticsTracker;
-import com.android.managedprovisioning.common.ManagedProvisioningSharedPreferences;
+import com.android.managedprovisioning.analytics.ProvisioningTracer;
 import com.android.managedprovisioning.common.ProvisionLogger;
-import com.android.managedprovisioning.common.SettingsFacade;
 import com.android.managedprovisioning.model.ProvisioningParams;
+import com.android.managedprovisioning.task.nonrequiredapps.BatchPackageDeleter;
 import com.android.managedprovisioning.task.nonrequiredapps.NonRequiredAppsLogic;
 
-import java.util.HashSet;
 import java.util.Set;
-import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Deletes all non-required apps.
@@ -46,8 +40,8 @@ import java.util.concurrent.atomic.AtomicInteger;
  * newly installed system apps will be deleted.
  */
 public class DeleteNonRequiredAppsTask extends AbstractProvisioningTask {
-    private final PackageManager mPm;
     private final NonRequiredAppsLogic mLogic;
+    private final BatchPackageDeleter mDeleter;
 
     public DeleteNonRequiredAppsTask(
             boolean firstTimeCreation,
@@ -59,9 +53,7 @@ public class DeleteNonRequiredAppsTask extends AbstractProvisioningTask {
                 params,
                 callback,
                 new NonRequiredAppsLogic(context, firstTimeCreation, params),
-                new ProvisioningAnalyticsTracker(
-                        MetricsWriterFactory.getMetricsWriter(context, new SettingsFacade()),
-                        new ManagedProvisioningSharedPreferences(context)));
+                ProvisioningAnalyticsTracker.getInstance(context));
     }
 
     @VisibleForTesting
@@ -88,8 +80,8 @@ public class DeleteNonRequiredAppsTask extends AbstractProvisioningTask {
             ProvisioningAnalyticsTracker provisioningAnalyticsTracker) {
         super(context, params, callback, provisioningAnalyticsTracker);
 
-        mPm = checkNotNull(context.getPackageManager());
         mLogic = checkNotNull(logic);
+        mDeleter = new BatchPackageDeleter(checkNotNull(context.getPackageManager()));
     }
 
     @Override
@@ -98,64 +90,26 @@ public class DeleteNonRequiredAppsTask extends AbstractProvisioningTask {
         mLogic.maybeTakeSystemAppsSnapshot(userId);
 
         // Remove all packages that are not currently installed
-        removeNonInstalledPackages(packagesToDelete, userId);
+        packagesToDelete = mDeleter.retainInstalled(packagesToDelete, userId);
 
         if (packagesToDelete.isEmpty()) {
             success();
             return;
         }
 
-        PackageDeleteObserver packageDeleteObserver =
-                new PackageDeleteObserver(packagesToDelete.size());
-        for (String packageName : packagesToDelete) {
-            ProvisionLogger.logd("Deleting package [" + packageName + "] as user " + userId);
-            mPm.deletePackageAsUser(packageName, packageDeleteObserver,
-                    PackageManager.DELETE_SYSTEM_APP, userId);
-        }
-    }
-
-    private void removeNonInstalledPackages(Set<String> packages, int userId) {
-        Set<String> toBeRemoved = new HashSet<>();
-        for (String packageName : packages) {
-            try {
-                PackageInfo info = mPm.getPackageInfoAsUser(
-                    packageName, 0 /* default flags */,
-                    userId);
-                if (info == null) {
-                    toBeRemoved.add(packageName);
-                }
-            } catch (PackageManager.NameNotFoundException e) {
-                toBeRemoved.add(packageName);
-            }
-        }
-        packages.removeAll(toBeRemoved);
-    }
-
-    /**
-     * Runs the next task when all packages have been deleted or shuts down the activity if package
-     * deletion fails.
-     */
-    class PackageDeleteObserver extends IPackageDeleteObserver.Stub {
-        private final AtomicInteger mPackageCount = new AtomicInteger(0);
-
-        public PackageDeleteObserver(int packageCount) {
-            this.mPackageCount.set(packageCount);
-        }
-
-        @Override
-        public void packageDeleted(String packageName, int returnCode) {
-            if (returnCode != PackageManager.DELETE_SUCCEEDED) {
-                ProvisionLogger.logw(
-                        "Could not finish the provisioning: package deletion failed");
+        final ProvisioningTracer.Span deletionSpan = beginSubSpan("delete_packages");
+        mDeleter.delete(packagesToDelete, userId, failedPackages -> {
+            deletionSpan.end();
+            mLogic.onPackagesDeleted();
+            if (!failedPackages.isEmpty()) {
+                ProvisionLogger.logw("Could not finish the provisioning: package deletion failed: "
+                        + failedPackages);
                 error(0);
                 return;
             }
-            int currentPackageCount = mPackageCount.decrementAndGet();
-            if (currentPackageCount == 0) {
-                ProvisionLogger.logi("All non-required system apps with launcher icon, "
-                        + "and all disallowed apps have been uninstalled.");
-                success();
-            }
-        }
+            ProvisionLogger.logi("All non-required system apps with launcher icon, "
+                    + "and all disallowed apps have been uninstalled.");
+            success();
+        });
     }
 }
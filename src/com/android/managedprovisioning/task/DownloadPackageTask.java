@@ -28,28 +28,51 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.database.Cursor;
+import android.net.ConnectivityManager;
+import android.net.Network;
+import android.net.NetworkCapabilities;
 import android.net.Uri;
 import android.os.Handler;
 import android.os.Looper;
 import android.provider.Settings;
 
 import com.android.internal.annotations.VisibleForTesting;
-import com.android.managedprovisioning.analytics.MetricsWriterFactory;
 import com.android.managedprovisioning.analytics.ProvisioningAnalyticsTracker;
+import com.android.managedprovisioning.analytics.ProvisioningTracer;
 import com.android.managedprovisioning.common.Globals;
-import com.android.managedprovisioning.common.ManagedProvisioningSharedPreferences;
 import com.android.managedprovisioning.common.ProvisionLogger;
-import com.android.managedprovisioning.common.SettingsFacade;
+import com.android.managedprovisioning.common.StoreUtils;
 import com.android.managedprovisioning.common.Utils;
 import com.android.managedprovisioning.model.PackageDownloadInfo;
 import com.android.managedprovisioning.model.ProvisioningParams;
+import com.android.managedprovisioning.task.download.PackageDownloadCache;
+import com.android.managedprovisioning.task.download.PackagePrefetcher;
+import com.android.managedprovisioning.task.download.ResumableHttpDownloader;
+import com.android.managedprovisioning.task.wifi.ProvisioningNetwork;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 /**
  * Downloads the management app apk from the url provided by {@link PackageDownloadInfo#location}.
  * The location of the downloaded file can be read via {@link PackageLocationProvider
  * #getDownloadLocation()}}.
+ *
+ * <p>If {@link Utils#isPackageDownloadCacheEnabled()}, the package is downloaded into a {@link
+ * PackageDownloadCache} instead of through {@link DownloadManager}. A package that was verified
+ * before is then reused without downloading it again, and an interrupted download is resumed.
+ * Packages with more than one {@link PackageDownloadInfo#downloadSegments} always go through the
+ * cache, as {@link DownloadManager} downloads over a single connection.
+ *
+ * <p>{@link DownloadManager} cannot be handed the {@link ProvisioningNetwork}, so its download is
+ * restricted to the transport of that network instead, and holds the network until it is done so
+ * that the network stays up.
+ *
+ * <p>Once the package is downloaded, its {@link PackageDownloadInfo#splits} are downloaded into
+ * the cache and each is verified against its package checksum. The task only succeeds once all
+ * of them are, and reports them through {@link #getSplitPackageLocations()}.
  */
 public class DownloadPackageTask extends AbstractProvisioningTask
         implements PackageLocationProvider {
@@ -61,11 +84,23 @@ public class DownloadPackageTask extends AbstractProvisioningTask
     private final String mPackageName;
     private final PackageDownloadInfo mPackageDownloadInfo;
     private long mDownloadId;
+    private boolean mNetworkAcquired;
 
     private final Utils mUtils;
+    private final PackageDownloadCache mCache;
+    private final PackagePrefetcher mPrefetcher;
+    private final boolean mUsesDownloadCache;
+    private ResumableHttpDownloader.Listener mDownloadListener;
 
     private File mDownloadLocationTo; //local file where the package is downloaded.
     private boolean mDoneDownloading;
+    private boolean mPackageChecksumVerified;
+
+    /** The verified split apks, in the order of {@link PackageDownloadInfo#splits}. */
+    private final List<File> mSplitLocations = new ArrayList<>();
+    /** The listener of each split apk still being downloaded, or {@code null}. */
+    private final List<ResumableHttpDownloader.Listener> mSplitListeners = new ArrayList<>();
+    private int mSplitsPending;
 
     public DownloadPackageTask(
             Context context,
@@ -73,9 +108,20 @@ public class DownloadPackageTask extends AbstractProvisioningTask
             PackageDownloadInfo packageDownloadInfo,
             Callback callback) {
         this(new Utils(), context, provisioningParams, packageDownloadInfo, callback,
-                new ProvisioningAnalyticsTracker(
-                        MetricsWriterFactory.getMetricsWriter(context, new SettingsFacade()),
-                        new ManagedProvisioningSharedPreferences(context)));
+                ProvisioningAnalyticsTracker.getInstance(context),
+                PackagePrefetcher.getInstance(context));
+    }
+
+    private DownloadPackageTask(
+            Utils utils,
+            Context context,
+            ProvisioningParams provisioningParams,
+            PackageDownloadInfo packageDownloadInfo,
+            Callback callback,
+            ProvisioningAnalyticsTracker provisioningAnalyticsTracker,
+            PackagePrefetcher prefetcher) {
+        this(utils, context, provisioningParams, packageDownloadInfo, callback,
+                provisioningAnalyticsTracker, prefetcher.getCache(), prefetcher);
     }
 
     @VisibleForTesting
@@ -85,7 +131,9 @@ public class DownloadPackageTask extends AbstractProvisioningTask
             ProvisioningParams provisioningParams,
             PackageDownloadInfo packageDownloadInfo,
             Callback callback,
-            ProvisioningAnalyticsTracker provisioningAnalyticsTracker) {
+            ProvisioningAnalyticsTracker provisioningAnalyticsTracker,
+            PackageDownloadCache cache,
+            PackagePrefetcher prefetcher) {
         super(context, provisioningParams, callback, provisioningAnalyticsTracker);
 
         mUtils = checkNotNull(utils);
@@ -93,6 +141,11 @@ public class DownloadPackageTask extends AbstractProvisioningTask
         mDownloadManager.setAccessFilename(true);
         mPackageName = provisioningParams.inferDeviceAdminPackageName();
         mPackageDownloadInfo = checkNotNull(packageDownloadInfo);
+        mCache = checkNotNull(cache);
+        mPrefetcher = checkNotNull(prefetcher);
+        mUsesDownloadCache = mUtils.isPackageDownloadCacheEnabled()
+                || mPackageDownloadInfo.downloadSegments
+                        > PackageDownloadInfo.DEFAULT_DOWNLOAD_SEGMENTS;
     }
 
     @Override
@@ -114,6 +167,11 @@ public class DownloadPackageTask extends AbstractProvisioningTask
 
         setDpcDownloadedSetting(mContext);
 
+        if (mUsesDownloadCache) {
+            downloadToCache();
+            return;
+        }
+
         mReceiver = createDownloadReceiver();
         // register the receiver on the worker thread to avoid threading issues with respect to
         // the location variable
@@ -130,9 +188,11 @@ public class DownloadPackageTask extends AbstractProvisioningTask
         Request request = new Request(Uri.parse(mPackageDownloadInfo.location));
 
         // Note that the apk may not actually be downloaded to this path. This could happen if
-        // this file already exists.
+        // this file already exists. Each package gets its own file, so that the role holder and
+        // the device owner package can be downloaded at the same time.
         String path = mContext.getExternalFilesDir(null)
-                + "/download_cache/managed_provisioning_downloaded_app.apk";
+                + "/download_cache/managed_provisioning_downloaded_app_"
+                + mCache.getKey(mPackageDownloadInfo) + ".apk";
         File downloadedFile = new File(path);
         downloadedFile.getParentFile().mkdirs(); // If the folder doesn't exists it is created
         request.setDestinationUri(Uri.fromFile(downloadedFile));
@@ -144,15 +204,78 @@ public class DownloadPackageTask extends AbstractProvisioningTask
                         + mPackageDownloadInfo.cookieHeader);
             }
         }
+        restrictToProvisioningNetwork(request);
         mDownloadId = mDownloadManager.enqueue(request);
     }
 
+    /**
+     * Restricts {@code request} to the transport of the {@link ProvisioningNetwork}, if one is
+     * bound, and holds that network until the download is done.
+     */
+    private void restrictToProvisioningNetwork(Request request) {
+        ProvisioningNetwork provisioningNetwork = ProvisioningNetwork.getInstance();
+        provisioningNetwork.acquire();
+        mNetworkAcquired = true;
+        Network network = provisioningNetwork.getNetwork();
+        if (network == null) {
+            return;
+        }
+        NetworkCapabilities capabilities = mContext.getSystemService(ConnectivityManager.class)
+                .getNetworkCapabilities(network);
+        if (capabilities == null) {
+            return;
+        }
+        if (capabilities.hasTransport(NetworkCapabilities.TRANSPORT_WIFI)) {
+            request.setAllowedNetworkTypes(Request.NETWORK_WIFI);
+        } else if (capabilities.hasTransport(NetworkCapabilities.TRANSPORT_CELLULAR)) {
+            request.setAllowedNetworkTypes(Request.NETWORK_MOBILE);
+        }
+    }
+
+    private void releaseProvisioningNetwork() {
+        if (mNetworkAcquired) {
+            mNetworkAcquired = false;
+            ProvisioningNetwork.getInstance().release();
+        }
+    }
+
+    private void downloadToCache() {
+        mDownloadListener = new ResumableHttpDownloader.Listener() {
+            @Override
+            public void onDownloadComplete(File packageFile) {
+                if (mDownloadListener != this) {
+                    mCache.unpin(mPackageDownloadInfo);
+                    return;
+                }
+                mDownloadLocationTo = packageFile;
+                mPackageChecksumVerified = mPackageDownloadInfo.packageChecksum.length > 0
+                        && mCache.isVerified(mPackageDownloadInfo);
+                onDownloadSuccess();
+            }
+
+            @Override
+            public void onDownloadFailed() {
+                if (mDownloadListener != this) {
+                    return;
+                }
+                ProvisionLogger.loge("Downloading package from "
+                        + mPackageDownloadInfo.location + " failed.");
+                error(ERROR_DOWNLOAD_FAILED);
+            }
+        };
+        // Report the result on the worker thread, like the DownloadManager receiver does. A
+        // prefetch of the package that is still running is waited for instead of downloading
+        // the package a second time.
+        mPrefetcher.download(mPackageDownloadInfo, new Handler(Looper.myLooper()),
+                mDownloadListener);
+    }
+
     /**
      * Set MANAGED_PROVISIONING_DPC_DOWNLOADED to 1, which will prevent restarting setup-wizard.
      *
      * <p>See b/132261064.
      */
-    private static void setDpcDownloadedSetting(Context context) {
+    static void setDpcDownloadedSetting(Context context) {
         Settings.Secure.putInt(
                 context.getContentResolver(), MANAGED_PROVISIONING_DPC_DOWNLOADED, 1);
     }
@@ -202,8 +325,114 @@ public class DownloadPackageTask extends AbstractProvisioningTask
         ProvisionLogger.logd("Downloaded successfully to: "
                 + mDownloadLocationTo.getAbsolutePath());
         mDoneDownloading = true;
-        stopTaskTimer();
-        success();
+        releaseProvisioningNetwork();
+        downloadSplits();
+    }
+
+    /**
+     * Downloads the split apks of the package through the cache, whichever way the package
+     * itself was downloaded, and succeeds once all of them are downloaded and verified.
+     */
+    private void downloadSplits() {
+        List<PackageDownloadInfo> splits = mPackageDownloadInfo.splits;
+        if (splits.isEmpty()) {
+            stopTaskTimer();
+            success();
+            return;
+        }
+        mSplitsPending = splits.size();
+        for (int i = 0; i < splits.size(); i++) {
+            mSplitLocations.add(null);
+            mSplitListeners.add(createSplitListener(i));
+        }
+        Handler handler = new Handler(Looper.myLooper());
+        for (int i = 0; i < splits.size(); i++) {
+            mPrefetcher.download(splits.get(i), handler, mSplitListeners.get(i));
+        }
+    }
+
+    private ResumableHttpDownloader.Listener createSplitListener(int index) {
+        PackageDownloadInfo split = mPackageDownloadInfo.splits.get(index);
+        return new ResumableHttpDownloader.Listener() {
+            @Override
+            public void onDownloadComplete(File splitFile) {
+                if (mSplitListeners.get(index) != this) {
+                    mCache.unpin(split);
+                    return;
+                }
+                mSplitListeners.set(index, null);
+                if (!verifySplit(split, splitFile)) {
+                    mCache.unpin(split);
+                    onSplitFailed();
+                    return;
+                }
+                mSplitLocations.set(index, splitFile);
+                if (--mSplitsPending == 0) {
+                    stopTaskTimer();
+                    success();
+                }
+            }
+
+            @Override
+            public void onDownloadFailed() {
+                if (mSplitListeners.get(index) != this) {
+                    return;
+                }
+                mSplitListeners.set(index, null);
+                ProvisionLogger.loge("Downloading split apk from " + split.location + " failed.");
+                onSplitFailed();
+            }
+        };
+    }
+
+    /**
+     * Returns whether {@code splitFile} matches the package checksum of {@code split}. A split
+     * that does not is evicted, so that a retry downloads it again.
+     */
+    private boolean verifySplit(PackageDownloadInfo split, File splitFile) {
+        if (mCache.isVerified(split)) {
+            return true;
+        }
+        byte[] hash;
+        try (ProvisioningTracer.Span span = beginSubSpan("hash_split")) {
+            hash = mUtils.computeHashOfFile(splitFile.getAbsolutePath(), Utils.SHA256_TYPE);
+        }
+        if (!Arrays.equals(split.packageChecksum, hash)) {
+            ProvisionLogger.loge("Split apk from " + split.location + " does not match hash "
+                    + StoreUtils.byteArrayToString(split.packageChecksum));
+            mCache.evict(split);
+            return false;
+        }
+        mCache.markVerified(split);
+        return true;
+    }
+
+    private void onSplitFailed() {
+        stopWaitingForSplits();
+        releaseSplits();
+        error(ERROR_DOWNLOAD_FAILED);
+    }
+
+    /**
+     * Unpins the split apks that were downloaded, which are not going to be installed.
+     */
+    private void releaseSplits() {
+        for (int i = 0; i < mSplitLocations.size(); i++) {
+            if (mSplitLocations.get(i) != null) {
+                mSplitLocations.set(i, null);
+                mCache.unpin(mPackageDownloadInfo.splits.get(i));
+            }
+        }
+    }
+
+    private void stopWaitingForSplits() {
+        for (int i = 0; i < mSplitListeners.size(); i++) {
+            ResumableHttpDownloader.Listener listener = mSplitListeners.get(i);
+            if (listener != null) {
+                mSplitListeners.set(i, null);
+                mPrefetcher.stopWaiting(mPackageDownloadInfo.splits.get(i), listener);
+            }
+        }
     }
 
     @Override
@@ -211,13 +440,62 @@ public class DownloadPackageTask extends AbstractProvisioningTask
         return mDownloadLocationTo;
     }
 
+    @Override
+    public List<File> getSplitPackageLocations() {
+        return new ArrayList<>(mSplitLocations);
+    }
+
+    @Override
+    public boolean isPackageChecksumVerified() {
+        return mPackageChecksumVerified;
+    }
+
+    @Override
+    public void onPackageVerified(boolean verified) {
+        if (!mUsesDownloadCache) {
+            return;
+        }
+        if (verified) {
+            mCache.markVerified(mPackageDownloadInfo);
+        } else {
+            // Don't reuse a corrupt or mismatching package on retry.
+            mCache.evict(mPackageDownloadInfo);
+            mCache.unpin(mPackageDownloadInfo);
+        }
+    }
+
+    @Override
+    public void releasePackageLocation(File packageLocation) {
+        // Keep cached packages and split apks around so that they can be reused; the cache
+        // evicts them by age and size once they are unpinned.
+        int splitIndex = mSplitLocations.indexOf(packageLocation);
+        if (splitIndex >= 0) {
+            mCache.unpin(mPackageDownloadInfo.splits.get(splitIndex));
+        } else if (mUsesDownloadCache) {
+            mCache.unpin(mPackageDownloadInfo);
+        } else {
+            packageLocation.delete();
+        }
+    }
+
     private void onDownloadFail(int errorCode) {
         ProvisionLogger.loge("Downloading package failed (download id " + mDownloadId
                 + "). COLUMN_REASON in DownloadManager response has value: " + errorCode);
+        releaseProvisioningNetwork();
         error(ERROR_DOWNLOAD_FAILED);
     }
 
     public void cleanUp() {
+        stopWaitingForSplits();
+        if (mUsesDownloadCache) {
+            // Stop the download but keep what it downloaded, so that a retry can resume it.
+            if (mDownloadListener != null) {
+                mPrefetcher.stopWaiting(mPackageDownloadInfo, mDownloadListener);
+                mDownloadListener = null;
+            }
+            return;
+        }
+        releaseProvisioningNetwork();
         if (mReceiver != null) {
             //Unregister receiver.
             mContext.unregisterReceiver(mReceiver);
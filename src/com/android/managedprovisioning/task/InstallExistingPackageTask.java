@@ -24,11 +24,9 @@ import android.content.pm.PackageManager;
 import android.os.UserHandle;
 
 import com.android.internal.annotations.VisibleForTesting;
-import com.android.managedprovisioning.analytics.MetricsWriterFactory;
 import com.android.managedprovisioning.analytics.ProvisioningAnalyticsTracker;
-import com.android.managedprovisioning.common.ManagedProvisioningSharedPreferences;
+import com.android.managedprovisioning.common.InstalledApplicationsCache;
 import com.android.managedprovisioning.common.ProvisionLogger;
-import com.android.managedprovisioning.common.SettingsFacade;
 import com.android.managedprovisioning.model.ProvisioningParams;
 
 /**
@@ -46,9 +44,7 @@ public class InstallExistingPackageTask extends AbstractProvisioningTask {
             ProvisioningParams params,
             Callback callback) {
         this(packageName, context, params, callback,
-                new ProvisioningAnalyticsTracker(
-                        MetricsWriterFactory.getMetricsWriter(context, new SettingsFacade()),
-                        new ManagedProvisioningSharedPreferences(context)), UserHandle.USER_NULL);
+                ProvisioningAnalyticsTracker.getInstance(context), UserHandle.USER_NULL);
     }
 
     public InstallExistingPackageTask(
@@ -58,9 +54,7 @@ public class InstallExistingPackageTask extends AbstractProvisioningTask {
             Callback callback,
             @UserIdInt int userId) {
         this(packageName, context, params, callback,
-                new ProvisioningAnalyticsTracker(
-                        MetricsWriterFactory.getMetricsWriter(context, new SettingsFacade()),
-                        new ManagedProvisioningSharedPreferences(context)), userId);
+                ProvisioningAnalyticsTracker.getInstance(context), userId);
     }
 
     @VisibleForTesting
@@ -93,6 +87,11 @@ public class InstallExistingPackageTask extends AbstractProvisioningTask {
         return mPackageName;
     }
 
+    @Override
+    public boolean canRunInBackground() {
+        return true;
+    }
+
     @Override
     public void run(int userId) {
         if (mUserId != UserHandle.USER_NULL) {
@@ -105,6 +104,7 @@ public class InstallExistingPackageTask extends AbstractProvisioningTask {
         try {
             int status = pm.installExistingPackageAsUser(mPackageName, userId);
             if (status == PackageManager.INSTALL_SUCCEEDED) {
+                InstalledApplicationsCache.invalidateInstance();
                 success();
             } else {
                 ProvisionLogger.loge("Install failed, result code = " + status);
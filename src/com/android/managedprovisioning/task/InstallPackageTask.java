@@ -33,28 +33,38 @@ import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.pm.PackageInstaller;
 import android.content.pm.PackageManager;
+import android.os.AsyncTask;
+import android.os.ParcelFileDescriptor;
 
 import com.android.internal.annotations.VisibleForTesting;
-import com.android.managedprovisioning.analytics.MetricsWriterFactory;
 import com.android.managedprovisioning.analytics.ProvisioningAnalyticsTracker;
-import com.android.managedprovisioning.common.ManagedProvisioningSharedPreferences;
+import com.android.managedprovisioning.common.InstalledApplicationsCache;
 import com.android.managedprovisioning.common.ProvisionLogger;
-import com.android.managedprovisioning.common.SettingsFacade;
 import com.android.managedprovisioning.common.Utils;
 import com.android.managedprovisioning.model.ProvisioningParams;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 
 /**
  * Installs the management app apk from a download location provided by
- * {@link PackageLocationProvider#getPackageLocation()}.
+ * {@link PackageLocationProvider#getPackageLocation()}, together with its split apks from
+ * {@link PackageLocationProvider#getSplitPackageLocations()}.
+ *
+ * <p>The apks are handed to the install session as file descriptors, so that the system copies
+ * them in the kernel instead of this process streaming them through a buffer.
  */
 public class InstallPackageTask extends AbstractProvisioningTask {
     private static final String ACTION_INSTALL_DONE = InstallPackageTask.class.getName() + ".DONE.";
@@ -62,13 +72,16 @@ public class InstallPackageTask extends AbstractProvisioningTask {
     public static final int ERROR_PACKAGE_INVALID = 0;
     public static final int ERROR_INSTALLATION_FAILED = 1;
 
+    /** Returned by {@link #stageSession} when the session was abandoned. */
+    static final int NO_SESSION = -1;
+
     private final PackageLocationProvider mPackageLocationProvider;
 
     private final PackageManager mPm;
     private final DevicePolicyManager mDpm;
     private final PackageInstaller.SessionCallback mSessionCallback =  new SessionCallback();
-    private final String mPackageName;
-    private final Utils mUtils;
+    protected final String mPackageName;
+    protected final Utils mUtils;
 
     private static final int SUCCESS_INSTALLED_BROADCAST = 1;
     private static final int SUCCESS_INSTALLED_CALLBACK = 2;
@@ -87,9 +100,7 @@ public class InstallPackageTask extends AbstractProvisioningTask {
             Callback callback,
             String packageName) {
         this(packageLocationProvider, context, params, callback,
-                new ProvisioningAnalyticsTracker(
-                        MetricsWriterFactory.getMetricsWriter(context, new SettingsFacade()),
-                        new ManagedProvisioningSharedPreferences(context)),
+                ProvisioningAnalyticsTracker.getInstance(context),
                 new Utils(),
                 packageName);
     }
@@ -112,7 +123,7 @@ public class InstallPackageTask extends AbstractProvisioningTask {
         mUtils = requireNonNull(utils);
     }
 
-    private static void copyStream(@NonNull InputStream in, @NonNull OutputStream out)
+    static void copyStream(@NonNull InputStream in, @NonNull OutputStream out)
             throws IOException {
         byte[] buffer = new byte[16 * 1024];
         int numRead;
@@ -141,6 +152,26 @@ public class InstallPackageTask extends AbstractProvisioningTask {
             return;
         }
 
+        List<File> apks = new ArrayList<>();
+        apks.add(packageLocation);
+        apks.addAll(mPackageLocationProvider.getSplitPackageLocations());
+        try {
+            installPackage(createSessionParams(),
+                    session -> writeApks(session, apks, AsyncTask.THREAD_POOL_EXECUTOR));
+        } catch (IOException e) {
+            ProvisionLogger.loge("Installing package " + mPackageName + " failed.", e);
+            error(ERROR_INSTALLATION_FAILED);
+        } finally {
+            for (File apk : apks) {
+                mPackageLocationProvider.releasePackageLocation(apk);
+            }
+        }
+    }
+
+    /**
+     * Returns the {@link PackageInstaller.SessionParams} used to install {@link #mPackageName}.
+     */
+    PackageInstaller.SessionParams createSessionParams() {
         int installFlags = INSTALL_REPLACE_EXISTING;
         // Current device owner (if exists) must be test-only, so it is fine to replace it with a
         // test-only package of same package name. No need to further verify signature as
@@ -152,42 +183,152 @@ public class InstallPackageTask extends AbstractProvisioningTask {
         PackageInstaller.SessionParams params = new PackageInstaller.SessionParams(
                 PackageInstaller.SessionParams.MODE_FULL_INSTALL);
         params.installFlags |= installFlags;
+        return params;
+    }
 
-        try {
-            installPackage(packageLocation, mPackageName, params, mContext, mSessionCallback);
-        } catch (IOException e) {
-            ProvisionLogger.loge("Installing package " + mPackageName + " failed.", e);
-            error(ERROR_INSTALLATION_FAILED);
-        } finally {
-            packageLocation.delete();
+    /**
+     * Writes {@code apks} into {@code session}, each under its file name.
+     *
+     * <p>Each apk is passed to the session as a file descriptor, which the system copies from
+     * without the bytes going through this process. Split apks are written concurrently on
+     * {@code executor}. If a write fails or the calling thread is interrupted, the writes that did
+     * not start are skipped, and the method returns once the others have finished.
+     *
+     * @return {@code true}, so that the session is committed
+     */
+    @VisibleForTesting
+    static boolean writeApks(PackageInstaller.Session session, List<File> apks, Executor executor)
+            throws IOException {
+        Set<String> names = new HashSet<>();
+        for (File apk : apks) {
+            if (!names.add(apk.getName())) {
+                throw new IOException("More than one apk is named " + apk.getName());
+            }
+        }
+        if (apks.size() == 1) {
+            writeApk(session, apks.get(0));
+            return true;
+        }
+
+        // Set once the session is going to be abandoned, so that writes that did not start yet are
+        // skipped. A write that started cannot be stopped, so it is waited for instead.
+        AtomicBoolean cancelled = new AtomicBoolean();
+        List<FutureTask<Void>> tasks = new ArrayList<>();
+        for (File apk : apks) {
+            FutureTask<Void> task = new FutureTask<>(() -> {
+                if (!cancelled.get()) {
+                    writeApk(session, apk);
+                }
+                return null;
+            });
+            tasks.add(task);
+            executor.execute(task);
+        }
+        IOException failure = null;
+        boolean interrupted = false;
+        for (FutureTask<Void> task : tasks) {
+            while (true) {
+                try {
+                    task.get();
+                    break;
+                } catch (ExecutionException e) {
+                    // Wait for the other writes, so that none is still running once the session
+                    // is abandoned.
+                    cancelled.set(true);
+                    if (failure == null) {
+                        failure = e.getCause() instanceof IOException
+                                ? (IOException) e.getCause()
+                                : new IOException(e.getCause());
+                    }
+                    break;
+                } catch (InterruptedException e) {
+                    cancelled.set(true);
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while writing split apks");
+        }
+        if (failure != null) {
+            throw failure;
         }
+        return true;
     }
 
-    private void installPackage(
-            File source,
-            String packageName,
+    private static void writeApk(PackageInstaller.Session session, File apk) throws IOException {
+        try (ParcelFileDescriptor fd =
+                ParcelFileDescriptor.open(apk, ParcelFileDescriptor.MODE_READ_ONLY)) {
+            session.write(apk.getName(), /* offsetBytes= */ 0, fd.getStatSize(), fd);
+        }
+    }
+
+    /**
+     * Creates an install session, lets {@code contents} write the apks into it and commits it.
+     *
+     * <p>If the writer throws or returns {@code false}, the session is abandoned and nothing is
+     * committed. The result of a committed session is reported through this task's callback.
+     *
+     * @return whether the session was committed
+     */
+    boolean installPackage(
             PackageInstaller.SessionParams params,
-            Context context,
-            PackageInstaller.SessionCallback sessionCallback)
+            SessionContents contents)
             throws IOException {
-        PackageInstaller pi = context.getPackageManager().getPackageInstaller();
-        context.registerReceiver(
-                new PackageAddedReceiver(packageName),
-                createPackageAddedIntentFilter());
-        pi.registerSessionCallback(sessionCallback);
+        int sessionId = stageSession(params, contents);
+        if (sessionId == NO_SESSION) {
+            return false;
+        }
+        commitSession(sessionId);
+        return true;
+    }
+
+    /**
+     * Creates an install session and lets {@code contents} write the apks into it, without
+     * committing it. This can be called from any thread.
+     *
+     * <p>If the writer throws or returns {@code false}, the session is abandoned.
+     *
+     * @return the id of the staged session, or {@link #NO_SESSION} if it was abandoned
+     */
+    int stageSession(PackageInstaller.SessionParams params, SessionContents contents)
+            throws IOException {
+        PackageInstaller pi = mContext.getPackageManager().getPackageInstaller();
         int sessionId = pi.createSession(params);
         try (PackageInstaller.Session session = pi.openSession(sessionId)) {
-            try (FileInputStream in = new FileInputStream(source);
-                 OutputStream out = session.openWrite(source.getName(), 0, -1)) {
-                copyStream(in, out);
-            } catch (IOException e) {
+            boolean accepted;
+            try {
+                accepted = contents.write(session);
+            } catch (IOException | RuntimeException e) {
                 session.abandon();
                 throw e;
             }
+            if (!accepted) {
+                session.abandon();
+                return NO_SESSION;
+            }
+        }
+        return sessionId;
+    }
+
+    /**
+     * Commits a session staged by {@link #stageSession}. The result is reported through this
+     * task's callback, on the looper of the calling thread.
+     */
+    void commitSession(int sessionId) throws IOException {
+        PackageInstaller pi = mContext.getPackageManager().getPackageInstaller();
+        try (PackageInstaller.Session session = pi.openSession(sessionId)) {
+            // Neither the broadcast nor the session callback can fire before the commit, so only
+            // register for them once we know the session is going to be committed.
+            mContext.registerReceiver(
+                    new PackageAddedReceiver(mPackageName),
+                    createPackageAddedIntentFilter());
+            pi.registerSessionCallback(mSessionCallback);
 
             String action = ACTION_INSTALL_DONE + sessionId;
             PendingIntent pendingIntent = PendingIntent.getBroadcast(
-                    context,
+                    mContext,
                     sessionId,
                     new Intent(action),
                     FLAG_ONE_SHOT | FLAG_UPDATE_CURRENT | FLAG_MUTABLE);
@@ -195,6 +336,18 @@ public class InstallPackageTask extends AbstractProvisioningTask {
         }
     }
 
+    /**
+     * Abandons a session staged by {@link #stageSession} that is not going to be committed.
+     */
+    void abandonSession(int sessionId) {
+        PackageInstaller pi = mContext.getPackageManager().getPackageInstaller();
+        try (PackageInstaller.Session session = pi.openSession(sessionId)) {
+            session.abandon();
+        } catch (IOException | SecurityException e) {
+            ProvisionLogger.logw("Could not abandon session " + sessionId, e);
+        }
+    }
+
     private IntentFilter createPackageAddedIntentFilter() {
         IntentFilter intentFilter = new IntentFilter(Intent.ACTION_PACKAGE_ADDED);
         intentFilter.addDataScheme("package");
@@ -211,6 +364,7 @@ public class InstallPackageTask extends AbstractProvisioningTask {
         if (mSuccessCodes.contains(SUCCESS_INSTALLED_BROADCAST)
                 && mSuccessCodes.contains(SUCCESS_INSTALLED_CALLBACK)) {
             ProvisionLogger.logd("Package " + mPackageName + " is successfully installed.");
+            InstalledApplicationsCache.invalidateInstance();
             stopTaskTimer();
             success();
         }
@@ -281,4 +435,17 @@ public class InstallPackageTask extends AbstractProvisioningTask {
             addSuccessStatus(SUCCESS_INSTALLED_CALLBACK);
         }
     }
+
+    /**
+     * Writes the apks of a package into its install session.
+     */
+    interface SessionContents {
+        /**
+         * Writes the apks into {@code session}.
+         *
+         * @return {@code false} if the written contents must not be installed, in which case the
+         *         session is abandoned
+         */
+        boolean write(PackageInstaller.Session session) throws IOException;
+    }
 }
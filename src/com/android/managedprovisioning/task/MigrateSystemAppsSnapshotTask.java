@@ -19,11 +19,8 @@ import android.content.Context;
 import android.os.FileUtils;
 
 import com.android.internal.annotations.VisibleForTesting;
-import com.android.managedprovisioning.analytics.MetricsWriterFactory;
 import com.android.managedprovisioning.analytics.ProvisioningAnalyticsTracker;
-import com.android.managedprovisioning.common.ManagedProvisioningSharedPreferences;
 import com.android.managedprovisioning.common.ProvisionLogger;
-import com.android.managedprovisioning.common.SettingsFacade;
 import com.android.managedprovisioning.task.nonrequiredapps.SystemAppsSnapshot;
 
 import java.io.File;
@@ -35,9 +32,7 @@ public class MigrateSystemAppsSnapshotTask extends AbstractProvisioningTask {
 
     public MigrateSystemAppsSnapshotTask(Context context, Callback callback) {
         this(context, callback,
-                new ProvisioningAnalyticsTracker(
-                        MetricsWriterFactory.getMetricsWriter(context, new SettingsFacade()),
-                        new ManagedProvisioningSharedPreferences(context)));
+                ProvisioningAnalyticsTracker.getInstance(context));
     }
 
     @VisibleForTesting
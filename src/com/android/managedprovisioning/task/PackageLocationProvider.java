@@ -17,7 +17,40 @@
 package com.android.managedprovisioning.task;
 
 import java.io.File;
+import java.util.Collections;
+import java.util.List;
 
 interface PackageLocationProvider {
     File getPackageLocation();
+
+    /**
+     * Returns the split apks to install together with the base apk at {@link
+     * #getPackageLocation()}, such as the splits carrying native libraries.
+     */
+    default List<File> getSplitPackageLocations() {
+        return Collections.emptyList();
+    }
+
+    /**
+     * Called once the package at {@link #getPackageLocation()} has been verified.
+     *
+     * @param verified whether the package matched the expected checksum
+     */
+    default void onPackageVerified(boolean verified) {}
+
+    /**
+     * Returns whether the package at {@link #getPackageLocation()} is already known to match its
+     * package checksum, so that it does not need to be hashed again.
+     */
+    default boolean isPackageChecksumVerified() {
+        return false;
+    }
+
+    /**
+     * Called once the package at {@link #getPackageLocation()}, or one of the split apks from
+     * {@link #getSplitPackageLocations()}, is no longer needed.
+     */
+    default void releasePackageLocation(File packageLocation) {
+        packageLocation.delete();
+    }
 }
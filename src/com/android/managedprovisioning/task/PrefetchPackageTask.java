@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.managedprovisioning.task;
+
+import static com.android.internal.util.Preconditions.checkNotNull;
+
+import android.content.Context;
+
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.managedprovisioning.analytics.ProvisioningAnalyticsTracker;
+import com.android.managedprovisioning.common.Utils;
+import com.android.managedprovisioning.model.PackageDownloadInfo;
+import com.android.managedprovisioning.model.ProvisioningParams;
+import com.android.managedprovisioning.task.download.PackagePrefetcher;
+
+/**
+ * Starts downloading a package in the background and finishes immediately.
+ *
+ * <p>A later {@link DownloadPackageTask} for the same {@link PackageDownloadInfo} picks up the
+ * prefetched package. Prefetching requires {@link Utils#isPackageDownloadCacheEnabled()}; this
+ * task does nothing otherwise.
+ */
+public class PrefetchPackageTask extends AbstractProvisioningTask {
+
+    private final Utils mUtils;
+    private final PackagePrefetcher mPrefetcher;
+    private final PackageDownloadInfo mPackageDownloadInfo;
+    private final String mPackageName;
+
+    public PrefetchPackageTask(
+            Context context,
+            ProvisioningParams params,
+            PackageDownloadInfo packageDownloadInfo,
+            String packageName,
+            Callback callback) {
+        this(new Utils(), PackagePrefetcher.getInstance(context), context, params,
+                packageDownloadInfo, packageName, callback,
+                ProvisioningAnalyticsTracker.getInstance(context));
+    }
+
+    @VisibleForTesting
+    PrefetchPackageTask(
+            Utils utils,
+            PackagePrefetcher prefetcher,
+            Context context,
+            ProvisioningParams params,
+            PackageDownloadInfo packageDownloadInfo,
+            String packageName,
+            Callback callback,
+            ProvisioningAnalyticsTracker provisioningAnalyticsTracker) {
+        super(context, params, callback, provisioningAnalyticsTracker);
+        mUtils = checkNotNull(utils);
+        mPrefetcher = checkNotNull(prefetcher);
+        mPackageDownloadInfo = checkNotNull(packageDownloadInfo);
+        mPackageName = checkNotNull(packageName);
+    }
+
+    @Override
+    public void run(int userId) {
+        if (mUtils.isPackageDownloadCacheEnabled()
+                && mUtils.packageRequiresUpdate(mPackageName, mPackageDownloadInfo.minVersion,
+                        mContext)
+                && mUtils.isConnectedToNetwork(mContext)) {
+            mPrefetcher.prefetch(mPackageDownloadInfo);
+        }
+        success();
+    }
+}
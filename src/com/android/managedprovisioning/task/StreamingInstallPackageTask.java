@@ -0,0 +1,335 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.managedprovisioning.task;
+
+import static java.util.Objects.requireNonNull;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageInstaller;
+import android.content.pm.PackageManager;
+import android.os.AsyncTask;
+import android.os.CancellationSignal;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.ParcelFileDescriptor;
+import android.text.TextUtils;
+
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.managedprovisioning.analytics.ProvisioningAnalyticsTracker;
+import com.android.managedprovisioning.common.Globals;
+import com.android.managedprovisioning.common.ProvisionLogger;
+import com.android.managedprovisioning.common.StoreUtils;
+import com.android.managedprovisioning.common.Utils;
+import com.android.managedprovisioning.model.PackageDownloadInfo;
+import com.android.managedprovisioning.model.ProvisioningParams;
+import com.android.managedprovisioning.task.wifi.ProvisioningNetwork;
+
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+
+/**
+ * Downloads, verifies and installs the management app apk in a single pass.
+ *
+ * <p>Instead of having {@link DownloadPackageTask} write the apk to disk, {@link
+ * VerifyAdminPackageTask} read it back to hash it and {@link InstallPackageTask} read it a third
+ * time, the http response is streamed directly into the {@link
+ * android.content.pm.PackageInstaller.Session} while a {@link Utils#SHA256_TYPE} digest is
+ * computed on the fly. The session is only committed if the digest matches {@link
+ * PackageDownloadInfo#packageChecksum}, otherwise it is abandoned.
+ *
+ * <p>Before committing, the apk staged in the session is parsed to check, like {@link
+ * VerifyAdminPackageTask}, that it is the expected package and contains the device admin receiver.
+ *
+ * <p>The download runs on a background executor so that a stalled server does not block the
+ * provisioning thread, and stops when the task is {@link #cancel() cancelled}.
+ *
+ * <p>Since nothing is staged on disk, this task can only be used when a package checksum is
+ * provided; verifying a signature checksum requires parsing the apk before installing it.
+ */
+public class StreamingInstallPackageTask extends InstallPackageTask {
+    // Continue after InstallPackageTask#ERROR_PACKAGE_INVALID and #ERROR_INSTALLATION_FAILED.
+    public static final int ERROR_DOWNLOAD_FAILED = 2;
+    public static final int ERROR_HASH_MISMATCH = 3;
+    public static final int ERROR_DEVICE_ADMIN_MISSING = 4;
+
+    private static final String STREAMED_APK_NAME = "streamed.apk";
+    private static final int TIMEOUT_MILLIS = 30_000;
+
+    private final PackageDownloadInfo mPackageDownloadInfo;
+    private final Executor mExecutor;
+    private final CancellationSignal mCancellationSignal = new CancellationSignal();
+    // The reason the streamed apk was rejected, if it was.
+    private int mVerificationError = ERROR_HASH_MISMATCH;
+
+    public StreamingInstallPackageTask(
+            Context context,
+            ProvisioningParams params,
+            PackageDownloadInfo packageDownloadInfo,
+            Callback callback,
+            String packageName) {
+        this(context, params, packageDownloadInfo, callback,
+                ProvisioningAnalyticsTracker.getInstance(context),
+                new Utils(),
+                packageName,
+                AsyncTask.THREAD_POOL_EXECUTOR);
+    }
+
+    @VisibleForTesting
+    StreamingInstallPackageTask(
+            Context context,
+            ProvisioningParams params,
+            PackageDownloadInfo packageDownloadInfo,
+            Callback callback,
+            ProvisioningAnalyticsTracker provisioningAnalyticsTracker,
+            Utils utils,
+            String packageName,
+            Executor executor) {
+        // Nothing is staged on disk in streaming mode, so there is no package location.
+        super(() -> null, context, params, callback, provisioningAnalyticsTracker, utils,
+                packageName);
+        mPackageDownloadInfo = requireNonNull(packageDownloadInfo);
+        mExecutor = requireNonNull(executor);
+        if (mPackageDownloadInfo.packageChecksum.length == 0) {
+            throw new IllegalArgumentException("Streaming install requires a package checksum.");
+        }
+    }
+
+    /**
+     * Returns whether {@code packageDownloadInfo} can be installed by this task. Packages with
+     * {@link PackageDownloadInfo#splits} are not, as each split is verified before it is written.
+     */
+    public static boolean canStream(PackageDownloadInfo packageDownloadInfo) {
+        return packageDownloadInfo != null && packageDownloadInfo.packageChecksum.length > 0
+                && packageDownloadInfo.splits.isEmpty();
+    }
+
+    @Override
+    public void run(int userId) {
+        startTaskTimer();
+        if (!mUtils.packageRequiresUpdate(mPackageName, mPackageDownloadInfo.minVersion,
+                mContext)) {
+            success();
+            return;
+        }
+        if (!mUtils.isConnectedToNetwork(mContext)) {
+            ProvisionLogger.loge("StreamingInstallPackageTask: not connected to the network, "
+                    + "can't download the package");
+            error(ERROR_DOWNLOAD_FAILED);
+            return;
+        }
+
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance(Utils.SHA256_TYPE);
+        } catch (NoSuchAlgorithmException e) {
+            ProvisionLogger.loge("Hashing algorithm " + Utils.SHA256_TYPE + " not supported.", e);
+            error(ERROR_INSTALLATION_FAILED);
+            return;
+        }
+
+        DownloadPackageTask.setDpcDownloadedSetting(mContext);
+
+        // The download can take as long as the server takes, so it runs on mExecutor and only
+        // the commit, which registers callbacks on this thread's looper, runs back here.
+        Handler handler = new Handler(Looper.myLooper());
+        // Keep the network even if provisioning ends while the package is streamed.
+        ProvisioningNetwork.getInstance().acquire();
+        mExecutor.execute(() -> {
+            try {
+                streamAndStage(digest, handler);
+            } finally {
+                ProvisioningNetwork.getInstance().release();
+            }
+        });
+    }
+
+    /**
+     * Stops the download. A session that was already staged is abandoned instead of committed.
+     */
+    @Override
+    public void cancel() {
+        mCancellationSignal.cancel();
+    }
+
+    private void streamAndStage(MessageDigest digest, Handler handler) {
+        int sessionId;
+        try {
+            URLConnection connection = createConnection();
+            // Closing the connection unblocks a connect or read waiting on a stalled server.
+            mCancellationSignal.setOnCancelListener(() -> disconnect(connection));
+            InputStream in = openInputStream(connection);
+            try (InputStream digestIn = new DigestInputStream(in, digest)) {
+                sessionId = stageSession(createSessionParams(),
+                        session -> copyAndVerify(digestIn, session, digest));
+            }
+        } catch (IOException e) {
+            if (mCancellationSignal.isCanceled()) {
+                ProvisionLogger.logi("Streaming package " + mPackageName + " was cancelled.");
+                return;
+            }
+            ProvisionLogger.loge("Streaming package " + mPackageName + " failed.", e);
+            handler.post(() -> reportError(ERROR_DOWNLOAD_FAILED));
+            return;
+        } finally {
+            mCancellationSignal.setOnCancelListener(null);
+        }
+        handler.post(() -> commitOrAbandon(sessionId));
+    }
+
+    private void commitOrAbandon(int sessionId) {
+        if (sessionId == NO_SESSION) {
+            reportError(mVerificationError);
+            return;
+        }
+        if (mCancellationSignal.isCanceled()) {
+            abandonSession(sessionId);
+            return;
+        }
+        try {
+            commitSession(sessionId);
+        } catch (IOException e) {
+            ProvisionLogger.loge("Could not commit package " + mPackageName, e);
+            abandonSession(sessionId);
+            error(ERROR_INSTALLATION_FAILED);
+        }
+    }
+
+    private void reportError(int errorCode) {
+        if (!mCancellationSignal.isCanceled()) {
+            error(errorCode);
+        }
+    }
+
+    private URLConnection createConnection() throws IOException {
+        if (Globals.DEBUG) {
+            ProvisionLogger.logd("Starting streaming download from "
+                    + mPackageDownloadInfo.location);
+        }
+        URLConnection connection = ProvisioningNetwork.getInstance()
+                .openConnection(new URL(mPackageDownloadInfo.location));
+        connection.setConnectTimeout(TIMEOUT_MILLIS);
+        connection.setReadTimeout(TIMEOUT_MILLIS);
+        if (mPackageDownloadInfo.cookieHeader != null) {
+            connection.setRequestProperty("Cookie", mPackageDownloadInfo.cookieHeader);
+        }
+        return connection;
+    }
+
+    private InputStream openInputStream(URLConnection connection) throws IOException {
+        if (connection instanceof HttpURLConnection) {
+            int responseCode = ((HttpURLConnection) connection).getResponseCode();
+            if (responseCode != HttpURLConnection.HTTP_OK) {
+                throw new IOException("Unexpected http response code " + responseCode);
+            }
+        }
+        InputStream in = connection.getInputStream();
+        // Connections that can't be disconnected are stopped between reads instead.
+        return new FilterInputStream(in) {
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                throwIfCancelled();
+                return super.read(b, off, len);
+            }
+        };
+    }
+
+    private void throwIfCancelled() throws IOException {
+        if (mCancellationSignal.isCanceled()) {
+            throw new InterruptedIOException("Streaming cancelled");
+        }
+    }
+
+    private static void disconnect(URLConnection connection) {
+        if (connection instanceof HttpURLConnection) {
+            ((HttpURLConnection) connection).disconnect();
+        }
+    }
+
+    private boolean copyAndVerify(InputStream digestIn, PackageInstaller.Session session,
+            MessageDigest digest) throws IOException {
+        try (OutputStream out = session.openWrite(STREAMED_APK_NAME, 0, -1)) {
+            copyStream(digestIn, out);
+        }
+        byte[] hash = digest.digest();
+        if (!Arrays.equals(mPackageDownloadInfo.packageChecksum, hash)) {
+            ProvisionLogger.loge("Provided hash does not match hash of streamed package.");
+            ProvisionLogger.loge("Hash provided by programmer: "
+                    + StoreUtils.byteArrayToString(mPackageDownloadInfo.packageChecksum));
+            ProvisionLogger.loge("SHA-256 Hash computed from stream: "
+                    + StoreUtils.byteArrayToString(hash));
+            mVerificationError = ERROR_HASH_MISMATCH;
+            return false;
+        }
+        if (!isExpectedDeviceAdminPackage(readStagedPackageInfo(session))) {
+            mVerificationError = ERROR_DEVICE_ADMIN_MISSING;
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Parses the apk staged in {@code session}, through a descriptor of the staged file rather
+     * than by reading the whole apk back.
+     */
+    private PackageInfo readStagedPackageInfo(PackageInstaller.Session session)
+            throws IOException {
+        try (InputStream in = session.openRead(STREAMED_APK_NAME)) {
+            if (!(in instanceof FileInputStream)) {
+                throw new IOException("Staged apk is not backed by a file");
+            }
+            try (ParcelFileDescriptor fd =
+                    ParcelFileDescriptor.dup(((FileInputStream) in).getFD())) {
+                return mContext.getPackageManager().getPackageArchiveInfo(
+                        "/proc/self/fd/" + fd.getFd(),
+                        PackageManager.GET_SIGNATURES | PackageManager.GET_RECEIVERS);
+            }
+        }
+    }
+
+    private boolean isExpectedDeviceAdminPackage(PackageInfo packageInfo) {
+        if (packageInfo == null) {
+            ProvisionLogger.loge("Streamed package could not be parsed");
+            return false;
+        }
+        if (!TextUtils.equals(mPackageName, packageInfo.packageName)) {
+            ProvisionLogger.loge("Streamed package is " + packageInfo.packageName
+                    + " instead of " + mPackageName);
+            return false;
+        }
+        ComponentName admin = mUtils.findDeviceAdminInPackageInfo(mPackageName,
+                mProvisioningParams.deviceAdminComponentName, packageInfo);
+        if (admin == null) {
+            ProvisionLogger.loge("Streamed package has no device admin receiver");
+            return false;
+        }
+        return true;
+    }
+}
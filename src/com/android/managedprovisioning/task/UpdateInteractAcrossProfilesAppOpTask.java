@@ -30,6 +30,7 @@ import android.os.UserManager;
 import android.util.ArraySet;
 
 import com.android.managedprovisioning.analytics.ProvisioningAnalyticsTracker;
+import com.android.managedprovisioning.common.InstalledApplicationsCache;
 import com.android.managedprovisioning.common.ProvisionLogger;
 import com.android.managedprovisioning.model.ProvisioningParams;
 import com.android.managedprovisioning.task.interactacrossprofiles.CrossProfileAppsSnapshot;
@@ -49,6 +50,7 @@ public class UpdateInteractAcrossProfilesAppOpTask extends AbstractProvisioningT
     private final AppOpsManager mAppOpsManager;
     private final PackageManager mPackageManager;
     private final UserManager mUserManager;
+    private final InstalledApplicationsCache mInstalledApplications;
 
     public UpdateInteractAcrossProfilesAppOpTask(Context context,
             ProvisioningParams provisioningParams,
@@ -61,6 +63,7 @@ public class UpdateInteractAcrossProfilesAppOpTask extends AbstractProvisioningT
         mAppOpsManager = context.getSystemService(AppOpsManager.class);
         mPackageManager = context.getPackageManager();
         mUserManager = context.getSystemService(UserManager.class);
+        mInstalledApplications = InstalledApplicationsCache.getInstance(context);
     }
 
     @Override
@@ -69,8 +72,7 @@ public class UpdateInteractAcrossProfilesAppOpTask extends AbstractProvisioningT
                 mCrossProfileAppsSnapshot.hasSnapshot(userId) ?
                         mCrossProfileAppsSnapshot.getSnapshot(userId) :
                         new ArraySet<>();
-        mCrossProfileAppsSnapshot.takeNewSnapshot(userId);
-        Set<String> currentCrossProfileApps = mCrossProfileAppsSnapshot.getSnapshot(userId);
+        Set<String> currentCrossProfileApps = mCrossProfileAppsSnapshot.takeNewSnapshot(userId);
 
         updateAfterOtaChanges(previousCrossProfileApps, currentCrossProfileApps);
     }
@@ -141,14 +143,8 @@ public class UpdateInteractAcrossProfilesAppOpTask extends AbstractProvisioningT
                     && !mUserManager.isManagedProfile(profile.getIdentifier())) {
                 continue;
             }
-            try {
-                apps.addAll(
-                        mContext.createPackageContextAsUser(
-                        /* packageName= */ "android", /* flags= */ 0, profile)
-                                .getPackageManager().getInstalledApplications(/* flags= */ 0));
-            } catch (PackageManager.NameNotFoundException ignored) {
-                // Should never happen.
-            }
+            apps.addAll(mInstalledApplications.getSnapshot(profile.getIdentifier())
+                    .getInstalledApplications());
         }
         return apps;
     }
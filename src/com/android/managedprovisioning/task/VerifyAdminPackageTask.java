@@ -25,11 +25,9 @@ import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 
 import com.android.internal.annotations.VisibleForTesting;
-import com.android.managedprovisioning.analytics.MetricsWriterFactory;
 import com.android.managedprovisioning.analytics.ProvisioningAnalyticsTracker;
-import com.android.managedprovisioning.common.ManagedProvisioningSharedPreferences;
+import com.android.managedprovisioning.analytics.ProvisioningTracer;
 import com.android.managedprovisioning.common.ProvisionLogger;
-import com.android.managedprovisioning.common.SettingsFacade;
 import com.android.managedprovisioning.common.Utils;
 import com.android.managedprovisioning.model.PackageDownloadInfo;
 import com.android.managedprovisioning.model.ProvisioningParams;
@@ -64,10 +62,20 @@ public class VerifyAdminPackageTask extends AbstractProvisioningTask {
             PackageDownloadInfo packageDownloadInfo,
             Callback callback) {
         this(new Utils(), downloadLocationProvider, context, params, packageDownloadInfo, callback,
-                new ProvisioningAnalyticsTracker(
-                        MetricsWriterFactory.getMetricsWriter(context, new SettingsFacade()),
-                        new ManagedProvisioningSharedPreferences(context)),
-                new ChecksumUtils(new Utils()));
+                ProvisioningAnalyticsTracker.getInstance(context));
+    }
+
+    private VerifyAdminPackageTask(
+            Utils utils,
+            PackageLocationProvider downloadLocationProvider,
+            Context context,
+            ProvisioningParams params,
+            PackageDownloadInfo packageDownloadInfo,
+            Callback callback,
+            ProvisioningAnalyticsTracker provisioningAnalyticsTracker) {
+        this(utils, downloadLocationProvider, context, params, packageDownloadInfo, callback,
+                provisioningAnalyticsTracker,
+                new ChecksumUtils(new Utils(), context, provisioningAnalyticsTracker));
     }
 
     @VisibleForTesting
@@ -89,6 +97,11 @@ public class VerifyAdminPackageTask extends AbstractProvisioningTask {
         mChecksumUtils = requireNonNull(checksumUtils);
     }
 
+    @Override
+    public boolean canRunInBackground() {
+        return true;
+    }
+
     @Override
     public void run(int userId) {
         final File packageLocation = mDownloadLocationProvider.getPackageLocation();
@@ -107,30 +120,43 @@ public class VerifyAdminPackageTask extends AbstractProvisioningTask {
         // Device admin package name can't be null
         if (packageInfo == null || packageName == null) {
             ProvisionLogger.loge("Device admin package info or name is null");
+            mDownloadLocationProvider.onPackageVerified(/* verified= */ false);
             error(ERROR_DEVICE_ADMIN_MISSING);
             return;
         }
 
         if (mUtils.findDeviceAdminInPackageInfo(packageName,
                 mProvisioningParams.deviceAdminComponentName, packageInfo) == null) {
+            mDownloadLocationProvider.onPackageVerified(/* verified= */ false);
             error(ERROR_DEVICE_ADMIN_MISSING);
             return;
         }
 
         if (mPackageDownloadInfo.packageChecksum.length > 0) {
-            if (!mChecksumUtils.doesPackageHashMatch(
-                    packageLocation.getAbsolutePath(), mPackageDownloadInfo.packageChecksum)) {
+            if (mDownloadLocationProvider.isPackageChecksumVerified()) {
+                ProvisionLogger.logd("Package hash was already verified");
+            } else if (!doesPackageHashMatch(packageLocation)) {
+                mDownloadLocationProvider.onPackageVerified(/* verified= */ false);
                 error(ERROR_HASH_MISMATCH);
                 return;
             }
         } else {
             if (!mChecksumUtils.doesASignatureHashMatch(
                     packageInfo, mPackageDownloadInfo.signatureChecksum)) {
+                mDownloadLocationProvider.onPackageVerified(/* verified= */ false);
                 error(ERROR_HASH_MISMATCH);
                 return;
             }
         }
 
+        mDownloadLocationProvider.onPackageVerified(/* verified= */ true);
         success();
     }
+
+    private boolean doesPackageHashMatch(File packageLocation) {
+        try (ProvisioningTracer.Span span = beginSubSpan("hash_package")) {
+            return mChecksumUtils.doesPackageHashMatch(
+                    packageLocation.getAbsolutePath(), mPackageDownloadInfo.packageChecksum);
+        }
+    }
 }
@@ -24,11 +24,8 @@ import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 
 import com.android.internal.annotations.VisibleForTesting;
-import com.android.managedprovisioning.analytics.MetricsWriterFactory;
 import com.android.managedprovisioning.analytics.ProvisioningAnalyticsTracker;
-import com.android.managedprovisioning.common.ManagedProvisioningSharedPreferences;
 import com.android.managedprovisioning.common.ProvisionLogger;
-import com.android.managedprovisioning.common.SettingsFacade;
 import com.android.managedprovisioning.common.Utils;
 import com.android.managedprovisioning.model.PackageDownloadInfo;
 import com.android.managedprovisioning.model.ProvisioningParams;
@@ -61,10 +58,19 @@ public class VerifyRoleHolderPackageTask extends AbstractProvisioningTask {
             PackageDownloadInfo packageDownloadInfo,
             Callback callback) {
         this(downloadLocationProvider, context, params, packageDownloadInfo, callback,
-                new ProvisioningAnalyticsTracker(
-                        MetricsWriterFactory.getMetricsWriter(context, new SettingsFacade()),
-                        new ManagedProvisioningSharedPreferences(context)),
-                new ChecksumUtils(new Utils()));
+                ProvisioningAnalyticsTracker.getInstance(context));
+    }
+
+    private VerifyRoleHolderPackageTask(
+            PackageLocationProvider downloadLocationProvider,
+            Context context,
+            ProvisioningParams params,
+            PackageDownloadInfo packageDownloadInfo,
+            Callback callback,
+            ProvisioningAnalyticsTracker provisioningAnalyticsTracker) {
+        this(downloadLocationProvider, context, params, packageDownloadInfo, callback,
+                provisioningAnalyticsTracker,
+                new ChecksumUtils(new Utils(), context, provisioningAnalyticsTracker));
     }
 
     @VisibleForTesting
@@ -84,6 +90,11 @@ public class VerifyRoleHolderPackageTask extends AbstractProvisioningTask {
         mChecksumUtils = requireNonNull(checksumUtils);
     }
 
+    @Override
+    public boolean canRunInBackground() {
+        return true;
+    }
+
     @Override
     public void run(int userId) {
         final File packageLocation = mDownloadLocationProvider.getPackageLocation();
@@ -100,19 +111,24 @@ public class VerifyRoleHolderPackageTask extends AbstractProvisioningTask {
                 PackageManager.GET_SIGNATURES | PackageManager.GET_RECEIVERS);
 
         if (mPackageDownloadInfo.packageChecksum.length > 0) {
-            if (!mChecksumUtils.doesPackageHashMatch(
+            if (mDownloadLocationProvider.isPackageChecksumVerified()) {
+                ProvisionLogger.logd("Package hash was already verified");
+            } else if (!mChecksumUtils.doesPackageHashMatch(
                     packageLocation.getAbsolutePath(), mPackageDownloadInfo.packageChecksum)) {
+                mDownloadLocationProvider.onPackageVerified(/* verified= */ false);
                 error(ERROR_HASH_MISMATCH);
                 return;
             }
         } else {
             if (!mChecksumUtils.doesASignatureHashMatch(
                     packageInfo, mPackageDownloadInfo.signatureChecksum)) {
+                mDownloadLocationProvider.onPackageVerified(/* verified= */ false);
                 error(ERROR_HASH_MISMATCH);
                 return;
             }
         }
 
+        mDownloadLocationProvider.onPackageVerified(/* verified= */ true);
         success();
     }
 }
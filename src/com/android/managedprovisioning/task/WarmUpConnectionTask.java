@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.managedprovisioning.task;
+
+import static com.android.internal.util.Preconditions.checkNotNull;
+
+import android.content.Context;
+
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.managedprovisioning.analytics.ProvisioningAnalyticsTracker;
+import com.android.managedprovisioning.common.Utils;
+import com.android.managedprovisioning.model.PackageDownloadInfo;
+import com.android.managedprovisioning.model.ProvisioningParams;
+import com.android.managedprovisioning.task.download.ConnectionWarmer;
+
+/**
+ * Starts warming up the connection to the host of a package download and finishes immediately.
+ *
+ * <p>Added after the network tasks, so that the connection is made on the network that the
+ * download runs on. Only downloads that run in this process reuse the connection, so packages
+ * downloaded through {@link android.app.DownloadManager} are not warmed up. See {@link
+ * ConnectionWarmer}.
+ */
+public class WarmUpConnectionTask extends AbstractProvisioningTask {
+
+    private final Utils mUtils;
+    private final ConnectionWarmer mConnectionWarmer;
+    private final PackageDownloadInfo mPackageDownloadInfo;
+    private final String mPackageName;
+
+    public WarmUpConnectionTask(
+            Context context,
+            ProvisioningParams params,
+            PackageDownloadInfo packageDownloadInfo,
+            String packageName,
+            Callback callback) {
+        this(new Utils(), ConnectionWarmer.getInstance(context), context, params,
+                packageDownloadInfo, packageName, callback,
+                ProvisioningAnalyticsTracker.getInstance(context));
+    }
+
+    @VisibleForTesting
+    WarmUpConnectionTask(
+            Utils utils,
+            ConnectionWarmer connectionWarmer,
+            Context context,
+            ProvisioningParams params,
+            PackageDownloadInfo packageDownloadInfo,
+            String packageName,
+            Callback callback,
+            ProvisioningAnalyticsTracker provisioningAnalyticsTracker) {
+        super(context, params, callback, provisioningAnalyticsTracker);
+        mUtils = checkNotNull(utils);
+        mConnectionWarmer = checkNotNull(connectionWarmer);
+        mPackageDownloadInfo = checkNotNull(packageDownloadInfo);
+        mPackageName = checkNotNull(packageName);
+    }
+
+    @Override
+    public void run(int userId) {
+        if (isDownloadedInProcess() && mUtils.packageRequiresUpdate(mPackageName,
+                mPackageDownloadInfo.minVersion, mContext)) {
+            mConnectionWarmer.warmUp(mPackageDownloadInfo);
+        }
+        success();
+    }
+
+    private boolean isDownloadedInProcess() {
+        return mUtils.isPackageDownloadCacheEnabled()
+                || mPackageDownloadInfo.downloadSegments
+                        > PackageDownloadInfo.DEFAULT_DOWNLOAD_SEGMENTS
+                || (mUtils.isStreamingPackageInstallEnabled()
+                        && StreamingInstallPackageTask.canStream(mPackageDownloadInfo));
+    }
+
+    @VisibleForTesting
+    public PackageDownloadInfo getPackageDownloadInfo() {
+        return mPackageDownloadInfo;
+    }
+}
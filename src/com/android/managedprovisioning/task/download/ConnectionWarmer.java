@@ -0,0 +1,214 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.managedprovisioning.task.download;
+
+import static java.util.Objects.requireNonNull;
+
+import android.annotation.Nullable;
+import android.content.Context;
+import android.net.Network;
+import android.os.AsyncTask;
+import android.os.SystemClock;
+
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.managedprovisioning.common.ProvisionLogger;
+import com.android.managedprovisioning.model.PackageDownloadInfo;
+import com.android.managedprovisioning.task.wifi.ProvisioningNetwork;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Warms up the connection to the host of a package download once the network tasks are done.
+ *
+ * <p>The host is resolved and a {@code HEAD} request is sent to the package location, which opens
+ * and validates the TLS session for https locations. Both go through {@link ProvisioningNetwork},
+ * like the download, so that the connection is made on the same network. The connection is closed
+ * without being disconnected, so that it stays in the connection pool of that network and is
+ * reused by the download. What the request learned about the package is kept as a {@link Result}
+ * for the download, which waits for a warm-up that is still running.
+ */
+public class ConnectionWarmer {
+
+    /**
+     * What the {@code HEAD} request learned about a package.
+     */
+    public static final class Result {
+        /** The size of the package in bytes, or -1 if the server did not send it. */
+        public final long contentLength;
+        /** The entity tag of the package, or {@code null} if the server did not send one. */
+        @Nullable
+        public final String etag;
+        /** Whether the server announced that it supports range requests. */
+        public final boolean acceptsRanges;
+
+        Result(long contentLength, @Nullable String etag, boolean acceptsRanges) {
+            this.contentLength = contentLength;
+            this.etag = etag;
+            this.acceptsRanges = acceptsRanges;
+        }
+    }
+
+    private static final int TIMEOUT_MILLIS = 30_000;
+
+    private static ConnectionWarmer sInstance;
+
+    private final ProvisioningNetwork mProvisioningNetwork;
+    private final Executor mExecutor;
+
+    /**
+     * Warm-ups that are running or succeeded, keyed by location. They are kept for the lifetime
+     * of the process, as downloads check the entity tag before relying on them.
+     */
+    @GuardedBy("this")
+    private final Map<String, FutureTask<Result>> mWarmUps = new HashMap<>();
+
+    public static synchronized ConnectionWarmer getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new ConnectionWarmer(ProvisioningNetwork.getInstance(),
+                    AsyncTask.THREAD_POOL_EXECUTOR);
+        }
+        return sInstance;
+    }
+
+    @VisibleForTesting
+    ConnectionWarmer(ProvisioningNetwork provisioningNetwork, Executor executor) {
+        mProvisioningNetwork = requireNonNull(provisioningNetwork);
+        mExecutor = requireNonNull(executor);
+    }
+
+    /**
+     * Warms up the connection to the host of {@code info} in the background, unless it is being
+     * or has been warmed up already.
+     */
+    public void warmUp(PackageDownloadInfo info) {
+        FutureTask<Result> warmUp;
+        synchronized (this) {
+            if (mWarmUps.containsKey(info.location)) {
+                return;
+            }
+            warmUp = new FutureTask<>(() -> {
+                Result result = warmUpBlocking(info);
+                if (result == null) {
+                    // Let a later warm-up try again.
+                    forget(info.location);
+                }
+                return result;
+            });
+            mWarmUps.put(info.location, warmUp);
+        }
+        mExecutor.execute(warmUp);
+    }
+
+    /**
+     * Returns what the warm-up learned about the package described by {@code info}, waiting for
+     * it if it is still running, or {@code null} if there was none or it failed.
+     */
+    @Nullable
+    public Result getResult(PackageDownloadInfo info) throws InterruptedIOException {
+        FutureTask<Result> warmUp;
+        synchronized (this) {
+            warmUp = mWarmUps.get(info.location);
+        }
+        if (warmUp == null) {
+            return null;
+        }
+        try {
+            return warmUp.get();
+        } catch (ExecutionException e) {
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for warm-up");
+        }
+    }
+
+    private synchronized void forget(String location) {
+        mWarmUps.remove(location);
+    }
+
+    /**
+     * Resolves the host of {@code info} and sends a {@code HEAD} request to its location, on the
+     * network bound to {@link ProvisioningNetwork} if any, or else on the default network.
+     */
+    @VisibleForTesting
+    @Nullable
+    Result warmUpBlocking(PackageDownloadInfo info) {
+        HttpURLConnection connection = null;
+        try {
+            URL url = new URL(info.location);
+            long startMillis = SystemClock.elapsedRealtime();
+            Network network = mProvisioningNetwork.getNetwork();
+            if (network != null) {
+                network.getAllByName(url.getHost());
+            } else {
+                InetAddress.getAllByName(url.getHost());
+            }
+            long resolvedMillis = SystemClock.elapsedRealtime();
+
+            URLConnection urlConnection = mProvisioningNetwork.openConnection(url);
+            if (!(urlConnection instanceof HttpURLConnection)) {
+                return null;
+            }
+            connection = (HttpURLConnection) urlConnection;
+            connection.setConnectTimeout(TIMEOUT_MILLIS);
+            connection.setReadTimeout(TIMEOUT_MILLIS);
+            connection.setRequestMethod("HEAD");
+            if (info.cookieHeader != null) {
+                connection.setRequestProperty("Cookie", info.cookieHeader);
+            }
+            int responseCode = connection.getResponseCode();
+            if (responseCode != HttpURLConnection.HTTP_OK) {
+                ProvisionLogger.logw("Warming up " + info.location + " failed with http response "
+                        + "code " + responseCode);
+                connection.disconnect();
+                return null;
+            }
+            Result result = new Result(connection.getContentLengthLong(),
+                    connection.getHeaderField("ETag"),
+                    "bytes".equalsIgnoreCase(connection.getHeaderField("Accept-Ranges")));
+            // Closing the empty body, rather than disconnecting, returns the connection to the
+            // pool.
+            try (InputStream in = connection.getInputStream()) {
+                // Nothing to read.
+            }
+            ProvisionLogger.logi("Warmed up " + url.getHost() + ": resolved in "
+                    + (resolvedMillis - startMillis) + " ms, connected in "
+                    + (SystemClock.elapsedRealtime() - resolvedMillis) + " ms, package size "
+                    + result.contentLength);
+            return result;
+        } catch (IOException e) {
+            // The download reports the failure, if it persists.
+            ProvisionLogger.logw("Warming up " + info.location + " failed", e);
+            if (connection != null) {
+                connection.disconnect();
+            }
+            return null;
+        }
+    }
+}
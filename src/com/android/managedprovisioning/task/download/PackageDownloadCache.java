@@ -0,0 +1,367 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.managedprovisioning.task.download;
+
+import static java.util.Objects.requireNonNull;
+
+import android.annotation.Nullable;
+import android.content.Context;
+
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.managedprovisioning.common.ProvisionLogger;
+import com.android.managedprovisioning.common.StoreUtils;
+import com.android.managedprovisioning.common.Utils;
+import com.android.managedprovisioning.model.PackageDownloadInfo;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Content-addressed cache of downloaded packages.
+ *
+ * <p>Entries are keyed by {@link PackageDownloadInfo#packageChecksum}, or by {@link
+ * PackageDownloadInfo#signatureChecksum} and the download location if no package checksum is
+ * given. An entry goes through three states:
+ * <ol>
+ *     <li>partial: the download is in progress or was interrupted and can be resumed,</li>
+ *     <li>complete: all bytes have been downloaded but not verified yet,</li>
+ *     <li>verified: the package passed verification and can be reused as is.</li>
+ * </ol>
+ *
+ * <p>Entries that were not used for {@code maxAgeMillis} are evicted, as are the least recently
+ * used entries once the cache grows beyond {@code maxSizeBytes}. An entry is as recent as the most
+ * recently modified of its files, and all of them are touched whenever the entry is reused.
+ * Entries that are {@link #pin pinned}, because they are being downloaded or installed, are not.
+ *
+ * <p>A package keyed by its signature checksum may be replaced on the server by a new version at
+ * the same location, and nothing is left to revalidate a complete download with. Such a package
+ * is therefore only reused by the process that downloaded it, while packages keyed by their
+ * package checksum are reused across sessions.
+ */
+public class PackageDownloadCache {
+    @VisibleForTesting
+    static final String DIR_NAME = "package_download_cache";
+    private static final long DEFAULT_MAX_SIZE_BYTES = 512L * 1024 * 1024;
+    private static final long DEFAULT_MAX_AGE_MILLIS = TimeUnit.DAYS.toMillis(7);
+
+    private static final String SUFFIX_PACKAGE = ".apk";
+    private static final String SUFFIX_PARTIAL = ".partial";
+    private static final String SUFFIX_VERIFIED = ".verified";
+    private static final String SUFFIX_ETAG = ".etag";
+    private static final String PREFIX_PACKAGE_CHECKSUM = "pkg-";
+    private static final String PREFIX_SIGNATURE_CHECKSUM = "sig-";
+    private static final String[] SUFFIXES = {
+            SUFFIX_PACKAGE, SUFFIX_PARTIAL, SUFFIX_VERIFIED, SUFFIX_ETAG};
+
+    private final File mDirectory;
+    private final long mMaxSizeBytes;
+    private final long mMaxAgeMillis;
+    private final LongSupplier mClock;
+    private final Utils mUtils;
+    // Keys of the entries that must not be trimmed, with how many users pinned each of them.
+    private final Map<String, Integer> mPinCounts = new HashMap<>();
+    // Keys of the signature checksum entries that this process completed.
+    private final Set<String> mCommittedKeys = new HashSet<>();
+
+    public PackageDownloadCache(Context context) {
+        this(new File(context.getCacheDir(), DIR_NAME), DEFAULT_MAX_SIZE_BYTES,
+                DEFAULT_MAX_AGE_MILLIS, System::currentTimeMillis, new Utils());
+    }
+
+    @VisibleForTesting
+    PackageDownloadCache(File directory, long maxSizeBytes, long maxAgeMillis,
+            LongSupplier clock, Utils utils) {
+        mDirectory = requireNonNull(directory);
+        mMaxSizeBytes = maxSizeBytes;
+        mMaxAgeMillis = maxAgeMillis;
+        mClock = requireNonNull(clock);
+        mUtils = requireNonNull(utils);
+    }
+
+    /**
+     * Returns the verified package for {@code info}, or {@code null} if there is none.
+     */
+    @Nullable
+    public synchronized File getVerifiedPackage(PackageDownloadInfo info) {
+        trim();
+        if (!isVerified(info)) {
+            return null;
+        }
+        File packageFile = getPackageFile(info);
+        touch(info);
+        ProvisionLogger.logi("Reusing cached package " + packageFile.getName());
+        return packageFile;
+    }
+
+    /**
+     * Returns whether the package for {@code info} has been downloaded and verified.
+     */
+    public synchronized boolean isVerified(PackageDownloadInfo info) {
+        return isReusable(info) && getPackageFile(info).isFile()
+                && getFile(info, SUFFIX_VERIFIED).isFile();
+    }
+
+    /**
+     * Returns the completely downloaded package for {@code info}, whether or not it has been
+     * verified yet, or {@code null} if there is none.
+     */
+    @Nullable
+    public synchronized File getDownloadedPackage(PackageDownloadInfo info) {
+        File packageFile = getPackageFile(info);
+        if (!isReusable(info) || !packageFile.isFile()) {
+            return null;
+        }
+        touch(info);
+        return packageFile;
+    }
+
+    /**
+     * Returns the file the package for {@code info} is downloaded to. Its length is the number of
+     * bytes downloaded so far.
+     */
+    public synchronized File getPartialFile(PackageDownloadInfo info) {
+        mDirectory.mkdirs();
+        return getFile(info, SUFFIX_PARTIAL);
+    }
+
+    /**
+     * Returns the entity tag of the partially downloaded package, or {@code null} if unknown.
+     */
+    @Nullable
+    public synchronized String readEntityTag(PackageDownloadInfo info) {
+        File etagFile = getFile(info, SUFFIX_ETAG);
+        if (!etagFile.isFile()) {
+            return null;
+        }
+        try {
+            return new String(Files.readAllBytes(etagFile.toPath()), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            ProvisionLogger.logw("Could not read entity tag", e);
+            return null;
+        }
+    }
+
+    /**
+     * Stores the entity tag the server returned for the package, so that a resumed download can
+     * detect whether the package changed in the meantime.
+     */
+    public synchronized void writeEntityTag(PackageDownloadInfo info, @Nullable String etag) {
+        File etagFile = getFile(info, SUFFIX_ETAG);
+        if (etag == null) {
+            etagFile.delete();
+            return;
+        }
+        try {
+            mDirectory.mkdirs();
+            Files.write(etagFile.toPath(), etag.getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            ProvisionLogger.logw("Could not write entity tag", e);
+        }
+    }
+
+    /**
+     * Discards the partial download of {@code info} and its entity tag, so that the next download
+     * starts from scratch.
+     */
+    public synchronized void discardPartialDownload(PackageDownloadInfo info) {
+        getFile(info, SUFFIX_PARTIAL).delete();
+        getFile(info, SUFFIX_ETAG).delete();
+    }
+
+    /**
+     * Marks the partial download of {@code info} as complete and returns the package file.
+     */
+    public synchronized File commitDownload(PackageDownloadInfo info) throws IOException {
+        File partialFile = getFile(info, SUFFIX_PARTIAL);
+        File packageFile = getPackageFile(info);
+        getFile(info, SUFFIX_VERIFIED).delete();
+        if (!partialFile.renameTo(packageFile)) {
+            throw new IOException("Could not move " + partialFile + " to " + packageFile);
+        }
+        getFile(info, SUFFIX_ETAG).delete();
+        mCommittedKeys.add(getKey(info));
+        trim();
+        return packageFile;
+    }
+
+    /**
+     * Marks the complete package of {@code info} as verified, so that it can be reused.
+     */
+    public synchronized void markVerified(PackageDownloadInfo info) {
+        try {
+            getFile(info, SUFFIX_VERIFIED).createNewFile();
+        } catch (IOException e) {
+            ProvisionLogger.logw("Could not mark cached package as verified", e);
+        }
+    }
+
+    /**
+     * Removes everything that is cached for {@code info}.
+     */
+    public synchronized void evict(PackageDownloadInfo info) {
+        deleteEntry(getKey(info));
+    }
+
+    /**
+     * Keeps the entry of {@code info} from being trimmed until it is {@link #unpin unpinned} as
+     * many times as it was pinned. It can still be {@link #evict evicted}.
+     */
+    public synchronized void pin(PackageDownloadInfo info) {
+        mPinCounts.merge(getKey(info), 1, Integer::sum);
+    }
+
+    /**
+     * Undoes one call to {@link #pin}.
+     */
+    public synchronized void unpin(PackageDownloadInfo info) {
+        mPinCounts.computeIfPresent(getKey(info), (key, count) -> count > 1 ? count - 1 : null);
+    }
+
+    /**
+     * Returns whether the complete package of {@code info}, if any, may be reused. A signature
+     * checksum package downloaded by an earlier process is discarded instead, while its partial
+     * download is kept, since resuming it revalidates the entity tag.
+     */
+    private boolean isReusable(PackageDownloadInfo info) {
+        String key = getKey(info);
+        if (key.startsWith(PREFIX_PACKAGE_CHECKSUM) || mCommittedKeys.contains(key)) {
+            return true;
+        }
+        if (getPackageFile(info).delete()) {
+            ProvisionLogger.logi("Discarding cached package " + key
+                    + " from an earlier session, it can't be revalidated");
+        }
+        getFile(info, SUFFIX_VERIFIED).delete();
+        return false;
+    }
+
+    /**
+     * Marks all files of the entry of {@code info} as used now.
+     */
+    private void touch(PackageDownloadInfo info) {
+        long now = mClock.getAsLong();
+        for (String suffix : SUFFIXES) {
+            File file = getFile(info, suffix);
+            if (file.exists()) {
+                file.setLastModified(now);
+            }
+        }
+    }
+
+    /**
+     * Evicts entries that were not used for too long, then the least recently used entries until
+     * the cache fits in its maximum size. Pinned entries are skipped.
+     */
+    @VisibleForTesting
+    synchronized void trim() {
+        File[] files = mDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+        Map<String, Entry> entries = new HashMap<>();
+        for (File file : files) {
+            String name = file.getName();
+            int suffixStart = name.lastIndexOf('.');
+            String key = suffixStart < 0 ? name : name.substring(0, suffixStart);
+            Entry entry = entries.computeIfAbsent(key, Entry::new);
+            entry.mLastUsedMillis = Math.max(entry.mLastUsedMillis, file.lastModified());
+            entry.mSizeBytes += file.length();
+        }
+
+        long now = mClock.getAsLong();
+        long totalSize = 0;
+        List<Entry> liveEntries = new ArrayList<>();
+        for (Entry entry : entries.values()) {
+            if (mPinCounts.containsKey(entry.mKey)) {
+                totalSize += entry.mSizeBytes;
+            } else if (now - entry.mLastUsedMillis > mMaxAgeMillis) {
+                deleteEntry(entry.mKey);
+            } else {
+                liveEntries.add(entry);
+                totalSize += entry.mSizeBytes;
+            }
+        }
+        liveEntries.sort(Comparator.comparingLong(entry -> entry.mLastUsedMillis));
+        for (Entry entry : liveEntries) {
+            if (totalSize <= mMaxSizeBytes) {
+                return;
+            }
+            totalSize -= deleteEntry(entry.mKey);
+        }
+    }
+
+    /**
+     * Deletes all files of the entry {@code key} and returns how many bytes were freed.
+     */
+    private long deleteEntry(String key) {
+        long freed = 0;
+        for (String suffix : SUFFIXES) {
+            File entryFile = new File(mDirectory, key + suffix);
+            long length = entryFile.length();
+            if (entryFile.delete()) {
+                freed += length;
+            }
+        }
+        ProvisionLogger.logd("Evicted cached package " + key);
+        return freed;
+    }
+
+    private File getPackageFile(PackageDownloadInfo info) {
+        return getFile(info, SUFFIX_PACKAGE);
+    }
+
+    private File getFile(PackageDownloadInfo info, String suffix) {
+        return new File(mDirectory, getKey(info) + suffix);
+    }
+
+    /**
+     * Returns the cache key of {@code info}.
+     *
+     * <p>A signature checksum is shared by every version of a package, so it is combined with the
+     * download location to tell versions apart.
+     */
+    public String getKey(PackageDownloadInfo info) {
+        if (info.packageChecksum.length > 0) {
+            return PREFIX_PACKAGE_CHECKSUM + StoreUtils.byteArrayToString(info.packageChecksum);
+        }
+        byte[] locationHash = mUtils.computeHashOfByteArray(
+                info.location.getBytes(StandardCharsets.UTF_8));
+        return PREFIX_SIGNATURE_CHECKSUM + StoreUtils.byteArrayToString(info.signatureChecksum)
+                + "-" + StoreUtils.byteArrayToString(locationHash);
+    }
+
+    private static final class Entry {
+        final String mKey;
+        long mLastUsedMillis;
+        long mSizeBytes;
+
+        Entry(String key) {
+            mKey = key;
+        }
+    }
+}
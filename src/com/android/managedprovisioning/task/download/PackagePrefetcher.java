@@ -0,0 +1,297 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.managedprovisioning.task.download;
+
+import static java.util.Objects.requireNonNull;
+
+import android.content.Context;
+import android.os.AsyncTask;
+import android.os.CancellationSignal;
+import android.os.Handler;
+
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.managedprovisioning.common.FileHashEngine;
+import com.android.managedprovisioning.common.ProvisionLogger;
+import com.android.managedprovisioning.common.StoreUtils;
+import com.android.managedprovisioning.common.Utils;
+import com.android.managedprovisioning.model.PackageDownloadInfo;
+import com.android.managedprovisioning.task.wifi.ProvisioningNetwork;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+/**
+ * Starts package downloads ahead of the {@link
+ * com.android.managedprovisioning.task.DownloadPackageTask} that needs them, and runs the
+ * downloads of that task.
+ *
+ * <p>Each {@link PackageDownloadInfo} is downloaded into its own {@link PackageDownloadCache}
+ * entry, so that for example the device policy management role holder and the device owner
+ * package can be downloaded at the same time. Each entry is written by a single fetch at a time:
+ * a download of a package that is being fetched already waits for that fetch instead of
+ * downloading it again.
+ *
+ * <p>If a {@link PackageDownloadInfo#packageChecksum} is given, the prefetched package is hashed
+ * right away and marked as verified in the cache, so that the hash does not have to be computed
+ * again by the verify task. A package that does not match is evicted. A download that waits for a
+ * prefetch that failed downloads the package afresh.
+ *
+ * <p>Each fetch {@link ProvisioningNetwork#acquire acquires} the provisioning network until it is
+ * done, so that a prefetch that outlives provisioning is not cut off from its network.
+ */
+public class PackagePrefetcher {
+
+    private static PackagePrefetcher sInstance;
+
+    private final PackageDownloadCache mCache;
+    private final ResumableHttpDownloader mDownloader;
+    private final Executor mExecutor;
+    private final ProvisioningNetwork mProvisioningNetwork;
+
+    @GuardedBy("this")
+    private final Map<String, Fetch> mFetches = new HashMap<>();
+
+    public static synchronized PackagePrefetcher getInstance(Context context) {
+        if (sInstance == null) {
+            PackageDownloadCache cache =
+                    new PackageDownloadCache(context.getApplicationContext());
+            ResumableHttpDownloader downloader =
+                    new ResumableHttpDownloader(cache, ConnectionWarmer.getInstance(context));
+            sInstance = new PackagePrefetcher(cache, downloader, AsyncTask.THREAD_POOL_EXECUTOR,
+                    ProvisioningNetwork.getInstance());
+        }
+        return sInstance;
+    }
+
+    @VisibleForTesting
+    PackagePrefetcher(PackageDownloadCache cache, ResumableHttpDownloader downloader,
+            Executor executor, ProvisioningNetwork provisioningNetwork) {
+        mCache = requireNonNull(cache);
+        mDownloader = requireNonNull(downloader);
+        mExecutor = requireNonNull(executor);
+        mProvisioningNetwork = requireNonNull(provisioningNetwork);
+    }
+
+    public PackageDownloadCache getCache() {
+        return mCache;
+    }
+
+    /**
+     * Starts downloading the package described by {@code info} in the background, unless it is
+     * being downloaded already. A package that is downloaded already is only verified.
+     *
+     * @return whether a fetch was started
+     */
+    public synchronized boolean prefetch(PackageDownloadInfo info) {
+        String key = mCache.getKey(info);
+        if (mFetches.containsKey(key)) {
+            return false;
+        }
+        ProvisionLogger.logi("Prefetching package " + key);
+        startFetch(key, info, /* speculative= */ true);
+        return true;
+    }
+
+    /**
+     * Reports the package described by {@code info} to {@code listener} on {@code handler},
+     * downloading it unless it is cached. If the package is being fetched already, waits for
+     * that fetch instead of starting a second one.
+     *
+     * <p>A package reported to {@code listener} is {@link PackageDownloadCache#pin pinned} in the
+     * cache, and must be unpinned once it is not used any more.
+     */
+    public synchronized void download(PackageDownloadInfo info, Handler handler,
+            ResumableHttpDownloader.Listener listener) {
+        String key = mCache.getKey(info);
+        Fetch fetch = mFetches.get(key);
+        if (fetch == null) {
+            fetch = startFetch(key, info, /* speculative= */ false);
+        }
+        fetch.mWaiters.add(new Waiter(handler, listener));
+    }
+
+    /**
+     * Stops reporting the package described by {@code info} to {@code listener}. A download that
+     * nobody waits for any more is stopped, but keeps what it downloaded so that it can be
+     * resumed. Prefetches keep going.
+     */
+    public synchronized void stopWaiting(PackageDownloadInfo info,
+            ResumableHttpDownloader.Listener listener) {
+        Fetch fetch = mFetches.get(mCache.getKey(info));
+        if (fetch == null) {
+            return;
+        }
+        fetch.mWaiters.removeIf(waiter -> waiter.mListener == listener);
+        if (!fetch.mSpeculative && fetch.mWaiters.isEmpty()) {
+            fetch.mCancellationSignal.cancel();
+        }
+    }
+
+    /**
+     * Cancels the prefetch of the package described by {@code info} if it is still running, for
+     * example because provisioning was cancelled, and discards what it downloaded. A package that
+     * was fetched already is left in the cache.
+     */
+    public synchronized void cancel(PackageDownloadInfo info) {
+        String key = mCache.getKey(info);
+        Fetch fetch = mFetches.get(key);
+        if (fetch == null) {
+            return;
+        }
+        ProvisionLogger.logi("Cancelling prefetch of package " + key);
+        // The entry is evicted once the download stopped writing to it.
+        fetch.mDiscarded = true;
+        fetch.mCancellationSignal.cancel();
+    }
+
+    /**
+     * Returns whether the package described by {@code info} is being downloaded.
+     */
+    public synchronized boolean isPrefetching(PackageDownloadInfo info) {
+        return mFetches.containsKey(mCache.getKey(info));
+    }
+
+    @GuardedBy("this")
+    private Fetch startFetch(String key, PackageDownloadInfo info, boolean speculative) {
+        Fetch fetch = new Fetch(speculative);
+        mFetches.put(key, fetch);
+        // Keeps the partial download from being trimmed while it is written.
+        mCache.pin(info);
+        // Acquired right away, so that the network is not released while the fetch is queued.
+        mProvisioningNetwork.acquire();
+        mExecutor.execute(() -> {
+            try {
+                // The package is verified by the verify task, so a package that was downloaded
+                // but not verified yet can be reused as well.
+                File packageFile = mCache.getDownloadedPackage(info);
+                if (packageFile == null) {
+                    packageFile =
+                            mDownloader.downloadWithRetries(info, fetch.mCancellationSignal);
+                }
+                if (packageFile != null && speculative && !verify(info, packageFile)) {
+                    packageFile = null;
+                }
+                // A fetch started again from here acquires the network before it is released.
+                onFetchFinished(key, info, fetch, packageFile);
+            } finally {
+                mProvisioningNetwork.release();
+            }
+        });
+        return fetch;
+    }
+
+    /**
+     * Returns whether {@code packageFile} matches the package checksum of {@code info}, and marks
+     * it as verified if so. Packages without a package checksum are verified later on.
+     */
+    private boolean verify(PackageDownloadInfo info, File packageFile) {
+        if (info.packageChecksum.length == 0 || mCache.isVerified(info)) {
+            // Segmented downloads verify the package as they download it.
+            return true;
+        }
+        byte[] hash;
+        try {
+            hash = new FileHashEngine(Utils.SHA256_TYPE).hash(packageFile).getHash();
+        } catch (IOException | NoSuchAlgorithmException e) {
+            ProvisionLogger.loge("Could not hash prefetched package", e);
+            return false;
+        }
+        if (!Arrays.equals(info.packageChecksum, hash)) {
+            ProvisionLogger.loge("Prefetched package does not match hash "
+                    + StoreUtils.byteArrayToString(info.packageChecksum));
+            mCache.evict(info);
+            return false;
+        }
+        mCache.markVerified(info);
+        return true;
+    }
+
+    private synchronized void onFetchFinished(String key, PackageDownloadInfo info,
+            Fetch fetch, File packageFile) {
+        mFetches.remove(key);
+        try {
+            reportFetchResult(key, info, fetch, packageFile);
+        } finally {
+            // After the waiters and any fetch started again pinned the entry themselves.
+            mCache.unpin(info);
+        }
+    }
+
+    @GuardedBy("this")
+    private void reportFetchResult(String key, PackageDownloadInfo info, Fetch fetch,
+            File packageFile) {
+        if (fetch.mDiscarded) {
+            ProvisionLogger.logi("Discarding cancelled prefetch of package " + key);
+            mCache.evict(info);
+            packageFile = null;
+        } else if (packageFile == null && !fetch.mWaiters.isEmpty()
+                && (fetch.mSpeculative || fetch.mCancellationSignal.isCanceled())) {
+            // Whoever waits for the package either waited for a prefetch, which may fail for
+            // example because the network was not fully set up yet, or started waiting after
+            // the download was stopped. Download the package afresh for them.
+            ProvisionLogger.logi("Fetching package " + key + " failed, downloading it again");
+            startFetch(key, info, /* speculative= */ false).mWaiters.addAll(fetch.mWaiters);
+            return;
+        } else {
+            ProvisionLogger.logi("Fetching package " + key
+                    + (packageFile != null ? " succeeded" : " failed"));
+        }
+        final File result = packageFile;
+        for (Waiter waiter : fetch.mWaiters) {
+            if (result != null) {
+                mCache.pin(info);
+            }
+            waiter.mHandler.post(() -> {
+                if (result != null) {
+                    waiter.mListener.onDownloadComplete(result);
+                } else {
+                    waiter.mListener.onDownloadFailed();
+                }
+            });
+        }
+    }
+
+    private static final class Fetch {
+        final CancellationSignal mCancellationSignal = new CancellationSignal();
+        final List<Waiter> mWaiters = new ArrayList<>();
+        /** Whether nobody asked for the package yet, so the fetch goes on without waiters. */
+        final boolean mSpeculative;
+        boolean mDiscarded;
+
+        Fetch(boolean speculative) {
+            mSpeculative = speculative;
+        }
+    }
+
+    private static final class Waiter {
+        final Handler mHandler;
+        final ResumableHttpDownloader.Listener mListener;
+
+        Waiter(Handler handler, ResumableHttpDownloader.Listener listener) {
+            mHandler = handler;
+            mListener = listener;
+        }
+    }
+}
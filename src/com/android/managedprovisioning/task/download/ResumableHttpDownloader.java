@@ -0,0 +1,277 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.managedprovisioning.task.download;
+
+import static java.util.Objects.requireNonNull;
+
+import android.annotation.Nullable;
+import android.os.CancellationSignal;
+import android.os.Handler;
+
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.managedprovisioning.common.Globals;
+import com.android.managedprovisioning.common.ProvisionLogger;
+import com.android.managedprovisioning.model.PackageDownloadInfo;
+import com.android.managedprovisioning.task.wifi.ProvisioningNetwork;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.concurrent.Executor;
+
+/**
+ * Downloads a package into a {@link PackageDownloadCache}, resuming a previously interrupted
+ * download with an http range request.
+ *
+ * <p>The entity tag returned by the server is stored next to the partial download and sent back
+ * as {@code If-Range}, so that the server sends the whole package again if it changed in the
+ * meantime. Servers that don't return an entity tag are resumed unconditionally; a package
+ * stitched together from two versions fails verification and is evicted from the cache.
+ *
+ * <p>Connections are opened on the network bound to {@link ProvisioningNetwork}, if any. If the
+ * {@link ConnectionWarmer} learned the size of the package, a download that would not fit on
+ * the disk fails before it starts. If it learned the entity tag, a partial download of another
+ * version is discarded without asking for its range, and a complete one is committed without a
+ * request.
+ *
+ * <p>Packages with more than one {@link PackageDownloadInfo#downloadSegments} are downloaded by
+ * a {@link SegmentedHttpDownloader}. If that fails, for example because the server does not
+ * support range requests, the download continues over a single connection.
+ */
+public class ResumableHttpDownloader {
+
+    /**
+     * Receives the result of {@link #download}.
+     */
+    public interface Listener {
+        void onDownloadComplete(File packageFile);
+        void onDownloadFailed();
+    }
+
+    private static final int MAX_ATTEMPTS = 3;
+    private static final long INITIAL_BACKOFF_MILLIS = 1000;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int TIMEOUT_MILLIS = 30_000;
+
+    private static final int PROGRESS_LOG_PERCENT = 10;
+
+    private final PackageDownloadCache mCache;
+    private final ConnectionWarmer mConnectionWarmer;
+    private final SegmentedHttpDownloader mSegmentedDownloader;
+    private final long mInitialBackoffMillis;
+
+    public ResumableHttpDownloader(PackageDownloadCache cache, ConnectionWarmer connectionWarmer) {
+        this(cache, connectionWarmer, new SegmentedHttpDownloader(cache, connectionWarmer),
+                INITIAL_BACKOFF_MILLIS);
+    }
+
+    @VisibleForTesting
+    ResumableHttpDownloader(PackageDownloadCache cache, ConnectionWarmer connectionWarmer,
+            SegmentedHttpDownloader segmentedDownloader, long initialBackoffMillis) {
+        mCache = requireNonNull(cache);
+        mConnectionWarmer = requireNonNull(connectionWarmer);
+        mSegmentedDownloader = requireNonNull(segmentedDownloader);
+        mInitialBackoffMillis = initialBackoffMillis;
+    }
+
+    /**
+     * Downloads the package described by {@code info} on {@code executor} and reports the result
+     * to {@code listener} on {@code handler}. Once {@code cancellationSignal} is cancelled, the
+     * download stops and reports a failure.
+     */
+    public void download(PackageDownloadInfo info, Executor executor, Handler handler,
+            CancellationSignal cancellationSignal, Listener listener) {
+        executor.execute(() -> {
+            File packageFile = downloadWithRetries(info, cancellationSignal);
+            handler.post(() -> {
+                if (packageFile != null) {
+                    listener.onDownloadComplete(packageFile);
+                } else {
+                    listener.onDownloadFailed();
+                }
+            });
+        });
+    }
+
+    /**
+     * Downloads the package described by {@code info} on the calling thread, retrying with
+     * exponential backoff, and returns the complete package file or {@code null} on failure.
+     *
+     * <p>Gives up as soon as {@code cancellationSignal} is cancelled. The bytes downloaded so far
+     * are kept.
+     */
+    @Nullable
+    public File downloadWithRetries(PackageDownloadInfo info,
+            @Nullable CancellationSignal cancellationSignal) {
+        if (info.downloadSegments > PackageDownloadInfo.DEFAULT_DOWNLOAD_SEGMENTS) {
+            try {
+                return mSegmentedDownloader.download(info, cancellationSignal);
+            } catch (IOException e) {
+                ProvisionLogger.logw("Segmented download failed, continuing over a single "
+                        + "connection", e);
+            }
+            if (isCanceled(cancellationSignal)) {
+                ProvisionLogger.logi("Download of " + info.location + " cancelled");
+                return null;
+            }
+        }
+        long backoffMillis = mInitialBackoffMillis;
+        for (int attempt = 1; attempt <= MAX_ATTEMPTS; attempt++) {
+            try {
+                return downloadBlocking(info, cancellationSignal);
+            } catch (IOException e) {
+                ProvisionLogger.logw("Download attempt " + attempt + " of " + MAX_ATTEMPTS
+                        + " failed", e);
+            }
+            if (isCanceled(cancellationSignal)) {
+                ProvisionLogger.logi("Download of " + info.location + " cancelled");
+                return null;
+            }
+            if (attempt < MAX_ATTEMPTS) {
+                try {
+                    Thread.sleep(backoffMillis);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return null;
+                }
+                backoffMillis *= 2;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Downloads the remaining bytes of the package described by {@code info} and returns the
+     * complete package file.
+     */
+    @VisibleForTesting
+    File downloadBlocking(PackageDownloadInfo info,
+            @Nullable CancellationSignal cancellationSignal) throws IOException {
+        File partialFile = mCache.getPartialFile(info);
+        long offset = partialFile.length();
+        ConnectionWarmer.Result warmedUp = mConnectionWarmer.getResult(info);
+        long size = warmedUp == null ? -1 : warmedUp.contentLength;
+        String partialEtag = offset > 0 ? mCache.readEntityTag(info) : null;
+        if (partialEtag != null && warmedUp != null && warmedUp.etag != null) {
+            if (!partialEtag.equals(warmedUp.etag)) {
+                ProvisionLogger.logi("Discarding " + offset + " downloaded bytes of another "
+                        + "version of " + info.location);
+                mCache.discardPartialDownload(info);
+                offset = 0;
+            } else if (offset == size) {
+                return mCache.commitDownload(info);
+            }
+        }
+        if (size > offset && partialFile.getParentFile().getUsableSpace() < size - offset) {
+            throw new IOException("Not enough space to download the remaining "
+                    + (size - offset) + " bytes");
+        }
+        URLConnection connection =
+                ProvisioningNetwork.getInstance().openConnection(new URL(info.location));
+        connection.setConnectTimeout(TIMEOUT_MILLIS);
+        connection.setReadTimeout(TIMEOUT_MILLIS);
+        if (info.cookieHeader != null) {
+            connection.setRequestProperty("Cookie", info.cookieHeader);
+        }
+
+        boolean append = false;
+        if (connection instanceof HttpURLConnection) {
+            HttpURLConnection httpConnection = (HttpURLConnection) connection;
+            if (offset > 0) {
+                httpConnection.setRequestProperty("Range", "bytes=" + offset + "-");
+                String etag = mCache.readEntityTag(info);
+                if (etag != null) {
+                    httpConnection.setRequestProperty("If-Range", etag);
+                }
+            }
+            int responseCode = httpConnection.getResponseCode();
+            if (responseCode == HttpURLConnection.HTTP_PARTIAL) {
+                append = true;
+            } else if (responseCode == 416 /* Range Not Satisfiable */ && offset > 0) {
+                long completeLength =
+                        parseCompleteLength(httpConnection.getHeaderField("Content-Range"));
+                httpConnection.disconnect();
+                // Only a partial file of the same version and of the whole length is complete.
+                if (completeLength == offset && mCache.readEntityTag(info) != null) {
+                    return mCache.commitDownload(info);
+                }
+                mCache.discardPartialDownload(info);
+                throw new IOException("Discarding " + offset + " downloaded bytes, the package "
+                        + "is " + completeLength + " bytes long");
+            } else if (responseCode != HttpURLConnection.HTTP_OK) {
+                httpConnection.disconnect();
+                throw new IOException("Unexpected http response code " + responseCode);
+            }
+            mCache.writeEntityTag(info, httpConnection.getHeaderField("ETag"));
+            if (size < 0 && httpConnection.getContentLengthLong() >= 0) {
+                size = (append ? offset : 0) + httpConnection.getContentLengthLong();
+            }
+        }
+
+        if (Globals.DEBUG) {
+            ProvisionLogger.logd((append ? "Resuming download at byte " + offset : "Downloading")
+                    + " from " + info.location);
+        }
+        try (InputStream in = connection.getInputStream();
+             OutputStream out = new FileOutputStream(partialFile, append)) {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            long downloaded = append ? offset : 0;
+            int loggedPercent = 0;
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                if (isCanceled(cancellationSignal)) {
+                    throw new IOException("Download cancelled");
+                }
+                out.write(buffer, 0, read);
+                downloaded += read;
+                if (Globals.DEBUG && size > 0
+                        && downloaded * 100 / size >= loggedPercent + PROGRESS_LOG_PERCENT) {
+                    loggedPercent = (int) (downloaded * 100 / size);
+                    ProvisionLogger.logd("Downloaded " + loggedPercent + "% of " + size
+                            + " bytes from " + info.location);
+                }
+            }
+        }
+        return mCache.commitDownload(info);
+    }
+
+    /**
+     * Returns the complete length from a {@code Content-Range} header such as {@code bytes
+     * *&#47;1234}, or -1 if it is missing or unknown.
+     */
+    @VisibleForTesting
+    static long parseCompleteLength(@Nullable String contentRange) {
+        if (contentRange == null) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(
+                    contentRange.substring(contentRange.lastIndexOf('/') + 1).trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static boolean isCanceled(@Nullable CancellationSignal cancellationSignal) {
+        return cancellationSignal != null && cancellationSignal.isCanceled();
+    }
+}
@@ -0,0 +1,488 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.managedprovisioning.task.download;
+
+import static java.util.Objects.requireNonNull;
+
+import android.annotation.Nullable;
+import android.os.AsyncTask;
+import android.os.CancellationSignal;
+import android.os.SystemClock;
+import android.system.ErrnoException;
+import android.system.Os;
+
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.managedprovisioning.common.ProvisionLogger;
+import com.android.managedprovisioning.common.StoreUtils;
+import com.android.managedprovisioning.common.Utils;
+import com.android.managedprovisioning.model.PackageDownloadInfo;
+import com.android.managedprovisioning.task.wifi.ProvisioningNetwork;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Downloads a package into a {@link PackageDownloadCache} with several http range requests in
+ * parallel, for links on which a single connection cannot use the available bandwidth.
+ *
+ * <p>The size of the package is requested first, unless the {@link ConnectionWarmer} learned it
+ * already. Its entity tag is sent as {@code If-Range} with every segment, so that segments of
+ * another version of the package are rejected. The partial file is preallocated to that size
+ * and split into up to {@link PackageDownloadInfo#downloadSegments} segments, each of which is
+ * written at its offset through a {@link FileChannel}. A segment that fails is retried from where
+ * it stopped, without affecting the other segments. Segments are hashed in order as soon as all
+ * segments before them are complete, so that the package checksum is known as soon as the
+ * download finishes; a matching package is marked as verified in the cache.
+ *
+ * <p>However the download fails, the partial file is truncated to its complete prefix and its
+ * entity tag restored, so that {@link ResumableHttpDownloader} can resume it over a single
+ * connection. Without an entity tag, the partial file is discarded instead.
+ */
+public class SegmentedHttpDownloader {
+
+    private static final int MAX_SEGMENT_ATTEMPTS = 3;
+    private static final long INITIAL_BACKOFF_MILLIS = 1000;
+    private static final long MIN_SEGMENT_SIZE = 1024 * 1024;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int HASH_BUFFER_SIZE = 1024 * 1024;
+    private static final int TIMEOUT_MILLIS = 30_000;
+
+    private final PackageDownloadCache mCache;
+    private final ConnectionWarmer mConnectionWarmer;
+    private final Executor mExecutor;
+    private final long mInitialBackoffMillis;
+
+    public SegmentedHttpDownloader(PackageDownloadCache cache, ConnectionWarmer connectionWarmer) {
+        this(cache, connectionWarmer, AsyncTask.THREAD_POOL_EXECUTOR, INITIAL_BACKOFF_MILLIS);
+    }
+
+    @VisibleForTesting
+    SegmentedHttpDownloader(PackageDownloadCache cache, ConnectionWarmer connectionWarmer,
+            Executor executor, long initialBackoffMillis) {
+        mCache = requireNonNull(cache);
+        mConnectionWarmer = requireNonNull(connectionWarmer);
+        mExecutor = requireNonNull(executor);
+        mInitialBackoffMillis = initialBackoffMillis;
+    }
+
+    /**
+     * Downloads the package described by {@code info}, blocking the calling thread, and returns
+     * the complete package file.
+     *
+     * @throws IOException if the download failed or was cancelled, or if the server does not
+     *     support range requests
+     */
+    public File download(PackageDownloadInfo info,
+            @Nullable CancellationSignal cancellationSignal) throws IOException {
+        long startMillis = SystemClock.elapsedRealtime();
+        ConnectionWarmer.Result head = mConnectionWarmer.getResult(info);
+        if (head == null) {
+            head = requestHead(info);
+        }
+        long length = head.contentLength;
+        String etag = head.etag;
+        if (length <= 0 || !head.acceptsRanges) {
+            throw new IOException("Server does not support range requests");
+        }
+
+        File partialFile = mCache.getPartialFile(info);
+        long offset = partialFile.length();
+        if (offset > length || (offset > 0
+                && (etag == null || !etag.equals(mCache.readEntityTag(info))))) {
+            // The partial download may be of another version of the package.
+            offset = 0;
+        }
+        // Without an entity tag, a preallocated file left behind by a crash is not resumed.
+        mCache.writeEntityTag(info, null);
+
+        Download download = null;
+        boolean complete = false;
+        try {
+            try (RandomAccessFile file = new RandomAccessFile(partialFile, "rw")) {
+                file.setLength(offset);
+                preallocate(file, length);
+                download = new Download(info, file.getChannel(), etag, offset, length,
+                        cancellationSignal);
+                download.run();
+                if (download.mFailed) {
+                    throw new IOException("Segmented download failed", download.mFailure);
+                }
+                download.hashCompleteSegments();
+                complete = true;
+            }
+        } finally {
+            if (!complete) {
+                keepCompletePrefix(info, etag,
+                        download == null ? offset : download.getCompletePrefix(), length);
+            }
+        }
+
+        File packageFile = mCache.commitDownload(info);
+        if (download.mDigest != null) {
+            if (Arrays.equals(info.packageChecksum, download.mDigest.digest())) {
+                mCache.markVerified(info);
+            } else {
+                // The verify task reports the mismatch.
+                ProvisionLogger.loge("Downloaded package does not match hash "
+                        + StoreUtils.byteArrayToString(info.packageChecksum));
+            }
+        }
+        ProvisionLogger.logi("Downloaded " + (length - offset) + " bytes from " + info.location
+                + " in " + download.mSegments.size() + " segments in "
+                + (SystemClock.elapsedRealtime() - startMillis) + " ms");
+        return packageFile;
+    }
+
+    /**
+     * Truncates the partial file of a failed download to its first {@code prefix} bytes and
+     * restores its entity tag, so that {@link ResumableHttpDownloader} resumes it. Without an
+     * entity tag the rest of the package cannot be matched to the prefix, so it is discarded.
+     */
+    private void keepCompletePrefix(PackageDownloadInfo info, @Nullable String etag, long prefix,
+            long length) {
+        if (etag == null) {
+            ProvisionLogger.logw("Segmented download of " + info.location + " failed, discarding "
+                    + prefix + " bytes without an entity tag");
+            mCache.discardPartialDownload(info);
+            return;
+        }
+        try (RandomAccessFile file = new RandomAccessFile(mCache.getPartialFile(info), "rw")) {
+            file.setLength(prefix);
+        } catch (IOException e) {
+            ProvisionLogger.logw("Could not truncate partial download of " + info.location, e);
+            mCache.discardPartialDownload(info);
+            return;
+        }
+        mCache.writeEntityTag(info, etag);
+        ProvisionLogger.logw("Segmented download of " + info.location + " failed, kept " + prefix
+                + " of " + length + " bytes");
+    }
+
+    private static ConnectionWarmer.Result requestHead(PackageDownloadInfo info)
+            throws IOException {
+        HttpURLConnection head = openConnection(info);
+        head.setRequestMethod("HEAD");
+        int responseCode = head.getResponseCode();
+        ConnectionWarmer.Result result = new ConnectionWarmer.Result(head.getContentLengthLong(),
+                head.getHeaderField("ETag"),
+                "bytes".equalsIgnoreCase(head.getHeaderField("Accept-Ranges")));
+        head.disconnect();
+        if (responseCode != HttpURLConnection.HTTP_OK) {
+            throw new IOException("Unexpected http response code " + responseCode);
+        }
+        return result;
+    }
+
+    private static HttpURLConnection openConnection(PackageDownloadInfo info) throws IOException {
+        URLConnection connection =
+                ProvisioningNetwork.getInstance().openConnection(new URL(info.location));
+        if (!(connection instanceof HttpURLConnection)) {
+            throw new IOException("Range requests need an http location");
+        }
+        connection.setConnectTimeout(TIMEOUT_MILLIS);
+        connection.setReadTimeout(TIMEOUT_MILLIS);
+        if (info.cookieHeader != null) {
+            connection.setRequestProperty("Cookie", info.cookieHeader);
+        }
+        return (HttpURLConnection) connection;
+    }
+
+    /**
+     * Reserves {@code length} bytes for {@code file} so that the segments don't fragment it, and
+     * sets its length.
+     */
+    private static void preallocate(RandomAccessFile file, long length) throws IOException {
+        try {
+            Os.posix_fallocate(file.getFD(), 0, length);
+        } catch (ErrnoException e) {
+            // Not every file system supports it; the segments are written regardless.
+            ProvisionLogger.logw("Could not preallocate " + length + " bytes", e);
+        }
+        file.setLength(length);
+    }
+
+    private static boolean isCanceled(@Nullable CancellationSignal cancellationSignal) {
+        return cancellationSignal != null && cancellationSignal.isCanceled();
+    }
+
+    /**
+     * A range of the package, downloaded by one range request at a time.
+     */
+    private static final class Segment {
+        final int mIndex;
+        final long mStart;
+        final long mEnd;
+        /** The next byte to download; guarded by the {@link Download}. */
+        long mPosition;
+
+        Segment(int index, long start, long end) {
+            mIndex = index;
+            mStart = start;
+            mEnd = end;
+            mPosition = start;
+        }
+    }
+
+    /**
+     * The state of one call to {@link #download}.
+     */
+    private final class Download {
+        final PackageDownloadInfo mInfo;
+        final FileChannel mChannel;
+        @Nullable
+        final String mEtag;
+        @Nullable
+        final CancellationSignal mCancellationSignal;
+        final List<Segment> mSegments = new ArrayList<>();
+        /** Hashes the package in order, or {@code null} if there is no package checksum. */
+        @Nullable
+        final MessageDigest mDigest;
+
+        @GuardedBy("mDigest")
+        long mHashedUpTo;
+        volatile boolean mFailed;
+        @Nullable
+        Throwable mFailure;
+
+        Download(PackageDownloadInfo info, FileChannel channel, @Nullable String etag,
+                long offset, long length, @Nullable CancellationSignal cancellationSignal)
+                throws IOException {
+            mInfo = info;
+            mChannel = channel;
+            mEtag = etag;
+            mCancellationSignal = cancellationSignal;
+            mDigest = info.packageChecksum.length > 0 ? createDigest() : null;
+
+            long remaining = length - offset;
+            int count = (int) Math.max(1, Math.min(info.downloadSegments,
+                    (remaining + MIN_SEGMENT_SIZE - 1) / MIN_SEGMENT_SIZE));
+            for (int i = 0; i < count; i++) {
+                mSegments.add(new Segment(i, offset + remaining * i / count,
+                        offset + remaining * (i + 1) / count));
+            }
+        }
+
+        /**
+         * Downloads all segments in parallel and returns once none of them is running anymore,
+         * even if the calling thread is interrupted.
+         */
+        void run() throws IOException {
+            List<FutureTask<Void>> tasks = new ArrayList<>();
+            for (Segment segment : mSegments) {
+                FutureTask<Void> task = new FutureTask<>(() -> {
+                    downloadSegment(segment);
+                    hashCompleteSegments();
+                    return null;
+                });
+                try {
+                    mExecutor.execute(task);
+                } catch (RejectedExecutionException e) {
+                    // Stop the segments that started, and wait for them below.
+                    mFailure = e;
+                    mFailed = true;
+                    break;
+                }
+                tasks.add(task);
+            }
+            boolean interrupted = false;
+            for (FutureTask<Void> task : tasks) {
+                while (true) {
+                    try {
+                        task.get();
+                        break;
+                    } catch (ExecutionException e) {
+                        // Stop the other segments, so that the partial file can be truncated.
+                        if (!mFailed) {
+                            mFailure = e.getCause();
+                            mFailed = true;
+                        }
+                        break;
+                    } catch (InterruptedException e) {
+                        // Keep waiting for the stopped segments, so that none of them writes
+                        // after the partial file is truncated.
+                        mFailed = true;
+                        interrupted = true;
+                    }
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while downloading segments");
+            }
+        }
+
+        private void downloadSegment(Segment segment) throws IOException {
+            long backoffMillis = mInitialBackoffMillis;
+            for (int attempt = 1; ; attempt++) {
+                long attemptStartMillis = SystemClock.elapsedRealtime();
+                try {
+                    transferSegment(segment);
+                    ProvisionLogger.logd("Segment %d downloaded in %d ms", segment.mIndex,
+                            SystemClock.elapsedRealtime() - attemptStartMillis);
+                    return;
+                } catch (IOException e) {
+                    if (isStopped() || attempt == MAX_SEGMENT_ATTEMPTS) {
+                        throw e;
+                    }
+                    ProvisionLogger.logw("Segment " + segment.mIndex + " attempt " + attempt
+                            + " of " + MAX_SEGMENT_ATTEMPTS + " failed", e);
+                }
+                try {
+                    Thread.sleep(backoffMillis);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while retrying segment");
+                }
+                backoffMillis *= 2;
+            }
+        }
+
+        /**
+         * Downloads the rest of {@code segment} with one range request.
+         */
+        private void transferSegment(Segment segment) throws IOException {
+            long position = getPosition(segment);
+            if (position >= segment.mEnd) {
+                return;
+            }
+            HttpURLConnection connection = openConnection(mInfo);
+            connection.setRequestProperty("Range",
+                    "bytes=" + position + "-" + (segment.mEnd - 1));
+            if (mEtag != null) {
+                // A changed package is sent whole, and rejected below.
+                connection.setRequestProperty("If-Range", mEtag);
+            }
+            int responseCode = connection.getResponseCode();
+            if (responseCode != HttpURLConnection.HTTP_PARTIAL) {
+                connection.disconnect();
+                throw new IOException("Unexpected http response code " + responseCode
+                        + " for segment " + segment.mIndex);
+            }
+            try (InputStream in = connection.getInputStream()) {
+                byte[] buffer = new byte[BUFFER_SIZE];
+                while (position < segment.mEnd) {
+                    if (isStopped()) {
+                        throw new IOException("Download cancelled");
+                    }
+                    int read = in.read(buffer, 0,
+                            (int) Math.min(buffer.length, segment.mEnd - position));
+                    if (read == -1) {
+                        throw new IOException("Segment " + segment.mIndex + " ended at byte "
+                                + position);
+                    }
+                    ByteBuffer data = ByteBuffer.wrap(buffer, 0, read);
+                    while (data.hasRemaining()) {
+                        mChannel.write(data, position + data.position());
+                    }
+                    position += read;
+                    setPosition(segment, position);
+                }
+            }
+        }
+
+        private boolean isStopped() {
+            return mFailed || isCanceled(mCancellationSignal);
+        }
+
+        private synchronized long getPosition(Segment segment) {
+            return segment.mPosition;
+        }
+
+        private synchronized void setPosition(Segment segment, long position) {
+            segment.mPosition = position;
+        }
+
+        /**
+         * Returns how many bytes from the start of the package have been downloaded.
+         */
+        synchronized long getCompletePrefix() {
+            for (Segment segment : mSegments) {
+                if (segment.mPosition < segment.mEnd) {
+                    return segment.mPosition;
+                }
+            }
+            return mSegments.get(mSegments.size() - 1).mEnd;
+        }
+
+        /**
+         * Returns the end of the complete segments at the start of the package, including the
+         * part downloaded before.
+         */
+        private synchronized long getCompleteSegmentsEnd() {
+            long end = mSegments.get(0).mStart;
+            for (Segment segment : mSegments) {
+                if (segment.mPosition < segment.mEnd) {
+                    break;
+                }
+                end = segment.mEnd;
+            }
+            return end;
+        }
+
+        /**
+         * Hashes the complete segments that follow the part hashed so far. The segments still
+         * downloading are not blocked by the hashing.
+         */
+        void hashCompleteSegments() throws IOException {
+            if (mDigest == null) {
+                return;
+            }
+            synchronized (mDigest) {
+                long end = getCompleteSegmentsEnd();
+                ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(HASH_BUFFER_SIZE,
+                        Math.max(1, end - mHashedUpTo)));
+                while (mHashedUpTo < end) {
+                    buffer.clear();
+                    buffer.limit((int) Math.min(buffer.capacity(), end - mHashedUpTo));
+                    int read = mChannel.read(buffer, mHashedUpTo);
+                    if (read <= 0) {
+                        throw new IOException("Could not read back byte " + mHashedUpTo);
+                    }
+                    buffer.flip();
+                    mDigest.update(buffer);
+                    mHashedUpTo += read;
+                }
+            }
+        }
+
+        private MessageDigest createDigest() throws IOException {
+            try {
+                return MessageDigest.getInstance(Utils.SHA256_TYPE);
+            } catch (NoSuchAlgorithmException e) {
+                throw new IOException("Could not hash package", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.managedprovisioning.task.nonrequiredapps;
+
+import static java.util.Objects.requireNonNull;
+
+import android.content.pm.IPackageDeleteObserver;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+
+import com.android.internal.annotations.GuardedBy;
+import com.android.managedprovisioning.common.ProvisionLogger;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Deletes a batch of packages for a user, with a bounded number of deletions in flight at a time.
+ *
+ * <p>A package that fails to be deleted is retried at the end of the batch, up to {@code
+ * maxAttempts} times in total.
+ */
+public class BatchPackageDeleter {
+
+    /**
+     * Receives the result of {@link #delete}.
+     */
+    public interface Listener {
+        /**
+         * Called once after every package has been handled, on any thread.
+         *
+         * @param failedPackages the packages that could not be deleted
+         */
+        void onComplete(Set<String> failedPackages);
+    }
+
+    public static final int DEFAULT_MAX_IN_FLIGHT = 4;
+    public static final int DEFAULT_MAX_ATTEMPTS = 2;
+
+    private final PackageManager mPm;
+    private final int mMaxInFlight;
+    private final int mMaxAttempts;
+
+    public BatchPackageDeleter(PackageManager pm) {
+        this(pm, DEFAULT_MAX_IN_FLIGHT, DEFAULT_MAX_ATTEMPTS);
+    }
+
+    public BatchPackageDeleter(PackageManager pm, int maxInFlight, int maxAttempts) {
+        if (maxInFlight < 1 || maxAttempts < 1) {
+            throw new IllegalArgumentException("maxInFlight and maxAttempts must be positive");
+        }
+        mPm = requireNonNull(pm);
+        mMaxInFlight = maxInFlight;
+        mMaxAttempts = maxAttempts;
+    }
+
+    /**
+     * Returns those of {@code packageNames} that are installed for the given user, using a single
+     * query instead of one per package.
+     */
+    public Set<String> retainInstalled(Set<String> packageNames, int userId) {
+        Set<String> result = new HashSet<>();
+        if (packageNames.isEmpty()) {
+            return result;
+        }
+        for (PackageInfo packageInfo : mPm.getInstalledPackagesAsUser(
+                /* flags= */ 0, userId)) {
+            if (packageNames.contains(packageInfo.packageName)) {
+                result.add(packageInfo.packageName);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Deletes {@code packageNames} for the given user and reports the result to {@code listener}.
+     */
+    public void delete(Set<String> packageNames, int userId, Listener listener) {
+        requireNonNull(listener);
+        if (packageNames.isEmpty()) {
+            listener.onComplete(Collections.emptySet());
+            return;
+        }
+        new Batch(packageNames, userId, listener).deleteNext();
+    }
+
+    private final class Batch extends IPackageDeleteObserver.Stub {
+        private final int mUserId;
+        private final Listener mListener;
+        private final int mTotal;
+
+        @GuardedBy("this")
+        private final ArrayDeque<String> mPending;
+        @GuardedBy("this")
+        private final Map<String, Integer> mAttempts = new HashMap<>();
+        @GuardedBy("this")
+        private final Set<String> mFailed = new HashSet<>();
+        @GuardedBy("this")
+        private int mInFlight;
+        @GuardedBy("this")
+        private int mCompleted;
+
+        Batch(Set<String> packageNames, int userId, Listener listener) {
+            mPending = new ArrayDeque<>(packageNames);
+            mTotal = packageNames.size();
+            mUserId = userId;
+            mListener = listener;
+        }
+
+        void deleteNext() {
+            List<String> toDelete = new ArrayList<>();
+            synchronized (this) {
+                while (mInFlight < mMaxInFlight && !mPending.isEmpty()) {
+                    String packageName = mPending.poll();
+                    mAttempts.merge(packageName, 1, Integer::sum);
+                    mInFlight++;
+                    toDelete.add(packageName);
+                }
+            }
+            for (String packageName : toDelete) {
+                ProvisionLogger.logd("Deleting package [%s] as user %d", packageName, mUserId);
+                mPm.deletePackageAsUser(packageName, this, PackageManager.DELETE_SYSTEM_APP,
+                        mUserId);
+            }
+        }
+
+        @Override
+        public void packageDeleted(String packageName, int returnCode) {
+            Set<String> failed = null;
+            synchronized (this) {
+                mInFlight--;
+                if (returnCode == PackageManager.DELETE_SUCCEEDED) {
+                    mCompleted++;
+                } else if (mAttempts.getOrDefault(packageName, mMaxAttempts) < mMaxAttempts) {
+                    ProvisionLogger.logw("Deleting package [%s] failed with %d, retrying",
+                            packageName, returnCode);
+                    mPending.add(packageName);
+                } else {
+                    ProvisionLogger.logw("Deleting package [%s] failed with %d", packageName,
+                            returnCode);
+                    mFailed.add(packageName);
+                    mCompleted++;
+                }
+                if (mCompleted == mTotal) {
+                    failed = new HashSet<>(mFailed);
+                }
+            }
+            if (failed != null) {
+                mListener.onComplete(failed);
+            } else {
+                deleteNext();
+            }
+        }
+    }
+}
@@ -19,14 +19,14 @@ package com.android.managedprovisioning.task.nonrequiredapps;
 import static com.android.internal.util.Preconditions.checkNotNull;
 
 import android.annotation.IntDef;
-import android.app.AppGlobals;
 import android.app.admin.DevicePolicyManager;
 import android.content.ComponentName;
 import android.content.Context;
-import android.content.pm.IPackageManager;
+import android.content.pm.ApplicationInfo;
 
 import com.android.internal.annotations.VisibleForTesting;
 import com.android.managedprovisioning.common.IllegalProvisioningArgumentException;
+import com.android.managedprovisioning.common.InstalledApplicationsCache;
 import com.android.managedprovisioning.common.Utils;
 import com.android.managedprovisioning.model.ProvisioningParams;
 
@@ -56,7 +56,7 @@ public class NonRequiredAppsLogic {
     }
 
     private final Context mContext;
-    private final IPackageManager mIPackageManager;
+    private final InstalledApplicationsCache mInstalledApplications;
     private final DevicePolicyManager mDevicePolicyManager;
     private final boolean mNewProfile;
     private final ProvisioningParams mParams;
@@ -69,7 +69,7 @@ public class NonRequiredAppsLogic {
             ProvisioningParams params) {
         this(
                 context,
-                AppGlobals.getPackageManager(),
+                InstalledApplicationsCache.getInstance(context),
                 (DevicePolicyManager) context.getSystemService(Context.DEVICE_POLICY_SERVICE),
                 newProfile,
                 params,
@@ -80,14 +80,14 @@ public class NonRequiredAppsLogic {
     @VisibleForTesting
     NonRequiredAppsLogic(
             Context context,
-            IPackageManager iPackageManager,
+            InstalledApplicationsCache installedApplications,
             DevicePolicyManager devicePolicyManager,
             boolean newProfile,
             ProvisioningParams params,
             SystemAppsSnapshot snapshot,
             Utils utils) {
         mContext = context;
-        mIPackageManager = checkNotNull(iPackageManager);
+        mInstalledApplications = checkNotNull(installedApplications);
         mDevicePolicyManager = checkNotNull(devicePolicyManager);
         mNewProfile = newProfile;
         mParams = checkNotNull(params);
@@ -123,7 +123,8 @@ public class NonRequiredAppsLogic {
      */
     private void filterOutSystemAppsFromOta(Set<String> packagesToDelete, int userId) {
         // Start with all system apps
-        Set<String> newSystemApps = mUtils.getCurrentSystemApps(mIPackageManager, userId);
+        Set<String> newSystemApps = mInstalledApplications.getSnapshot(userId)
+                .getPackageNamesWithFlags(ApplicationInfo.FLAG_SYSTEM);
 
         // Remove the ones that were already present in the last snapshot
         newSystemApps.removeAll(mSnapshot.getSnapshot(userId));
@@ -131,6 +132,14 @@ public class NonRequiredAppsLogic {
         packagesToDelete.retainAll(newSystemApps);
     }
 
+    /**
+     * Called after the packages returned by {@link #getSystemAppsToRemove} have been deleted.
+     */
+    public void onPackagesDeleted() {
+        // Don't wait for the package broadcasts to drop the deleted packages.
+        mInstalledApplications.invalidate();
+    }
+
     public void maybeTakeSystemAppsSnapshot(int userId) {
         if (shouldDeleteSystemApps(userId)) {
             mSnapshot.takeNewSnapshot(userId);
@@ -18,11 +18,13 @@ package com.android.managedprovisioning.task.wifi;
 
 import static com.android.internal.util.Preconditions.checkNotNull;
 
+import android.annotation.Nullable;
 import android.content.Context;
 import android.net.ConnectivityManager;
 import android.net.ConnectivityManager.NetworkCallback;
 import android.net.Network;
 import android.net.NetworkCapabilities;
+import android.net.NetworkRequest;
 
 import com.android.managedprovisioning.common.ProvisionLogger;
 
@@ -30,18 +32,28 @@ import com.android.managedprovisioning.common.ProvisionLogger;
  * Monitor the state of the data network. Invoke a callback when the network is connected.
  *
  * The callback may be called multiple times for the same network as its status changes.
+ *
+ * <p>By default the default network is tracked. When a transport is given, a network of that
+ * transport is requested instead, so that the callback is invoked as soon as it is usable even if
+ * another network stays the default. The request keeps that network up until {@link
+ * #stopListening} is called.
  */
 public class NetworkMonitor {
 
+    /** Tracks the default network, whatever its transport. */
+    public static final int TRANSPORT_DEFAULT_NETWORK = -1;
+
     /** State notification callback. Expect some duplicate notifications. */
     public interface NetworkConnectedCallback {
         void onNetworkConnected();
     }
 
     private final Context mContext;
+    private final int mTransportType;
     private final boolean mWaitForValidated;
 
     private NetworkConnectedCallback mCallback = null;
+    private Network mConnectedNetwork = null;
 
     /**
      * Start watching the network. Immediately invokes the callback method to report the
@@ -51,7 +63,19 @@ public class NetworkMonitor {
      * @param context to use for intent observers and such
      */
     public NetworkMonitor(Context context, boolean waitForValidated) {
+        this(context, TRANSPORT_DEFAULT_NETWORK, waitForValidated);
+    }
+
+    /**
+     * Like {@link #NetworkMonitor(Context, boolean)}, but requests a network of the given
+     * transport instead of tracking the default network.
+     *
+     * @param transportType one of the {@code NetworkCapabilities.TRANSPORT_*} constants, or
+     *     {@link #TRANSPORT_DEFAULT_NETWORK}
+     */
+    public NetworkMonitor(Context context, int transportType, boolean waitForValidated) {
         mContext = checkNotNull(context);
+        mTransportType = transportType;
         mWaitForValidated = waitForValidated;
     }
 
@@ -61,14 +85,28 @@ public class NetworkMonitor {
      */
     public synchronized void startListening(NetworkConnectedCallback callback) {
         mCallback = checkNotNull(callback);
-        // TODO: this code has always kept track of the default network, but it should probably
-        // instead use registerNetworkCallback or even requestNetwork with a specific
-        // NetworkRequest.Builder#addTransportType transport depending on the caller. For example,
-        // ConnectMobileNetworkTask should file a request for TRANSPORT_CELLULAR instead of waiting
-        // for any network to be available. When requestNetwork is not used, cellular data is also
-        // not guaranteed to connect after being enabled if another network is already available.
-        mContext.getSystemService(ConnectivityManager.class)
-                .registerDefaultNetworkCallback(mConnectivityCallback);
+        ConnectivityManager connectivityManager =
+                mContext.getSystemService(ConnectivityManager.class);
+        if (mTransportType == TRANSPORT_DEFAULT_NETWORK) {
+            connectivityManager.registerDefaultNetworkCallback(mConnectivityCallback);
+            return;
+        }
+        // Requesting the network, rather than only listening for it, also brings up cellular
+        // data when another network is already available.
+        NetworkRequest request = new NetworkRequest.Builder()
+                .addCapability(NetworkCapabilities.NET_CAPABILITY_INTERNET)
+                .addTransportType(mTransportType)
+                .build();
+        connectivityManager.requestNetwork(request, mConnectivityCallback);
+    }
+
+    /**
+     * Returns the network the callback was last invoked for, or {@code null} if it has not been
+     * invoked or that network has since been lost.
+     */
+    @Nullable
+    public synchronized Network getConnectedNetwork() {
+        return mConnectedNetwork;
     }
 
     /**
@@ -80,6 +118,7 @@ public class NetworkMonitor {
         }
 
         mCallback = null;
+        mConnectedNetwork = null;
         mContext.getSystemService(ConnectivityManager.class)
                 .unregisterNetworkCallback(mConnectivityCallback);
     }
@@ -97,6 +136,16 @@ public class NetworkMonitor {
             mValidated = false;
         }
 
+        @Override
+        public void onLost(Network network) {
+            synchronized (NetworkMonitor.this) {
+                if (network.equals(mConnectedNetwork)) {
+                    ProvisionLogger.logd("NetworkMonitor.onLost: " + network);
+                    mConnectedNetwork = null;
+                }
+            }
+        }
+
         @Override
         public void onBlockedStatusChanged(Network network, boolean blocked) {
             if (mBlocked == blocked) {
@@ -105,7 +154,7 @@ public class NetworkMonitor {
             ProvisionLogger.logd("NetworkMonitor.onBlockedStatusChanged: " + network
                     + " blocked=" + blocked);
             mBlocked = blocked;
-            maybeSendCallback();
+            maybeSendCallback(network);
         }
 
         @Override
@@ -118,10 +167,10 @@ public class NetworkMonitor {
             ProvisionLogger.logd("NetworkMonitor.onCapabilitiesChanged: " + network
                     + " validated=" + validated);
             mValidated = validated;
-            maybeSendCallback();
+            maybeSendCallback(network);
         }
 
-        private void maybeSendCallback() {
+        private void maybeSendCallback(Network network) {
             // Receiving blocked=false is the equivalent to legacy behavior that would verify
             // getActiveNetworkInfo().isConnected()
             if (mBlocked || (mWaitForValidated && !mValidated)) {
@@ -129,6 +178,7 @@ public class NetworkMonitor {
             }
             synchronized (NetworkMonitor.this) {
                 if (mCallback != null) {
+                    mConnectedNetwork = network;
                     mCallback.onNetworkConnected();
                 }
             }
@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.managedprovisioning.task.wifi;
+
+import static java.util.Objects.requireNonNull;
+
+import android.annotation.Nullable;
+import android.net.Network;
+
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.managedprovisioning.common.ProvisionLogger;
+
+import java.io.IOException;
+import java.net.URL;
+import java.net.URLConnection;
+
+/**
+ * The network that the network tasks connected, handed to the tasks that download packages
+ * afterwards.
+ *
+ * <p>The network is held through the {@link NetworkMonitor} that requested it, which keeps the
+ * request, and so the network, alive while it is in use. It is in use while it is bound, that is
+ * until provisioning calls {@link #unbind}, and while a download that {@link #acquire acquired}
+ * it has not {@link #release released} it yet, so that prefetches that outlive provisioning keep
+ * their network. Downloads go through {@link #openConnection}, so that they use the connected
+ * network even when it is not the default network, and fall back to the default network if there
+ * is none.
+ */
+public final class ProvisioningNetwork {
+
+    private static final ProvisioningNetwork sInstance = new ProvisioningNetwork();
+
+    @GuardedBy("this")
+    @Nullable
+    private NetworkMonitor mNetworkMonitor;
+    @GuardedBy("this")
+    private boolean mBound;
+    @GuardedBy("this")
+    private int mAcquireCount;
+
+    public static ProvisioningNetwork getInstance() {
+        return sInstance;
+    }
+
+    @VisibleForTesting
+    public ProvisioningNetwork() {}
+
+    /**
+     * Takes over {@code networkMonitor}, whose connected network is used by the downloads until
+     * {@link #unbind} is called and no download holds it any more. A previously bound monitor
+     * stops listening.
+     */
+    public synchronized void bind(NetworkMonitor networkMonitor) {
+        requireNonNull(networkMonitor);
+        if (mNetworkMonitor != null && mNetworkMonitor != networkMonitor) {
+            mNetworkMonitor.stopListening();
+        }
+        mNetworkMonitor = networkMonitor;
+        mBound = true;
+        ProvisionLogger.logi("Bound to network " + networkMonitor.getConnectedNetwork());
+    }
+
+    /**
+     * Returns the bound network, or {@code null} if none is bound or it has been lost.
+     */
+    @Nullable
+    public synchronized Network getNetwork() {
+        return mNetworkMonitor == null ? null : mNetworkMonitor.getConnectedNetwork();
+    }
+
+    /**
+     * Unbinds the network at the end of provisioning. The network is released once the downloads
+     * that still hold it are done.
+     */
+    public synchronized void unbind() {
+        mBound = false;
+        releaseIfUnused();
+    }
+
+    /**
+     * Keeps the bound network, or the network bound later on, until {@link #release} is called.
+     * Each call must be matched by a call to {@link #release}.
+     */
+    public synchronized void acquire() {
+        mAcquireCount++;
+    }
+
+    /**
+     * Releases a hold taken by {@link #acquire}. Once the network is unbound and not held any more,
+     * the bound {@link NetworkMonitor} stops listening, which releases its network request.
+     */
+    public synchronized void release() {
+        if (mAcquireCount == 0) {
+            ProvisionLogger.logw("Releasing network that was not acquired");
+            return;
+        }
+        mAcquireCount--;
+        releaseIfUnused();
+    }
+
+    @GuardedBy("this")
+    private void releaseIfUnused() {
+        if (mBound || mAcquireCount > 0 || mNetworkMonitor == null) {
+            return;
+        }
+        mNetworkMonitor.stopListening();
+        mNetworkMonitor = null;
+    }
+
+    /**
+     * Opens a connection to {@code url} on the bound network, or on the default network if there
+     * is none.
+     */
+    public URLConnection openConnection(URL url) throws IOException {
+        Network network = getNetwork();
+        return network == null ? url.openConnection() : network.openConnection(url);
+    }
+}
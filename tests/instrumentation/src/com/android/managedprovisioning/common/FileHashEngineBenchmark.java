@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.managedprovisioning.common;
+
+import static com.android.managedprovisioning.common.FileHashEngine.DEFAULT_BUFFER_SIZE;
+import static com.android.managedprovisioning.common.FileHashEngine.MODE_DIRECT_BUFFER;
+import static com.android.managedprovisioning.common.FileHashEngine.MODE_MEMORY_MAPPED;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.content.Context;
+
+import androidx.test.InstrumentationRegistry;
+import androidx.test.filters.LargeTest;
+
+import com.android.managedprovisioning.testcommon.BenchmarkRunner;
+import com.android.managedprovisioning.testcommon.BenchmarkTest;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.util.Random;
+
+/**
+ * Compares the throughput of {@link FileHashEngine} against the previous implementation of
+ * {@link Utils#computeHashOfFile}, which read the file through a 256 byte buffer.
+ *
+ * <p>The average time per hash and the throughput are logged under the {@link #TAG} tag.
+ */
+@BenchmarkTest
+@LargeTest
+public class FileHashEngineBenchmark {
+    private static final String TAG = "FileHashEngineBenchmark";
+    private static final Context sContext = InstrumentationRegistry.getTargetContext();
+    private static final int[] FILE_SIZES_MB = {1, 16, 64};
+    private static final int WARMUP_ITERATIONS = 2;
+    private static final int MEASURED_ITERATIONS = 5;
+    private static final int LEGACY_BUFFER_SIZE = 256;
+
+    private final BenchmarkRunner mRunner =
+            new BenchmarkRunner(TAG, WARMUP_ITERATIONS, MEASURED_ITERATIONS);
+    private File mFile;
+
+    @Before
+    public void setUp() throws IOException {
+        mFile = File.createTempFile("hash_benchmark", ".apk", sContext.getCacheDir());
+    }
+
+    @After
+    public void tearDown() {
+        mFile.delete();
+    }
+
+    @Test
+    public void benchmarkHashing() throws Exception {
+        for (int sizeMb : FILE_SIZES_MB) {
+            writeRandomFile(sizeMb * 1024 * 1024);
+            byte[] expected = legacyHash();
+
+            long size = mFile.length();
+            mRunner.measureThroughput("legacy-256B " + sizeMb + " MiB", size, this::legacyHash);
+            mRunner.measureThroughput("direct-1MiB " + sizeMb + " MiB", size,
+                    () -> new FileHashEngine(Utils.SHA256_TYPE, MODE_DIRECT_BUFFER,
+                            DEFAULT_BUFFER_SIZE).hash(mFile));
+            mRunner.measureThroughput("mapped " + sizeMb + " MiB", size,
+                    () -> new FileHashEngine(Utils.SHA256_TYPE, MODE_MEMORY_MAPPED,
+                            DEFAULT_BUFFER_SIZE).hash(mFile));
+
+            assertThat(new FileHashEngine(Utils.SHA256_TYPE).hash(mFile).getHash())
+                    .isEqualTo(expected);
+        }
+    }
+
+    private byte[] legacyHash() throws Exception {
+        MessageDigest md = MessageDigest.getInstance(Utils.SHA256_TYPE);
+        try (InputStream in = new FileInputStream(mFile)) {
+            byte[] buffer = new byte[LEGACY_BUFFER_SIZE];
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                md.update(buffer, 0, n);
+            }
+        }
+        return md.digest();
+    }
+
+    private void writeRandomFile(int size) throws IOException {
+        byte[] chunk = new byte[1024 * 1024];
+        Random random = new Random(size);
+        try (FileOutputStream out = new FileOutputStream(mFile)) {
+            for (int written = 0; written < size; written += chunk.length) {
+                random.nextBytes(chunk);
+                out.write(chunk, 0, Math.min(chunk.length, size - written));
+            }
+        }
+    }
+}
@@ -25,6 +25,7 @@ import static org.mockito.Mockito.when;
 
 import android.content.Context;
 import android.content.SharedPreferences;
+import android.util.SparseArray;
 
 import androidx.test.InstrumentationRegistry;
 import androidx.test.filters.SmallTest;
@@ -112,4 +113,77 @@ public class ManagedProvisioningSharedPreferencesTest {
         assertThat(mManagedProvisioningSharedPreferences.isProvisioningFlowDelegatedToRoleHolder())
                 .isFalse();
     }
+
+    @Test
+    public void recordLatencies_keptAcrossInstancesUnderProvisioningId() {
+        mManagedProvisioningSharedPreferences.incrementAndGetProvisioningId();
+        mManagedProvisioningSharedPreferences.recordLatencies(createHistograms(1, 100, 200));
+        mManagedProvisioningSharedPreferences.recordLatencies(createHistograms(2, 300));
+
+        ManagedProvisioningSharedPreferences otherInstance =
+                new ManagedProvisioningSharedPreferences(mContext);
+
+        assertThat(otherInstance.getLatencyHistogram(1, /* provisioningId= */ 1).getCount())
+                .isEqualTo(2);
+        assertThat(otherInstance.getLatencyHistogram(2, /* provisioningId= */ 1).getCount())
+                .isEqualTo(1);
+        assertThat(otherInstance.getLatencyHistogram(3).getCount()).isEqualTo(0);
+        assertThat(otherInstance.getLatencyProvisioningIds()).containsExactly(1L);
+    }
+
+    @Test
+    public void recordLatencies_mergedAcrossProvisioningSessions() {
+        mManagedProvisioningSharedPreferences.incrementAndGetProvisioningId();
+        mManagedProvisioningSharedPreferences.recordLatencies(createHistograms(1, 100));
+        mManagedProvisioningSharedPreferences.incrementAndGetProvisioningId();
+        mManagedProvisioningSharedPreferences.recordLatencies(createHistograms(1, 200, 300));
+
+        assertThat(mManagedProvisioningSharedPreferences.getLatencyHistogram(1).getCount())
+                .isEqualTo(3);
+        assertThat(mManagedProvisioningSharedPreferences.getLatencyHistogram(1, 2).getCount())
+                .isEqualTo(2);
+    }
+
+    @Test
+    public void recordLatencies_dropsOldestProvisioningSessions() {
+        int sessions = ManagedProvisioningSharedPreferences.MAX_LATENCY_PROVISIONING_SESSIONS + 1;
+        for (int i = 0; i < sessions; i++) {
+            mManagedProvisioningSharedPreferences.incrementAndGetProvisioningId();
+            mManagedProvisioningSharedPreferences.recordLatencies(createHistograms(1, 100));
+        }
+
+        assertThat(mManagedProvisioningSharedPreferences.getLatencyProvisioningIds())
+                .doesNotContain(1L);
+        assertThat(mManagedProvisioningSharedPreferences.getLatencyHistogram(1, 1).getCount())
+                .isEqualTo(0);
+        assertThat(mManagedProvisioningSharedPreferences.getLatencyHistogram(1).getCount())
+                .isEqualTo(sessions - 1);
+    }
+
+    @Test
+    public void recordLatencies_dropsAllCategoriesOfOldestProvisioningSession() {
+        mManagedProvisioningSharedPreferences.incrementAndGetProvisioningId();
+        mManagedProvisioningSharedPreferences.recordLatencies(createHistograms(1, 100));
+        mManagedProvisioningSharedPreferences.recordLatencies(createHistograms(2, 200));
+        int laterSessions = ManagedProvisioningSharedPreferences.MAX_LATENCY_PROVISIONING_SESSIONS;
+        for (int i = 0; i < laterSessions; i++) {
+            mManagedProvisioningSharedPreferences.incrementAndGetProvisioningId();
+            mManagedProvisioningSharedPreferences.recordLatencies(createHistograms(3, 300));
+        }
+
+        assertThat(mManagedProvisioningSharedPreferences.getLatencyHistogram(1, 1).getCount())
+                .isEqualTo(0);
+        assertThat(mManagedProvisioningSharedPreferences.getLatencyHistogram(2, 1).getCount())
+                .isEqualTo(0);
+    }
+
+    private static SparseArray<LatencyHistogram> createHistograms(int category, long... values) {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long value : values) {
+            histogram.record(value);
+        }
+        SparseArray<LatencyHistogram> histograms = new SparseArray<>();
+        histograms.put(category, histogram);
+        return histograms;
+    }
 }
@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.managedprovisioning.common;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.content.Context;
+
+import androidx.test.InstrumentationRegistry;
+import androidx.test.filters.LargeTest;
+
+import com.android.managedprovisioning.testcommon.BenchmarkRunner;
+import com.android.managedprovisioning.testcommon.BenchmarkTest;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Measures writing and reading the system apps snapshot stored by {@link
+ * com.android.managedprovisioning.task.nonrequiredapps.SystemAppsSnapshot} through {@link
+ * PackageSetSnapshotFile}, for package counts from a small device up to a heavily customized one.
+ *
+ * <p>Cold reads clear the process-wide cache before each read so that the file is parsed again;
+ * cached reads only validate the cache entry and copy the set. The average time per operation and
+ * the file size are logged under the {@link #TAG} tag.
+ */
+@BenchmarkTest
+@LargeTest
+public class PackageSetSnapshotFileBenchmark {
+    private static final String TAG = "PackageSetSnapshotFileBenchmark";
+    private static final Context sContext = InstrumentationRegistry.getTargetContext();
+    private static final int[] PACKAGE_COUNTS = {100, 500, 2000};
+    private static final int WARMUP_ITERATIONS = 5;
+    private static final int MEASURED_ITERATIONS = 50;
+
+    private final BenchmarkRunner mRunner =
+            new BenchmarkRunner(TAG, WARMUP_ITERATIONS, MEASURED_ITERATIONS);
+    private File mFolder;
+
+    @Before
+    public void setUp() {
+        mFolder = new File(sContext.getCacheDir(), "snapshot_benchmark");
+    }
+
+    @After
+    public void tearDown() {
+        PackageSetSnapshotFile.clearCache();
+        for (File file : mFolder.listFiles()) {
+            file.delete();
+        }
+        mFolder.delete();
+    }
+
+    @Test
+    public void benchmarkWriteAndRead() throws Exception {
+        for (int count : PACKAGE_COUNTS) {
+            Set<String> packageNames = createPackageNames(count);
+            PackageSetSnapshotFile file = new PackageSetSnapshotFile(mFolder, "snapshot" + count);
+
+            mRunner.measure("write " + count + " packages", () -> file.write(packageNames));
+            mRunner.measure("cold-read " + count + " packages", () -> {
+                PackageSetSnapshotFile.clearCache();
+                file.read();
+            });
+            mRunner.measure("cached-read " + count + " packages", file::read);
+
+            PackageSetSnapshotFile.clearCache();
+            assertThat(file.read()).isEqualTo(packageNames);
+            mRunner.log(String.format(Locale.US, "%4d packages: %7d bytes", count,
+                    new File(mFolder, "snapshot" + count + ".bin").length()));
+        }
+    }
+
+    /**
+     * Returns package names shaped like those of a system image: a few long shared prefixes
+     * followed by varied suffixes.
+     */
+    private static Set<String> createPackageNames(int count) {
+        String[] prefixes = {"com.android.", "com.google.android.", "com.example.vendor.",
+                "android.autoinstalls.config."};
+        Set<String> packageNames = new HashSet<>();
+        for (int i = 0; i < count; i++) {
+            packageNames.add(prefixes[i % prefixes.length] + "package" + i + ".app");
+        }
+        return packageNames;
+    }
+}
@@ -16,9 +16,6 @@
 
 package com.android.managedprovisioning.common;
 
-import static android.content.pm.PackageManager.MATCH_HIDDEN_UNTIL_INSTALLED_COMPONENTS;
-import static android.content.pm.PackageManager.MATCH_UNINSTALLED_PACKAGES;
-
 import static org.mockito.Mockito.any;
 import static org.mockito.Mockito.anyInt;
 import static org.mockito.Mockito.eq;
@@ -36,7 +33,6 @@ import android.content.pm.IPackageManager;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.content.pm.PackageManager.NameNotFoundException;
-import android.content.pm.ParceledListSlice;
 import android.content.pm.ResolveInfo;
 import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
@@ -51,7 +47,6 @@ import java.io.FileOutputStream;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Set;
-import java.util.stream.Collectors;
 
 /**
  * Unit-tests for {@link Utils}.
@@ -108,19 +103,11 @@ public class UtilsTest extends AndroidTestCase {
                         TEST_PACKAGE_NAME_2, /* system */ true, /* hiddenUntilInstalled */ false),
                 createApplicationInfo(
                         TEST_PACKAGE_NAME_3, /* system */ true, /* hiddenUntilInstalled */ true));
-        final List<ApplicationInfo> systemApps =
-                systemAppsWithHiddenUntilInstalled.stream()
-                        .filter(applicationInfo -> !applicationInfo.hiddenUntilInstalled)
-                        .collect(Collectors.toList());
-        when(mockIPackageManager.getInstalledApplications(
-                MATCH_UNINSTALLED_PACKAGES, TEST_USER_ID))
-                .thenReturn(new ParceledListSlice<>(systemApps));
-        when(mockIPackageManager.getInstalledApplications(
-                MATCH_UNINSTALLED_PACKAGES | MATCH_HIDDEN_UNTIL_INSTALLED_COMPONENTS, TEST_USER_ID))
-                .thenReturn(new ParceledListSlice<>(systemAppsWithHiddenUntilInstalled));
+        final InstalledApplicationsCache installedApplications = new InstalledApplicationsCache(
+                userId -> userId == TEST_USER_ID ? systemAppsWithHiddenUntilInstalled : null);
 
         // WHEN requesting the current system apps
-        Set<String> res = mUtils.getCurrentSystemApps(mockIPackageManager, TEST_USER_ID);
+        Set<String> res = mUtils.getCurrentSystemApps(installedApplications, TEST_USER_ID);
         // THEN two system apps should be returned
         assertEquals(2, res.size());
         assertTrue(res.contains(TEST_PACKAGE_NAME_2));
@@ -26,6 +26,7 @@ import com.android.managedprovisioning.model.PackageDownloadInfo;
 import junit.framework.Assert;
 
 import java.lang.Exception;
+import java.util.Collections;
 
 /** Tests for {@link PackageDownloadInfo} */
 public class PackageDownloadInfoTest extends AndroidTestCase {
@@ -36,6 +37,7 @@ public class PackageDownloadInfoTest extends AndroidTestCase {
     private static final byte[] TEST_PACKAGE_CHECKSUM = new byte[] { '1', '2', '3', '4', '5' };
     private static final byte[] TEST_SIGNATURE_CHECKSUM = new byte[] { '5', '4', '3', '2', '1' };
     private static final int TEST_MIN_SUPPORT_VERSION = 7689;
+    private static final int TEST_DOWNLOAD_SEGMENTS = 4;
 
     @SmallTest
     public void testBuilderWriteAndReadBack() {
@@ -173,4 +175,80 @@ public class PackageDownloadInfoTest extends AndroidTestCase {
         // THEN the same PackageDownloadInfo is obtained.
         assertEquals(expectedDownloadInfo, actualDownloadInfo);
     }
+
+    @SmallTest
+    public void testDownloadSegments() {
+        // WHEN a PackageDownloadInfo object is constructed with download segments.
+        PackageDownloadInfo downloadInfo = PackageDownloadInfo.Builder.builder()
+                .setLocation(TEST_DOWNLOAD_LOCATION)
+                .setPackageChecksum(TEST_PACKAGE_CHECKSUM)
+                .setDownloadSegments(TEST_DOWNLOAD_SEGMENTS)
+                .build();
+
+        // THEN they are kept when the object is written to parcel and read back.
+        Parcel parcel = Parcel.obtain();
+        downloadInfo.writeToParcel(parcel, 0);
+        parcel.setDataPosition(0);
+        PackageDownloadInfo actualDownloadInfo =
+                PackageDownloadInfo.CREATOR.createFromParcel(parcel);
+        assertEquals(TEST_DOWNLOAD_SEGMENTS, actualDownloadInfo.downloadSegments);
+        assertEquals(downloadInfo, actualDownloadInfo);
+    }
+
+    @SmallTest
+    public void testFailToConstructPackageInfoWithTooManyDownloadSegments() {
+        // WHEN the PackageDownloadInfo is constructed with more than the maximum segments.
+        try {
+            PackageDownloadInfo.Builder.builder()
+                    .setLocation(TEST_DOWNLOAD_LOCATION)
+                    .setPackageChecksum(TEST_PACKAGE_CHECKSUM)
+                    .setDownloadSegments(PackageDownloadInfo.MAX_DOWNLOAD_SEGMENTS + 1)
+                    .build();
+            fail("Download segments are limited.");
+        } catch (IllegalArgumentException e) {
+            // THEN PackageDownloadInfo fails to construct.
+        }
+    }
+
+    @SmallTest
+    public void testSplits() {
+        // WHEN a PackageDownloadInfo object is constructed with a split apk.
+        PackageDownloadInfo split = PackageDownloadInfo.Builder.builder()
+                .setLocation(TEST_DOWNLOAD_LOCATION + ".split")
+                .setPackageChecksum(TEST_PACKAGE_CHECKSUM)
+                .build();
+        PackageDownloadInfo downloadInfo = PackageDownloadInfo.Builder.builder()
+                .setLocation(TEST_DOWNLOAD_LOCATION)
+                .setPackageChecksum(TEST_PACKAGE_CHECKSUM)
+                .setSplits(Collections.singletonList(split))
+                .build();
+
+        // THEN it is kept when the object is written to parcel and read back.
+        Parcel parcel = Parcel.obtain();
+        downloadInfo.writeToParcel(parcel, 0);
+        parcel.setDataPosition(0);
+        PackageDownloadInfo actualDownloadInfo =
+                PackageDownloadInfo.CREATOR.createFromParcel(parcel);
+        assertEquals(Collections.singletonList(split), actualDownloadInfo.splits);
+        assertEquals(downloadInfo, actualDownloadInfo);
+    }
+
+    @SmallTest
+    public void testFailToConstructPackageInfoWithSplitWithoutPackageChecksum() {
+        // WHEN the PackageDownloadInfo is constructed with a split that has no package checksum.
+        PackageDownloadInfo split = PackageDownloadInfo.Builder.builder()
+                .setLocation(TEST_DOWNLOAD_LOCATION + ".split")
+                .setSignatureChecksum(TEST_SIGNATURE_CHECKSUM)
+                .build();
+        try {
+            PackageDownloadInfo.Builder.builder()
+                    .setLocation(TEST_DOWNLOAD_LOCATION)
+                    .setPackageChecksum(TEST_PACKAGE_CHECKSUM)
+                    .setSplits(Collections.singletonList(split))
+                    .build();
+            fail("Split apks must be verifiable by their package checksum.");
+        } catch (IllegalArgumentException e) {
+            // THEN PackageDownloadInfo fails to construct.
+        }
+    }
 }
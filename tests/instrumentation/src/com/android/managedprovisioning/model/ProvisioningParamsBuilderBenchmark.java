@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.managedprovisioning.model;
+
+import static com.android.managedprovisioning.TestUtils.createTestAdminExtras;
+import static com.android.managedprovisioning.model.ProvisioningParams.FLOW_TYPE_ADMIN_INTEGRATED;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.app.admin.DevicePolicyManager;
+
+import androidx.test.filters.LargeTest;
+
+import com.android.managedprovisioning.testcommon.BenchmarkRunner;
+import com.android.managedprovisioning.testcommon.BenchmarkRunner.Measurement;
+import com.android.managedprovisioning.testcommon.BenchmarkTest;
+
+import org.junit.Test;
+
+/**
+ * Compares the allocations and time of {@link ProvisioningParams#toBuilder} against the previous
+ * implementation, which went through {@link ProvisioningParams#toPersistableBundle}.
+ *
+ * <p>The allocations and average time per copy are logged under the {@link #TAG} tag.
+ */
+@BenchmarkTest
+@LargeTest
+public class ProvisioningParamsBuilderBenchmark {
+    private static final String TAG = "ProvisioningParamsBuilderBenchmark";
+    private static final int WARMUP_ITERATIONS = 100;
+    private static final int MEASURED_ITERATIONS = 1000;
+
+    private final BenchmarkRunner mRunner =
+            new BenchmarkRunner(TAG, WARMUP_ITERATIONS, MEASURED_ITERATIONS);
+    private final ProvisioningParams mParams = ProvisioningParams.Builder.builder()
+            .setProvisioningAction(DevicePolicyManager.ACTION_PROVISION_MANAGED_DEVICE)
+            .setDeviceAdminPackageName("com.afwsamples.testdpc")
+            .setDeviceAdminDownloadInfo(PackageDownloadInfo.Builder.builder()
+                    .setLocation("https://example.com/dpc.apk")
+                    .setSignatureChecksum(new byte[] {1, 2, 3, 4})
+                    .build())
+            .setWifiInfo(WifiInfo.Builder.builder()
+                    .setSsid("TestWifi")
+                    .setPassword("password")
+                    .build())
+            .setAdminExtrasBundle(createTestAdminExtras())
+            .setFlowType(FLOW_TYPE_ADMIN_INTEGRATED)
+            .build();
+
+    @Test
+    public void benchmarkCopy() throws Exception {
+        Measurement legacy = mRunner.measureAllocations("bundle-copy",
+                () -> ProvisioningParams.fromPersistableBundle(mParams.toPersistableBundle())
+                        .toBuilder().setIsNfc(true).build());
+        Measurement direct = mRunner.measureAllocations("field-copy",
+                () -> mParams.toBuilder().setIsNfc(true).build());
+
+        assertThat(direct.allocations).isAtMost(legacy.allocations);
+    }
+
+    @Test
+    public void benchmarkToString() throws Exception {
+        Measurement legacy = mRunner.measureAllocations("bundle-string",
+                () -> "ProvisioningParams values: ".concat(
+                        mParams.toPersistableBundle().toString()));
+        Measurement direct = mRunner.measureAllocations("field-string", mParams::toString);
+
+        assertThat(direct.allocations).isAtMost(legacy.allocations);
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.managedprovisioning.model;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.app.admin.DevicePolicyManager;
+import android.content.Context;
+import android.os.PersistableBundle;
+
+import androidx.test.InstrumentationRegistry;
+import androidx.test.filters.LargeTest;
+
+import com.android.managedprovisioning.testcommon.BenchmarkRunner;
+import com.android.managedprovisioning.testcommon.BenchmarkTest;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Locale;
+
+/**
+ * Compares {@link ProvisioningParams#save} and {@link ProvisioningParams#load} in the binary
+ * format against the XML format written by {@link ProvisioningParams#saveAsXml}, for admin
+ * extras bundles of growing size, together with the {@link PersistableBundle} conversion the
+ * params go through when they are passed between components.
+ *
+ * <p>The average time per operation and the file size are logged under the {@link #TAG} tag.
+ */
+@BenchmarkTest
+@LargeTest
+public class ProvisioningParamsPersistenceBenchmark {
+    private static final String TAG = "ProvisioningParamsPersistenceBenchmark";
+    private static final Context sContext = InstrumentationRegistry.getTargetContext();
+    private static final int[] ADMIN_EXTRAS_SIZES = {10, 100, 1000};
+    private static final int WARMUP_ITERATIONS = 5;
+    private static final int MEASURED_ITERATIONS = 20;
+
+    private final BenchmarkRunner mRunner =
+            new BenchmarkRunner(TAG, WARMUP_ITERATIONS, MEASURED_ITERATIONS);
+    private File mFile;
+
+    @Before
+    public void setUp() throws IOException {
+        mFile = File.createTempFile("params_benchmark", null, sContext.getCacheDir());
+    }
+
+    @After
+    public void tearDown() {
+        mFile.delete();
+    }
+
+    @Test
+    public void benchmarkSaveAndLoad() throws Exception {
+        for (int size : ADMIN_EXTRAS_SIZES) {
+            ProvisioningParams params = createParams(size);
+
+            mRunner.measure("xml-save " + size + " extras", () -> params.saveAsXml(mFile));
+            long xmlLength = mFile.length();
+            mRunner.measure("xml-load " + size + " extras", () -> ProvisioningParams.load(mFile));
+            assertThat(ProvisioningParams.load(mFile)).isEqualTo(params);
+
+            mRunner.measure("binary-save " + size + " extras", () -> params.save(mFile));
+            long binaryLength = mFile.length();
+            mRunner.measure("binary-load " + size + " extras",
+                    () -> ProvisioningParams.load(mFile));
+            assertThat(ProvisioningParams.load(mFile)).isEqualTo(params);
+
+            mRunner.log(String.format(Locale.US, "%4d extras: xml %7d bytes, binary %7d bytes",
+                    size, xmlLength, binaryLength));
+        }
+    }
+
+    @Test
+    public void benchmarkPersistableBundle() throws Exception {
+        for (int size : ADMIN_EXTRAS_SIZES) {
+            ProvisioningParams params = createParams(size);
+            PersistableBundle bundle = params.toPersistableBundle();
+
+            mRunner.measure("to-bundle " + size + " extras", params::toPersistableBundle);
+            mRunner.measure("from-bundle " + size + " extras",
+                    () -> ProvisioningParams.fromPersistableBundle(bundle));
+            assertThat(ProvisioningParams.fromPersistableBundle(bundle)).isEqualTo(params);
+        }
+    }
+
+    private static ProvisioningParams createParams(int adminExtrasSize) {
+        PersistableBundle adminExtras = new PersistableBundle();
+        for (int i = 0; i < adminExtrasSize; i++) {
+            switch (i % 4) {
+                case 0:
+                    adminExtras.putString("string_" + i, "value of extra number " + i);
+                    break;
+                case 1:
+                    adminExtras.putLong("long_" + i, i * 1_000_003L);
+                    break;
+                case 2:
+                    adminExtras.putStringArray("string_array_" + i,
+                            new String[] {"first " + i, "second " + i});
+                    break;
+                default:
+                    PersistableBundle nested = new PersistableBundle();
+                    nested.putInt("int", i);
+                    nested.putBoolean("boolean", i % 2 == 0);
+                    adminExtras.putPersistableBundle("bundle_" + i, nested);
+                    break;
+            }
+        }
+        return ProvisioningParams.Builder.builder()
+                .setProvisioningAction(DevicePolicyManager.ACTION_PROVISION_MANAGED_PROFILE)
+                .setDeviceAdminPackageName("com.afwsamples.testdpc")
+                .setAdminExtrasBundle(adminExtras)
+                .build();
+    }
+}
@@ -50,7 +50,9 @@ import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 
 import java.io.File;
+import java.nio.file.Files;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Locale;
 
@@ -224,6 +226,33 @@ public class ProvisioningParamsTest extends AndroidTestCase {
                 .build());
     }
 
+    @SmallTest
+    public void testLoadLegacyXml() throws Exception {
+        // GIVEN a ProvisioningParams object saved in the XML format
+        ProvisioningParams original = getCompleteProvisioningParams();
+        File file = new File(mContext.getFilesDir(), "test_store_legacy.xml");
+        original.saveAsXml(file);
+
+        // WHEN the file is loaded
+        ProvisioningParams copy = ProvisioningParams.load(file);
+
+        // THEN the same ProvisioningParams is obtained
+        assertThat(original).isEqualTo(copy);
+    }
+
+    @SmallTest
+    public void testLoadCorruptedFile_returnsNull() throws Exception {
+        // GIVEN a binary ProvisioningParams file with its end cut off
+        File file = new File(mContext.getFilesDir(), "test_store_corrupted");
+        getCompleteProvisioningParams().save(file);
+        byte[] content = Files.readAllBytes(file.toPath());
+        Files.write(file.toPath(), Arrays.copyOf(content, content.length / 2));
+
+        // WHEN the file is loaded
+        // THEN nothing is returned
+        assertThat(ProvisioningParams.load(file)).isNull();
+    }
+
     private void testSaveAndRestore(ProvisioningParams original) {
         // GIVEN a ProvisioningParams object
         // WHEN the ProvisioningParams is written to xml and then read back
@@ -234,6 +263,44 @@ public class ProvisioningParamsTest extends AndroidTestCase {
         assertThat(original).isEqualTo(copy);
     }
 
+    @SmallTest
+    public void testToBuilder_copiesAllFields() {
+        // GIVEN a ProvisioningParams object
+        ProvisioningParams original = getCompleteProvisioningParams();
+
+        // WHEN it is copied through its builder
+        ProvisioningParams copy = original.toBuilder().build();
+
+        // THEN the same ProvisioningParams is obtained, sharing the immutable sub-objects
+        assertThat(copy).isEqualTo(original);
+        assertThat(copy.wifiInfo).isSameInstanceAs(original.wifiInfo);
+        assertThat(copy.deviceAdminDownloadInfo).isSameInstanceAs(
+                original.deviceAdminDownloadInfo);
+        assertThat(copy.allowedProvisioningModes).isNotSameInstanceAs(
+                original.allowedProvisioningModes);
+    }
+
+    @SmallTest
+    public void testToBuilder_setterDoesNotChangeOriginal() {
+        // GIVEN a ProvisioningParams object
+        ProvisioningParams original = getCompleteProvisioningParams();
+
+        // WHEN a field is changed on a copy
+        ProvisioningParams copy = original.toBuilder().setFlowType(FLOW_TYPE_LEGACY).build();
+
+        // THEN only the copy has the new value
+        assertThat(copy.flowType).isEqualTo(FLOW_TYPE_LEGACY);
+        assertThat(original.flowType).isEqualTo(FLOW_TYPE_ADMIN_INTEGRATED);
+    }
+
+    @SmallTest
+    public void testToString_omitsSecrets() {
+        String string = getCompleteProvisioningParams().toString();
+
+        assertThat(string).contains(TEST_PACKAGE_NAME);
+        assertThat(string).doesNotContain(TEST_PASSWORD);
+    }
+
     @SmallTest
     public void testParceable() {
         // GIVEN a ProvisioningParams object.
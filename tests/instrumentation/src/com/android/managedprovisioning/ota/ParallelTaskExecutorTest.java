@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.managedprovisioning.ota;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import static org.mockito.Mockito.verify;
+
+import androidx.test.filters.SmallTest;
+
+import com.android.managedprovisioning.task.AbstractProvisioningTask;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Unit tests for {@link ParallelTaskExecutor}.
+ */
+@SmallTest
+public class ParallelTaskExecutorTest {
+    private static final int USER_A = 10;
+    private static final int USER_B = 11;
+    private static final long TIMEOUT_MILLIS = 5000;
+
+    @Mock private AbstractProvisioningTask mTask;
+
+    private ExecutorService mThreadPool;
+    private ParallelTaskExecutor mExecutor;
+
+    @Before
+    public void setUp() {
+        MockitoAnnotations.initMocks(this);
+
+        mThreadPool = Executors.newFixedThreadPool(2);
+        mExecutor = new ParallelTaskExecutor(mThreadPool);
+    }
+
+    @After
+    public void tearDown() {
+        mThreadPool.shutdownNow();
+    }
+
+    @Test
+    public void testExecute_runsTask() {
+        mExecutor.execute(USER_A, mTask);
+
+        assertThat(mExecutor.awaitIdle(TIMEOUT_MILLIS)).isTrue();
+        verify(mTask).run(USER_A);
+    }
+
+    @Test
+    public void testRunForUser_sameUser_runsInOrder() {
+        List<Integer> order = Collections.synchronizedList(new ArrayList<>());
+
+        for (int i = 0; i < 10; i++) {
+            final int index = i;
+            mExecutor.runForUser(USER_A, () -> order.add(index));
+        }
+
+        assertThat(mExecutor.awaitIdle(TIMEOUT_MILLIS)).isTrue();
+        assertThat(order).containsExactly(0, 1, 2, 3, 4, 5, 6, 7, 8, 9).inOrder();
+    }
+
+    @Test
+    public void testRunForUser_submittedFromWork_runsAfterIt() {
+        List<String> order = Collections.synchronizedList(new ArrayList<>());
+
+        mExecutor.runForUser(USER_A, () -> {
+            mExecutor.runForUser(USER_A, () -> order.add("nested"));
+            order.add("outer");
+        });
+
+        assertThat(mExecutor.awaitIdle(TIMEOUT_MILLIS)).isTrue();
+        assertThat(order).containsExactly("outer", "nested").inOrder();
+    }
+
+    @Test
+    public void testRunForUser_differentUsers_runInParallel() throws Exception {
+        CountDownLatch userARunning = new CountDownLatch(1);
+        CountDownLatch userBRan = new CountDownLatch(1);
+
+        mExecutor.runForUser(USER_A, () -> {
+            userARunning.countDown();
+            await(userBRan);
+        });
+        assertThat(userARunning.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)).isTrue();
+        mExecutor.runForUser(USER_B, userBRan::countDown);
+
+        assertThat(mExecutor.awaitIdle(TIMEOUT_MILLIS)).isTrue();
+    }
+
+    @Test
+    public void testRunForUser_exception_continuesWithNextWork() {
+        CountDownLatch ran = new CountDownLatch(1);
+
+        mExecutor.runForUser(USER_A, () -> {
+            throw new IllegalStateException();
+        });
+        mExecutor.runForUser(USER_A, ran::countDown);
+
+        assertThat(mExecutor.awaitIdle(TIMEOUT_MILLIS)).isTrue();
+        assertThat(ran.getCount()).isEqualTo(0);
+    }
+
+    @Test
+    public void testAwaitIdle_workNotFinished_timesOut() {
+        CountDownLatch release = new CountDownLatch(1);
+        mExecutor.runForUser(USER_A, () -> await(release));
+
+        assertThat(mExecutor.awaitIdle(/* timeoutMillis= */ 50)).isFalse();
+
+        release.countDown();
+        assertThat(mExecutor.awaitIdle(TIMEOUT_MILLIS)).isTrue();
+    }
+
+    @Test
+    public void testAwaitIdle_nothingSubmitted_returnsImmediately() {
+        assertThat(mExecutor.awaitIdle(/* timeoutMillis= */ 0)).isTrue();
+    }
+
+    @Test
+    public void testAwaitIdle_timesOut_queuedWorkStillRuns() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch queuedRan = new CountDownLatch(1);
+        mExecutor.runForUser(USER_A, () -> await(release));
+        mExecutor.runForUser(USER_A, queuedRan::countDown);
+
+        assertThat(mExecutor.awaitIdle(/* timeoutMillis= */ 50)).isFalse();
+
+        release.countDown();
+        assertThat(queuedRan.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)).isTrue();
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
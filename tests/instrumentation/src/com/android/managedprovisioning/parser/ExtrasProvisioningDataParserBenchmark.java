@@ -0,0 +1,178 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.managedprovisioning.parser;
+
+import static android.app.admin.DevicePolicyManager.ACTION_PROVISION_MANAGED_DEVICE;
+import static android.app.admin.DevicePolicyManager.ACTION_PROVISION_MANAGED_DEVICE_FROM_TRUSTED_SOURCE;
+import static android.app.admin.DevicePolicyManager.EXTRA_PROVISIONING_ADMIN_EXTRAS_BUNDLE;
+import static android.app.admin.DevicePolicyManager.EXTRA_PROVISIONING_DEVICE_ADMIN_COMPONENT_NAME;
+import static android.app.admin.DevicePolicyManager.EXTRA_PROVISIONING_DEVICE_ADMIN_PACKAGE_CHECKSUM;
+import static android.app.admin.DevicePolicyManager.EXTRA_PROVISIONING_DEVICE_ADMIN_PACKAGE_DOWNLOAD_LOCATION;
+import static android.app.admin.DevicePolicyManager.EXTRA_PROVISIONING_DEVICE_ADMIN_SIGNATURE_CHECKSUM;
+import static android.app.admin.DevicePolicyManager.EXTRA_PROVISIONING_LOCALE;
+import static android.app.admin.DevicePolicyManager.EXTRA_PROVISIONING_LOCAL_TIME;
+import static android.app.admin.DevicePolicyManager.EXTRA_PROVISIONING_ORGANIZATION_NAME;
+import static android.app.admin.DevicePolicyManager.EXTRA_PROVISIONING_SKIP_ENCRYPTION;
+import static android.app.admin.DevicePolicyManager.EXTRA_PROVISIONING_SUPPORT_URL;
+import static android.app.admin.DevicePolicyManager.EXTRA_PROVISIONING_TIME_ZONE;
+import static android.app.admin.DevicePolicyManager.EXTRA_PROVISIONING_USE_MOBILE_DATA;
+import static android.app.admin.DevicePolicyManager.EXTRA_PROVISIONING_WIFI_ANONYMOUS_IDENTITY;
+import static android.app.admin.DevicePolicyManager.EXTRA_PROVISIONING_WIFI_DOMAIN;
+import static android.app.admin.DevicePolicyManager.EXTRA_PROVISIONING_WIFI_EAP_METHOD;
+import static android.app.admin.DevicePolicyManager.EXTRA_PROVISIONING_WIFI_HIDDEN;
+import static android.app.admin.DevicePolicyManager.EXTRA_PROVISIONING_WIFI_IDENTITY;
+import static android.app.admin.DevicePolicyManager.EXTRA_PROVISIONING_WIFI_PAC_URL;
+import static android.app.admin.DevicePolicyManager.EXTRA_PROVISIONING_WIFI_PASSWORD;
+import static android.app.admin.DevicePolicyManager.EXTRA_PROVISIONING_WIFI_PHASE2_AUTH;
+import static android.app.admin.DevicePolicyManager.EXTRA_PROVISIONING_WIFI_PROXY_BYPASS;
+import static android.app.admin.DevicePolicyManager.EXTRA_PROVISIONING_WIFI_PROXY_HOST;
+import static android.app.admin.DevicePolicyManager.EXTRA_PROVISIONING_WIFI_PROXY_PORT;
+import static android.app.admin.DevicePolicyManager.EXTRA_PROVISIONING_WIFI_SECURITY_TYPE;
+import static android.app.admin.DevicePolicyManager.EXTRA_PROVISIONING_WIFI_SSID;
+import static android.content.pm.PackageManager.FEATURE_MANAGED_USERS;
+
+import static com.android.managedprovisioning.TestUtils.createTestAdminExtras;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import android.app.admin.DevicePolicyManager;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.pm.PackageManager;
+
+import androidx.test.InstrumentationRegistry;
+import androidx.test.filters.LargeTest;
+
+import com.android.managedprovisioning.common.ManagedProvisioningSharedPreferences;
+import com.android.managedprovisioning.common.SettingsFacade;
+import com.android.managedprovisioning.common.Utils;
+import com.android.managedprovisioning.model.ProvisioningParams;
+import com.android.managedprovisioning.testcommon.BenchmarkRunner;
+import com.android.managedprovisioning.testcommon.BenchmarkTest;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Measures {@link ExtrasProvisioningDataParser#parse} for the intent shapes seen in practice: a
+ * minimal intent naming only the admin, a trusted source intent carrying every common extra, and
+ * a trusted source intent carrying an EAP Wi-Fi network with a proxy.
+ *
+ * <p>The average time per parse is logged under the {@link #TAG} tag.
+ */
+@BenchmarkTest
+@LargeTest
+public class ExtrasProvisioningDataParserBenchmark {
+    private static final String TAG = "ExtrasProvisioningDataParserBenchmark";
+    private static final Context sContext = InstrumentationRegistry.getTargetContext();
+    private static final int WARMUP_ITERATIONS = 200;
+    private static final int MEASURED_ITERATIONS = 2000;
+
+    private static final ComponentName TEST_COMPONENT_NAME = ComponentName.unflattenFromString(
+            "com.afwsamples.testdpc/com.afwsamples.testdpc.DeviceAdminReceiver");
+    private static final String TEST_SIGNATURE_CHECKSUM =
+            "mJGe0pPCZrK_ms_UXPGz8RBtV5LkSgCH0Jz8EJcqNnM";
+    private static final String TEST_PACKAGE_CHECKSUM =
+            "JUufz2M2Fj3XaM2TIuhB9PMjIWkk_SjZhCvrgVVHBmY";
+
+    private final BenchmarkRunner mRunner =
+            new BenchmarkRunner(TAG, WARMUP_ITERATIONS, MEASURED_ITERATIONS);
+    private ExtrasProvisioningDataParser mParser;
+
+    @Before
+    public void setUp() {
+        // this is necessary for mockito to work
+        System.setProperty("dexmaker.dexcache", sContext.getCacheDir().toString());
+
+        Context context = mock(Context.class);
+        DevicePolicyManager devicePolicyManager = mock(DevicePolicyManager.class);
+        PackageManager packageManager = mock(PackageManager.class);
+        SettingsFacade settingsFacade = mock(SettingsFacade.class);
+        ManagedProvisioningSharedPreferences sharedPreferences =
+                mock(ManagedProvisioningSharedPreferences.class);
+        when(context.getSystemServiceName(DevicePolicyManager.class))
+                .thenReturn(Context.DEVICE_POLICY_SERVICE);
+        when(context.getSystemService(Context.DEVICE_POLICY_SERVICE))
+                .thenReturn(devicePolicyManager);
+        when(context.getContentResolver()).thenReturn(sContext.getContentResolver());
+        when(context.getFilesDir()).thenReturn(sContext.getFilesDir());
+        when(context.getPackageManager()).thenReturn(packageManager);
+        when(packageManager.hasSystemFeature(eq(FEATURE_MANAGED_USERS))).thenReturn(true);
+        when(settingsFacade.isDuringSetupWizard(context)).thenReturn(true);
+        mParser = new ExtrasProvisioningDataParser(context, new Utils(), new ParserUtils(),
+                settingsFacade, sharedPreferences);
+    }
+
+    @Test
+    public void benchmarkParse() throws Exception {
+        measure("minimal", new Intent(ACTION_PROVISION_MANAGED_DEVICE)
+                .putExtra(EXTRA_PROVISIONING_DEVICE_ADMIN_COMPONENT_NAME, TEST_COMPONENT_NAME));
+        measure("full", buildFullIntent());
+        measure("network", buildNetworkIntent());
+    }
+
+    private void measure(String name, Intent intent) throws Exception {
+        ProvisioningParams params = mParser.parse(intent);
+        assertThat(params.deviceAdminComponentName).isEqualTo(TEST_COMPONENT_NAME);
+
+        mRunner.measure(name, () -> mParser.parse(intent));
+    }
+
+    private static Intent buildFullIntent() {
+        return new Intent(ACTION_PROVISION_MANAGED_DEVICE_FROM_TRUSTED_SOURCE)
+                .putExtra(EXTRA_PROVISIONING_DEVICE_ADMIN_COMPONENT_NAME, TEST_COMPONENT_NAME)
+                .putExtra(EXTRA_PROVISIONING_DEVICE_ADMIN_PACKAGE_DOWNLOAD_LOCATION,
+                        "https://example.com/dpc.apk")
+                .putExtra(EXTRA_PROVISIONING_DEVICE_ADMIN_PACKAGE_CHECKSUM, TEST_PACKAGE_CHECKSUM)
+                .putExtra(EXTRA_PROVISIONING_DEVICE_ADMIN_SIGNATURE_CHECKSUM,
+                        TEST_SIGNATURE_CHECKSUM)
+                .putExtra(EXTRA_PROVISIONING_LOCAL_TIME, 1456939524713L)
+                .putExtra(EXTRA_PROVISIONING_TIME_ZONE, "GMT")
+                .putExtra(EXTRA_PROVISIONING_LOCALE, "en_GB")
+                .putExtra(EXTRA_PROVISIONING_WIFI_SSID, "TestWifi")
+                .putExtra(EXTRA_PROVISIONING_WIFI_SECURITY_TYPE, "WPA2")
+                .putExtra(EXTRA_PROVISIONING_WIFI_PASSWORD, "password")
+                .putExtra(EXTRA_PROVISIONING_ADMIN_EXTRAS_BUNDLE, createTestAdminExtras())
+                .putExtra(EXTRA_PROVISIONING_SKIP_ENCRYPTION, true)
+                .putExtra(EXTRA_PROVISIONING_ORGANIZATION_NAME, "TestOrganizationName")
+                .putExtra(EXTRA_PROVISIONING_SUPPORT_URL, "https://www.support.url/");
+    }
+
+    private static Intent buildNetworkIntent() {
+        return new Intent(ACTION_PROVISION_MANAGED_DEVICE_FROM_TRUSTED_SOURCE)
+                .putExtra(EXTRA_PROVISIONING_DEVICE_ADMIN_COMPONENT_NAME, TEST_COMPONENT_NAME)
+                .putExtra(EXTRA_PROVISIONING_WIFI_SSID, "TestWifi")
+                .putExtra(EXTRA_PROVISIONING_WIFI_HIDDEN, true)
+                .putExtra(EXTRA_PROVISIONING_WIFI_SECURITY_TYPE, "EAP")
+                .putExtra(EXTRA_PROVISIONING_WIFI_PASSWORD, "password")
+                .putExtra(EXTRA_PROVISIONING_WIFI_EAP_METHOD, "TTLS")
+                .putExtra(EXTRA_PROVISIONING_WIFI_PHASE2_AUTH, "PAP")
+                .putExtra(EXTRA_PROVISIONING_WIFI_IDENTITY, "TestUser")
+                .putExtra(EXTRA_PROVISIONING_WIFI_ANONYMOUS_IDENTITY, "TestAUser")
+                .putExtra(EXTRA_PROVISIONING_WIFI_DOMAIN, "example.com")
+                .putExtra(EXTRA_PROVISIONING_WIFI_PROXY_HOST, "proxy.example.com")
+                .putExtra(EXTRA_PROVISIONING_WIFI_PROXY_PORT, 8080)
+                .putExtra(EXTRA_PROVISIONING_WIFI_PROXY_BYPASS, "host1.com;host2.com")
+                .putExtra(EXTRA_PROVISIONING_WIFI_PAC_URL, "https://example.com/proxy.pac")
+                .putExtra(EXTRA_PROVISIONING_USE_MOBILE_DATA, false);
+    }
+}
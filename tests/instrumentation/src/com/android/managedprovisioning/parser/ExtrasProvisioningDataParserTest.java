@@ -82,8 +82,11 @@ import static com.android.managedprovisioning.parser.ExtrasProvisioningDataParse
 import static com.android.managedprovisioning.parser.ExtrasProvisioningDataParser.EXTRA_PROVISIONING_DEVICE_ADMIN_MINIMUM_VERSION_CODE_SHORT;
 import static com.android.managedprovisioning.parser.ExtrasProvisioningDataParser.EXTRA_PROVISIONING_DEVICE_ADMIN_PACKAGE_CHECKSUM_SHORT;
 import static com.android.managedprovisioning.parser.ExtrasProvisioningDataParser.EXTRA_PROVISIONING_DEVICE_ADMIN_PACKAGE_DOWNLOAD_COOKIE_HEADER_SHORT;
+import static com.android.managedprovisioning.parser.ExtrasProvisioningDataParser.EXTRA_PROVISIONING_DEVICE_ADMIN_PACKAGE_DOWNLOAD_SEGMENTS;
 import static com.android.managedprovisioning.parser.ExtrasProvisioningDataParser.EXTRA_PROVISIONING_DEVICE_ADMIN_PACKAGE_DOWNLOAD_LOCATION_SHORT;
 import static com.android.managedprovisioning.parser.ExtrasProvisioningDataParser.EXTRA_PROVISIONING_DEVICE_ADMIN_PACKAGE_NAME_SHORT;
+import static com.android.managedprovisioning.parser.ExtrasProvisioningDataParser.EXTRA_PROVISIONING_DEVICE_ADMIN_PACKAGE_SPLIT_CHECKSUMS;
+import static com.android.managedprovisioning.parser.ExtrasProvisioningDataParser.EXTRA_PROVISIONING_DEVICE_ADMIN_PACKAGE_SPLIT_LOCATIONS;
 import static com.android.managedprovisioning.parser.ExtrasProvisioningDataParser.EXTRA_PROVISIONING_DEVICE_ADMIN_SIGNATURE_CHECKSUM_SHORT;
 import static com.android.managedprovisioning.parser.ExtrasProvisioningDataParser.EXTRA_PROVISIONING_DISCLAIMERS_SHORT;
 import static com.android.managedprovisioning.parser.ExtrasProvisioningDataParser.EXTRA_PROVISIONING_DISCLAIMER_CONTENT_SHORT;
@@ -93,6 +96,7 @@ import static com.android.managedprovisioning.parser.ExtrasProvisioningDataParse
 import static com.android.managedprovisioning.parser.ExtrasProvisioningDataParser.EXTRA_PROVISIONING_LOCALE_SHORT;
 import static com.android.managedprovisioning.parser.ExtrasProvisioningDataParser.EXTRA_PROVISIONING_LOCAL_TIME_SHORT;
 import static com.android.managedprovisioning.parser.ExtrasProvisioningDataParser.EXTRA_PROVISIONING_ORGANIZATION_NAME_SHORT;
+import static com.android.managedprovisioning.parser.ExtrasProvisioningDataParser.EXTRA_PROVISIONING_ROLE_HOLDER_PACKAGE_DOWNLOAD_SEGMENTS;
 import static com.android.managedprovisioning.parser.ExtrasProvisioningDataParser.EXTRA_PROVISIONING_SENSORS_PERMISSION_GRANT_OPT_OUT_SHORT;
 import static com.android.managedprovisioning.parser.ExtrasProvisioningDataParser.EXTRA_PROVISIONING_SKIP_ENCRYPTION_SHORT;
 import static com.android.managedprovisioning.parser.ExtrasProvisioningDataParser.EXTRA_PROVISIONING_SUPPORT_URL_SHORT;
@@ -1157,6 +1161,65 @@ public class ExtrasProvisioningDataParserTest extends AndroidTestCase {
         assertThat(params.roleHolderDownloadInfo.cookieHeader).isEqualTo(TEST_COOKIE_HEADER);
     }
 
+    public void testParse_roleHolderDownloadSegments_appliedToRoleHolderPackageOnly()
+            throws IllegalProvisioningArgumentException {
+        Intent intent = buildTestTrustedSourceIntent()
+                .putExtra(EXTRA_PROVISIONING_ROLE_HOLDER_PACKAGE_DOWNLOAD_LOCATION,
+                        TEST_DOWNLOAD_LOCATION)
+                .putExtra(DevicePolicyManager.EXTRA_PROVISIONING_ROLE_HOLDER_SIGNATURE_CHECKSUM,
+                        TEST_SIGNATURE_CHECKSUM_STRING)
+                .putExtra(EXTRA_PROVISIONING_ROLE_HOLDER_PACKAGE_DOWNLOAD_SEGMENTS, 4);
+        mockInstalledDeviceAdminForTestPackageName();
+
+        ProvisioningParams params = mExtrasProvisioningDataParser.parse(intent);
+
+        assertThat(params.roleHolderDownloadInfo.downloadSegments).isEqualTo(4);
+        assertThat(params.deviceAdminDownloadInfo.downloadSegments)
+                .isEqualTo(PackageDownloadInfo.DEFAULT_DOWNLOAD_SEGMENTS);
+    }
+
+    public void testParse_tooManyDownloadSegments_clamped()
+            throws IllegalProvisioningArgumentException {
+        Intent intent = buildTestTrustedSourceIntent()
+                .putExtra(EXTRA_PROVISIONING_DEVICE_ADMIN_PACKAGE_DOWNLOAD_SEGMENTS,
+                        PackageDownloadInfo.MAX_DOWNLOAD_SEGMENTS + 1);
+        mockInstalledDeviceAdminForTestPackageName();
+
+        ProvisioningParams params = mExtrasProvisioningDataParser.parse(intent);
+
+        assertThat(params.deviceAdminDownloadInfo.downloadSegments)
+                .isEqualTo(PackageDownloadInfo.MAX_DOWNLOAD_SEGMENTS);
+    }
+
+    public void testParse_deviceAdminSplits_parsedWithChecksumsAndCookieHeader()
+            throws IllegalProvisioningArgumentException {
+        Intent intent = buildTestTrustedSourceIntent()
+                .putExtra(EXTRA_PROVISIONING_DEVICE_ADMIN_PACKAGE_SPLIT_LOCATIONS,
+                        new String[] {TEST_DOWNLOAD_LOCATION + ".arm64"})
+                .putExtra(EXTRA_PROVISIONING_DEVICE_ADMIN_PACKAGE_SPLIT_CHECKSUMS,
+                        new String[] {buildTestPackageChecksum()});
+        mockInstalledDeviceAdminForTestPackageName();
+
+        ProvisioningParams params = mExtrasProvisioningDataParser.parse(intent);
+
+        assertThat(params.deviceAdminDownloadInfo.splits).containsExactly(
+                PackageDownloadInfo.Builder.builder()
+                        .setLocation(TEST_DOWNLOAD_LOCATION + ".arm64")
+                        .setCookieHeader(TEST_COOKIE_HEADER)
+                        .setPackageChecksum(TEST_PACKAGE_CHECKSUM)
+                        .build());
+    }
+
+    public void testParse_deviceAdminSplitWithoutChecksum_throwsException() {
+        Intent intent = buildTestTrustedSourceIntent()
+                .putExtra(EXTRA_PROVISIONING_DEVICE_ADMIN_PACKAGE_SPLIT_LOCATIONS,
+                        new String[] {TEST_DOWNLOAD_LOCATION + ".arm64"});
+        mockInstalledDeviceAdminForTestPackageName();
+
+        assertThrows(IllegalProvisioningArgumentException.class,
+                () -> mExtrasProvisioningDataParser.parse(intent));
+    }
+
     public void testParse_managedProfileProvisioningWithRoleHolderDownloadInfo_notParsed()
             throws IllegalProvisioningArgumentException {
         Intent intent = buildTestManagedProfileIntent()
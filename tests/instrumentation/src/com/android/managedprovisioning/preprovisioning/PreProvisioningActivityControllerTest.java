@@ -112,6 +112,7 @@ import com.android.managedprovisioning.model.ProvisioningParams;
 import com.android.managedprovisioning.model.WifiInfo;
 import com.android.managedprovisioning.parser.MessageParser;
 import com.android.managedprovisioning.preprovisioning.PreProvisioningActivityController.UiParams;
+import com.android.managedprovisioning.task.download.PackagePrefetcher;
 
 import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
@@ -272,6 +273,8 @@ public class PreProvisioningActivityControllerTest extends AndroidTestCase {
     private ManagedProvisioningSharedPreferences mSharedPreferences;
     @Mock
     private TelephonyManager mTelephonyManager;
+    @Mock
+    private PackagePrefetcher mPackagePrefetcher;
 
     private ProvisioningParams mParams;
     private PreProvisioningViewModel mViewModel;
@@ -355,7 +358,8 @@ public class PreProvisioningActivityControllerTest extends AndroidTestCase {
                 mViewModel,
                 (context, provisioningId) -> parcelables -> DISCLAIMERS_PARAM,
                 deviceManagementRoleHolderHelper,
-                roleHolderUpdaterHelper);
+                roleHolderUpdaterHelper,
+                mPackagePrefetcher);
     }
 
     public void testManagedProfile() throws Exception {
@@ -1103,6 +1107,59 @@ public class PreProvisioningActivityControllerTest extends AndroidTestCase {
         verify(mUi, never()).requestWifiPick();
     }
 
+    public void testInitiateProvisioning_downloadCacheEnabled_prefetchesDeviceAdmin() {
+        mockSpeculativePrefetchAllowed();
+        final ProvisioningParams params = createProvisioningParamsBuilderForInitiateProvisioning()
+                .setWifiInfo(new WifiInfo.Builder().setSsid(TEST_WIFI_SSID).build())
+                .build();
+
+        initiateProvisioning(params);
+
+        verify(mPackagePrefetcher).prefetch(PACKAGE_DOWNLOAD_INFO);
+    }
+
+    public void testInitiateProvisioning_downloadCacheDisabled_doesNotPrefetch() {
+        mockSpeculativePrefetchAllowed();
+        when(mUtils.isPackageDownloadCacheEnabled()).thenReturn(false);
+        final ProvisioningParams params = createProvisioningParamsBuilderForInitiateProvisioning()
+                .setWifiInfo(new WifiInfo.Builder().setSsid(TEST_WIFI_SSID).build())
+                .build();
+
+        initiateProvisioning(params);
+
+        verify(mPackagePrefetcher, never()).prefetch(any());
+    }
+
+    public void testInitiateProvisioning_notConnected_doesNotPrefetch() {
+        mockSpeculativePrefetchAllowed();
+        when(mUtils.isConnectedToNetwork(mContext)).thenReturn(false);
+        final ProvisioningParams params = createProvisioningParamsBuilderForInitiateProvisioning()
+                .setWifiInfo(new WifiInfo.Builder().setSsid(TEST_WIFI_SSID).build())
+                .build();
+
+        initiateProvisioning(params);
+
+        verify(mPackagePrefetcher, never()).prefetch(any());
+    }
+
+    public void testCancelSpeculativePrefetch_cancelsPrefetch() {
+        mockSpeculativePrefetchAllowed();
+        final ProvisioningParams params = createProvisioningParamsBuilderForInitiateProvisioning()
+                .setWifiInfo(new WifiInfo.Builder().setSsid(TEST_WIFI_SSID).build())
+                .build();
+        initiateProvisioning(params);
+
+        mController.cancelSpeculativePrefetch();
+
+        verify(mPackagePrefetcher).cancel(PACKAGE_DOWNLOAD_INFO);
+    }
+
+    public void testCancelSpeculativePrefetch_nothingPrefetched_doesNothing() {
+        mController.cancelSpeculativePrefetch();
+
+        verify(mPackagePrefetcher, never()).cancel(any());
+    }
+
     public void
             testGetAdditionalExtrasForGetProvisioningModeIntent_orgDevice_exactExtras() {
         final ProvisioningParams params = createProvisioningParamsBuilderForInitiateProvisioning()
@@ -2048,6 +2105,12 @@ public class PreProvisioningActivityControllerTest extends AndroidTestCase {
                 .setDeviceAdminComponentName(TEST_MDM_COMPONENT_NAME);
     }
 
+    private void mockSpeculativePrefetchAllowed() {
+        when(mUtils.isPackageDownloadCacheEnabled()).thenReturn(true);
+        when(mUtils.isConnectedToNetwork(mContext)).thenReturn(true);
+        when(mUtils.packageRequiresUpdate(anyString(), anyInt(), eq(mContext))).thenReturn(true);
+    }
+
     private void initiateProvisioning(ProvisioningParams params) {
         try {
             when(mMessageParser.parse(any(Intent.class))).thenReturn(params);
@@ -0,0 +1,276 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.managedprovisioning.provisioning;
+
+import static android.app.admin.DevicePolicyManager.ACTION_PROVISION_MANAGED_DEVICE;
+
+import static com.android.managedprovisioning.provisioning.AbstractProvisioningController.MSG_RUN_TASK;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Message;
+
+import androidx.test.InstrumentationRegistry;
+import androidx.test.filters.SmallTest;
+
+import com.android.managedprovisioning.model.ProvisioningParams;
+import com.android.managedprovisioning.task.AbstractProvisioningTask;
+import com.android.managedprovisioning.task.MockTask;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Unit tests for the task scheduling of {@link AbstractProvisioningController}.
+ */
+@SmallTest
+public class AbstractProvisioningControllerTest {
+
+    private static final int USER_ID = 0;
+    private static final Context sContext = InstrumentationRegistry.getTargetContext();
+    private static final ProvisioningParams PARAMS = new ProvisioningParams.Builder()
+            .setDeviceAdminComponentName(new ComponentName("com.test.admin", ".Receiver"))
+            .setProvisioningAction(ACTION_PROVISION_MANAGED_DEVICE)
+            .build();
+
+    private final ProvisioningControllerCallback mCallback =
+            mock(ProvisioningControllerCallback.class);
+    private HandlerThread mHandlerThread;
+    private RecordingTaskHandler mHandler;
+    private TestController mController;
+
+    @Before
+    public void setUp() {
+        mHandlerThread = new HandlerThread("TestHandler");
+        mHandlerThread.start();
+        mHandler = new RecordingTaskHandler(mHandlerThread.getLooper());
+        mController = new TestController();
+    }
+
+    @After
+    public void tearDown() {
+        mHandlerThread.quitSafely();
+    }
+
+    @Test
+    public void addTasks_runsSequentially() throws Exception {
+        AbstractProvisioningTask first = createTask();
+        AbstractProvisioningTask second = createTask();
+        mController.addTasks(first, second);
+
+        mController.start(mHandler);
+
+        assertThat(mHandler.nextTask()).isSameInstanceAs(first);
+        assertThat(mHandler.nextTask()).isNull();
+        mController.onSuccess(first);
+        assertThat(mHandler.nextTask()).isSameInstanceAs(second);
+        mController.onSuccess(second);
+        verify(mCallback).provisioningTasksCompleted();
+    }
+
+    @Test
+    public void addTask_independentTasks_runConcurrently() throws Exception {
+        AbstractProvisioningTask root = createTask();
+        AbstractProvisioningTask left = createTask();
+        AbstractProvisioningTask right = createTask();
+        AbstractProvisioningTask join = createTask();
+        mController.addTasks(root);
+        mController.addTask(left, root);
+        mController.addTask(right, root);
+        mController.addTask(join, left, right);
+
+        mController.start(mHandler);
+        assertThat(mHandler.nextTask()).isSameInstanceAs(root);
+        mController.onSuccess(root);
+
+        List<AbstractProvisioningTask> started = new ArrayList<>();
+        started.add(mHandler.nextTask());
+        started.add(mHandler.nextTask());
+        assertThat(started).containsExactly(left, right);
+
+        mController.onSuccess(right);
+        assertThat(mHandler.nextTask()).isNull();
+        mController.onSuccess(left);
+        assertThat(mHandler.nextTask()).isSameInstanceAs(join);
+        mController.onSuccess(join);
+        verify(mCallback).provisioningTasksCompleted();
+    }
+
+    @Test
+    public void addTask_backgroundTasks_overlap() {
+        CountDownLatch started = new CountDownLatch(2);
+        // Each task only succeeds once the other one started too, so both must be in flight at
+        // the same time.
+        Consumer<AbstractProvisioningTask> body = task -> {
+            started.countDown();
+            try {
+                if (started.await(5, TimeUnit.SECONDS)) {
+                    mController.onSuccess(task);
+                    return;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            mController.onError(task, /* errorCode= */ 0, /* errorMessage= */ null);
+        };
+        mController.addTask(new MockTask(sContext, PARAMS, mController, body,
+                /* canRunInBackground= */ true));
+        mController.addTask(new MockTask(sContext, PARAMS, mController, body,
+                /* canRunInBackground= */ true));
+
+        mController.start(mHandlerThread.getLooper());
+
+        verify(mCallback, timeout(10_000)).provisioningTasksCompleted();
+        verify(mCallback, never()).error(anyInt(), anyInt(), anyBoolean());
+    }
+
+    @Test
+    public void addTask_limitsTasksInFlight() throws Exception {
+        for (int i = 0; i <= AbstractProvisioningController.MAX_CONCURRENT_TASKS; i++) {
+            mController.addTask(createTask());
+        }
+
+        mController.start(mHandler);
+
+        for (int i = 0; i < AbstractProvisioningController.MAX_CONCURRENT_TASKS; i++) {
+            assertThat(mHandler.nextTask()).isNotNull();
+        }
+        assertThat(mHandler.nextTask()).isNull();
+    }
+
+    @Test
+    public void addTask_unknownPrerequisite_throws() {
+        try {
+            mController.addTask(createTask(), createTask());
+            throw new AssertionError("Expected IllegalArgumentException");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    @Test
+    public void onError_concurrentTasks_firstErrorWins() throws Exception {
+        AbstractProvisioningTask first = createTask();
+        AbstractProvisioningTask second = createTask();
+        mController.addTask(first);
+        mController.addTask(second);
+        mController.start(mHandler);
+        mHandler.nextTask();
+        mHandler.nextTask();
+
+        mController.onError(first, /* errorCode= */ 0, /* errorMessage= */ null);
+        mController.onError(second, /* errorCode= */ 0, /* errorMessage= */ null);
+
+        verify(mCallback, times(1)).error(anyInt(), anyInt(), anyBoolean());
+        verify(mCallback, never()).provisioningTasksCompleted();
+    }
+
+    @Test
+    public void onSuccess_taskNotRunning_ignored() throws Exception {
+        AbstractProvisioningTask first = createTask();
+        AbstractProvisioningTask second = createTask();
+        mController.addTasks(first, second);
+        mController.start(mHandler);
+        mHandler.nextTask();
+
+        mController.onSuccess(second);
+
+        assertThat(mHandler.nextTask()).isNull();
+        verify(mCallback, never()).provisioningTasksCompleted();
+    }
+
+    @Test
+    public void onError_whileCancelling_reported() throws Exception {
+        AbstractProvisioningTask task = createTask();
+        mController.addTasks(task);
+        mController.start(mHandler);
+        mHandler.nextTask();
+        mController.cancel();
+
+        mController.onError(task, /* errorCode= */ 0, /* errorMessage= */ null);
+
+        verify(mCallback).error(anyInt(), anyInt(), anyBoolean());
+    }
+
+    private AbstractProvisioningTask createTask() {
+        return new MockTask(sContext, PARAMS, mController, task -> {});
+    }
+
+    private class TestController extends AbstractProvisioningController {
+        TestController() {
+            super(sContext, PARAMS, USER_ID, mCallback);
+        }
+
+        @Override
+        protected void setUpTasks() {}
+
+        @Override
+        protected int getErrorTitle() {
+            return 0;
+        }
+
+        @Override
+        protected int getErrorMsgId(AbstractProvisioningTask task, int errorCode) {
+            return 0;
+        }
+
+        @Override
+        protected boolean getRequireFactoryReset(AbstractProvisioningTask task, int errorCode) {
+            return false;
+        }
+    }
+
+    private static class RecordingTaskHandler extends Handler {
+        private final LinkedBlockingQueue<AbstractProvisioningTask> mTasks =
+                new LinkedBlockingQueue<>();
+
+        RecordingTaskHandler(Looper looper) {
+            super(looper);
+        }
+
+        AbstractProvisioningTask nextTask() throws InterruptedException {
+            return mTasks.poll(1, TimeUnit.SECONDS);
+        }
+
+        @Override
+        public void handleMessage(Message msg) {
+            if (msg.what == MSG_RUN_TASK) {
+                mTasks.add((AbstractProvisioningTask) msg.obj);
+            }
+        }
+    }
+}
@@ -39,6 +39,7 @@ import com.android.managedprovisioning.task.ConnectMobileNetworkTask;
 import com.android.managedprovisioning.task.DownloadPackageTask;
 import com.android.managedprovisioning.task.ProvisionFullyManagedDeviceTask;
 import com.android.managedprovisioning.task.VerifyAdminPackageTask;
+import com.android.managedprovisioning.task.WarmUpConnectionTask;
 
 import org.mockito.Mock;
 
@@ -87,6 +88,9 @@ public class DeviceOwnerProvisioningControllerTest extends ProvisioningControlle
         // THEN the add wifi task should be run
         taskSucceeded(AddWifiNetworkTask.class);
 
+        // THEN the warm up connection task should be run on the connected network
+        taskSucceeded(WarmUpConnectionTask.class);
+
         // THEN the download package task should be run
         taskSucceeded(DownloadPackageTask.class);
 
@@ -111,6 +115,9 @@ public class DeviceOwnerProvisioningControllerTest extends ProvisioningControlle
         // WHEN starting the test run
         mController.start(mHandler);
 
+        // THEN the warm up connection task should be run
+        taskSucceeded(WarmUpConnectionTask.class);
+
         // THEN the download package task should be run
         taskSucceeded(DownloadPackageTask.class);
 
@@ -175,6 +182,9 @@ public class DeviceOwnerProvisioningControllerTest extends ProvisioningControlle
         // THEN the add wifi task should be run
         taskSucceeded(AddWifiNetworkTask.class);
 
+        // THEN the warm up connection task should be run on the connected network
+        taskSucceeded(WarmUpConnectionTask.class);
+
         // THEN the download package task should be run
         AbstractProvisioningTask task = verifyTaskRun(DownloadPackageTask.class);
 
@@ -202,6 +212,7 @@ public class DeviceOwnerProvisioningControllerTest extends ProvisioningControlle
                 createProvisioningParamsBuilder().setWifiInfo(null).setUseMobileData(true).build());
         mController.start(mHandler);
         taskSucceeded(ConnectMobileNetworkTask.class);
+        taskSucceeded(WarmUpConnectionTask.class);
     }
 
     @SmallTest
@@ -214,6 +225,7 @@ public class DeviceOwnerProvisioningControllerTest extends ProvisioningControlle
                         .build());
         mController.start(mHandler);
         taskSucceeded(AddWifiNetworkTask.class);
+        taskSucceeded(WarmUpConnectionTask.class);
     }
 
     private void createController(ProvisioningParams params) {
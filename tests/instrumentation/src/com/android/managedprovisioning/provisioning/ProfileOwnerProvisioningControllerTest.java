@@ -21,9 +21,7 @@ import static android.app.admin.DevicePolicyManager.ACTION_PROVISION_MANAGED_PRO
 import static org.mockito.ArgumentMatchers.anyInt;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.doAnswer;
-import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.verify;
-import static org.mockito.Mockito.when;
 
 import android.content.ComponentName;
 import android.content.Context;
@@ -51,7 +49,6 @@ import java.util.concurrent.TimeUnit;
 public class ProfileOwnerProvisioningControllerTest extends ProvisioningControllerBaseTest {
 
     private static final int TEST_PARENT_USER_ID = 1;
-    private static final int TEST_PROFILE_USER_ID = 2;
     private static final ComponentName TEST_ADMIN = new ComponentName("com.test.admin",
             "com.test.admin.AdminReceiver");
     private static final ProvisioningParams PROVISIONING_PARAMS = new ProvisioningParams.Builder()
@@ -78,14 +75,8 @@ public class ProfileOwnerProvisioningControllerTest extends ProvisioningControll
         mController.start(mHandler);
 
         // THEN the create and provision managed profile task is run
-        verifyTaskRun(CreateAndProvisionManagedProfileTask.class);
-
         // WHEN the task completes successfully
-        CreateAndProvisionManagedProfileTask createAndProvisionManagedProfileTask = mock(
-                CreateAndProvisionManagedProfileTask.class);
-        when(createAndProvisionManagedProfileTask.getProfileUserId()).thenReturn(
-                TEST_PROFILE_USER_ID);
-        mController.onSuccess(createAndProvisionManagedProfileTask);
+        taskSucceeded(CreateAndProvisionManagedProfileTask.class);
 
         // THEN the provisioning complete callback should have happened
         verify(mCallback).provisioningTasksCompleted();
@@ -32,8 +32,8 @@ import com.android.managedprovisioning.task.InstallPackageTask;
 
 import org.mockito.MockitoAnnotations;
 
-import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -93,8 +93,10 @@ public abstract class ProvisioningControllerBaseTest extends AndroidTestCase {
             super(looper);
         }
 
+        // Tasks without dependencies between them are run at the same time, in the order they
+        // were added.
         private BlockingQueue<AbstractProvisioningTask> mBlockingQueue
-                = new ArrayBlockingQueue<>(1);
+                = new LinkedBlockingQueue<>();
 
         public AbstractProvisioningTask getLastTask() throws Exception {
             return mBlockingQueue.poll(10, TimeUnit.SECONDS);
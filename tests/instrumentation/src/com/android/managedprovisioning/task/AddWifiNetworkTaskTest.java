@@ -23,14 +23,28 @@ import static com.android.managedprovisioning.task.AddWifiNetworkTask.ADD_NETWOR
 import static junit.framework.Assert.assertTrue;
 
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+import android.content.BroadcastReceiver;
 import android.content.ComponentName;
 import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
 import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
 import android.net.wifi.WifiConfiguration;
 import android.net.wifi.WifiManager;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.Looper;
 
 import androidx.test.filters.SmallTest;
@@ -44,6 +58,7 @@ import com.android.managedprovisioning.task.wifi.WifiConfigurationProvider;
 
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 
@@ -67,6 +82,15 @@ public class AddWifiNetworkTaskTest {
             .setWifiInfo(new WifiInfo.Builder().setSsid(TEST_SSID).build())
             .build();
     private static final int ADD_NETWORK_OK = 0;
+    private static final AddWifiNetworkTask.RetryPolicy TEST_RETRY_POLICY =
+            new AddWifiNetworkTask.RetryPolicy(/* addNetworkRetries= */ 6,
+                    /* addNetworkInitialDelayMs= */ 1, /* addNetworkDelayMultiplier= */ 2,
+                    /* reconnectRetryDelayMs= */ 60_000, /* connectTimeoutMs= */ 60_000);
+    private static final AddWifiNetworkTask.RetryPolicy SLOW_RETRY_POLICY =
+            new AddWifiNetworkTask.RetryPolicy(/* addNetworkRetries= */ 6,
+                    /* addNetworkInitialDelayMs= */ 3_600_000, /* addNetworkDelayMultiplier= */ 2,
+                    /* reconnectRetryDelayMs= */ 3_600_000, /* connectTimeoutMs= */ 3_600_000);
+    private static final long TIMEOUT_MS = 5_000;
 
     @Mock private Context mContext;
     @Mock private ConnectivityManager mConnectivityManager;
@@ -76,7 +100,6 @@ public class AddWifiNetworkTaskTest {
     @Mock private AbstractProvisioningTask.Callback mCallback;
     @Mock private Utils mUtils;
     @Mock private android.net.wifi.WifiInfo mWifiInfo;
-    @Mock private AddWifiNetworkTask.Injector mTestInjector;
     @Mock private ProvisioningAnalyticsTracker mProvisioningAnalyticsTracker;
 
     private AddWifiNetworkTask mTask;
@@ -95,7 +118,7 @@ public class AddWifiNetworkTaskTest {
     public void testNoWifiInfo() {
         // GIVEN that no wifi info was passed in the parameter
         mTask = new AddWifiNetworkTask(mNetworkMonitor, mWifiConfigurationProvider, mContext,
-                NO_WIFI_INFO_PARAMS, mCallback, mUtils, mTestInjector,
+                NO_WIFI_INFO_PARAMS, mCallback, mUtils, TEST_RETRY_POLICY,
                 mProvisioningAnalyticsTracker);
 
         // WHEN running the task
@@ -109,7 +132,8 @@ public class AddWifiNetworkTaskTest {
     public void testWifiManagerNull() {
         // GIVEN that wifi info was passed in the parameter
         mTask = new AddWifiNetworkTask(mNetworkMonitor, mWifiConfigurationProvider, mContext,
-                WIFI_INFO_PARAMS, mCallback, mUtils, mTestInjector, mProvisioningAnalyticsTracker);
+                WIFI_INFO_PARAMS, mCallback, mUtils, TEST_RETRY_POLICY,
+                mProvisioningAnalyticsTracker);
 
         // GIVEN that mWifiManager is null
         when(mContext.getSystemService(Context.WIFI_SERVICE)).thenReturn(null);
@@ -125,7 +149,8 @@ public class AddWifiNetworkTaskTest {
     public void testFailToEnableWifi() {
         // GIVEN that wifi info was passed in the parameter
         mTask = new AddWifiNetworkTask(mNetworkMonitor, mWifiConfigurationProvider, mContext,
-                WIFI_INFO_PARAMS, mCallback, mUtils, mTestInjector, mProvisioningAnalyticsTracker);
+                WIFI_INFO_PARAMS, mCallback, mUtils, TEST_RETRY_POLICY,
+                mProvisioningAnalyticsTracker);
 
         // GIVEN that wifi is not enabled
         when(mWifiManager.isWifiEnabled()).thenReturn(false);
@@ -144,7 +169,8 @@ public class AddWifiNetworkTaskTest {
     public void testIsConnectedToSpecifiedWifiTrue() {
         // GIVEN that wifi info was passed in the parameter
         mTask = new AddWifiNetworkTask(mNetworkMonitor, mWifiConfigurationProvider, mContext,
-                WIFI_INFO_PARAMS, mCallback, mUtils, mTestInjector, mProvisioningAnalyticsTracker);
+                WIFI_INFO_PARAMS, mCallback, mUtils, TEST_RETRY_POLICY,
+                mProvisioningAnalyticsTracker);
 
         // GIVEN that wifi is enabled
         when(mWifiManager.isWifiEnabled()).thenReturn(true);
@@ -167,7 +193,8 @@ public class AddWifiNetworkTaskTest {
     public void testNoWifiInfoInProvider() {
         // GIVEN that wifi info was passed in the parameter
         mTask = new AddWifiNetworkTask(mNetworkMonitor, mWifiConfigurationProvider, mContext,
-                WIFI_INFO_PARAMS, mCallback, mUtils, mTestInjector, mProvisioningAnalyticsTracker);
+                WIFI_INFO_PARAMS, mCallback, mUtils, TEST_RETRY_POLICY,
+                mProvisioningAnalyticsTracker);
 
         // GIVEN that wifi is enabled
         when(mWifiManager.isWifiEnabled()).thenReturn(true);
@@ -195,7 +222,8 @@ public class AddWifiNetworkTaskTest {
 
         // GIVEN that wifi info was passed in the parameter
         mTask = new AddWifiNetworkTask(mNetworkMonitor, mWifiConfigurationProvider, mContext,
-                WIFI_INFO_PARAMS, mCallback, mUtils, mTestInjector, mProvisioningAnalyticsTracker);
+                WIFI_INFO_PARAMS, mCallback, mUtils, TEST_RETRY_POLICY,
+                mProvisioningAnalyticsTracker);
 
         // GIVEN that wifi is enabled
         when(mWifiManager.isWifiEnabled()).thenReturn(true);
@@ -214,18 +242,65 @@ public class AddWifiNetworkTaskTest {
         // GIVEN addNetwork always fail
         when(mWifiManager.addNetwork(any())).thenReturn(ADD_NETWORK_FAIL);
 
+        // WHEN running the task on a thread with a looper, which runs the retries
+        HandlerThread thread = new HandlerThread("AddWifiNetworkTaskTest");
+        thread.start();
+        new Handler(thread.getLooper()).post(() -> mTask.run(TEST_USER_ID));
+
+        // THEN error should be called once all the retries failed
+        verify(mCallback, timeout(TIMEOUT_MS)).onError(mTask, 0, /* errorMessage= */ null);
+        verify(mWifiManager, times(7)).addNetwork(any());
+        verify(mContext).unregisterReceiver(any());
+        thread.quitSafely();
+    }
+
+    @Test
+    public void testWifiEnabledBroadcast_retriesAddingNetworkImmediately() {
+        // GIVEN that wifi info was passed in the parameter and retries are far apart
+        mTask = new AddWifiNetworkTask(mNetworkMonitor, mWifiConfigurationProvider, mContext,
+                WIFI_INFO_PARAMS, mCallback, mUtils, SLOW_RETRY_POLICY,
+                mProvisioningAnalyticsTracker);
+
+        // GIVEN that wifi is enabled and not connected to the network
+        when(mWifiManager.isWifiEnabled()).thenReturn(true);
+        when(mWifiManager.getConnectionInfo()).thenReturn(mWifiInfo);
+        when(mWifiInfo.getSSID()).thenReturn(TEST_SSID_2);
+        when(mWifiConfigurationProvider.generateWifiConfiguration(any()))
+                .thenReturn(new WifiConfiguration());
+
+        // GIVEN addNetwork fails once, then succeeds
+        when(mWifiManager.addNetwork(any())).thenReturn(ADD_NETWORK_FAIL, ADD_NETWORK_OK);
+        when(mWifiManager.reconnect()).thenReturn(true);
+
         // WHEN running the task
         runTask();
 
-        // THEN error should be called
-        verify(mCallback).onError(mTask, 0, /* errorMessage= */ null);
+        // THEN the network is not added yet
+        verify(mWifiManager, times(1)).addNetwork(any());
+        verify(mWifiManager, never()).enableNetwork(anyInt(), anyBoolean());
+
+        // WHEN wifi is reported as enabled
+        ArgumentCaptor<BroadcastReceiver> receiverCaptor =
+                ArgumentCaptor.forClass(BroadcastReceiver.class);
+        verify(mContext).registerReceiver(receiverCaptor.capture(), any(IntentFilter.class),
+                any(), any(Handler.class));
+        receiverCaptor.getValue().onReceive(mContext,
+                new Intent(WifiManager.WIFI_STATE_CHANGED_ACTION)
+                        .putExtra(WifiManager.EXTRA_WIFI_STATE, WifiManager.WIFI_STATE_ENABLED));
+
+        // THEN adding the network is retried right away and the network is connected to
+        verify(mWifiManager, times(2)).addNetwork(any());
+        verify(mWifiManager).enableNetwork(ADD_NETWORK_OK, true);
+        verify(mWifiManager).reconnect();
+        verify(mCallback, never()).onError(any(), anyInt(), any());
     }
 
     @Test
     public void testFailingToReconnectAfterAddingNetwork() {
         // GIVEN that wifi info was passed in the parameter
         mTask = new AddWifiNetworkTask(mNetworkMonitor, mWifiConfigurationProvider, mContext,
-                WIFI_INFO_PARAMS, mCallback, mUtils, mTestInjector, mProvisioningAnalyticsTracker);
+                WIFI_INFO_PARAMS, mCallback, mUtils, TEST_RETRY_POLICY,
+                mProvisioningAnalyticsTracker);
 
         // GIVEN that wifi is enabled
         when(mWifiManager.isWifiEnabled()).thenReturn(true);
@@ -261,7 +336,8 @@ public class AddWifiNetworkTaskTest {
     public void testReconnectAfterAddingNetworkSuccess() {
         // GIVEN that wifi info was passed in the parameter
         mTask = new AddWifiNetworkTask(mNetworkMonitor, mWifiConfigurationProvider, mContext,
-                WIFI_INFO_PARAMS, mCallback, mUtils, mTestInjector, mProvisioningAnalyticsTracker);
+                WIFI_INFO_PARAMS, mCallback, mUtils, TEST_RETRY_POLICY,
+                mProvisioningAnalyticsTracker);
 
         // GIVEN that wifi is enabled
         when(mWifiManager.isWifiEnabled()).thenReturn(true);
@@ -296,6 +372,82 @@ public class AddWifiNetworkTaskTest {
         verify(mCallback).onSuccess(mTask);
     }
 
+    @Test
+    public void testDisconnectedBroadcast_reconnects() {
+        // GIVEN that wifi info was passed in the parameter
+        mTask = new AddWifiNetworkTask(mNetworkMonitor, mWifiConfigurationProvider, mContext,
+                WIFI_INFO_PARAMS, mCallback, mUtils, TEST_RETRY_POLICY,
+                mProvisioningAnalyticsTracker);
+
+        // GIVEN that wifi is enabled and not connected to the network
+        when(mWifiManager.isWifiEnabled()).thenReturn(true);
+        when(mWifiManager.getConnectionInfo()).thenReturn(mWifiInfo);
+        when(mWifiInfo.getSSID()).thenReturn(TEST_SSID_2);
+        when(mWifiConfigurationProvider.generateWifiConfiguration(any()))
+                .thenReturn(new WifiConfiguration());
+
+        // GIVEN addNetwork and reconnect OK
+        when(mWifiManager.addNetwork(any())).thenReturn(ADD_NETWORK_OK);
+        when(mWifiManager.reconnect()).thenReturn(true);
+
+        // WHEN running the task on a thread with a looper
+        HandlerThread thread = new HandlerThread("AddWifiNetworkTaskTest");
+        thread.start();
+        Handler handler = new Handler(thread.getLooper());
+        handler.post(() -> mTask.run(TEST_USER_ID));
+        ArgumentCaptor<BroadcastReceiver> receiverCaptor =
+                ArgumentCaptor.forClass(BroadcastReceiver.class);
+        verify(mContext, timeout(TIMEOUT_MS)).registerReceiver(receiverCaptor.capture(),
+                any(IntentFilter.class), any(), any(Handler.class));
+        verify(mWifiManager, timeout(TIMEOUT_MS)).reconnect();
+
+        // WHEN wifi reports a disconnection
+        NetworkInfo networkInfo = mock(NetworkInfo.class);
+        when(networkInfo.getState()).thenReturn(NetworkInfo.State.DISCONNECTED);
+        handler.post(() -> receiverCaptor.getValue().onReceive(mContext,
+                new Intent(WifiManager.NETWORK_STATE_CHANGED_ACTION)
+                        .putExtra(WifiManager.EXTRA_NETWORK_INFO, networkInfo)));
+
+        // THEN the network is connected to again, and the attempt is reported
+        verify(mWifiManager, timeout(TIMEOUT_MS).times(2)).reconnect();
+        verify(mWifiManager, times(2)).enableNetwork(ADD_NETWORK_OK, true);
+        verify(mProvisioningAnalyticsTracker).logWifiReconnectAttempt(eq(mContext), anyLong());
+        verify(mCallback, never()).onError(any(), anyInt(), any());
+        thread.quitSafely();
+    }
+
+    @Test
+    public void testConnected_reportsAttempts() {
+        // GIVEN that wifi info was passed in the parameter
+        mTask = new AddWifiNetworkTask(mNetworkMonitor, mWifiConfigurationProvider, mContext,
+                WIFI_INFO_PARAMS, mCallback, mUtils, TEST_RETRY_POLICY,
+                mProvisioningAnalyticsTracker);
+
+        // GIVEN that wifi is enabled and not connected to the network yet
+        when(mWifiManager.isWifiEnabled()).thenReturn(true);
+        when(mUtils.isNetworkTypeConnected(mContext, ConnectivityManager.TYPE_WIFI))
+                .thenReturn(true);
+        when(mWifiManager.getConnectionInfo()).thenReturn(mWifiInfo);
+        when(mWifiInfo.getSSID()).thenReturn(TEST_SSID_2);
+        when(mWifiConfigurationProvider.generateWifiConfiguration(any()))
+                .thenReturn(new WifiConfiguration());
+
+        // GIVEN addNetwork and reconnect OK
+        when(mWifiManager.addNetwork(any())).thenReturn(ADD_NETWORK_OK);
+        when(mWifiManager.reconnect()).thenReturn(true);
+
+        // WHEN running the task and connecting to the network
+        runTask();
+        when(mWifiInfo.getSSID()).thenReturn(TEST_SSID);
+        mTask.onNetworkConnected();
+
+        // THEN the attempts are reported
+        verify(mCallback).onSuccess(mTask);
+        verify(mProvisioningAnalyticsTracker).logWifiAddNetworkAttempt(eq(mContext), anyLong());
+        verify(mProvisioningAnalyticsTracker).logWifiConnectAttempts(mContext,
+                /* addNetworkAttempts= */ 1, /* reconnectAttempts= */ 0);
+    }
+
     private void runTask() {
         if (Looper.myLooper() == null) {
             Looper.prepare();
@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.managedprovisioning.task;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.content.Context;
+import android.content.pm.PackageInfo;
+import android.content.pm.Signature;
+
+import androidx.test.InstrumentationRegistry;
+import androidx.test.filters.LargeTest;
+
+import com.android.managedprovisioning.common.Utils;
+import com.android.managedprovisioning.testcommon.BenchmarkRunner;
+import com.android.managedprovisioning.testcommon.BenchmarkTest;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Measures the package and signature checks of {@link ChecksumUtils} as run by the verify
+ * tasks, for package sizes from a small DPC up to a large role holder.
+ *
+ * <p>The average time per check is logged under the {@link #TAG} tag.
+ */
+@BenchmarkTest
+@LargeTest
+public class ChecksumUtilsBenchmark {
+    private static final String TAG = "ChecksumUtilsBenchmark";
+    private static final Context sContext = InstrumentationRegistry.getTargetContext();
+    private static final int[] FILE_SIZES_KB = {256, 4 * 1024, 32 * 1024};
+    private static final int WARMUP_ITERATIONS = 2;
+    private static final int MEASURED_ITERATIONS = 10;
+    private static final int SIGNATURE_COUNT = 3;
+    private static final int SIGNATURE_SIZE = 1500;
+
+    private final BenchmarkRunner mRunner =
+            new BenchmarkRunner(TAG, WARMUP_ITERATIONS, MEASURED_ITERATIONS);
+    private final Utils mUtils = new Utils();
+    private final ChecksumUtils mChecksumUtils = new ChecksumUtils(mUtils);
+    private File mFile;
+
+    @Before
+    public void setUp() throws IOException {
+        mFile = File.createTempFile("checksum_benchmark", ".apk", sContext.getCacheDir());
+    }
+
+    @After
+    public void tearDown() {
+        mFile.delete();
+    }
+
+    @Test
+    public void benchmarkPackageHash() throws Exception {
+        for (int sizeKb : FILE_SIZES_KB) {
+            writeRandomFile(sizeKb * 1024);
+            byte[] checksum = mUtils.computeHashOfFile(mFile.getPath(), Utils.SHA256_TYPE);
+
+            assertThat(mChecksumUtils.doesPackageHashMatch(mFile.getPath(), checksum)).isTrue();
+            mRunner.measureThroughput("package " + sizeKb + " KiB", mFile.length(),
+                    () -> mChecksumUtils.doesPackageHashMatch(mFile.getPath(), checksum));
+        }
+    }
+
+    @Test
+    public void benchmarkSignatureHash() throws Exception {
+        Random random = new Random(SIGNATURE_SIZE);
+        PackageInfo packageInfo = new PackageInfo();
+        packageInfo.signatures = new Signature[SIGNATURE_COUNT];
+        for (int i = 0; i < SIGNATURE_COUNT; i++) {
+            byte[] signature = new byte[SIGNATURE_SIZE];
+            random.nextBytes(signature);
+            packageInfo.signatures[i] = new Signature(signature);
+        }
+        // The last signature matches, so that every signature is hashed.
+        byte[] checksum = mUtils.computeHashOfByteArray(
+                packageInfo.signatures[SIGNATURE_COUNT - 1].toByteArray());
+
+        assertThat(mChecksumUtils.doesASignatureHashMatch(packageInfo, checksum)).isTrue();
+        mRunner.measure(SIGNATURE_COUNT + " signatures",
+                () -> mChecksumUtils.doesASignatureHashMatch(packageInfo, checksum));
+    }
+
+    private void writeRandomFile(int size) throws IOException {
+        byte[] chunk = new byte[64 * 1024];
+        Random random = new Random(size);
+        try (FileOutputStream out = new FileOutputStream(mFile)) {
+            for (int written = 0; written < size; written += chunk.length) {
+                random.nextBytes(chunk);
+                out.write(chunk, 0, Math.min(chunk.length, size - written));
+            }
+        }
+    }
+}
@@ -38,6 +38,7 @@ import androidx.test.filters.SmallTest;
 
 import com.android.managedprovisioning.analytics.ProvisioningAnalyticsTracker;
 import com.android.managedprovisioning.model.ProvisioningParams;
+import com.android.managedprovisioning.task.nonrequiredapps.BatchPackageDeleter;
 import com.android.managedprovisioning.task.nonrequiredapps.NonRequiredAppsLogic;
 
 import org.junit.Before;
@@ -45,9 +46,11 @@ import org.junit.Test;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 
 @SmallTest
@@ -164,6 +167,9 @@ public class DeleteNonRequiredAppsTaskTest {
         // THEN error should be returned
         verify(mCallback).onError(mTask, 0, /* errorMessage= */ null);
         verifyNoMoreInteractions(mCallback);
+
+        // THEN the deletion should have been retried
+        assertEquals(BatchPackageDeleter.DEFAULT_MAX_ATTEMPTS, mPackageManager.mDeletionAttempts);
     }
 
     private <T> Set<T> setFromArray(T... array) {
@@ -180,6 +186,7 @@ public class DeleteNonRequiredAppsTaskTest {
 
     class FakePackageManager extends MockPackageManager {
         private boolean mDeletionSucceeds = true;
+        private int mDeletionAttempts;
         private Set<String> mInstalledApps = new HashSet<>();
 
         void setDeletionSucceeds(boolean deletionSucceeds) {
@@ -205,7 +212,12 @@ public class DeleteNonRequiredAppsTaskTest {
             } else {
                 resultCode = PackageManager.DELETE_FAILED_INTERNAL_ERROR;
             }
-            assertTrue(mInstalledApps.remove(packageName));
+            if (mDeletionSucceeds) {
+                assertTrue(mInstalledApps.remove(packageName));
+            } else {
+                assertTrue(mInstalledApps.contains(packageName));
+                mDeletionAttempts++;
+            }
 
             try {
                 observer.packageDeleted(packageName, resultCode);
@@ -214,6 +226,20 @@ public class DeleteNonRequiredAppsTaskTest {
             }
         }
 
+        @Override
+        public List<PackageInfo> getInstalledPackagesAsUser(int flags, int userId) {
+            List<PackageInfo> result = new ArrayList<>();
+            if (userId != TEST_USER_ID) {
+                return result;
+            }
+            for (String packageName : mInstalledApps) {
+                PackageInfo packageInfo = new PackageInfo();
+                packageInfo.packageName = packageName;
+                result.add(packageInfo);
+            }
+            return result;
+        }
+
         @Override
         public PackageInfo getPackageInfoAsUser(String pkg, int flag, int userId)
                 throws NameNotFoundException {
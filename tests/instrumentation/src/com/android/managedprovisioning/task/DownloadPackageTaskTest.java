@@ -22,10 +22,14 @@ import static com.android.managedprovisioning.task.DownloadPackageTask.ERROR_DOW
 import static com.android.managedprovisioning.task.DownloadPackageTask.ERROR_OTHER;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
 import static org.mockito.Matchers.nullable;
 import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyNoMoreInteractions;
 import static org.mockito.Mockito.when;
@@ -48,6 +52,9 @@ import com.android.managedprovisioning.analytics.ProvisioningAnalyticsTracker;
 import com.android.managedprovisioning.common.Utils;
 import com.android.managedprovisioning.model.PackageDownloadInfo;
 import com.android.managedprovisioning.model.ProvisioningParams;
+import com.android.managedprovisioning.task.download.PackageDownloadCache;
+import com.android.managedprovisioning.task.download.PackagePrefetcher;
+import com.android.managedprovisioning.task.download.ResumableHttpDownloader;
 
 import org.junit.Before;
 import org.junit.Ignore;
@@ -56,6 +63,9 @@ import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 
+import java.io.File;
+import java.util.Collections;
+
 @SmallTest
 @FlakyTest // TODO: http://b/34117742
 public class DownloadPackageTaskTest {
@@ -63,6 +73,8 @@ public class DownloadPackageTaskTest {
     @Mock private AbstractProvisioningTask.Callback mCallback;
     @Mock private DownloadManager mDownloadManager;
     @Mock private Utils mUtils;
+    @Mock private PackageDownloadCache mCache;
+    @Mock private PackagePrefetcher mPrefetcher;
 
     private static final String TEST_PACKAGE_NAME = "sample.package.name";
     private static final String TEST_PACKAGE_LOCATION = "http://www.some.uri.com";
@@ -83,6 +95,13 @@ public class DownloadPackageTaskTest {
             .setDeviceAdminDownloadInfo(TEST_DOWNLOAD_INFO)
             .build();
 
+    private static final String TEST_SPLIT_LOCATION = "http://www.some.uri.com/split";
+    private static final byte[] TEST_SPLIT_CHECKSUM = new byte[] {'e', 'f', 'g', 'h'};
+    private static final PackageDownloadInfo TEST_SPLIT_INFO = new PackageDownloadInfo.Builder()
+            .setLocation(TEST_SPLIT_LOCATION)
+            .setPackageChecksum(TEST_SPLIT_CHECKSUM)
+            .build();
+
     private DownloadPackageTask mTask;
 
     @Before
@@ -93,13 +112,7 @@ public class DownloadPackageTaskTest {
         when(mUtils.packageRequiresUpdate(TEST_PACKAGE_NAME, PACKAGE_VERSION, mContext))
                 .thenReturn(true);
 
-        mTask = new DownloadPackageTask(
-                mUtils,
-                mContext,
-                PARAMS,
-                TEST_DOWNLOAD_INFO,
-                mCallback,
-                mock(ProvisioningAnalyticsTracker.class));
+        mTask = createTask();
     }
 
     @Test
@@ -191,6 +204,144 @@ public class DownloadPackageTaskTest {
         verifyNoMoreInteractions(mCallback);
     }
 
+    @Test
+    public void testPackageVerified_cacheEnabled_marksCachedPackageVerified() {
+        when(mUtils.isPackageDownloadCacheEnabled()).thenReturn(true);
+        mTask = createTask();
+
+        mTask.onPackageVerified(/* verified= */ true);
+
+        verify(mCache).markVerified(TEST_DOWNLOAD_INFO);
+    }
+
+    @Test
+    public void testPackageNotVerified_cacheEnabled_evictsCachedPackage() {
+        when(mUtils.isPackageDownloadCacheEnabled()).thenReturn(true);
+        mTask = createTask();
+
+        mTask.onPackageVerified(/* verified= */ false);
+
+        verify(mCache).evict(TEST_DOWNLOAD_INFO);
+    }
+
+    @Test
+    public void testReleasePackageLocation_cacheEnabled_keepsAndUnpinsPackage() throws Exception {
+        when(mUtils.isPackageDownloadCacheEnabled()).thenReturn(true);
+        mTask = createTask();
+        File packageFile = File.createTempFile("cached", ".apk");
+
+        mTask.releasePackageLocation(packageFile);
+
+        assertTrue(packageFile.exists());
+        verify(mCache).unpin(TEST_DOWNLOAD_INFO);
+        packageFile.delete();
+    }
+
+    @Test
+    public void testReleasePackageLocation_cacheDisabled_deletesPackage() throws Exception {
+        File packageFile = File.createTempFile("downloaded", ".apk");
+
+        mTask.releasePackageLocation(packageFile);
+
+        assertFalse(packageFile.exists());
+    }
+
+    @Test
+    public void testCleanUp_cacheEnabled_stopsWaitingForDownload() {
+        when(mUtils.isPackageDownloadCacheEnabled()).thenReturn(true);
+        doReturn(true).when(mUtils).isConnectedToNetwork(any(Context.class));
+        mTask = createTask();
+        runTask();
+        ArgumentCaptor<ResumableHttpDownloader.Listener> listener =
+                ArgumentCaptor.forClass(ResumableHttpDownloader.Listener.class);
+        verify(mPrefetcher).download(eq(TEST_DOWNLOAD_INFO), any(Handler.class),
+                listener.capture());
+
+        mTask.cleanUp();
+
+        verify(mPrefetcher).stopWaiting(TEST_DOWNLOAD_INFO, listener.getValue());
+    }
+
+    @Test
+    public void testDownloadComplete_cacheEnabled_reportsPackage() {
+        when(mUtils.isPackageDownloadCacheEnabled()).thenReturn(true);
+        doReturn(true).when(mUtils).isConnectedToNetwork(any(Context.class));
+        mTask = createTask();
+        runTask();
+        ArgumentCaptor<ResumableHttpDownloader.Listener> listener =
+                ArgumentCaptor.forClass(ResumableHttpDownloader.Listener.class);
+        verify(mPrefetcher).download(eq(TEST_DOWNLOAD_INFO), any(Handler.class),
+                listener.capture());
+
+        File packageFile = new File(TEST_LOCAL_FILENAME);
+
+        listener.getValue().onDownloadComplete(packageFile);
+
+        verify(mCallback).onSuccess(mTask);
+        assertEquals(packageFile, mTask.getPackageLocation());
+    }
+
+    @Test
+    public void testDownloadComplete_splits_reportsVerifiedSplits() {
+        PackageDownloadInfo info = createDownloadInfoWithSplit();
+        mTask = createTask(info);
+        File splitFile = new File(TEST_LOCAL_FILENAME + ".split");
+        when(mUtils.computeHashOfFile(splitFile.getAbsolutePath(), Utils.SHA256_TYPE))
+                .thenReturn(TEST_SPLIT_CHECKSUM);
+        ResumableHttpDownloader.Listener splitListener = completeDownloadOfPackage(info);
+
+        splitListener.onDownloadComplete(splitFile);
+
+        verify(mCache).markVerified(TEST_SPLIT_INFO);
+        verify(mCallback).onSuccess(mTask);
+        assertEquals(Collections.singletonList(splitFile), mTask.getSplitPackageLocations());
+    }
+
+    @Test
+    public void testDownloadComplete_splitHashMismatch_evictsSplitAndFails() {
+        PackageDownloadInfo info = createDownloadInfoWithSplit();
+        mTask = createTask(info);
+        File splitFile = new File(TEST_LOCAL_FILENAME + ".split");
+        when(mUtils.computeHashOfFile(splitFile.getAbsolutePath(), Utils.SHA256_TYPE))
+                .thenReturn(new byte[] {1, 2, 3});
+        ResumableHttpDownloader.Listener splitListener = completeDownloadOfPackage(info);
+
+        splitListener.onDownloadComplete(splitFile);
+
+        verify(mCache).evict(TEST_SPLIT_INFO);
+        verify(mCallback).onError(mTask, ERROR_DOWNLOAD_FAILED, /* errorMessage= */ null);
+        verifyNoMoreInteractions(mCallback);
+    }
+
+    /**
+     * Runs the task for {@code info} through the cache, completes the download of the package and
+     * returns the listener of the download of its split.
+     */
+    private ResumableHttpDownloader.Listener completeDownloadOfPackage(PackageDownloadInfo info) {
+        doReturn(true).when(mUtils).isConnectedToNetwork(any(Context.class));
+        runTask();
+        ArgumentCaptor<ResumableHttpDownloader.Listener> listener =
+                ArgumentCaptor.forClass(ResumableHttpDownloader.Listener.class);
+        verify(mPrefetcher).download(eq(info), any(Handler.class), listener.capture());
+        listener.getValue().onDownloadComplete(new File(TEST_LOCAL_FILENAME));
+        ArgumentCaptor<ResumableHttpDownloader.Listener> splitListener =
+                ArgumentCaptor.forClass(ResumableHttpDownloader.Listener.class);
+        verify(mPrefetcher).download(eq(TEST_SPLIT_INFO), any(Handler.class),
+                splitListener.capture());
+        verify(mCallback, never()).onSuccess(mTask);
+        return splitListener.getValue();
+    }
+
+    private PackageDownloadInfo createDownloadInfoWithSplit() {
+        when(mUtils.isPackageDownloadCacheEnabled()).thenReturn(true);
+        return new PackageDownloadInfo.Builder()
+                .setLocation(TEST_PACKAGE_LOCATION)
+                .setSignatureChecksum(TEST_SIGNATURE)
+                .setMinVersion(PACKAGE_VERSION)
+                .setSplits(Collections.singletonList(TEST_SPLIT_INFO))
+                .build();
+    }
+
     private void mockSuccessfulDownload(int downloadStatus) {
         doReturn(true).when(mUtils).isConnectedToNetwork(any(Context.class));
         when(mDownloadManager.enqueue(any(Request.class))).thenReturn(TEST_DOWNLOAD_ID);
@@ -222,6 +373,22 @@ public class DownloadPackageTaskTest {
         assertEquals(location, mTask.getPackageLocation());
     }
 
+    private DownloadPackageTask createTask() {
+        return createTask(TEST_DOWNLOAD_INFO);
+    }
+
+    private DownloadPackageTask createTask(PackageDownloadInfo info) {
+        return new DownloadPackageTask(
+                mUtils,
+                mContext,
+                PARAMS,
+                info,
+                mCallback,
+                mock(ProvisioningAnalyticsTracker.class),
+                mCache,
+                mPrefetcher);
+    }
+
     private void runTask() {
         if (Looper.myLooper() == null) {
             Looper.prepare();
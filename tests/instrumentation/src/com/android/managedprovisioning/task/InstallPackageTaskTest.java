@@ -24,9 +24,20 @@ import static com.android.managedprovisioning.task.InstallPackageTask.ERROR_INST
 import static com.google.common.truth.Truth.assertThat;
 
 import static org.junit.Assert.fail;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.testng.Assert.assertThrows;
 
 import android.app.Instrumentation;
 import android.content.Context;
+import android.content.pm.PackageInstaller;
+import android.os.ParcelFileDescriptor;
 import android.os.UserHandle;
 
 import androidx.test.InstrumentationRegistry;
@@ -43,8 +54,17 @@ import org.junit.Ignore;
 import org.junit.Test;
 
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicReference;
 
 
 @SmallTest
@@ -170,6 +190,131 @@ public class InstallPackageTaskTest {
         assertFileDeleted(appToInstallFile);
     }
 
+    @EnsureHasPermission(WRITE_EXTERNAL_STORAGE)
+    @Test
+    public void run_splitApkDoesNotExist_fail() throws IOException, InterruptedException {
+        File appToInstallFile = getAppToInstallFile();
+        TestApp testApp = writeApkToInstall(appToInstallFile);
+        InstallPackageTask task = new InstallPackageTask(
+                new PackageLocationProvider() {
+                    @Override
+                    public File getPackageLocation() {
+                        return appToInstallFile;
+                    }
+
+                    @Override
+                    public List<File> getSplitPackageLocations() {
+                        return Collections.singletonList(new File("invalid/split.apk"));
+                    }
+                },
+                sContext,
+                createProvisioningParams(testApp.packageName()),
+                mInstallPackageBlockingCallback,
+                testApp.packageName());
+
+        sInstrumentation.runOnMainSync(() -> task.run(USER_ID));
+        int resultCode = mInstallPackageBlockingCallback.await();
+
+        assertThat(resultCode).isEqualTo(ERROR_INSTALLATION_FAILED);
+        assertFileDeleted(appToInstallFile);
+    }
+
+    @Test
+    public void writeApks_writesEachApkByFileDescriptor() throws IOException {
+        File base = createApkFile("base.apk", 3);
+        File split = createApkFile("split_config.arm64_v8a.apk", 5);
+        PackageInstaller.Session session = mock(PackageInstaller.Session.class);
+        ExecutorService executor = Executors.newCachedThreadPool();
+
+        try {
+            assertThat(InstallPackageTask.writeApks(
+                    session, Arrays.asList(base, split), executor)).isTrue();
+        } finally {
+            executor.shutdown();
+            base.delete();
+            split.delete();
+        }
+
+        verify(session).write(eq("base.apk"), eq(0L), eq(3L), any(ParcelFileDescriptor.class));
+        verify(session).write(eq("split_config.arm64_v8a.apk"), eq(0L), eq(5L),
+                any(ParcelFileDescriptor.class));
+        verify(session, never()).openWrite(any(), anyLong(), anyLong());
+    }
+
+    @Test
+    public void writeApks_splitFails_throws() throws IOException {
+        File base = createApkFile("base.apk", 3);
+        File split = createApkFile("split_config.xxhdpi.apk", 5);
+        PackageInstaller.Session session = mock(PackageInstaller.Session.class);
+        doThrow(new IOException()).when(session).write(
+                eq("split_config.xxhdpi.apk"), anyLong(), anyLong(), any());
+
+        try {
+            assertThrows(IOException.class, () -> InstallPackageTask.writeApks(
+                    session, Arrays.asList(base, split), Runnable::run));
+        } finally {
+            base.delete();
+            split.delete();
+        }
+    }
+
+    @Test
+    public void writeApks_interrupted_waitsForRunningWriteAndSkipsOthers() throws Exception {
+        File base = createApkFile("base.apk", 3);
+        File split = createApkFile("split_config.xxhdpi.apk", 5);
+        PackageInstaller.Session session = mock(PackageInstaller.Session.class);
+        CountDownLatch writeStarted = new CountDownLatch(1);
+        CountDownLatch finishWrite = new CountDownLatch(1);
+        doAnswer(invocation -> {
+            writeStarted.countDown();
+            finishWrite.await();
+            return null;
+        }).when(session).write(eq("base.apk"), anyLong(), anyLong(), any());
+        // A single thread, so that the split is queued behind the base apk.
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        AtomicReference<Throwable> thrown = new AtomicReference<>();
+        Thread writer = new Thread(() -> {
+            try {
+                InstallPackageTask.writeApks(session, Arrays.asList(base, split), executor);
+            } catch (Throwable t) {
+                thrown.set(t);
+            }
+        });
+
+        try {
+            writer.start();
+            writeStarted.await();
+            writer.interrupt();
+            writer.join(/* millis= */ 100);
+            assertThat(writer.isAlive()).isTrue();
+            finishWrite.countDown();
+            writer.join();
+        } finally {
+            finishWrite.countDown();
+            executor.shutdown();
+            base.delete();
+            split.delete();
+        }
+
+        assertThat(thrown.get()).isInstanceOf(InterruptedIOException.class);
+        verify(session, never()).write(eq("split_config.xxhdpi.apk"), anyLong(), anyLong(), any());
+    }
+
+    @Test
+    public void writeApks_duplicateNames_throws() throws IOException {
+        File base = createApkFile("base.apk", 3);
+        PackageInstaller.Session session = mock(PackageInstaller.Session.class);
+
+        try {
+            assertThrows(IOException.class, () -> InstallPackageTask.writeApks(
+                    session, Arrays.asList(base, base), Runnable::run));
+        } finally {
+            base.delete();
+        }
+
+        verify(session, never()).write(any(), anyLong(), anyLong(), any());
+    }
+
     private void assertFileDeleted(File appToInstallFile) {
         if (appToInstallFile.exists()) {
             appToInstallFile.delete();
@@ -201,6 +346,14 @@ public class InstallPackageTaskTest {
         return testApp;
     }
 
+    private static File createApkFile(String name, int length) throws IOException {
+        File apk = new File(sContext.getCacheDir(), name);
+        try (FileOutputStream out = new FileOutputStream(apk)) {
+            out.write(new byte[length]);
+        }
+        return apk;
+    }
+
     private static File getAppToInstallFile() throws IOException {
         return File.createTempFile(
                 /* prefix= */ "test_app" + Math.random() * Integer.MAX_VALUE,
@@ -29,6 +29,7 @@ import java.util.function.Consumer;
  */
 public final class MockTask extends AbstractProvisioningTask {
     private final Consumer<AbstractProvisioningTask> mConsumer;
+    private final boolean mCanRunInBackground;
 
     /**
      * Constructs a {@link MockTask} with a given {@link Consumer} to execute in its {@link #run}
@@ -39,8 +40,26 @@ public final class MockTask extends AbstractProvisioningTask {
             ProvisioningParams provisioningParams,
             Callback callback,
             Consumer<AbstractProvisioningTask> consumer) {
+        this(context, provisioningParams, callback, consumer, /* canRunInBackground= */ false);
+    }
+
+    /**
+     * Constructs a {@link MockTask} that may run its {@link Consumer} on a background thread.
+     */
+    public MockTask(
+            Context context,
+            ProvisioningParams provisioningParams,
+            Callback callback,
+            Consumer<AbstractProvisioningTask> consumer,
+            boolean canRunInBackground) {
         super(context, provisioningParams, callback);
         mConsumer = requireNonNull(consumer);
+        mCanRunInBackground = canRunInBackground;
+    }
+
+    @Override
+    public boolean canRunInBackground() {
+        return mCanRunInBackground;
     }
 
     @Override
@@ -0,0 +1,232 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.managedprovisioning.task;
+
+import static android.app.admin.DevicePolicyManager.ACTION_PROVISION_MANAGED_DEVICE_FROM_TRUSTED_SOURCE;
+
+import static com.android.managedprovisioning.task.StreamingInstallPackageTask.ERROR_DEVICE_ADMIN_MISSING;
+import static com.android.managedprovisioning.task.StreamingInstallPackageTask.ERROR_DOWNLOAD_FAILED;
+import static com.android.managedprovisioning.task.StreamingInstallPackageTask.ERROR_HASH_MISMATCH;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verifyZeroInteractions;
+import static org.mockito.Mockito.when;
+
+import android.app.Instrumentation;
+import android.content.Context;
+import android.os.AsyncTask;
+
+import androidx.test.InstrumentationRegistry;
+import androidx.test.filters.SmallTest;
+
+import com.android.compatibility.common.util.BlockingCallback;
+import com.android.managedprovisioning.analytics.ProvisioningAnalyticsTracker;
+import com.android.managedprovisioning.common.Utils;
+import com.android.managedprovisioning.model.PackageDownloadInfo;
+import com.android.managedprovisioning.model.ProvisioningParams;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+@SmallTest
+public class StreamingInstallPackageTaskTest {
+
+    private static final int RESULT_SUCCESS = -1;
+    private static final int USER_ID = 0;
+    private static final Instrumentation sInstrumentation =
+            androidx.test.platform.app.InstrumentationRegistry.getInstrumentation();
+    private static final Context sContext = InstrumentationRegistry.getTargetContext();
+    private static final String TEST_PACKAGE_NAME = "test.package.name";
+    private static final byte[] INVALID_FILE_CONTENTS = "invalid contents".getBytes();
+    private static final byte[] WRONG_CHECKSUM = new byte[] {1, 2, 3};
+
+    private final Utils mUtils = mock(Utils.class);
+    private final ProvisioningAnalyticsTracker mTracker = mock(ProvisioningAnalyticsTracker.class);
+    private StreamingBlockingCallback mCallback;
+    private File mSourceFile;
+
+    @Before
+    public void setUp() throws IOException {
+        mCallback = new StreamingBlockingCallback();
+        mSourceFile = File.createTempFile("streamed", ".apk", sContext.getCacheDir());
+        try (FileOutputStream out = new FileOutputStream(mSourceFile)) {
+            out.write(INVALID_FILE_CONTENTS);
+        }
+        when(mUtils.packageRequiresUpdate(anyString(), anyInt(), any())).thenReturn(true);
+        when(mUtils.isConnectedToNetwork(any())).thenReturn(true);
+    }
+
+    @After
+    public void tearDown() {
+        mSourceFile.delete();
+    }
+
+    @Test
+    public void canStream_packageChecksum_returnsTrue() {
+        assertThat(StreamingInstallPackageTask.canStream(
+                createDownloadInfo(mSourceFile.toURI().toString(), WRONG_CHECKSUM))).isTrue();
+    }
+
+    @Test
+    public void canStream_signatureChecksumOnly_returnsFalse() {
+        PackageDownloadInfo info = new PackageDownloadInfo.Builder()
+                .setLocation(mSourceFile.toURI().toString())
+                .setSignatureChecksum(WRONG_CHECKSUM)
+                .build();
+
+        assertThat(StreamingInstallPackageTask.canStream(info)).isFalse();
+    }
+
+    @Test
+    public void canStream_splits_returnsFalse() {
+        PackageDownloadInfo split = createDownloadInfo(mSourceFile.toURI().toString() + ".split",
+                WRONG_CHECKSUM);
+        PackageDownloadInfo info = new PackageDownloadInfo.Builder()
+                .setLocation(mSourceFile.toURI().toString())
+                .setPackageChecksum(WRONG_CHECKSUM)
+                .setSplits(Collections.singletonList(split))
+                .build();
+
+        assertThat(StreamingInstallPackageTask.canStream(info)).isFalse();
+    }
+
+    @Test
+    public void run_packageUpToDate_success() throws InterruptedException {
+        when(mUtils.packageRequiresUpdate(anyString(), anyInt(), any())).thenReturn(false);
+        StreamingInstallPackageTask task =
+                createTask(createDownloadInfo(mSourceFile.toURI().toString(), WRONG_CHECKSUM));
+
+        task.run(USER_ID);
+
+        assertThat(mCallback.await()).isEqualTo(RESULT_SUCCESS);
+    }
+
+    @Test
+    public void run_notConnected_downloadFailed() throws InterruptedException {
+        when(mUtils.isConnectedToNetwork(any())).thenReturn(false);
+        StreamingInstallPackageTask task =
+                createTask(createDownloadInfo(mSourceFile.toURI().toString(), WRONG_CHECKSUM));
+
+        task.run(USER_ID);
+
+        assertThat(mCallback.await()).isEqualTo(ERROR_DOWNLOAD_FAILED);
+    }
+
+    @Test
+    public void run_sourceMissing_downloadFailed() throws InterruptedException {
+        StreamingInstallPackageTask task = createTask(createDownloadInfo(
+                new File(sContext.getCacheDir(), "missing.apk").toURI().toString(),
+                WRONG_CHECKSUM));
+
+        sInstrumentation.runOnMainSync(() -> task.run(USER_ID));
+
+        assertThat(mCallback.await()).isEqualTo(ERROR_DOWNLOAD_FAILED);
+    }
+
+    @Test
+    public void run_hashMismatch_sessionAbandoned() throws InterruptedException {
+        StreamingInstallPackageTask task =
+                createTask(createDownloadInfo(mSourceFile.toURI().toString(), WRONG_CHECKSUM));
+
+        sInstrumentation.runOnMainSync(() -> task.run(USER_ID));
+
+        assertThat(mCallback.await()).isEqualTo(ERROR_HASH_MISMATCH);
+    }
+
+    @Test
+    public void run_hashMatchesInvalidApk_deviceAdminMissing() throws Exception {
+        StreamingInstallPackageTask task = createTask(createDownloadInfo(
+                mSourceFile.toURI().toString(), sha256(INVALID_FILE_CONTENTS)));
+
+        sInstrumentation.runOnMainSync(() -> task.run(USER_ID));
+
+        assertThat(mCallback.await()).isEqualTo(ERROR_DEVICE_ADMIN_MISSING);
+    }
+
+    @Test
+    public void run_cancelledBeforeStreaming_reportsNothing() {
+        AbstractProvisioningTask.Callback callback = mock(AbstractProvisioningTask.Callback.class);
+        List<Runnable> pending = new ArrayList<>();
+        StreamingInstallPackageTask task = createTask(
+                createDownloadInfo(mSourceFile.toURI().toString(), WRONG_CHECKSUM), callback,
+                pending::add);
+
+        sInstrumentation.runOnMainSync(() -> task.run(USER_ID));
+        task.cancel();
+        pending.forEach(Runnable::run);
+        sInstrumentation.waitForIdleSync();
+
+        verifyZeroInteractions(callback);
+    }
+
+    private StreamingInstallPackageTask createTask(PackageDownloadInfo downloadInfo) {
+        return createTask(downloadInfo, mCallback, AsyncTask.THREAD_POOL_EXECUTOR);
+    }
+
+    private StreamingInstallPackageTask createTask(PackageDownloadInfo downloadInfo,
+            AbstractProvisioningTask.Callback callback, Executor executor) {
+        ProvisioningParams params = new ProvisioningParams.Builder()
+                .setProvisioningAction(ACTION_PROVISION_MANAGED_DEVICE_FROM_TRUSTED_SOURCE)
+                .setDeviceAdminPackageName(TEST_PACKAGE_NAME)
+                .setDeviceAdminDownloadInfo(downloadInfo)
+                .build();
+        return new StreamingInstallPackageTask(
+                sContext, params, downloadInfo, callback, mTracker, mUtils, TEST_PACKAGE_NAME,
+                executor);
+    }
+
+    private static PackageDownloadInfo createDownloadInfo(String location, byte[] checksum) {
+        return new PackageDownloadInfo.Builder()
+                .setLocation(location)
+                .setPackageChecksum(checksum)
+                .build();
+    }
+
+    private static byte[] sha256(byte[] bytes) throws NoSuchAlgorithmException {
+        return MessageDigest.getInstance(Utils.SHA256_TYPE).digest(bytes);
+    }
+
+    private static class StreamingBlockingCallback extends BlockingCallback<Integer>
+            implements AbstractProvisioningTask.Callback {
+        @Override
+        public void onSuccess(AbstractProvisioningTask task) {
+            callbackTriggered(RESULT_SUCCESS);
+        }
+
+        @Override
+        public void onError(
+                AbstractProvisioningTask task, int errorCode, String errorMessage) {
+            callbackTriggered(errorCode);
+        }
+    }
+}
@@ -36,6 +36,7 @@ import androidx.test.filters.SmallTest;
 import androidx.test.runner.AndroidJUnit4;
 
 import com.android.managedprovisioning.analytics.ProvisioningAnalyticsTracker;
+import com.android.managedprovisioning.common.FileHashEngine;
 import com.android.managedprovisioning.common.Utils;
 import com.android.managedprovisioning.model.PackageDownloadInfo;
 import com.android.managedprovisioning.model.ProvisioningParams;
@@ -112,8 +113,9 @@ public class VerifyRoleHolderPackageTaskTest {
     @Test
     public void testPackageChecksumSha256_success() throws Exception {
         // GIVEN the hash of the downloaded file matches the parameter value
-        when(mUtils.computeHashOfFile(TEST_LOCAL_FILENAME, Utils.SHA256_TYPE))
-                .thenReturn(TEST_PACKAGE_CHECKSUM_HASH);
+        when(mUtils.hashFile(TEST_LOCAL_FILENAME, Utils.SHA256_TYPE))
+                .thenReturn(new FileHashEngine.Result(TEST_PACKAGE_CHECKSUM_HASH,
+                        /* bytes= */ 1000, /* durationNanos= */ 1000));
 
         // WHEN running the VerifyPackageTask
         runWithDownloadInfo(TEST_PACKAGE_CHECKSUM_HASH, EMPTY_BYTE_ARRAY);
@@ -0,0 +1,219 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.managedprovisioning.task.download;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Stands in for a download host on the loopback interface, serving one package.
+ *
+ * <p>Answers {@code HEAD}, {@code GET} and single range requests, honouring {@code If-Range}, and
+ * ranges starting past the end of the package with 416.
+ * Every response waits for the injected latency before its headers, and every connection is
+ * throttled to the injected bandwidth, like a connection on a high-latency link whose throughput
+ * is capped by its round trip time.
+ */
+final class LocalHttpServer implements AutoCloseable {
+    private static final String PATH = "/package.apk";
+    private static final int CHUNK_SIZE = 16 * 1024;
+    private static final int READ_TIMEOUT_MILLIS = 5_000;
+
+    private final byte[] mContent;
+    private final String mEtag;
+    private final long mLatencyMillis;
+    private final long mBytesPerSecondPerConnection;
+    private final ServerSocket mServerSocket;
+    private final ExecutorService mExecutor = Executors.newCachedThreadPool();
+    private final List<Socket> mSockets = Collections.synchronizedList(new ArrayList<>());
+    private final List<String> mRequests = Collections.synchronizedList(new ArrayList<>());
+    private final AtomicInteger mRangesToCutOff = new AtomicInteger();
+    private volatile boolean mAcceptRanges = true;
+
+    /**
+     * @param bytesPerSecondPerConnection the bandwidth of each connection, or 0 for no limit
+     */
+    LocalHttpServer(byte[] content, String etag, long latencyMillis,
+            long bytesPerSecondPerConnection) throws IOException {
+        mContent = content;
+        mEtag = etag;
+        mLatencyMillis = latencyMillis;
+        mBytesPerSecondPerConnection = bytesPerSecondPerConnection;
+        mServerSocket = new ServerSocket(0, 0, InetAddress.getLoopbackAddress());
+        mExecutor.execute(this::accept);
+    }
+
+    String getUrl() {
+        return "http://" + mServerSocket.getInetAddress().getHostAddress() + ":"
+                + mServerSocket.getLocalPort() + PATH;
+    }
+
+    /**
+     * Returns the requests received so far, as their method, range and cookie.
+     */
+    List<String> getRequests() {
+        return new ArrayList<>(mRequests);
+    }
+
+    /**
+     * Makes the next {@code count} range requests end half way through their body.
+     */
+    void cutOffNextRanges(int count) {
+        mRangesToCutOff.set(count);
+    }
+
+    void setAcceptRanges(boolean acceptRanges) {
+        mAcceptRanges = acceptRanges;
+    }
+
+    private void accept() {
+        while (!mServerSocket.isClosed()) {
+            try {
+                Socket socket = mServerSocket.accept();
+                mSockets.add(socket);
+                mExecutor.execute(() -> serve(socket));
+            } catch (IOException e) {
+                // The server was closed.
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        try (Socket s = socket) {
+            s.setSoTimeout(READ_TIMEOUT_MILLIS);
+            BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(s.getInputStream(), StandardCharsets.US_ASCII));
+            OutputStream out = s.getOutputStream();
+            String requestLine;
+            while ((requestLine = reader.readLine()) != null && !requestLine.isEmpty()) {
+                String range = null;
+                String ifRange = null;
+                String cookie = null;
+                String header;
+                while ((header = reader.readLine()) != null && !header.isEmpty()) {
+                    int colon = header.indexOf(':');
+                    String name = header.substring(0, colon).trim();
+                    String value = header.substring(colon + 1).trim();
+                    if (name.equalsIgnoreCase("Range")) {
+                        range = value;
+                    } else if (name.equalsIgnoreCase("If-Range")) {
+                        ifRange = value;
+                    } else if (name.equalsIgnoreCase("Cookie")) {
+                        cookie = value;
+                    }
+                }
+                String method = requestLine.split(" ")[0];
+                mRequests.add(method + " " + range + " " + cookie);
+                sleep(mLatencyMillis);
+                if (!respond(out, method, range, ifRange)) {
+                    return;
+                }
+            }
+        } catch (IOException e) {
+            // The client went away.
+        }
+    }
+
+    /**
+     * Writes the response to one request and returns whether the connection can be reused.
+     */
+    private boolean respond(OutputStream out, String method, String range, String ifRange)
+            throws IOException {
+        long start = 0;
+        long end = mContent.length;
+        boolean partial = mAcceptRanges && range != null && range.startsWith("bytes=")
+                && (ifRange == null || ifRange.equals(mEtag));
+        if (partial) {
+            String[] bounds = range.substring("bytes=".length()).split("-", -1);
+            start = Long.parseLong(bounds[0]);
+            end = bounds[1].isEmpty() ? mContent.length : Long.parseLong(bounds[1]) + 1;
+            if (start >= mContent.length) {
+                out.write(("HTTP/1.1 416 Range Not Satisfiable\r\n"
+                        + "Content-Range: bytes */" + mContent.length + "\r\n"
+                        + "Content-Length: 0\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+                out.flush();
+                return true;
+            }
+        }
+        StringBuilder headers = new StringBuilder()
+                .append(partial ? "HTTP/1.1 206 Partial Content\r\n" : "HTTP/1.1 200 OK\r\n")
+                .append("Content-Length: ").append(end - start).append("\r\n");
+        if (mEtag != null) {
+            headers.append("ETag: ").append(mEtag).append("\r\n");
+        }
+        if (mAcceptRanges) {
+            headers.append("Accept-Ranges: bytes\r\n");
+        }
+        if (partial) {
+            headers.append("Content-Range: bytes ").append(start).append('-').append(end - 1)
+                    .append('/').append(mContent.length).append("\r\n");
+        }
+        out.write(headers.append("\r\n").toString().getBytes(StandardCharsets.US_ASCII));
+        if (method.equals("HEAD")) {
+            out.flush();
+            return true;
+        }
+        boolean cutOff = partial && mRangesToCutOff.getAndUpdate(n -> Math.max(0, n - 1)) > 0;
+        long bodyEnd = cutOff ? start + (end - start) / 2 : end;
+        long startNanos = System.nanoTime();
+        for (long position = start; position < bodyEnd; position += CHUNK_SIZE) {
+            int length = (int) Math.min(CHUNK_SIZE, bodyEnd - position);
+            out.write(mContent, (int) position, length);
+            out.flush();
+            if (mBytesPerSecondPerConnection > 0) {
+                long sentMillis = (position + length - start) * 1000
+                        / mBytesPerSecondPerConnection;
+                sleep(sentMillis - (System.nanoTime() - startNanos) / 1_000_000);
+            }
+        }
+        return !cutOff;
+    }
+
+    private static void sleep(long millis) {
+        if (millis <= 0) {
+            return;
+        }
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        mServerSocket.close();
+        synchronized (mSockets) {
+            for (Socket socket : mSockets) {
+                socket.close();
+            }
+        }
+        mExecutor.shutdownNow();
+    }
+}
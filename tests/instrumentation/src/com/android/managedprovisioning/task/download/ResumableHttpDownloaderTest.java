@@ -0,0 +1,158 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.managedprovisioning.task.download;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import static org.testng.Assert.assertThrows;
+
+import android.content.Context;
+
+import androidx.test.InstrumentationRegistry;
+import androidx.test.filters.SmallTest;
+
+import com.android.managedprovisioning.common.Utils;
+import com.android.managedprovisioning.model.PackageDownloadInfo;
+import com.android.managedprovisioning.task.wifi.ProvisioningNetwork;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Random;
+
+/**
+ * Tests for {@link ResumableHttpDownloader}, against a {@link LocalHttpServer}.
+ */
+@SmallTest
+public class ResumableHttpDownloaderTest {
+    private static final Context sContext = InstrumentationRegistry.getTargetContext();
+    private static final int PACKAGE_SIZE = 64 * 1024 + 123;
+    private static final String ETAG = "\"v1\"";
+
+    private final Utils mUtils = new Utils();
+    private byte[] mContent;
+    private File mCacheDir;
+    private PackageDownloadCache mCache;
+    private ConnectionWarmer mConnectionWarmer;
+    private ResumableHttpDownloader mDownloader;
+    private LocalHttpServer mServer;
+
+    @Before
+    public void setUp() throws IOException {
+        mContent = new byte[PACKAGE_SIZE];
+        new Random(PACKAGE_SIZE).nextBytes(mContent);
+        mCacheDir = new File(sContext.getCacheDir(), "resumable_download_test");
+        mCache = new PackageDownloadCache(mCacheDir, Long.MAX_VALUE, Long.MAX_VALUE,
+                System::currentTimeMillis, mUtils);
+        mConnectionWarmer = new ConnectionWarmer(new ProvisioningNetwork(), Runnable::run);
+        mDownloader = new ResumableHttpDownloader(mCache, mConnectionWarmer,
+                new SegmentedHttpDownloader(mCache, mConnectionWarmer),
+                /* initialBackoffMillis= */ 0);
+        mServer = new LocalHttpServer(mContent, ETAG, /* latencyMillis= */ 0,
+                /* bytesPerSecondPerConnection= */ 0);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        mServer.close();
+        for (File file : mCacheDir.listFiles()) {
+            file.delete();
+        }
+        mCacheDir.delete();
+    }
+
+    @Test
+    public void downloadBlocking_completePartialFileOfSameVersion_commitsIt() throws Exception {
+        PackageDownloadInfo info = createInfo();
+        Files.write(mCache.getPartialFile(info).toPath(), mContent);
+        mCache.writeEntityTag(info, ETAG);
+
+        File packageFile = mDownloader.downloadBlocking(info, /* cancellationSignal= */ null);
+
+        assertThat(Files.readAllBytes(packageFile.toPath())).isEqualTo(mContent);
+    }
+
+    @Test
+    public void downloadBlocking_completePartialFileWithoutEntityTag_discardsIt() throws Exception {
+        PackageDownloadInfo info = createInfo();
+        Files.write(mCache.getPartialFile(info).toPath(), new byte[PACKAGE_SIZE]);
+
+        assertThrows(IOException.class,
+                () -> mDownloader.downloadBlocking(info, /* cancellationSignal= */ null));
+
+        assertThat(mCache.getPartialFile(info).exists()).isFalse();
+        assertThat(mCache.getDownloadedPackage(info)).isNull();
+    }
+
+    @Test
+    public void downloadBlocking_partialFileLongerThanPackage_discardsIt() throws Exception {
+        PackageDownloadInfo info = createInfo();
+        Files.write(mCache.getPartialFile(info).toPath(), new byte[PACKAGE_SIZE + 1]);
+        mCache.writeEntityTag(info, ETAG);
+
+        assertThrows(IOException.class,
+                () -> mDownloader.downloadBlocking(info, /* cancellationSignal= */ null));
+
+        assertThat(mCache.getPartialFile(info).exists()).isFalse();
+        assertThat(mCache.readEntityTag(info)).isNull();
+    }
+
+    @Test
+    public void downloadBlocking_warmedUpOtherVersion_downloadsWholePackage() throws Exception {
+        PackageDownloadInfo info = createInfo();
+        Files.write(mCache.getPartialFile(info).toPath(), new byte[PACKAGE_SIZE / 2]);
+        mCache.writeEntityTag(info, "\"v0\"");
+        mConnectionWarmer.warmUp(info);
+
+        File packageFile = mDownloader.downloadBlocking(info, /* cancellationSignal= */ null);
+
+        assertThat(Files.readAllBytes(packageFile.toPath())).isEqualTo(mContent);
+        assertThat(mServer.getRequests()).containsExactly("HEAD null null", "GET null null");
+    }
+
+    @Test
+    public void downloadBlocking_warmedUpCompletePartialFile_commitsItWithoutRequest()
+            throws Exception {
+        PackageDownloadInfo info = createInfo();
+        Files.write(mCache.getPartialFile(info).toPath(), mContent);
+        mCache.writeEntityTag(info, ETAG);
+        mConnectionWarmer.warmUp(info);
+
+        File packageFile = mDownloader.downloadBlocking(info, /* cancellationSignal= */ null);
+
+        assertThat(Files.readAllBytes(packageFile.toPath())).isEqualTo(mContent);
+        assertThat(mServer.getRequests()).containsExactly("HEAD null null");
+    }
+
+    @Test
+    public void parseCompleteLength() {
+        assertThat(ResumableHttpDownloader.parseCompleteLength("bytes */1234")).isEqualTo(1234);
+        assertThat(ResumableHttpDownloader.parseCompleteLength("bytes */*")).isEqualTo(-1);
+        assertThat(ResumableHttpDownloader.parseCompleteLength(null)).isEqualTo(-1);
+    }
+
+    private PackageDownloadInfo createInfo() {
+        return new PackageDownloadInfo.Builder()
+                .setLocation(mServer.getUrl())
+                .setPackageChecksum(mUtils.computeHashOfByteArray(mContent))
+                .build();
+    }
+}
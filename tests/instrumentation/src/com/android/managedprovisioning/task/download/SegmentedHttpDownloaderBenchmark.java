@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.managedprovisioning.task.download;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.content.Context;
+
+import androidx.test.InstrumentationRegistry;
+import androidx.test.filters.LargeTest;
+
+import com.android.managedprovisioning.common.Utils;
+import com.android.managedprovisioning.model.PackageDownloadInfo;
+import com.android.managedprovisioning.task.wifi.ProvisioningNetwork;
+import com.android.managedprovisioning.testcommon.BenchmarkRunner;
+import com.android.managedprovisioning.testcommon.BenchmarkTest;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Measures the throughput of {@link SegmentedHttpDownloader} against a {@link LocalHttpServer}
+ * that injects the latency and the per-connection bandwidth of a high-latency link, for one
+ * segment, which is a single stream, up to {@link PackageDownloadInfo#MAX_DOWNLOAD_SEGMENTS}.
+ *
+ * <p>The average time per download and the throughput are logged under the {@link #TAG} tag.
+ */
+@BenchmarkTest
+@LargeTest
+public class SegmentedHttpDownloaderBenchmark {
+    private static final String TAG = "SegmentedHttpDownloaderBenchmark";
+    private static final Context sContext = InstrumentationRegistry.getTargetContext();
+    private static final int PACKAGE_SIZE = 8 * 1024 * 1024;
+    private static final long LATENCY_MILLIS = 150;
+    private static final long BYTES_PER_SECOND_PER_CONNECTION = 2 * 1024 * 1024;
+    private static final int[] SEGMENTS = {1, 2, 4, PackageDownloadInfo.MAX_DOWNLOAD_SEGMENTS};
+    private static final int WARMUP_ITERATIONS = 1;
+    private static final int MEASURED_ITERATIONS = 3;
+
+    private final BenchmarkRunner mRunner =
+            new BenchmarkRunner(TAG, WARMUP_ITERATIONS, MEASURED_ITERATIONS);
+    private final Utils mUtils = new Utils();
+    private final ExecutorService mExecutor = Executors.newCachedThreadPool();
+    private byte[] mContent;
+    private File mCacheDir;
+    private PackageDownloadCache mCache;
+    private LocalHttpServer mServer;
+
+    @Before
+    public void setUp() throws IOException {
+        mContent = new byte[PACKAGE_SIZE];
+        new Random(PACKAGE_SIZE).nextBytes(mContent);
+        mCacheDir = new File(sContext.getCacheDir(), "segmented_download_benchmark");
+        mCache = new PackageDownloadCache(mCacheDir, Long.MAX_VALUE, Long.MAX_VALUE,
+                System::currentTimeMillis, mUtils);
+        mServer = new LocalHttpServer(mContent, "\"v1\"", LATENCY_MILLIS,
+                BYTES_PER_SECOND_PER_CONNECTION);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        mServer.close();
+        mExecutor.shutdownNow();
+        for (File file : mCacheDir.listFiles()) {
+            file.delete();
+        }
+        mCacheDir.delete();
+    }
+
+    @Test
+    public void benchmarkDownload() throws Exception {
+        SegmentedHttpDownloader downloader = new SegmentedHttpDownloader(mCache,
+                new ConnectionWarmer(new ProvisioningNetwork(), mExecutor), mExecutor,
+                /* initialBackoffMillis= */ 0);
+        for (int segments : SEGMENTS) {
+            PackageDownloadInfo info = new PackageDownloadInfo.Builder()
+                    .setLocation(mServer.getUrl())
+                    .setPackageChecksum(mUtils.computeHashOfByteArray(mContent))
+                    .setDownloadSegments(segments)
+                    .build();
+            mRunner.measureThroughput(segments + " segments", PACKAGE_SIZE,
+                    () -> download(downloader, info));
+        }
+    }
+
+    private void download(SegmentedHttpDownloader downloader, PackageDownloadInfo info)
+            throws IOException {
+        File packageFile = downloader.download(info, /* cancellationSignal= */ null);
+        assertThat(mCache.isVerified(info)).isTrue();
+        // Download the whole package again next time.
+        mCache.evict(info);
+        assertThat(packageFile.exists()).isFalse();
+    }
+}
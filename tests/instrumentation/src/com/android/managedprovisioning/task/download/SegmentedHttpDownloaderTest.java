@@ -0,0 +1,222 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.managedprovisioning.task.download;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import static org.testng.Assert.assertThrows;
+
+import android.content.Context;
+
+import androidx.test.InstrumentationRegistry;
+import androidx.test.filters.SmallTest;
+
+import com.android.managedprovisioning.common.Utils;
+import com.android.managedprovisioning.model.PackageDownloadInfo;
+import com.android.managedprovisioning.task.wifi.ProvisioningNetwork;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Tests for {@link SegmentedHttpDownloader}, against a {@link LocalHttpServer}.
+ */
+@SmallTest
+public class SegmentedHttpDownloaderTest {
+    private static final Context sContext = InstrumentationRegistry.getTargetContext();
+    private static final int PACKAGE_SIZE = 5 * 1024 * 1024 + 123;
+    private static final int SEGMENTS = 4;
+    private static final String ETAG = "\"v1\"";
+    private static final String COOKIE = "session=1234";
+
+    private final Utils mUtils = new Utils();
+    private final ExecutorService mExecutor = Executors.newCachedThreadPool();
+    private byte[] mContent;
+    private File mCacheDir;
+    private PackageDownloadCache mCache;
+    private ConnectionWarmer mConnectionWarmer;
+    private SegmentedHttpDownloader mDownloader;
+    private LocalHttpServer mServer;
+
+    @Before
+    public void setUp() throws IOException {
+        mContent = new byte[PACKAGE_SIZE];
+        new Random(PACKAGE_SIZE).nextBytes(mContent);
+        mCacheDir = new File(sContext.getCacheDir(), "segmented_download_test");
+        mCache = new PackageDownloadCache(mCacheDir, Long.MAX_VALUE, Long.MAX_VALUE,
+                System::currentTimeMillis, mUtils);
+        mConnectionWarmer = new ConnectionWarmer(new ProvisioningNetwork(), Runnable::run);
+        mDownloader = new SegmentedHttpDownloader(mCache, mConnectionWarmer, mExecutor,
+                /* initialBackoffMillis= */ 0);
+        mServer = new LocalHttpServer(mContent, ETAG, /* latencyMillis= */ 0,
+                /* bytesPerSecondPerConnection= */ 0);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        mServer.close();
+        mExecutor.shutdownNow();
+        for (File file : mCacheDir.listFiles()) {
+            file.delete();
+        }
+        mCacheDir.delete();
+    }
+
+    @Test
+    public void download_downloadsSegmentsInParallelAndVerifiesPackage() throws Exception {
+        PackageDownloadInfo info = createInfo(hash(mContent));
+
+        File packageFile = mDownloader.download(info, /* cancellationSignal= */ null);
+
+        assertThat(Files.readAllBytes(packageFile.toPath())).isEqualTo(mContent);
+        assertThat(mCache.isVerified(info)).isTrue();
+        assertThat(mServer.getRequests()).containsExactly(
+                "HEAD null " + COOKIE,
+                "GET bytes=0-1310749 " + COOKIE,
+                "GET bytes=1310750-2621500 " + COOKIE,
+                "GET bytes=2621501-3932251 " + COOKIE,
+                "GET bytes=3932252-5243002 " + COOKIE);
+    }
+
+    @Test
+    public void download_hashMismatch_doesNotVerifyPackage() throws Exception {
+        PackageDownloadInfo info = createInfo(new byte[] {1, 2, 3});
+
+        File packageFile = mDownloader.download(info, /* cancellationSignal= */ null);
+
+        assertThat(Files.readAllBytes(packageFile.toPath())).isEqualTo(mContent);
+        assertThat(mCache.isVerified(info)).isFalse();
+    }
+
+    @Test
+    public void download_segmentCutOff_retriesOnlyThatSegment() throws Exception {
+        PackageDownloadInfo info = createInfo(hash(mContent));
+        mServer.cutOffNextRanges(1);
+
+        File packageFile = mDownloader.download(info, /* cancellationSignal= */ null);
+
+        assertThat(Files.readAllBytes(packageFile.toPath())).isEqualTo(mContent);
+        // The head request, one request per segment and one retry.
+        assertThat(mServer.getRequests()).hasSize(SEGMENTS + 2);
+    }
+
+    @Test
+    public void download_segmentsKeepFailing_keepsCompletePrefix() throws Exception {
+        PackageDownloadInfo info = createInfo(hash(mContent));
+        mServer.cutOffNextRanges(Integer.MAX_VALUE);
+
+        assertThrows(IOException.class, () -> mDownloader.download(info, null));
+
+        byte[] partial = Files.readAllBytes(mCache.getPartialFile(info).toPath());
+        assertThat(partial.length).isGreaterThan(0);
+        assertThat(partial.length).isLessThan(PACKAGE_SIZE);
+        assertThat(partial).isEqualTo(Arrays.copyOf(mContent, partial.length));
+        assertThat(mCache.readEntityTag(info)).isEqualTo(ETAG);
+    }
+
+    @Test
+    public void download_segmentsKeepFailingWithoutEntityTag_discardsPartialFile()
+            throws Exception {
+        mServer.close();
+        mServer = new LocalHttpServer(mContent, /* etag= */ null, /* latencyMillis= */ 0,
+                /* bytesPerSecondPerConnection= */ 0);
+        PackageDownloadInfo info = createInfo(hash(mContent));
+        mServer.cutOffNextRanges(Integer.MAX_VALUE);
+
+        assertThrows(IOException.class, () -> mDownloader.download(info, null));
+
+        assertThat(mCache.getPartialFile(info).exists()).isFalse();
+    }
+
+    @Test
+    public void download_failsBeforeSegmentsRun_restoresPartialFile() throws Exception {
+        SegmentedHttpDownloader downloader = new SegmentedHttpDownloader(mCache,
+                mConnectionWarmer, runnable -> {
+                    throw new RejectedExecutionException();
+                }, /* initialBackoffMillis= */ 0);
+        PackageDownloadInfo info = createInfo(hash(mContent));
+        Files.write(mCache.getPartialFile(info).toPath(), Arrays.copyOf(mContent, 1024));
+        mCache.writeEntityTag(info, ETAG);
+
+        assertThrows(IOException.class, () -> downloader.download(info, null));
+
+        byte[] partial = Files.readAllBytes(mCache.getPartialFile(info).toPath());
+        assertThat(partial).isEqualTo(Arrays.copyOf(mContent, 1024));
+        assertThat(mCache.readEntityTag(info)).isEqualTo(ETAG);
+    }
+
+    @Test
+    public void download_resumesCompletePrefix() throws Exception {
+        PackageDownloadInfo info = createInfo(hash(mContent));
+        mServer.cutOffNextRanges(Integer.MAX_VALUE);
+        assertThrows(IOException.class, () -> mDownloader.download(info, null));
+        long prefix = mCache.getPartialFile(info).length();
+        mServer.cutOffNextRanges(0);
+
+        File packageFile = mDownloader.download(info, /* cancellationSignal= */ null);
+
+        assertThat(Files.readAllBytes(packageFile.toPath())).isEqualTo(mContent);
+        assertThat(mCache.isVerified(info)).isTrue();
+        assertThat(mServer.getRequests()).contains("GET bytes=" + prefix + "-"
+                + (prefix + (PACKAGE_SIZE - prefix) / SEGMENTS - 1) + " " + COOKIE);
+    }
+
+    @Test
+    public void download_serverWithoutRanges_throws() {
+        PackageDownloadInfo info = createInfo(hash(mContent));
+        mServer.setAcceptRanges(false);
+
+        assertThrows(IOException.class, () -> mDownloader.download(info, null));
+        assertThat(mServer.getRequests()).containsExactly("HEAD null " + COOKIE);
+    }
+
+    @Test
+    public void download_warmedUp_doesNotRequestSizeAgain() throws Exception {
+        PackageDownloadInfo info = createInfo(hash(mContent));
+        mConnectionWarmer.warmUp(info);
+
+        File packageFile = mDownloader.download(info, /* cancellationSignal= */ null);
+
+        assertThat(Files.readAllBytes(packageFile.toPath())).isEqualTo(mContent);
+        // The head request of the warm-up and one request per segment.
+        assertThat(mServer.getRequests()).hasSize(SEGMENTS + 1);
+        assertThat(mServer.getRequests().get(0)).isEqualTo("HEAD null " + COOKIE);
+    }
+
+    private PackageDownloadInfo createInfo(byte[] packageChecksum) {
+        return new PackageDownloadInfo.Builder()
+                .setLocation(mServer.getUrl())
+                .setCookieHeader(COOKIE)
+                .setPackageChecksum(packageChecksum)
+                .setDownloadSegments(SEGMENTS)
+                .build();
+    }
+
+    private byte[] hash(byte[] content) {
+        return mUtils.computeHashOfByteArray(content);
+    }
+}
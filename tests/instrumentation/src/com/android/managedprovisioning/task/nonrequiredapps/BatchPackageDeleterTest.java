@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.managedprovisioning.task.nonrequiredapps;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+import android.content.pm.IPackageDeleteObserver;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.os.RemoteException;
+import android.test.mock.MockPackageManager;
+
+import androidx.test.filters.SmallTest;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Unit tests for {@link BatchPackageDeleter}.
+ */
+@SmallTest
+public class BatchPackageDeleterTest {
+    private static final int TEST_USER_ID = 123;
+
+    @Mock private BatchPackageDeleter.Listener mListener;
+
+    private FakePackageManager mPackageManager;
+
+    @Before
+    public void setUp() {
+        MockitoAnnotations.initMocks(this);
+
+        mPackageManager = new FakePackageManager();
+    }
+
+    @Test
+    public void testRetainInstalled() {
+        mPackageManager.mInstalledApps.addAll(Arrays.asList("app.a", "app.c"));
+        BatchPackageDeleter deleter = new BatchPackageDeleter(mPackageManager);
+
+        Set<String> result = deleter.retainInstalled(setOf("app.a", "app.b"), TEST_USER_ID);
+
+        assertEquals(setOf("app.a"), result);
+    }
+
+    @Test
+    public void testDelete_empty_completesImmediately() {
+        BatchPackageDeleter deleter = new BatchPackageDeleter(mPackageManager);
+
+        deleter.delete(Collections.emptySet(), TEST_USER_ID, mListener);
+
+        verify(mListener).onComplete(Collections.emptySet());
+        assertEquals(0, mPackageManager.mPendingDeletions.size());
+    }
+
+    @Test
+    public void testDelete_limitsDeletionsInFlight() throws Exception {
+        BatchPackageDeleter deleter = new BatchPackageDeleter(mPackageManager,
+                /* maxInFlight= */ 2, /* maxAttempts= */ 1);
+
+        deleter.delete(setOf("app.a", "app.b", "app.c"), TEST_USER_ID, mListener);
+
+        // THEN only two deletions are started
+        assertEquals(2, mPackageManager.mPendingDeletions.size());
+
+        // WHEN one of them finishes, THEN the third one is started
+        mPackageManager.finishNextDeletion(PackageManager.DELETE_SUCCEEDED);
+        assertEquals(2, mPackageManager.mPendingDeletions.size());
+
+        mPackageManager.finishNextDeletion(PackageManager.DELETE_SUCCEEDED);
+        mPackageManager.finishNextDeletion(PackageManager.DELETE_SUCCEEDED);
+
+        verify(mListener).onComplete(Collections.emptySet());
+    }
+
+    @Test
+    public void testDelete_failure_retried() throws Exception {
+        BatchPackageDeleter deleter = new BatchPackageDeleter(mPackageManager,
+                /* maxInFlight= */ 1, /* maxAttempts= */ 2);
+
+        deleter.delete(setOf("app.a"), TEST_USER_ID, mListener);
+        mPackageManager.finishNextDeletion(PackageManager.DELETE_FAILED_INTERNAL_ERROR);
+
+        // THEN the deletion is retried without completing the batch
+        verify(mListener, never()).onComplete(any());
+        assertEquals(1, mPackageManager.mPendingDeletions.size());
+
+        mPackageManager.finishNextDeletion(PackageManager.DELETE_SUCCEEDED);
+
+        verify(mListener).onComplete(Collections.emptySet());
+    }
+
+    @Test
+    public void testDelete_failureAfterLastAttempt_reported() throws Exception {
+        BatchPackageDeleter deleter = new BatchPackageDeleter(mPackageManager,
+                /* maxInFlight= */ 1, /* maxAttempts= */ 2);
+
+        deleter.delete(setOf("app.a", "app.b"), TEST_USER_ID, mListener);
+        String failingPackage = mPackageManager.mPendingDeletions.get(0);
+        mPackageManager.finishNextDeletion(PackageManager.DELETE_FAILED_INTERNAL_ERROR);
+        mPackageManager.finishNextDeletion(PackageManager.DELETE_SUCCEEDED);
+        mPackageManager.finishNextDeletion(PackageManager.DELETE_FAILED_INTERNAL_ERROR);
+
+        verify(mListener).onComplete(setOf(failingPackage));
+        assertEquals(0, mPackageManager.mPendingDeletions.size());
+    }
+
+    private static Set<String> setOf(String... packageNames) {
+        return new HashSet<>(Arrays.asList(packageNames));
+    }
+
+    private static class FakePackageManager extends MockPackageManager {
+        final Set<String> mInstalledApps = new HashSet<>();
+        final List<String> mPendingDeletions = new ArrayList<>();
+        final List<IPackageDeleteObserver> mPendingObservers = new ArrayList<>();
+
+        @Override
+        public List<PackageInfo> getInstalledPackagesAsUser(int flags, int userId) {
+            List<PackageInfo> result = new ArrayList<>();
+            for (String packageName : mInstalledApps) {
+                PackageInfo packageInfo = new PackageInfo();
+                packageInfo.packageName = packageName;
+                result.add(packageInfo);
+            }
+            return result;
+        }
+
+        @Override
+        public void deletePackageAsUser(String packageName, IPackageDeleteObserver observer,
+                int flags, int userId) {
+            assertEquals(TEST_USER_ID, userId);
+            mPendingDeletions.add(packageName);
+            mPendingObservers.add(observer);
+        }
+
+        void finishNextDeletion(int returnCode) throws RemoteException {
+            String packageName = mPendingDeletions.remove(0);
+            mPendingObservers.remove(0).packageDeleted(packageName, returnCode);
+        }
+    }
+}
@@ -30,10 +30,11 @@ import static org.mockito.Mockito.when;
 import android.app.admin.DevicePolicyManager;
 import android.content.ComponentName;
 import android.content.Context;
-import android.content.pm.IPackageManager;
+import android.content.pm.ApplicationInfo;
 
 import androidx.test.filters.SmallTest;
 
+import com.android.managedprovisioning.common.InstalledApplicationsCache;
 import com.android.managedprovisioning.common.Utils;
 import com.android.managedprovisioning.model.ProvisioningParams;
 
@@ -42,6 +43,7 @@ import org.junit.Test;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
@@ -67,7 +69,7 @@ public class NonRequiredAppsLogicTest {
     @Mock
     private DevicePolicyManager mDevicePolicyManager;
     @Mock
-    private IPackageManager mIPackageManager;
+    private InstalledApplicationsCache mInstalledApplications;
     @Mock
     private SystemAppsSnapshot mSnapshot;
     @Mock
@@ -219,7 +221,15 @@ public class NonRequiredAppsLogicTest {
     }
 
     private void setCurrentSystemApps(Set<String> set) {
-        when(mUtils.getCurrentSystemApps(mIPackageManager, TEST_USER_ID)).thenReturn(set);
+        List<ApplicationInfo> applications = new ArrayList<>();
+        for (String packageName : set) {
+            ApplicationInfo applicationInfo = new ApplicationInfo();
+            applicationInfo.packageName = packageName;
+            applicationInfo.flags = ApplicationInfo.FLAG_SYSTEM | ApplicationInfo.FLAG_INSTALLED;
+            applications.add(applicationInfo);
+        }
+        when(mInstalledApplications.getSnapshot(TEST_USER_ID))
+                .thenReturn(new InstalledApplicationsCache.Snapshot(applications));
     }
 
     private void setLastSnapshot(Set<String> set) {
@@ -239,7 +249,7 @@ public class NonRequiredAppsLogicTest {
     private NonRequiredAppsLogic createLogic(boolean newProfile) {
         return new NonRequiredAppsLogic(
                 mContext,
-                mIPackageManager,
+                mInstalledApplications,
                 mDevicePolicyManager,
                 newProfile,
                 mParamsBuilder.build(),
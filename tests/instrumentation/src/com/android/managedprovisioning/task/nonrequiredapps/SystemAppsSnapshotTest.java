@@ -22,14 +22,14 @@ import static org.junit.Assert.assertTrue;
 import static org.mockito.Mockito.when;
 
 import android.content.Context;
-import android.content.pm.IPackageManager;
+import android.content.pm.ApplicationInfo;
 import android.os.FileUtils;
 import android.os.UserManager;
 
 import androidx.test.InstrumentationRegistry;
 import androidx.test.filters.SmallTest;
 
-import com.android.managedprovisioning.common.Utils;
+import com.android.managedprovisioning.common.InstalledApplicationsCache;
 
 import org.junit.After;
 import org.junit.Before;
@@ -38,9 +38,9 @@ import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 
 import java.io.File;
-import java.util.Arrays;
+import java.util.ArrayList;
 import java.util.Collection;
-import java.util.HashSet;
+import java.util.List;
 
 /**
  * Unit-tests for {@link SystemAppsSnapshot}.
@@ -52,9 +52,8 @@ public class SystemAppsSnapshotTest {
     private static final int TEST_USER_ID = 123;
     private static final int TEST_USER_SERIAL_NUMBER = 456;
 
-    @Mock private IPackageManager mockIPackageManager;
+    @Mock private InstalledApplicationsCache mInstalledApplications;
     @Mock private Context mContext;
-    @Mock private Utils mUtils;
     @Mock private UserManager mUserManager;
     private SystemAppsSnapshot mSystemAppsSnapshot;
 
@@ -68,7 +67,7 @@ public class SystemAppsSnapshotTest {
         when(mContext.getSystemService(Context.USER_SERVICE)).thenReturn(mUserManager);
         when(mUserManager.getUserSerialNumber(TEST_USER_ID)).thenReturn(TEST_USER_SERIAL_NUMBER);
 
-        mSystemAppsSnapshot = new SystemAppsSnapshot(mContext, mockIPackageManager, mUtils);
+        mSystemAppsSnapshot = new SystemAppsSnapshot(mContext, mInstalledApplications);
     }
 
     @After
@@ -109,8 +108,15 @@ public class SystemAppsSnapshotTest {
     }
 
     private void setCurrentSystemApps(String... packages) throws Exception {
-        when(mUtils.getCurrentSystemApps(mockIPackageManager, TEST_USER_ID))
-                .thenReturn(new HashSet<>(Arrays.asList(packages)));
+        List<ApplicationInfo> applications = new ArrayList<>();
+        for (String packageName : packages) {
+            ApplicationInfo applicationInfo = new ApplicationInfo();
+            applicationInfo.packageName = packageName;
+            applicationInfo.flags = ApplicationInfo.FLAG_SYSTEM | ApplicationInfo.FLAG_INSTALLED;
+            applications.add(applicationInfo);
+        }
+        when(mInstalledApplications.getSnapshot(TEST_USER_ID))
+                .thenReturn(new InstalledApplicationsCache.Snapshot(applications));
     }
 
     private void assertSetEquals(Collection<String> result, String... expected) {
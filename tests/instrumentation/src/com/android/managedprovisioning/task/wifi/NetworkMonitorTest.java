@@ -16,8 +16,12 @@
 
 package com.android.managedprovisioning.task.wifi;
 
+import static com.google.common.truth.Truth.assertThat;
+
+import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyNoMoreInteractions;
@@ -28,6 +32,7 @@ import android.net.ConnectivityManager;
 import android.net.ConnectivityManager.NetworkCallback;
 import android.net.Network;
 import android.net.NetworkCapabilities;
+import android.net.NetworkRequest;
 
 import androidx.test.filters.SmallTest;
 
@@ -194,6 +199,70 @@ public class NetworkMonitorTest {
         nm.stopListening();
     }
 
+    @Test
+    public void testTransport_requestsNetworkOfTransport() {
+        final NetworkMonitor nm = new NetworkMonitor(mContext,
+                NetworkCapabilities.TRANSPORT_CELLULAR, /* waitForValidated */ false);
+        nm.startListening(mCallback);
+
+        final ArgumentCaptor<NetworkRequest> requestCaptor =
+                ArgumentCaptor.forClass(NetworkRequest.class);
+        verify(mConnManager).requestNetwork(requestCaptor.capture(), any(NetworkCallback.class));
+        verify(mConnManager, never()).registerDefaultNetworkCallback(any());
+        assertThat(requestCaptor.getValue().hasTransport(NetworkCapabilities.TRANSPORT_CELLULAR))
+                .isTrue();
+        assertThat(requestCaptor.getValue().hasCapability(
+                NetworkCapabilities.NET_CAPABILITY_INTERNET)).isTrue();
+
+        nm.stopListening();
+    }
+
+    @Test
+    public void testTransport_stopListeningReleasesRequest() {
+        final NetworkMonitor nm = new NetworkMonitor(mContext,
+                NetworkCapabilities.TRANSPORT_WIFI, /* waitForValidated */ false);
+        nm.startListening(mCallback);
+        final NetworkCallback cb = verifyNetworkRequested();
+
+        nm.stopListening();
+
+        verify(mConnManager).unregisterNetworkCallback(cb);
+    }
+
+    @Test
+    public void testGetConnectedNetwork() {
+        final NetworkMonitor nm = new NetworkMonitor(mContext,
+                NetworkCapabilities.TRANSPORT_WIFI, /* waitForValidated */ true);
+        nm.startListening(mCallback);
+        final NetworkCallback cb = verifyNetworkRequested();
+        final Network network = mock(Network.class);
+
+        // No network before the callback is given
+        cb.onAvailable(network);
+        cb.onBlockedStatusChanged(network, false);
+        assertThat(nm.getConnectedNetwork()).isNull();
+
+        // The network the callback was given for once it validates
+        cb.onCapabilitiesChanged(network, new NetworkCapabilities.Builder()
+                .addCapability(NetworkCapabilities.NET_CAPABILITY_VALIDATED)
+                .build());
+        verify(mCallback).onNetworkConnected();
+        assertThat(nm.getConnectedNetwork()).isSameInstanceAs(network);
+
+        // No network once it is lost
+        cb.onLost(network);
+        assertThat(nm.getConnectedNetwork()).isNull();
+
+        nm.stopListening();
+    }
+
+    private NetworkCallback verifyNetworkRequested() {
+        final ArgumentCaptor<NetworkCallback> cbCaptor =
+                ArgumentCaptor.forClass(NetworkCallback.class);
+        verify(mConnManager).requestNetwork(any(NetworkRequest.class), cbCaptor.capture());
+        return cbCaptor.getValue();
+    }
+
     private NetworkCallback verifyCallbackRegistered() {
         final ArgumentCaptor<NetworkCallback> cbCaptor =
                 ArgumentCaptor.forClass(NetworkCallback.class);
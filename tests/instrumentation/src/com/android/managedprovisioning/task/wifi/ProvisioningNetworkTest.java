@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.managedprovisioning.task.wifi;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import android.net.Network;
+
+import androidx.test.filters.SmallTest;
+
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link ProvisioningNetwork}.
+ */
+@SmallTest
+public class ProvisioningNetworkTest {
+
+    private final ProvisioningNetwork mProvisioningNetwork = new ProvisioningNetwork();
+    private final NetworkMonitor mNetworkMonitor = mock(NetworkMonitor.class);
+    private final Network mNetwork = mock(Network.class);
+
+    @Test
+    public void getNetwork_nothingBound_returnsNull() {
+        assertThat(mProvisioningNetwork.getNetwork()).isNull();
+    }
+
+    @Test
+    public void getNetwork_returnsConnectedNetworkOfBoundMonitor() {
+        when(mNetworkMonitor.getConnectedNetwork()).thenReturn(mNetwork);
+
+        mProvisioningNetwork.bind(mNetworkMonitor);
+
+        assertThat(mProvisioningNetwork.getNetwork()).isSameInstanceAs(mNetwork);
+        verify(mNetworkMonitor, never()).stopListening();
+    }
+
+    @Test
+    public void bind_stopsPreviouslyBoundMonitor() {
+        NetworkMonitor otherMonitor = mock(NetworkMonitor.class);
+        mProvisioningNetwork.bind(mNetworkMonitor);
+
+        mProvisioningNetwork.bind(otherMonitor);
+
+        verify(mNetworkMonitor).stopListening();
+        verify(otherMonitor, never()).stopListening();
+    }
+
+    @Test
+    public void unbind_stopsBoundMonitor() {
+        when(mNetworkMonitor.getConnectedNetwork()).thenReturn(mNetwork);
+        mProvisioningNetwork.bind(mNetworkMonitor);
+
+        mProvisioningNetwork.unbind();
+
+        verify(mNetworkMonitor).stopListening();
+        assertThat(mProvisioningNetwork.getNetwork()).isNull();
+    }
+
+    @Test
+    public void unbind_whileAcquired_keepsMonitorUntilReleased() {
+        when(mNetworkMonitor.getConnectedNetwork()).thenReturn(mNetwork);
+        mProvisioningNetwork.bind(mNetworkMonitor);
+        mProvisioningNetwork.acquire();
+        mProvisioningNetwork.acquire();
+
+        mProvisioningNetwork.unbind();
+        mProvisioningNetwork.release();
+
+        verify(mNetworkMonitor, never()).stopListening();
+        assertThat(mProvisioningNetwork.getNetwork()).isSameInstanceAs(mNetwork);
+
+        mProvisioningNetwork.release();
+
+        verify(mNetworkMonitor).stopListening();
+        assertThat(mProvisioningNetwork.getNetwork()).isNull();
+    }
+
+    @Test
+    public void release_whileBound_keepsMonitor() {
+        mProvisioningNetwork.bind(mNetworkMonitor);
+        mProvisioningNetwork.acquire();
+
+        mProvisioningNetwork.release();
+        mProvisioningNetwork.release();
+
+        verify(mNetworkMonitor, never()).stopListening();
+    }
+}
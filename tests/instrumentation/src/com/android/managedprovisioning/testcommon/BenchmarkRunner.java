@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.managedprovisioning.testcommon;
+
+import android.os.Debug;
+import android.util.Log;
+
+import java.util.Locale;
+
+/**
+ * Measures the cases of a {@link BenchmarkTest}: each case is warmed up, then run a fixed number
+ * of times, and its average time per operation is logged as one line under the benchmark's tag.
+ */
+public final class BenchmarkRunner {
+
+    private static final double BYTES_PER_MEBIBYTE = 1024 * 1024;
+
+    /**
+     * An operation to measure.
+     */
+    public interface Operation {
+        void run() throws Exception;
+    }
+
+    /**
+     * The averages per operation of a measured case.
+     */
+    public static final class Measurement {
+        public final long averageNanos;
+        /** Allocations per operation, or -1 if they were not counted. */
+        public final long allocations;
+        /** Bytes allocated per operation, or -1 if they were not counted. */
+        public final long allocatedBytes;
+
+        Measurement(long averageNanos, long allocations, long allocatedBytes) {
+            this.averageNanos = averageNanos;
+            this.allocations = allocations;
+            this.allocatedBytes = allocatedBytes;
+        }
+    }
+
+    private final String mTag;
+    private final int mWarmupIterations;
+    private final int mMeasuredIterations;
+
+    public BenchmarkRunner(String tag, int warmupIterations, int measuredIterations) {
+        mTag = tag;
+        mWarmupIterations = warmupIterations;
+        mMeasuredIterations = measuredIterations;
+    }
+
+    /**
+     * Measures {@code operation} and logs its average time.
+     */
+    public Measurement measure(String name, Operation operation) throws Exception {
+        Measurement measurement = run(operation, /* countAllocations= */ false);
+        log(String.format(Locale.US, "%-32s %10.3f ms/op", name, measurement.averageNanos / 1e6));
+        return measurement;
+    }
+
+    /**
+     * Measures {@code operation}, which processes {@code bytesPerOperation} bytes, and logs its
+     * average time and throughput.
+     */
+    public Measurement measureThroughput(String name, long bytesPerOperation, Operation operation)
+            throws Exception {
+        Measurement measurement = run(operation, /* countAllocations= */ false);
+        double mebibytesPerSecond = measurement.averageNanos == 0 ? 0
+                : bytesPerOperation / BYTES_PER_MEBIBYTE * 1e9 / measurement.averageNanos;
+        log(String.format(Locale.US, "%-32s %10.3f ms/op, %8.2f MiB/s",
+                name, measurement.averageNanos / 1e6, mebibytesPerSecond));
+        return measurement;
+    }
+
+    /**
+     * Measures {@code operation}, counting the allocations of the current thread, and logs its
+     * average time and allocations. Counting slows the operation down, so its time is only
+     * comparable with that of other cases measured this way.
+     */
+    public Measurement measureAllocations(String name, Operation operation) throws Exception {
+        Measurement measurement = run(operation, /* countAllocations= */ true);
+        log(String.format(Locale.US, "%-32s %10.3f ms/op, %6d allocs/op, %8d bytes/op",
+                name, measurement.averageNanos / 1e6, measurement.allocations,
+                measurement.allocatedBytes));
+        return measurement;
+    }
+
+    /**
+     * Logs a line that is not a measurement, such as the size of a file a case wrote.
+     */
+    public void log(String line) {
+        Log.i(mTag, line);
+    }
+
+    @SuppressWarnings("deprecation")
+    private Measurement run(Operation operation, boolean countAllocations) throws Exception {
+        for (int i = 0; i < mWarmupIterations; i++) {
+            operation.run();
+        }
+        if (countAllocations) {
+            Debug.resetThreadAllocCount();
+            Debug.resetThreadAllocSize();
+            Debug.startAllocCounting();
+        }
+        long startNanos = System.nanoTime();
+        for (int i = 0; i < mMeasuredIterations; i++) {
+            operation.run();
+        }
+        long averageNanos = (System.nanoTime() - startNanos) / mMeasuredIterations;
+        if (!countAllocations) {
+            return new Measurement(averageNanos, /* allocations= */ -1, /* allocatedBytes= */ -1);
+        }
+        Debug.stopAllocCounting();
+        return new Measurement(averageNanos, Debug.getThreadAllocCount() / mMeasuredIterations,
+                Debug.getThreadAllocSize() / mMeasuredIterations);
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.managedprovisioning.analytics;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import static org.junit.Assert.assertThrows;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Unit-tests for {@link AdaptiveRateLimiter}.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class AdaptiveRateLimiterTest {
+
+    private final FakeClock mClock = new FakeClock();
+    private final AdaptiveRateLimiter mRateLimiter = new AdaptiveRateLimiter(mClock);
+
+    @Test
+    public void acquire_withinCapacity_doesNotSleep() throws InterruptedException {
+        mRateLimiter.acquire(AdaptiveRateLimiter.CAPACITY);
+
+        assertThat(mClock.mSleptNanos).isEqualTo(0);
+    }
+
+    @Test
+    public void acquire_bucketEmpty_sleepsForMissingTokens() throws InterruptedException {
+        mRateLimiter.acquire(AdaptiveRateLimiter.CAPACITY);
+
+        mRateLimiter.acquire(10);
+
+        // 10 events at the initial rate of 100 events per second
+        assertThat(mClock.mSleptNanos).isEqualTo(TimeUnit.MILLISECONDS.toNanos(100));
+    }
+
+    @Test
+    public void acquire_moreThanCapacity_throws() {
+        assertThrows(IllegalArgumentException.class,
+                () -> mRateLimiter.acquire(AdaptiveRateLimiter.CAPACITY + 1));
+    }
+
+    @Test
+    public void onBatchWritten_fast_increasesRate() {
+        mRateLimiter.onBatchWritten(10, /* elapsedNanos= */ 0);
+
+        assertThat(mRateLimiter.getEventsPerSecond())
+                .isGreaterThan(AdaptiveRateLimiter.INITIAL_EVENTS_PER_SECOND);
+    }
+
+    @Test
+    public void onBatchWritten_slow_halvesRate() {
+        mRateLimiter.onBatchWritten(10, 10 * AdaptiveRateLimiter.SLOW_WRITE_NANOS_PER_EVENT + 10);
+
+        assertThat(mRateLimiter.getEventsPerSecond())
+                .isEqualTo(AdaptiveRateLimiter.INITIAL_EVENTS_PER_SECOND / 2);
+    }
+
+    @Test
+    public void onBatchWritten_repeatedlySlow_staysAboveMinimum() {
+        for (int i = 0; i < 20; i++) {
+            mRateLimiter.onBatchWritten(1, TimeUnit.SECONDS.toNanos(1));
+        }
+
+        assertThat(mRateLimiter.getEventsPerSecond())
+                .isEqualTo(AdaptiveRateLimiter.MIN_EVENTS_PER_SECOND);
+    }
+
+    private static class FakeClock implements AdaptiveRateLimiter.Clock {
+        long mNanos;
+        long mSleptNanos;
+
+        @Override
+        public long nanoTime() {
+            return mNanos;
+        }
+
+        @Override
+        public void sleepNanos(long nanos) {
+            mSleptNanos += nanos;
+            mNanos += nanos;
+        }
+    }
+}
@@ -18,6 +18,8 @@ package com.android.managedprovisioning.analytics;
 
 import static com.android.managedprovisioning.analytics.AnalyticsRoboTestUtils.assertDevicePolicyEventLoggersEqual;
 
+import static com.google.common.truth.Truth.assertThat;
+
 import android.app.admin.DevicePolicyEventLogger;
 
 import org.junit.Test;
@@ -26,6 +28,9 @@ import org.robolectric.Robolectric;
 import org.robolectric.RobolectricTestRunner;
 
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
@@ -37,6 +42,8 @@ import java.util.List;
 @RunWith(RobolectricTestRunner.class)
 public class DeferredMetricsWriteReadRoboTest {
 
+    private static final long FLUSH_TIMEOUT_MILLIS = 5000;
+
     private static final DevicePolicyEventLogger[] EVENTS_TO_WRITE
             = new DevicePolicyEventLogger[] {
                     DevicePolicyEventLogger
@@ -64,6 +71,145 @@ public class DeferredMetricsWriteReadRoboTest {
         assertDevicePolicyEventLoggersEqual(EVENTS_TO_WRITE, eventsRead);
     }
 
+    @Test
+    public void writeRead_tornRecordAtEnd_ignored() throws IOException {
+        final File file = new File("test-file-torn");
+
+        writeMetricsToFile(EVENTS_TO_WRITE, file);
+        // A record header announcing more bytes than follow, as left by a crash mid-write
+        appendBytes(file, new byte[] {0, 0, 0, 10, 1, 2, 3, 4, 5});
+        final DevicePolicyEventLogger[] eventsRead = readMetricsFromFile(file);
+
+        assertDevicePolicyEventLoggersEqual(EVENTS_TO_WRITE, eventsRead);
+    }
+
+    @Test
+    public void read_corruptedRecord_stopsBeforeIt() throws IOException {
+        final File file = new File("test-file-corrupted");
+
+        writeMetricsToFile(EVENTS_TO_WRITE, file);
+        final byte[] contents = Files.readAllBytes(file.toPath());
+        // Flip a byte in the payload of the last record
+        contents[contents.length - 1] ^= 0xff;
+        Files.write(file.toPath(), contents);
+        final DevicePolicyEventLogger[] eventsRead = readMetricsFromFile(file);
+
+        assertDevicePolicyEventLoggersEqual(
+                Arrays.copyOf(EVENTS_TO_WRITE, EVENTS_TO_WRITE.length - 1), eventsRead);
+    }
+
+    @Test
+    public void read_stoppedAfterFirstBatch_resumesFromCheckpoint() {
+        final File file = new File("test-file-resumed");
+        writeMetricsToFile(EVENTS_TO_WRITE, file);
+        final List<DevicePolicyEventLogger> eventsList = new ArrayList<>();
+        final ProcessMetricsJobService[] stoppedService = new ProcessMetricsJobService[1];
+        stoppedService[0] = new ProcessMetricsJobService(loggers -> {
+            eventsList.addAll(Arrays.asList(loggers));
+            stoppedService[0].onStopJob(/* params */ null);
+        }, /* batchSize= */ 2);
+
+        stoppedService[0].executeReadDeferredMetrics(/* params */ null, file);
+        Robolectric.flushBackgroundThreadScheduler();
+
+        final File replayFile = ProcessMetricsJobService.getReplayFile(file);
+        assertThat(eventsList).hasSize(2);
+        assertThat(file.exists()).isFalse();
+        assertThat(replayFile.exists()).isTrue();
+        assertThat(ProcessMetricsJobService.getCheckpointFile(replayFile).exists()).isTrue();
+
+        new ProcessMetricsJobService(loggers -> eventsList.addAll(Arrays.asList(loggers)),
+                /* batchSize= */ 2).executeReadDeferredMetrics(/* params */ null, file);
+        Robolectric.flushBackgroundThreadScheduler();
+
+        assertDevicePolicyEventLoggersEqual(
+                EVENTS_TO_WRITE, eventsList.toArray(new DevicePolicyEventLogger[0]));
+        assertThat(replayFile.exists()).isFalse();
+        assertThat(ProcessMetricsJobService.getCheckpointFile(replayFile).exists()).isFalse();
+    }
+
+    @Test
+    public void read_checkpointsBatchAfterWritingIt() {
+        final File file = new File("test-file-checkpointed");
+        writeMetricsToFile(EVENTS_TO_WRITE, file);
+        final File checkpointFile = ProcessMetricsJobService.getCheckpointFile(
+                ProcessMetricsJobService.getReplayFile(file));
+        final List<Boolean> checkpointed = new ArrayList<>();
+
+        new ProcessMetricsJobService(loggers -> checkpointed.add(checkpointFile.exists()),
+                /* batchSize= */ 2).executeReadDeferredMetrics(/* params */ null, file);
+        Robolectric.flushBackgroundThreadScheduler();
+
+        // The first batch is only checkpointed once it has been written.
+        assertThat(checkpointed).containsExactly(false, true).inOrder();
+        assertThat(checkpointFile.exists()).isFalse();
+    }
+
+    @Test
+    public void read_staleCheckpoint_ignoredForNewFile() {
+        final File file = new File("test-file-stale-checkpoint");
+        writeMetricsToFile(EVENTS_TO_WRITE, file);
+        final ProcessMetricsJobService[] stoppedService = new ProcessMetricsJobService[1];
+        stoppedService[0] = new ProcessMetricsJobService(
+                loggers -> stoppedService[0].onStopJob(/* params */ null), /* batchSize= */ 2);
+        stoppedService[0].executeReadDeferredMetrics(/* params */ null, file);
+        Robolectric.flushBackgroundThreadScheduler();
+        // As if the process died after deleting the replay file but before its checkpoint
+        ProcessMetricsJobService.getReplayFile(file).delete();
+
+        writeMetricsToFile(EVENTS_TO_WRITE, file);
+
+        assertDevicePolicyEventLoggersEqual(EVENTS_TO_WRITE, readMetricsFromFile(file));
+    }
+
+    @Test
+    public void read_eventsWrittenWhileReading_keptForNextRead() {
+        final File file = new File("test-file-rotated");
+        writeMetricsToFile(EVENTS_TO_WRITE, file);
+        final DevicePolicyEventLogger[] laterEvents = new DevicePolicyEventLogger[] {
+                DevicePolicyEventLogger.createEvent(128)
+        };
+        final List<DevicePolicyEventLogger> eventsList = new ArrayList<>();
+        new ProcessMetricsJobService(loggers -> {
+            if (eventsList.isEmpty()) {
+                writeMetricsToFile(laterEvents, file);
+            }
+            eventsList.addAll(Arrays.asList(loggers));
+        }).executeReadDeferredMetrics(/* params */ null, file);
+        Robolectric.flushBackgroundThreadScheduler();
+
+        assertDevicePolicyEventLoggersEqual(
+                EVENTS_TO_WRITE, eventsList.toArray(new DevicePolicyEventLogger[0]));
+        assertDevicePolicyEventLoggersEqual(laterEvents, readMetricsFromFile(file));
+    }
+
+    @Test
+    public void read_legacyFile_eventsAreCorrect() throws IOException {
+        final File file = new File("test-file-legacy");
+        writeLegacyMetricsToFile(EVENTS_TO_WRITE, file);
+
+        final DevicePolicyEventLogger[] eventsRead = readMetricsFromFile(file);
+
+        assertDevicePolicyEventLoggersEqual(EVENTS_TO_WRITE, eventsRead);
+    }
+
+    @Test
+    public void write_legacyFile_keepsItsEvents() throws IOException {
+        final File file = new File("test-file-legacy-appended");
+        final DevicePolicyEventLogger[] laterEvents = new DevicePolicyEventLogger[] {
+                DevicePolicyEventLogger.createEvent(128)
+        };
+        writeLegacyMetricsToFile(EVENTS_TO_WRITE, file);
+
+        writeMetricsToFile(laterEvents, file);
+        final DevicePolicyEventLogger[] eventsRead = readMetricsFromFile(file);
+
+        final DevicePolicyEventLogger[] expected =
+                Arrays.copyOf(EVENTS_TO_WRITE, EVENTS_TO_WRITE.length + laterEvents.length);
+        System.arraycopy(laterEvents, 0, expected, EVENTS_TO_WRITE.length, laterEvents.length);
+        assertDevicePolicyEventLoggersEqual(expected, eventsRead);
+    }
+
     private DevicePolicyEventLogger[] readMetricsFromFile(File file) {
         final List<DevicePolicyEventLogger> eventsList = new ArrayList<>();
         final ProcessMetricsJobService processMetricsJobService = new ProcessMetricsJobService(
@@ -77,6 +223,25 @@ public class DeferredMetricsWriteReadRoboTest {
             DevicePolicyEventLogger[] devicePolicyEvent, File file) {
         final DeferredMetricsWriter writer = new DeferredMetricsWriter(file);
         writer.write(devicePolicyEvent);
-        Robolectric.flushBackgroundThreadScheduler();
+        assertThat(writer.flush(FLUSH_TIMEOUT_MILLIS)).isTrue();
+    }
+
+    /**
+     * Writes the events the way older versions did, without a header or checksums.
+     */
+    private static void writeLegacyMetricsToFile(
+            DevicePolicyEventLogger[] devicePolicyEvent, File file) throws IOException {
+        try (FileOutputStream outputStream = new FileOutputStream(file)) {
+            for (DevicePolicyEventLogger logger : devicePolicyEvent) {
+                DeferredMetricsWriter.eventLoggerToDevicePolicyEvent(logger)
+                        .writeDelimitedTo(outputStream);
+            }
+        }
+    }
+
+    private static void appendBytes(File file, byte[] bytes) throws IOException {
+        try (FileOutputStream outputStream = new FileOutputStream(file, /* append= */ true)) {
+            outputStream.write(bytes);
+        }
     }
 }
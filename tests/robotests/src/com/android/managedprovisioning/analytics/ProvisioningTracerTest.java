@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.managedprovisioning.analytics;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Robolectric tests for {@link ProvisioningTracer}.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class ProvisioningTracerTest {
+
+    private long mNowNanos;
+    private final ProvisioningTracer mTracer =
+            new ProvisioningTracer(/* capacity= */ 3, () -> mNowNanos);
+
+    @Test
+    public void beginSpan_nested_depthFollowsParent() {
+        ProvisioningTracer.Span session = mTracer.beginSpan("session", /* parent= */ null);
+        ProvisioningTracer.Span task = mTracer.beginSpan("task", session);
+        ProvisioningTracer.Span subStep = mTracer.beginSpan("sub_step", task);
+
+        assertThat(session.getDepth()).isEqualTo(0);
+        assertThat(task.getDepth()).isEqualTo(1);
+        assertThat(subStep.getDepth()).isEqualTo(2);
+        assertThat(subStep.getParent()).isSameInstanceAs(task);
+    }
+
+    @Test
+    public void end_recordsDuration() {
+        ProvisioningTracer.Span span = mTracer.beginSpan("span", /* parent= */ null);
+
+        advanceMillis(42);
+        span.end();
+        advanceMillis(100);
+
+        assertThat(span.isEnded()).isTrue();
+        assertThat(span.getDurationMillis()).isEqualTo(42);
+    }
+
+    @Test
+    public void end_twice_recordedOnce() {
+        ProvisioningTracer.Span span = mTracer.beginSpan("span", /* parent= */ null);
+
+        span.end();
+        span.close();
+
+        assertThat(mTracer.getRecentSpans()).containsExactly(span);
+    }
+
+    @Test
+    public void getRecentSpans_keepsMostRecentInOrder() {
+        for (int i = 0; i < 5; i++) {
+            mTracer.beginSpan("span" + i, /* parent= */ null).end();
+        }
+
+        assertThat(names(mTracer.getRecentSpans()))
+                .containsExactly("span2", "span3", "span4").inOrder();
+    }
+
+    @Test
+    public void getRecentSpans_excludesRunningSpans() {
+        mTracer.beginSpan("running", /* parent= */ null);
+
+        assertThat(mTracer.getRecentSpans()).isEmpty();
+    }
+
+    @Test
+    public void dump_printsIndentedSpans() {
+        ProvisioningTracer.Span session = mTracer.beginSpan("session", /* parent= */ null);
+        try (ProvisioningTracer.Span task = mTracer.beginSpan("task", session)) {
+            advanceMillis(7);
+        }
+        session.end();
+        StringWriter output = new StringWriter();
+
+        mTracer.dump(new PrintWriter(output));
+
+        assertThat(output.toString()).contains("    task #2 (parent #1): 7 ms");
+        assertThat(output.toString()).contains("  session #1: 7 ms");
+    }
+
+    private void advanceMillis(long millis) {
+        mNowNanos += TimeUnit.MILLISECONDS.toNanos(millis);
+    }
+
+    private static List<String> names(List<ProvisioningTracer.Span> spans) {
+        return spans.stream().map(ProvisioningTracer.Span::getName).collect(Collectors.toList());
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.managedprovisioning.analytics;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.app.admin.DevicePolicyEventLogger;
+import android.content.Context;
+
+import com.android.managedprovisioning.common.SettingsFacade;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Robolectric tests for {@link SetupAwareMetricsWriter}.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class SetupAwareMetricsWriterTest {
+
+    private static final DevicePolicyEventLogger EVENT = DevicePolicyEventLogger.createEvent(124);
+
+    private final List<DevicePolicyEventLogger> mDeferredEvents = new ArrayList<>();
+    private final List<DevicePolicyEventLogger> mInstantEvents = new ArrayList<>();
+    private boolean mDuringSetupWizard;
+
+    private final SettingsFacade mSettingsFacade = new SettingsFacade() {
+        @Override
+        public boolean isDuringSetupWizard(Context context) {
+            return mDuringSetupWizard;
+        }
+    };
+
+    @Test
+    public void write_duringSetupWizard_defersEvents() {
+        mDuringSetupWizard = true;
+
+        createWriter().write(EVENT);
+
+        assertThat(mDeferredEvents).containsExactly(EVENT);
+        assertThat(mInstantEvents).isEmpty();
+    }
+
+    @Test
+    public void write_postSetupWizard_writesEventsInstantly() {
+        mDuringSetupWizard = false;
+
+        createWriter().write(EVENT);
+
+        assertThat(mDeferredEvents).isEmpty();
+        assertThat(mInstantEvents).containsExactly(EVENT);
+    }
+
+    @Test
+    public void write_afterSetupWizardCompletes_switchesToInstant() {
+        mDuringSetupWizard = true;
+        SetupAwareMetricsWriter writer = createWriter();
+
+        mDuringSetupWizard = false;
+        writer.updateSetupWizardState();
+        writer.write(EVENT);
+
+        assertThat(mDeferredEvents).isEmpty();
+        assertThat(mInstantEvents).containsExactly(EVENT);
+    }
+
+    @Test
+    public void write_doesNotReadSettingsForEveryEvent() {
+        mDuringSetupWizard = true;
+        SetupAwareMetricsWriter writer = createWriter();
+
+        mDuringSetupWizard = false;
+        writer.write(EVENT);
+
+        assertThat(mDeferredEvents).containsExactly(EVENT);
+    }
+
+    @Test
+    public void getInstance_returnsSameInstance() {
+        assertThat(SetupAwareMetricsWriter.getInstance(RuntimeEnvironment.application))
+                .isSameInstanceAs(
+                        SetupAwareMetricsWriter.getInstance(RuntimeEnvironment.application));
+    }
+
+    private SetupAwareMetricsWriter createWriter() {
+        return new SetupAwareMetricsWriter(RuntimeEnvironment.application, mSettingsFacade,
+                loggers -> mDeferredEvents.addAll(Arrays.asList(loggers)),
+                loggers -> mInstantEvents.addAll(Arrays.asList(loggers)));
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.managedprovisioning.common;
+
+import static com.android.managedprovisioning.common.FileHashEngine.MODE_DIRECT_BUFFER;
+import static com.android.managedprovisioning.common.FileHashEngine.MODE_MEMORY_MAPPED;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import static org.testng.Assert.assertThrows;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Random;
+
+@RunWith(RobolectricTestRunner.class)
+public class FileHashEngineTest {
+    private static final int SMALL_BUFFER_SIZE = 1000;
+
+    @Rule
+    public final TemporaryFolder mTemporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void hash_directBuffer_matchesMessageDigest() throws Exception {
+        byte[] contents = randomBytes(3 * SMALL_BUFFER_SIZE + 17);
+        File file = writeFile(contents);
+
+        FileHashEngine.Result result =
+                new FileHashEngine(Utils.SHA256_TYPE, MODE_DIRECT_BUFFER, SMALL_BUFFER_SIZE)
+                        .hash(file);
+
+        assertThat(result.getHash()).isEqualTo(sha256(contents));
+        assertThat(result.getBytes()).isEqualTo(contents.length);
+    }
+
+    @Test
+    public void hash_memoryMapped_matchesMessageDigest() throws Exception {
+        byte[] contents = randomBytes(100_000);
+        File file = writeFile(contents);
+
+        FileHashEngine.Result result =
+                new FileHashEngine(Utils.SHA256_TYPE, MODE_MEMORY_MAPPED, SMALL_BUFFER_SIZE)
+                        .hash(file);
+
+        assertThat(result.getHash()).isEqualTo(sha256(contents));
+        assertThat(result.getBytes()).isEqualTo(contents.length);
+    }
+
+    @Test
+    public void hash_autoAboveThreshold_matchesMessageDigest() throws Exception {
+        byte[] contents = randomBytes((int) FileHashEngine.MEMORY_MAPPED_THRESHOLD + 17);
+        File file = writeFile(contents);
+
+        FileHashEngine.Result result = new FileHashEngine(Utils.SHA256_TYPE).hash(file);
+
+        assertThat(result.getHash()).isEqualTo(sha256(contents));
+        assertThat(result.getBytes()).isEqualTo(contents.length);
+    }
+
+    @Test
+    public void hash_emptyFile_works() throws Exception {
+        File file = writeFile(new byte[0]);
+
+        FileHashEngine.Result result = new FileHashEngine(Utils.SHA256_TYPE).hash(file);
+
+        assertThat(result.getHash()).isEqualTo(sha256(new byte[0]));
+        assertThat(result.getBytes()).isEqualTo(0);
+    }
+
+    @Test
+    public void hash_otherAlgorithm_works() throws Exception {
+        byte[] contents = randomBytes(5000);
+        File file = writeFile(contents);
+
+        FileHashEngine.Result result = new FileHashEngine("SHA-1").hash(file);
+
+        assertThat(result.getHash()).isEqualTo(MessageDigest.getInstance("SHA-1").digest(contents));
+    }
+
+    @Test
+    public void hash_unknownAlgorithm_throws() throws Exception {
+        File file = writeFile(randomBytes(10));
+
+        assertThrows(NoSuchAlgorithmException.class,
+                () -> new FileHashEngine("unknown").hash(file));
+    }
+
+    @Test
+    public void hash_missingFile_throws() {
+        File file = new File(mTemporaryFolder.getRoot(), "missing");
+
+        assertThrows(FileNotFoundException.class,
+                () -> new FileHashEngine(Utils.SHA256_TYPE).hash(file));
+    }
+
+    @Test
+    public void getBytesPerSecond_computesThroughput() {
+        FileHashEngine.Result result = new FileHashEngine.Result(
+                new byte[0], /* bytes= */ 2000, /* durationNanos= */ 500_000_000L);
+
+        assertThat(result.getBytesPerSecond()).isEqualTo(4000);
+    }
+
+    private File writeFile(byte[] contents) throws IOException {
+        File file = mTemporaryFolder.newFile();
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(contents);
+        }
+        return file;
+    }
+
+    private static byte[] randomBytes(int size) {
+        byte[] bytes = new byte[size];
+        new Random(size).nextBytes(bytes);
+        return bytes;
+    }
+
+    private static byte[] sha256(byte[] bytes) throws NoSuchAlgorithmException {
+        return MessageDigest.getInstance(Utils.SHA256_TYPE).digest(bytes);
+    }
+}
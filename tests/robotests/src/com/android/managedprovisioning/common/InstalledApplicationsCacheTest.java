@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.managedprovisioning.common;
+
+import static android.content.pm.ApplicationInfo.FLAG_INSTALLED;
+import static android.content.pm.ApplicationInfo.FLAG_SYSTEM;
+import static android.content.pm.ApplicationInfo.FLAG_UPDATED_SYSTEM_APP;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.content.pm.ApplicationInfo;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+@RunWith(RobolectricTestRunner.class)
+public class InstalledApplicationsCacheTest {
+    private static final int USER_ID = 10;
+    private static final int OTHER_USER_ID = 11;
+
+    private static final ApplicationInfo SYSTEM_APP =
+            createApplicationInfo("system.app", 1000, FLAG_SYSTEM | FLAG_INSTALLED);
+    private static final ApplicationInfo UPDATED_SYSTEM_APP = createApplicationInfo(
+            "updated.system.app", 1001, FLAG_SYSTEM | FLAG_UPDATED_SYSTEM_APP | FLAG_INSTALLED);
+    private static final ApplicationInfo UNINSTALLED_SYSTEM_APP =
+            createApplicationInfo("uninstalled.system.app", 1002, FLAG_SYSTEM);
+    private static final ApplicationInfo USER_APP =
+            createApplicationInfo("user.app", 1000, FLAG_INSTALLED);
+
+    private final List<Integer> mLoadedUsers = new ArrayList<>();
+    private final InstalledApplicationsCache mCache = new InstalledApplicationsCache(userId -> {
+        mLoadedUsers.add(userId);
+        return Arrays.asList(SYSTEM_APP, UPDATED_SYSTEM_APP, UNINSTALLED_SYSTEM_APP, USER_APP);
+    });
+
+    @Test
+    public void getSnapshot_loadsOncePerUser() {
+        mCache.getSnapshot(USER_ID);
+        mCache.getSnapshot(USER_ID);
+        mCache.getSnapshot(OTHER_USER_ID);
+
+        assertThat(mLoadedUsers).containsExactly(USER_ID, OTHER_USER_ID);
+    }
+
+    @Test
+    public void getSnapshot_afterInvalidate_loadsAgain() {
+        mCache.getSnapshot(USER_ID);
+
+        mCache.invalidate();
+        mCache.getSnapshot(USER_ID);
+
+        assertThat(mLoadedUsers).containsExactly(USER_ID, USER_ID);
+    }
+
+    @Test
+    public void getSnapshot_loadFails_returnsEmptySnapshotAndRetries() {
+        InstalledApplicationsCache cache = new InstalledApplicationsCache(userId -> {
+            mLoadedUsers.add(userId);
+            return null;
+        });
+
+        assertThat(cache.getSnapshot(USER_ID).getApplications()).isEmpty();
+        cache.getSnapshot(USER_ID);
+
+        assertThat(mLoadedUsers).containsExactly(USER_ID, USER_ID);
+    }
+
+    @Test
+    public void getInstalledApplications_excludesUninstalled() {
+        assertThat(packageNames(mCache.getSnapshot(USER_ID).getInstalledApplications()))
+                .containsExactly("system.app", "updated.system.app", "user.app");
+    }
+
+    @Test
+    public void getPackageNamesWithFlags_includesUninstalled() {
+        assertThat(mCache.getSnapshot(USER_ID).getPackageNamesWithFlags(FLAG_SYSTEM))
+                .containsExactly("system.app", "updated.system.app", "uninstalled.system.app");
+    }
+
+    @Test
+    public void getApplicationsWithFlags_multipleFlags_matchesAll() {
+        assertThat(packageNames(mCache.getSnapshot(USER_ID)
+                .getApplicationsWithFlags(FLAG_SYSTEM | FLAG_UPDATED_SYSTEM_APP)))
+                .containsExactly("updated.system.app");
+    }
+
+    @Test
+    public void getApplicationsWithFlags_noFlags_returnsAll() {
+        assertThat(mCache.getSnapshot(USER_ID).getApplicationsWithFlags(0)).hasSize(4);
+    }
+
+    @Test
+    public void getApplicationsForUid() {
+        assertThat(packageNames(mCache.getSnapshot(USER_ID).getApplicationsForUid(1000)))
+                .containsExactly("system.app", "user.app");
+        assertThat(mCache.getSnapshot(USER_ID).getApplicationsForUid(2000)).isEmpty();
+    }
+
+    private static List<String> packageNames(List<ApplicationInfo> applications) {
+        return applications.stream().map(info -> info.packageName).collect(Collectors.toList());
+    }
+
+    private static ApplicationInfo createApplicationInfo(String packageName, int uid, int flags) {
+        ApplicationInfo applicationInfo = new ApplicationInfo();
+        applicationInfo.packageName = packageName;
+        applicationInfo.uid = uid;
+        applicationInfo.flags = flags;
+        return applicationInfo;
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.managedprovisioning.common;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+@RunWith(RobolectricTestRunner.class)
+public class LatencyHistogramTest {
+
+    @Test
+    public void getPercentile_empty_returnsZero() {
+        LatencyHistogram histogram = new LatencyHistogram();
+
+        assertThat(histogram.getCount()).isEqualTo(0);
+        assertThat(histogram.getPercentile(50)).isEqualTo(0);
+    }
+
+    @Test
+    public void getPercentile_smallValues_exact() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 4; i++) {
+            histogram.record(i);
+        }
+
+        assertThat(histogram.getPercentile(50)).isEqualTo(2);
+        assertThat(histogram.getPercentile(100)).isEqualTo(4);
+    }
+
+    @Test
+    public void getSummary_withinRelativeError() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i * 10L);
+        }
+
+        LatencyHistogram.Summary summary = histogram.getSummary();
+
+        assertThat(summary.count).isEqualTo(1000);
+        assertWithinBucketError(summary.p50, 5000);
+        assertWithinBucketError(summary.p95, 9500);
+        assertWithinBucketError(summary.p99, 9900);
+        assertThat(summary.max).isEqualTo(10000);
+    }
+
+    @Test
+    public void record_outOfRange_clamped() {
+        LatencyHistogram histogram = new LatencyHistogram();
+
+        histogram.record(-5);
+        histogram.record(Long.MAX_VALUE);
+
+        assertThat(histogram.getPercentile(50)).isEqualTo(0);
+        assertThat(histogram.getPercentile(100)).isEqualTo(Integer.MAX_VALUE);
+    }
+
+    @Test
+    public void getBucketIndex_coversIntRangeWithinBucketCount() {
+        assertThat(LatencyHistogram.getBucketIndex(0)).isEqualTo(0);
+        assertThat(LatencyHistogram.getBucketIndex(Integer.MAX_VALUE))
+                .isEqualTo(LatencyHistogram.BUCKET_COUNT - 1);
+        for (long value = 1; value < Integer.MAX_VALUE; value = value * 3 + 1) {
+            int index = LatencyHistogram.getBucketIndex(value);
+            assertThat(LatencyHistogram.getBucketUpperBound(index)).isAtLeast(value);
+            if (index > 0) {
+                assertThat(LatencyHistogram.getBucketUpperBound(index - 1)).isLessThan(value);
+            }
+        }
+    }
+
+    @Test
+    public void encodeDecode_roundTrips() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(3);
+        histogram.record(300);
+        histogram.record(300);
+        histogram.record(45000);
+
+        LatencyHistogram decoded = LatencyHistogram.decode(histogram.encode());
+
+        assertThat(decoded.getCount()).isEqualTo(4);
+        assertThat(decoded.encode()).isEqualTo(histogram.encode());
+    }
+
+    @Test
+    public void merge_addsCountsAndKeepsMaximum() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(10);
+        LatencyHistogram other = new LatencyHistogram();
+        other.record(10);
+        other.record(5000);
+
+        histogram.merge(other);
+
+        assertThat(histogram.getCount()).isEqualTo(3);
+        assertThat(histogram.getPercentile(50)).isEqualTo(10);
+        assertThat(histogram.getSummary().max).isEqualTo(5000);
+    }
+
+    @Test
+    public void decode_malformed_returnsEmpty() {
+        assertThat(LatencyHistogram.decode(null).getCount()).isEqualTo(0);
+        assertThat(LatencyHistogram.decode("2;0;").getCount()).isEqualTo(0);
+        assertThat(LatencyHistogram.decode("1;10;abc").getCount()).isEqualTo(0);
+        assertThat(LatencyHistogram.decode("1;10;999:1").getCount()).isEqualTo(0);
+    }
+
+    private static void assertWithinBucketError(long actual, long expected) {
+        assertThat((double) actual).isWithin(expected / 8.0).of(expected);
+    }
+}
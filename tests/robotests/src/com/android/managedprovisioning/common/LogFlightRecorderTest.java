@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.managedprovisioning.common;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.util.Log;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.List;
+
+@RunWith(RobolectricTestRunner.class)
+public class LogFlightRecorderTest {
+
+    @Test
+    public void dump_keepsMostRecentRecordsOldestFirst() {
+        LogFlightRecorder recorder = new LogFlightRecorder(/* capacity= */ 3);
+        for (int i = 0; i < 5; i++) {
+            recorder.record(Log.INFO, "message " + i, null);
+        }
+
+        List<String> lines = recorder.dump();
+
+        assertThat(lines).hasSize(3);
+        assertThat(lines.get(0)).endsWith(": message 2");
+        assertThat(lines.get(2)).endsWith(": message 4");
+        assertThat(lines.get(2)).contains(" I ");
+    }
+
+    @Test
+    public void dump_includesThrowable() {
+        LogFlightRecorder recorder = new LogFlightRecorder(/* capacity= */ 2);
+
+        recorder.record(Log.WARN, "100% done", new IllegalStateException("boom"));
+
+        assertThat(recorder.dump().get(0))
+                .endsWith(": 100% done [java.lang.IllegalStateException: boom]");
+    }
+
+    @Test
+    public void clear_removesRecords() {
+        LogFlightRecorder recorder = new LogFlightRecorder(/* capacity= */ 2);
+        recorder.record(Log.ERROR, "message", null);
+
+        recorder.clear();
+
+        assertThat(recorder.dump()).isEmpty();
+    }
+
+    @Test
+    public void format_formatsArguments() {
+        String message = ProvisionLogger.format("%s-%d", new Object[] {"a", 1});
+
+        assertThat(message).isEqualTo("a-1");
+    }
+
+    @Test
+    public void format_invalidFormat_fallsBackToArguments() {
+        String message = ProvisionLogger.format("count %d", new Object[] {"a", "b"});
+
+        assertThat(message).isEqualTo("count %d [a, b]");
+    }
+
+    @Test
+    public void logFormatted_recordsFormattedMessage() {
+        ProvisionLogger.getFlightRecorder().clear();
+        StringBuilder arg = new StringBuilder("before");
+
+        ProvisionLogger.logd("value %s", arg);
+        arg.replace(0, arg.length(), "after");
+
+        assertThat(ProvisionLogger.getFlightRecorder().dump().get(0)).endsWith(": value before");
+    }
+}
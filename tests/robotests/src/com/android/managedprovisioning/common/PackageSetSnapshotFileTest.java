@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.managedprovisioning.common;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.Set;
+
+@RunWith(RobolectricTestRunner.class)
+public class PackageSetSnapshotFileTest {
+    private static final String BASE_NAME = "10";
+    private static final Set<String> PACKAGES = Set.of(
+            "com.android.settings", "com.android.systemui", "com.google.android.gms", "a");
+    private static final String LEGACY_XML = "<?xml version='1.0' encoding='utf-8' "
+            + "standalone='yes' ?>\n"
+            + "<system-apps>\n"
+            + "<item value=\"com.android.settings\" />\n"
+            + "<item value=\"com.android.systemui\" />\n"
+            + "</system-apps>\n";
+
+    @Rule
+    public final TemporaryFolder mTemporaryFolder = new TemporaryFolder();
+
+    @After
+    public void tearDown() {
+        PackageSetSnapshotFile.clearCache();
+    }
+
+    @Test
+    public void encodeDecode_roundTrips() throws IOException {
+        byte[] encoded = PackageSetSnapshotFile.encode(PACKAGES);
+
+        assertThat(PackageSetSnapshotFile.decode(new ByteArrayInputStream(encoded)))
+                .containsExactlyElementsIn(PACKAGES);
+    }
+
+    @Test
+    public void encodeDecode_empty_roundTrips() throws IOException {
+        byte[] encoded = PackageSetSnapshotFile.encode(Collections.emptySet());
+
+        assertThat(PackageSetSnapshotFile.decode(new ByteArrayInputStream(encoded))).isEmpty();
+    }
+
+    @Test(expected = IOException.class)
+    public void decode_notASnapshot_throws() throws IOException {
+        PackageSetSnapshotFile.decode(new ByteArrayInputStream(LEGACY_XML.getBytes(UTF_8)));
+    }
+
+    @Test
+    public void read_noSnapshot_returnsEmptySet() {
+        PackageSetSnapshotFile snapshotFile = createSnapshotFile();
+
+        assertThat(snapshotFile.exists()).isFalse();
+        assertThat(snapshotFile.read()).isEmpty();
+    }
+
+    @Test
+    public void read_afterWrite_returnsPackages() {
+        createSnapshotFile().write(PACKAGES);
+
+        PackageSetSnapshotFile snapshotFile = createSnapshotFile();
+        assertThat(snapshotFile.exists()).isTrue();
+        assertThat(snapshotFile.read()).containsExactlyElementsIn(PACKAGES);
+    }
+
+    @Test
+    public void read_afterCacheCleared_readsFromDisk() {
+        createSnapshotFile().write(PACKAGES);
+        PackageSetSnapshotFile.clearCache();
+
+        assertThat(createSnapshotFile().read()).containsExactlyElementsIn(PACKAGES);
+    }
+
+    @Test
+    public void read_returnsModifiableCopy() {
+        PackageSetSnapshotFile snapshotFile = createSnapshotFile();
+        snapshotFile.write(PACKAGES);
+
+        snapshotFile.read().clear();
+
+        assertThat(snapshotFile.read()).containsExactlyElementsIn(PACKAGES);
+    }
+
+    @Test
+    public void read_fileDeleted_returnsEmptySet() {
+        PackageSetSnapshotFile snapshotFile = createSnapshotFile();
+        snapshotFile.write(PACKAGES);
+
+        new File(mTemporaryFolder.getRoot(), BASE_NAME + ".bin").delete();
+
+        assertThat(snapshotFile.exists()).isFalse();
+        assertThat(snapshotFile.read()).isEmpty();
+    }
+
+    @Test
+    public void read_legacyXml_migratesToBinary() throws IOException {
+        File xmlFile = new File(mTemporaryFolder.getRoot(), BASE_NAME + ".xml");
+        Files.write(xmlFile.toPath(), LEGACY_XML.getBytes(UTF_8));
+        PackageSetSnapshotFile snapshotFile = createSnapshotFile();
+
+        assertThat(snapshotFile.exists()).isTrue();
+        assertThat(snapshotFile.read())
+                .containsExactly("com.android.settings", "com.android.systemui");
+        assertThat(xmlFile.exists()).isFalse();
+        assertThat(new File(mTemporaryFolder.getRoot(), BASE_NAME + ".bin").exists()).isTrue();
+    }
+
+    @Test
+    public void write_replacesPreviousSnapshot() {
+        PackageSetSnapshotFile snapshotFile = createSnapshotFile();
+        snapshotFile.write(PACKAGES);
+
+        snapshotFile.write(Set.of("com.example"));
+
+        assertThat(snapshotFile.read()).containsExactly("com.example");
+    }
+
+    private PackageSetSnapshotFile createSnapshotFile() {
+        return new PackageSetSnapshotFile(mTemporaryFolder.getRoot(), BASE_NAME);
+    }
+}
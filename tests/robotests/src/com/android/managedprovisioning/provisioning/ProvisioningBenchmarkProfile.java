@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.managedprovisioning.provisioning;
+
+/**
+ * Latencies and bandwidth of the network and of the system services used by {@link
+ * SimulatedProvisioningEnvironment}.
+ */
+final class ProvisioningBenchmarkProfile {
+
+    /** Fast Wi-Fi and a high-end device. */
+    static final ProvisioningBenchmarkProfile WIFI_FAST = new ProvisioningBenchmarkProfile(
+            "wifi_fast", /* wifi= */ true, /* connectMillis= */ 1_500, /* rttMillis= */ 20,
+            /* bytesPerSecond= */ 5_000_000, /* hashMillisPerMegabyte= */ 10,
+            /* installBaseMillis= */ 2_000, /* installMillisPerMegabyte= */ 50,
+            /* provisionDeviceMillis= */ 1_500, /* createProfileMillis= */ 4_000);
+
+    /** LTE and a high-end device. */
+    static final ProvisioningBenchmarkProfile LTE = new ProvisioningBenchmarkProfile(
+            "lte", /* wifi= */ false, /* connectMillis= */ 3_000, /* rttMillis= */ 60,
+            /* bytesPerSecond= */ 1_250_000, /* hashMillisPerMegabyte= */ 10,
+            /* installBaseMillis= */ 2_000, /* installMillisPerMegabyte= */ 50,
+            /* provisionDeviceMillis= */ 1_500, /* createProfileMillis= */ 4_000);
+
+    /** A slow 3G network and a low-end device. */
+    static final ProvisioningBenchmarkProfile SLOW_3G = new ProvisioningBenchmarkProfile(
+            "slow_3g", /* wifi= */ false, /* connectMillis= */ 5_000, /* rttMillis= */ 300,
+            /* bytesPerSecond= */ 100_000, /* hashMillisPerMegabyte= */ 40,
+            /* installBaseMillis= */ 4_000, /* installMillisPerMegabyte= */ 200,
+            /* provisionDeviceMillis= */ 3_000, /* createProfileMillis= */ 8_000);
+
+    final String name;
+    /** Whether provisioning joins a Wi-Fi network; mobile data is used otherwise. */
+    final boolean wifi;
+    /** Time to join Wi-Fi or to bring up mobile data. */
+    final long connectMillis;
+    /** Round trip time; a download waits three of them before its first byte. */
+    final long rttMillis;
+    /** Bandwidth, shared equally by the downloads in progress. */
+    final long bytesPerSecond;
+    final long hashMillisPerMegabyte;
+    final long installBaseMillis;
+    final long installMillisPerMegabyte;
+    /** Time for DevicePolicyManager to provision a fully managed device. */
+    final long provisionDeviceMillis;
+    /** Time for DevicePolicyManager to create and provision a managed profile. */
+    final long createProfileMillis;
+
+    ProvisioningBenchmarkProfile(String name, boolean wifi, long connectMillis, long rttMillis,
+            long bytesPerSecond, long hashMillisPerMegabyte, long installBaseMillis,
+            long installMillisPerMegabyte, long provisionDeviceMillis, long createProfileMillis) {
+        this.name = name;
+        this.wifi = wifi;
+        this.connectMillis = connectMillis;
+        this.rttMillis = rttMillis;
+        this.bytesPerSecond = bytesPerSecond;
+        this.hashMillisPerMegabyte = hashMillisPerMegabyte;
+        this.installBaseMillis = installBaseMillis;
+        this.installMillisPerMegabyte = installMillisPerMegabyte;
+        this.provisionDeviceMillis = provisionDeviceMillis;
+        this.createProfileMillis = createProfileMillis;
+    }
+}
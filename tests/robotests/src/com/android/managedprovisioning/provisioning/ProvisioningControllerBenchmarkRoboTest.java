@@ -0,0 +1,250 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.managedprovisioning.provisioning;
+
+import static android.app.admin.DevicePolicyManager.ACTION_PROVISION_MANAGED_DEVICE;
+import static android.app.admin.DevicePolicyManager.ACTION_PROVISION_MANAGED_PROFILE;
+
+import static com.android.managedprovisioning.provisioning.ProvisioningBenchmarkProfile.LTE;
+import static com.android.managedprovisioning.provisioning.ProvisioningBenchmarkProfile.SLOW_3G;
+import static com.android.managedprovisioning.provisioning.ProvisioningBenchmarkProfile.WIFI_FAST;
+
+import static com.google.common.truth.Truth.assertWithMessage;
+
+import static org.mockito.Mockito.mock;
+
+import android.content.Context;
+
+import com.android.managedprovisioning.common.ProvisionLogger;
+import com.android.managedprovisioning.common.SettingsFacade;
+import com.android.managedprovisioning.common.Utils;
+import com.android.managedprovisioning.model.PackageDownloadInfo;
+import com.android.managedprovisioning.model.ProvisioningParams;
+import com.android.managedprovisioning.model.WifiInfo;
+import com.android.managedprovisioning.provisioning.SimulatedProvisioningEnvironment.Phase;
+import com.android.managedprovisioning.provisioning.SimulatedProvisioningEnvironment.Result;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Locale;
+import java.util.Properties;
+
+/**
+ * Benchmarks the provisioning controllers end to end in {@link SimulatedProvisioningEnvironment}
+ * and compares the results with {@link #BASELINE_RESOURCE}.
+ *
+ * <p>The simulated provisioning time is deterministic, so it is checked tightly: it changes only
+ * if the tasks a controller runs, the way it schedules them or the system calls they wait for
+ * change. Main thread allocations are checked against a budget. Each run logs its per-phase
+ * report followed by the baseline lines matching it, which failures repeat in their message.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class ProvisioningControllerBenchmarkRoboTest {
+
+    private static final String BASELINE_RESOURCE = "provisioning_benchmark_baseline.properties";
+    private static final double SIMULATED_TIME_TOLERANCE = 0.01;
+
+    private static final int USER_ID = 0;
+    private static final String DEVICE_ADMIN_PACKAGE_NAME = "com.example.dpc";
+    private static final String DEVICE_ADMIN_LOCATION = "https://example.com/dpc.apk";
+    private static final long DEVICE_ADMIN_SIZE = 10_000_000;
+    private static final String ROLE_HOLDER_PACKAGE_NAME = "com.example.roleholder";
+    private static final String ROLE_HOLDER_LOCATION = "https://example.com/role_holder.apk";
+    private static final long ROLE_HOLDER_SIZE = 20_000_000;
+
+    private final Context mContext = RuntimeEnvironment.application;
+    private final Utils mUtils = mock(Utils.class);
+    private final SettingsFacade mSettingsFacade = mock(SettingsFacade.class);
+
+    @Test
+    public void deviceOwner_wifiFast() throws Exception {
+        runDeviceOwner(WIFI_FAST);
+    }
+
+    @Test
+    public void deviceOwner_lte() throws Exception {
+        runDeviceOwner(LTE);
+    }
+
+    @Test
+    public void deviceOwner_slow3g() throws Exception {
+        runDeviceOwner(SLOW_3G);
+    }
+
+    @Test
+    public void profileOwner_wifiFast() throws Exception {
+        runProfileOwner(WIFI_FAST);
+    }
+
+    @Test
+    public void profileOwner_slow3g() throws Exception {
+        runProfileOwner(SLOW_3G);
+    }
+
+    @Test
+    public void downloadRoleHolder_wifiFast() throws Exception {
+        runDownloadRoleHolder(WIFI_FAST);
+    }
+
+    @Test
+    public void downloadRoleHolder_lte() throws Exception {
+        runDownloadRoleHolder(LTE);
+    }
+
+    @Test
+    public void downloadRoleHolder_slow3g() throws Exception {
+        runDownloadRoleHolder(SLOW_3G);
+    }
+
+    private void runDeviceOwner(ProvisioningBenchmarkProfile profile) throws Exception {
+        runScenario("device_owner", profile, environment -> {
+            ProvisioningParams params = createParamsBuilder(environment, profile)
+                    .setProvisioningAction(ACTION_PROVISION_MANAGED_DEVICE)
+                    .build();
+            return DeviceOwnerProvisioningController.createInstance(
+                    environment.getContext(), params, USER_ID, environment, mUtils);
+        });
+    }
+
+    private void runProfileOwner(ProvisioningBenchmarkProfile profile) throws Exception {
+        runScenario("profile_owner", profile, environment -> {
+            ProvisioningParams params = createParamsBuilder(environment, profile)
+                    .setProvisioningAction(ACTION_PROVISION_MANAGED_PROFILE)
+                    .build();
+            return ProfileOwnerProvisioningController.createInstance(
+                    environment.getContext(), params, USER_ID, environment);
+        });
+    }
+
+    private void runDownloadRoleHolder(ProvisioningBenchmarkProfile profile) throws Exception {
+        runScenario("download_role_holder", profile, environment -> {
+            byte[] checksum = environment.addPackage(
+                    ROLE_HOLDER_PACKAGE_NAME, ROLE_HOLDER_LOCATION, ROLE_HOLDER_SIZE);
+            ProvisioningParams params = createParamsBuilder(environment, profile)
+                    .setProvisioningAction(ACTION_PROVISION_MANAGED_DEVICE)
+                    .setRoleHolderDownloadInfo(createDownloadInfo(ROLE_HOLDER_LOCATION, checksum))
+                    .build();
+            return DownloadRoleHolderController.createInstance(environment.getContext(), params,
+                    USER_ID, environment, mUtils, mSettingsFacade, ROLE_HOLDER_PACKAGE_NAME);
+        });
+    }
+
+    private void runScenario(String controllerName, ProvisioningBenchmarkProfile profile,
+            ControllerFactory factory) throws Exception {
+        String scenario = controllerName + "." + profile.name;
+        // The first run loads and initializes the classes, which would dwarf the allocations.
+        runOnce(profile, factory);
+        Result result = runOnce(profile, factory);
+        String report = createReport(scenario, result);
+        ProvisionLogger.logi(report);
+        checkAgainstBaseline(scenario, result, report);
+    }
+
+    private Result runOnce(ProvisioningBenchmarkProfile profile, ControllerFactory factory)
+            throws Exception {
+        SimulatedProvisioningEnvironment environment =
+                new SimulatedProvisioningEnvironment(mContext, profile);
+        return environment.run(factory.create(environment));
+    }
+
+    private static String createReport(String scenario, Result result) {
+        StringBuilder report = new StringBuilder(String.format(Locale.US,
+                "%s: %d ms simulated, %.3f ms on main thread, %d KiB%n",
+                scenario, result.simulatedMillis, result.mainThreadNanos / 1e6,
+                result.allocatedBytes / 1024));
+        for (Phase phase : result.phases) {
+            report.append(String.format(Locale.US,
+                    "  %-30s %8d ms +%8d ms, run %8.3f ms, %6d KiB%n",
+                    phase.name, phase.startMillis, phase.getSimulatedMillis(),
+                    phase.runNanos / 1e6, phase.allocatedBytes / 1024));
+        }
+        report.append(scenario).append(".simulated_millis=").append(result.simulatedMillis)
+                .append('\n');
+        report.append(scenario).append(".allocated_bytes=").append(result.allocatedBytes);
+        return report.toString();
+    }
+
+    private static void checkAgainstBaseline(String scenario, Result result, String report) {
+        long expectedMillis = getBaselineValue(scenario + ".simulated_millis");
+        assertWithMessage("Simulated provisioning time of %s regressed:\n%s", scenario, report)
+                .that(result.simulatedMillis)
+                .isAtMost((long) (expectedMillis * (1 + SIMULATED_TIME_TOLERANCE)));
+        assertWithMessage("Simulated provisioning time of %s improved, update %s:\n%s", scenario,
+                BASELINE_RESOURCE, report)
+                .that(result.simulatedMillis)
+                .isAtLeast((long) (expectedMillis * (1 - SIMULATED_TIME_TOLERANCE)));
+
+        long allocationBudget = getBaselineValue(scenario + ".allocated_bytes");
+        assertWithMessage("Main thread allocations of %s exceed their budget:\n%s", scenario,
+                report)
+                .that(result.allocatedBytes)
+                .isAtMost(allocationBudget);
+    }
+
+    private static long getBaselineValue(String key) {
+        String value = loadBaseline().getProperty(key);
+        assertWithMessage("Missing %s in %s", key, BASELINE_RESOURCE).that(value).isNotNull();
+        return Long.parseLong(value);
+    }
+
+    private static Properties loadBaseline() {
+        Properties baseline = new Properties();
+        try (InputStream in = ProvisioningControllerBenchmarkRoboTest.class.getClassLoader()
+                .getResourceAsStream(BASELINE_RESOURCE)) {
+            if (in == null) {
+                throw new AssertionError("Missing " + BASELINE_RESOURCE);
+            }
+            baseline.load(in);
+        } catch (IOException e) {
+            throw new AssertionError("Cannot read " + BASELINE_RESOURCE, e);
+        }
+        return baseline;
+    }
+
+    private static ProvisioningParams.Builder createParamsBuilder(
+            SimulatedProvisioningEnvironment environment, ProvisioningBenchmarkProfile profile) {
+        byte[] checksum = environment.addPackage(
+                DEVICE_ADMIN_PACKAGE_NAME, DEVICE_ADMIN_LOCATION, DEVICE_ADMIN_SIZE);
+        ProvisioningParams.Builder builder = ProvisioningParams.Builder.builder()
+                .setDeviceAdminComponentName(
+                        SimulatedProvisioningEnvironment.getAdminReceiver(
+                                DEVICE_ADMIN_PACKAGE_NAME))
+                .setDeviceAdminDownloadInfo(createDownloadInfo(DEVICE_ADMIN_LOCATION, checksum));
+        if (profile.wifi) {
+            builder.setWifiInfo(WifiInfo.Builder.builder().setSsid("\"Benchmark\"").build());
+        } else {
+            builder.setUseMobileData(true);
+        }
+        return builder;
+    }
+
+    private static PackageDownloadInfo createDownloadInfo(String location, byte[] checksum) {
+        return PackageDownloadInfo.Builder.builder()
+                .setLocation(location)
+                .setPackageChecksum(checksum)
+                .build();
+    }
+
+    private interface ControllerFactory {
+        AbstractProvisioningController create(SimulatedProvisioningEnvironment environment);
+    }
+}
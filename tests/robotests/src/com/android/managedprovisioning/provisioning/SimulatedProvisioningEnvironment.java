@@ -0,0 +1,626 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.managedprovisioning.provisioning;
+
+import static java.util.Objects.requireNonNull;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.robolectric.Shadows.shadowOf;
+
+import android.Manifest;
+import android.app.DownloadManager;
+import android.app.admin.DevicePolicyManager;
+import android.app.admin.FullyManagedDeviceProvisioningParams;
+import android.app.admin.ManagedProfileProvisioningParams;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.ContextWrapper;
+import android.content.Intent;
+import android.content.IntentSender;
+import android.content.pm.ActivityInfo;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageInstaller;
+import android.content.pm.PackageManager;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.ConnectivityManager;
+import android.net.ConnectivityManager.NetworkCallback;
+import android.net.Network;
+import android.net.NetworkCapabilities;
+import android.net.NetworkInfo;
+import android.net.NetworkRequest;
+import android.net.Uri;
+import android.net.wifi.WifiConfiguration;
+import android.net.wifi.WifiInfo;
+import android.net.wifi.WifiManager;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Message;
+import android.os.ParcelFileDescriptor;
+import android.os.SystemClock;
+import android.os.UserHandle;
+
+import com.android.managedprovisioning.analytics.ProvisioningTracer;
+import com.android.managedprovisioning.common.Utils;
+import com.android.managedprovisioning.task.AbstractProvisioningTask;
+
+import org.robolectric.shadows.ShadowLooper;
+import org.robolectric.shadows.ShadowNetwork;
+import org.robolectric.shadows.ShadowNetworkInfo;
+import org.robolectric.shadows.ShadowSystemClock;
+import org.robolectric.util.ReflectionHelpers;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.file.Files;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Runs a real provisioning controller and its real tasks against fake connectivity, wifi,
+ * download manager, package installer and device policy manager, on the virtual clock of the
+ * Robolectric main looper.
+ *
+ * <p>The fakes answer after the latencies {@link ProvisioningBenchmarkProfile} gives: a network
+ * is connected {@code connectMillis} after it is requested or reconnected to, a download starts
+ * three round trips after it is enqueued and shares the bandwidth equally with the downloads in
+ * progress, an install session finishes a fixed plus a per-megabyte time after it is committed,
+ * and the provisioning calls to {@link DevicePolicyManager} block for their duration. Packages
+ * are small files of real content, so that the verify tasks hash real bytes; the time the device
+ * would take to parse and hash a package of the simulated size is charged when the verify task
+ * reads its archive info. Runs are deterministic and take little real time.
+ *
+ * <p>Only requested networks are ever reported, never the default network, so the connection
+ * warm-up waits for nothing: whether a warmed connection is reused cannot be simulated. The
+ * download cache is off, as by default, so packages are downloaded through {@link
+ * DownloadManager} and {@link com.android.managedprovisioning.task.PrefetchPackageTask} does
+ * nothing.
+ *
+ * <p>The tasks run on the main looper, like everything else. The real time and allocations of
+ * each task's {@code run} are measured, as well as those of the whole run on the main thread.
+ */
+final class SimulatedProvisioningEnvironment implements ProvisioningControllerCallback {
+
+    private static final int ROUND_TRIPS_BEFORE_FIRST_BYTE = 3;
+    private static final int PACKAGE_CONTENT_SIZE = 64 * 1024;
+    private static final long BYTES_PER_MEGABYTE = 1_000_000;
+    private static final String ADMIN_RECEIVER_CLASS_NAME = ".AdminReceiver";
+    private static final int NETWORK_ID = 100;
+    private static final int WIFI_NETWORK_ID = 1;
+    private static final int NOT_CONNECTED = -1;
+    private static final int MANAGED_PROFILE_USER_ID = 10;
+
+    /**
+     * Timing of a task.
+     */
+    static final class Phase {
+        final String name;
+        /** Simulated time at which the task started to run, since the start of provisioning. */
+        final long startMillis;
+        long runNanos;
+        long allocatedBytes;
+        private final AbstractProvisioningTask mTask;
+
+        Phase(AbstractProvisioningTask task, long startMillis) {
+            this.name = task.getClass().getSimpleName();
+            this.startMillis = startMillis;
+            mTask = task;
+        }
+
+        /**
+         * Returns the simulated time from the start of the task until it succeeded, or -1 if it
+         * did not.
+         */
+        long getSimulatedMillis() {
+            ProvisioningTracer.Span span = mTask.getTraceSpan();
+            return span == null || !span.isEnded() ? -1 : span.getDurationMillis();
+        }
+    }
+
+    /**
+     * The outcome of {@link #run}.
+     */
+    static final class Result {
+        final List<Phase> phases;
+        /** Simulated time until the controller reported that its tasks completed. */
+        final long simulatedMillis;
+        /** Real time spent on the main thread, including the tasks. */
+        final long mainThreadNanos;
+        /** Bytes allocated on the main thread, including by the tasks. */
+        final long allocatedBytes;
+
+        Result(List<Phase> phases, long simulatedMillis, long mainThreadNanos,
+                long allocatedBytes) {
+            this.phases = Collections.unmodifiableList(phases);
+            this.simulatedMillis = simulatedMillis;
+            this.mainThreadNanos = mainThreadNanos;
+            this.allocatedBytes = allocatedBytes;
+        }
+    }
+
+    private static final class SimulatedPackage {
+        final String packageName;
+        final long sizeBytes;
+        final byte[] content;
+
+        SimulatedPackage(String packageName, long sizeBytes) {
+            this.packageName = packageName;
+            this.sizeBytes = sizeBytes;
+            content = new byte[PACKAGE_CONTENT_SIZE];
+            new Random(packageName.hashCode()).nextBytes(content);
+        }
+    }
+
+    private static final class Transfer {
+        final long downloadId;
+        final SimulatedPackage pkg;
+        double remainingBytes;
+
+        Transfer(long downloadId, SimulatedPackage pkg) {
+            this.downloadId = downloadId;
+            this.pkg = pkg;
+            remainingBytes = pkg.sizeBytes;
+        }
+    }
+
+    private final ProvisioningBenchmarkProfile mProfile;
+    private final Context mContext;
+    private final File mDownloadDirectory;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final Handler mTaskHandler;
+
+    private final ConnectivityManager mConnectivityManager = mock(ConnectivityManager.class);
+    private final WifiManager mWifiManager = mock(WifiManager.class);
+    private final WifiInfo mWifiInfo = mock(WifiInfo.class);
+    private final DownloadManager mDownloadManager = mock(DownloadManager.class);
+    private final PackageManager mPackageManager = mock(PackageManager.class);
+    private final PackageInstaller mPackageInstaller = mock(PackageInstaller.class);
+    private final DevicePolicyManager mDevicePolicyManager = mock(DevicePolicyManager.class);
+
+    private final Network mNetwork = ShadowNetwork.newInstance(NETWORK_ID);
+    private final List<NetworkCallback> mNetworkCallbacks = new ArrayList<>();
+    private int mConnectedNetworkType = NOT_CONNECTED;
+    private boolean mConnecting;
+    private String mWifiSsid;
+
+    private final Map<String, SimulatedPackage> mPackagesByLocation = new HashMap<>();
+    private final Map<String, SimulatedPackage> mPackagesByFileName = new HashMap<>();
+    private final Map<Long, File> mCompletedDownloads = new HashMap<>();
+    private final List<Transfer> mTransfers = new ArrayList<>();
+    private final Runnable mTransferProgress = this::onTransferProgress;
+    private long mTransfersUpdatedMillis;
+    private long mNextDownloadId = 1;
+
+    private final List<PackageInstaller.SessionCallback> mSessionCallbacks = new ArrayList<>();
+    private int mNextSessionId = 1;
+
+    private final List<Phase> mPhases = new ArrayList<>();
+    private long mStartMillis;
+    private long mCompletedMillis = -1;
+    private String mError;
+
+    SimulatedProvisioningEnvironment(Context baseContext, ProvisioningBenchmarkProfile profile)
+            throws Exception {
+        mProfile = requireNonNull(profile);
+        mDownloadDirectory = new File(baseContext.getCacheDir(), "simulated_downloads");
+        mDownloadDirectory.mkdirs();
+        mContext = new ContextWrapper(baseContext) {
+            @Override
+            public Object getSystemService(String name) {
+                switch (name) {
+                    case Context.CONNECTIVITY_SERVICE:
+                        return mConnectivityManager;
+                    case Context.WIFI_SERVICE:
+                        return mWifiManager;
+                    case Context.DOWNLOAD_SERVICE:
+                        return mDownloadManager;
+                    case Context.DEVICE_POLICY_SERVICE:
+                        return mDevicePolicyManager;
+                    default:
+                        return super.getSystemService(name);
+                }
+            }
+
+            @Override
+            public PackageManager getPackageManager() {
+                return mPackageManager;
+            }
+        };
+        mTaskHandler = new Handler(Looper.getMainLooper()) {
+            @Override
+            public void handleMessage(Message msg) {
+                if (msg.what == AbstractProvisioningController.MSG_RUN_TASK) {
+                    runTask((AbstractProvisioningTask) msg.obj, msg.arg1);
+                }
+            }
+        };
+        setUpConnectivity();
+        setUpDownloadManager();
+        setUpPackageManager();
+        setUpDevicePolicyManager();
+    }
+
+    /**
+     * Returns the context the controller and its tasks must be created with, which hands out the
+     * fake system services.
+     */
+    Context getContext() {
+        return mContext;
+    }
+
+    /**
+     * Makes a package of {@code sizeBytes} downloadable from {@code location}. Its archive
+     * declares the receiver returned by {@link #getAdminReceiver}.
+     *
+     * @return the SHA-256 checksum of the downloaded file
+     */
+    byte[] addPackage(String packageName, String location, long sizeBytes) {
+        SimulatedPackage pkg = new SimulatedPackage(packageName, sizeBytes);
+        mPackagesByLocation.put(location, pkg);
+        return new Utils().computeHashOfByteArray(pkg.content);
+    }
+
+    /**
+     * Returns the device admin receiver declared by the packages of {@link #addPackage}.
+     */
+    static ComponentName getAdminReceiver(String packageName) {
+        return new ComponentName(packageName, packageName + ADMIN_RECEIVER_CLASS_NAME);
+    }
+
+    /**
+     * Runs {@code controller}, which must have been created with {@link #getContext()} and with
+     * this environment as its callback, until its tasks complete.
+     *
+     * @throws IllegalStateException if provisioning fails or stops making progress
+     */
+    Result run(AbstractProvisioningController controller) {
+        requireNonNull(controller);
+        ShadowLooper looper = shadowOf(Looper.getMainLooper());
+        long startNanos = System.nanoTime();
+        long startAllocatedBytes = getThreadAllocatedBytes();
+        mStartMillis = SystemClock.uptimeMillis();
+
+        controller.start(mTaskHandler);
+        looper.idle();
+        while (mCompletedMillis < 0) {
+            if (mError != null) {
+                throw new IllegalStateException("Provisioning failed: " + mError);
+            }
+            if (looper.getNextScheduledTaskTime().equals(Duration.ZERO)) {
+                throw new IllegalStateException("Provisioning stopped making progress at "
+                        + (SystemClock.uptimeMillis() - mStartMillis) + " ms");
+            }
+            looper.runToNextTask();
+            looper.idle();
+        }
+        return new Result(new ArrayList<>(mPhases), mCompletedMillis - mStartMillis,
+                System.nanoTime() - startNanos, getThreadAllocatedBytes() - startAllocatedBytes);
+    }
+
+    @Override
+    public void provisioningTasksCompleted() {
+        mCompletedMillis = SystemClock.uptimeMillis();
+    }
+
+    @Override
+    public void cleanUpCompleted() {}
+
+    @Override
+    public void preFinalizationCompleted() {}
+
+    @Override
+    public void error(int dialogTitleId, int errorMessageId, boolean factoryResetRequired) {
+        mError = "error message id " + errorMessageId;
+    }
+
+    @Override
+    public void error(int dialogTitleId, String errorMessage, boolean factoryResetRequired) {
+        mError = errorMessage;
+    }
+
+    private void runTask(AbstractProvisioningTask task, int userId) {
+        Phase phase = new Phase(task, SystemClock.uptimeMillis() - mStartMillis);
+        mPhases.add(phase);
+        long allocatedBytes = getThreadAllocatedBytes();
+        long startNanos = System.nanoTime();
+        task.run(userId);
+        phase.runNanos = System.nanoTime() - startNanos;
+        phase.allocatedBytes = getThreadAllocatedBytes() - allocatedBytes;
+    }
+
+    private void setUpConnectivity() {
+        doAnswer(invocation -> {
+            NetworkRequest request = invocation.getArgument(0);
+            NetworkCallback callback = invocation.getArgument(1);
+            mNetworkCallbacks.add(callback);
+            if (mConnectedNetworkType != NOT_CONNECTED) {
+                mMainHandler.post(() -> notifyConnected(callback));
+            } else if (request.hasTransport(NetworkCapabilities.TRANSPORT_CELLULAR)) {
+                connect(ConnectivityManager.TYPE_MOBILE);
+            }
+            return null;
+        }).when(mConnectivityManager).requestNetwork(
+                any(NetworkRequest.class), any(NetworkCallback.class));
+        doAnswer(invocation -> mNetworkCallbacks.remove(invocation.<NetworkCallback>getArgument(0)))
+                .when(mConnectivityManager).unregisterNetworkCallback(any(NetworkCallback.class));
+        when(mConnectivityManager.getActiveNetworkInfo()).thenAnswer(invocation ->
+                mConnectedNetworkType == NOT_CONNECTED ? null : ShadowNetworkInfo.newInstance(
+                        NetworkInfo.DetailedState.CONNECTED, mConnectedNetworkType,
+                        /* subType= */ 0, /* isAvailable= */ true, NetworkInfo.State.CONNECTED));
+
+        when(mWifiManager.isWifiEnabled()).thenReturn(true);
+        when(mWifiManager.addNetwork(any(WifiConfiguration.class))).thenAnswer(invocation -> {
+            mWifiSsid = invocation.<WifiConfiguration>getArgument(0).SSID;
+            return WIFI_NETWORK_ID;
+        });
+        when(mWifiManager.enableNetwork(anyInt(), anyBoolean())).thenReturn(true);
+        when(mWifiManager.saveConfiguration()).thenReturn(true);
+        when(mWifiManager.reconnect()).thenAnswer(invocation -> {
+            connect(ConnectivityManager.TYPE_WIFI);
+            return true;
+        });
+        when(mWifiManager.getConnectionInfo()).thenReturn(mWifiInfo);
+        when(mWifiInfo.getSSID()).thenAnswer(invocation -> mWifiSsid);
+    }
+
+    /**
+     * Connects a network of {@code type} after the connect time, unless one is connected or
+     * connecting already.
+     */
+    private void connect(int type) {
+        if (mConnecting || mConnectedNetworkType == type) {
+            return;
+        }
+        mConnecting = true;
+        mMainHandler.postDelayed(() -> {
+            mConnecting = false;
+            mConnectedNetworkType = type;
+            for (NetworkCallback callback : new ArrayList<>(mNetworkCallbacks)) {
+                notifyConnected(callback);
+            }
+        }, mProfile.connectMillis);
+    }
+
+    private void notifyConnected(NetworkCallback callback) {
+        if (!mNetworkCallbacks.contains(callback)) {
+            return;
+        }
+        callback.onAvailable(mNetwork);
+        callback.onBlockedStatusChanged(mNetwork, /* blocked= */ false);
+        callback.onCapabilitiesChanged(mNetwork, new NetworkCapabilities.Builder()
+                .addCapability(NetworkCapabilities.NET_CAPABILITY_INTERNET)
+                .addCapability(NetworkCapabilities.NET_CAPABILITY_VALIDATED)
+                .build());
+    }
+
+    private void setUpDownloadManager() {
+        when(mDownloadManager.enqueue(any(DownloadManager.Request.class)))
+                .thenAnswer(invocation -> enqueue(invocation.getArgument(0)));
+        when(mDownloadManager.query(any(DownloadManager.Query.class)))
+                .thenAnswer(invocation -> query(invocation.getArgument(0)));
+    }
+
+    private long enqueue(DownloadManager.Request request) {
+        Uri uri = ReflectionHelpers.getField(request, "mUri");
+        SimulatedPackage pkg = mPackagesByLocation.get(uri.toString());
+        if (pkg == null) {
+            throw new IllegalStateException("No package at " + uri);
+        }
+        Transfer transfer = new Transfer(mNextDownloadId++, pkg);
+        mMainHandler.postDelayed(() -> {
+            updateTransfers();
+            mTransfers.add(transfer);
+            scheduleNextTransferCompletion();
+        }, ROUND_TRIPS_BEFORE_FIRST_BYTE * mProfile.rttMillis);
+        return transfer.downloadId;
+    }
+
+    private Cursor query(DownloadManager.Query query) {
+        long[] ids = ReflectionHelpers.getField(query, "mIds");
+        MatrixCursor cursor = new MatrixCursor(new String[] {DownloadManager.COLUMN_ID,
+                DownloadManager.COLUMN_STATUS, DownloadManager.COLUMN_LOCAL_FILENAME,
+                DownloadManager.COLUMN_REASON});
+        for (long id : ids) {
+            File file = mCompletedDownloads.get(id);
+            if (file != null) {
+                cursor.addRow(new Object[] {
+                        id, DownloadManager.STATUS_SUCCESSFUL, file.getAbsolutePath(), 0});
+            }
+        }
+        return cursor;
+    }
+
+    /**
+     * Takes the bytes transferred since the last update off the downloads in progress.
+     */
+    private void updateTransfers() {
+        long nowMillis = SystemClock.uptimeMillis();
+        if (!mTransfers.isEmpty()) {
+            double bytesPerTransfer = (double) (nowMillis - mTransfersUpdatedMillis)
+                    * mProfile.bytesPerSecond / 1_000 / mTransfers.size();
+            for (Transfer transfer : mTransfers) {
+                transfer.remainingBytes = Math.max(0, transfer.remainingBytes - bytesPerTransfer);
+            }
+        }
+        mTransfersUpdatedMillis = nowMillis;
+    }
+
+    private void scheduleNextTransferCompletion() {
+        mMainHandler.removeCallbacks(mTransferProgress);
+        if (mTransfers.isEmpty()) {
+            return;
+        }
+        double remainingBytes = Double.MAX_VALUE;
+        for (Transfer transfer : mTransfers) {
+            remainingBytes = Math.min(remainingBytes, transfer.remainingBytes);
+        }
+        long delayMillis = (long) Math.ceil(
+                remainingBytes * mTransfers.size() * 1_000 / mProfile.bytesPerSecond);
+        mMainHandler.postDelayed(mTransferProgress, delayMillis);
+    }
+
+    private void onTransferProgress() {
+        updateTransfers();
+        for (Iterator<Transfer> it = mTransfers.iterator(); it.hasNext(); ) {
+            Transfer transfer = it.next();
+            if (transfer.remainingBytes < 1) {
+                it.remove();
+                completeDownload(transfer);
+            }
+        }
+        scheduleNextTransferCompletion();
+    }
+
+    private void completeDownload(Transfer transfer) {
+        File file = new File(mDownloadDirectory, transfer.downloadId + ".apk");
+        try {
+            Files.write(file.toPath(), transfer.pkg.content);
+        } catch (IOException e) {
+            throw new IllegalStateException("Cannot write " + file, e);
+        }
+        mPackagesByFileName.put(file.getName(), transfer.pkg);
+        mCompletedDownloads.put(transfer.downloadId, file);
+        mContext.sendBroadcast(new Intent(DownloadManager.ACTION_DOWNLOAD_COMPLETE)
+                .putExtra(DownloadManager.EXTRA_DOWNLOAD_ID, transfer.downloadId));
+    }
+
+    private void setUpPackageManager() throws IOException {
+        when(mPackageManager.getPackageArchiveInfo(anyString(), anyInt()))
+                .thenAnswer(invocation -> getPackageArchiveInfo(invocation.getArgument(0)));
+        when(mPackageManager.getPackageInstaller()).thenReturn(mPackageInstaller);
+
+        when(mPackageInstaller.createSession(any(PackageInstaller.SessionParams.class)))
+                .thenAnswer(invocation -> mNextSessionId++);
+        when(mPackageInstaller.openSession(anyInt()))
+                .thenAnswer(invocation -> createSession(invocation.getArgument(0)));
+        doAnswer(invocation -> mSessionCallbacks.add(invocation.getArgument(0)))
+                .when(mPackageInstaller)
+                .registerSessionCallback(any(PackageInstaller.SessionCallback.class));
+        doAnswer(invocation -> mSessionCallbacks.remove(
+                invocation.<PackageInstaller.SessionCallback>getArgument(0)))
+                .when(mPackageInstaller)
+                .unregisterSessionCallback(any(PackageInstaller.SessionCallback.class));
+    }
+
+    /**
+     * Returns the archive info of a downloaded package, after the time the device would take to
+     * parse and hash it, as the verify tasks do both.
+     */
+    private PackageInfo getPackageArchiveInfo(String path) {
+        SimulatedPackage pkg = getDownloadedPackage(new File(path).getName());
+        advanceClock(pkg.sizeBytes * mProfile.hashMillisPerMegabyte / BYTES_PER_MEGABYTE);
+
+        ActivityInfo receiver = new ActivityInfo();
+        receiver.packageName = pkg.packageName;
+        receiver.name = getAdminReceiver(pkg.packageName).getClassName();
+        receiver.permission = Manifest.permission.BIND_DEVICE_ADMIN;
+        PackageInfo packageInfo = new PackageInfo();
+        packageInfo.packageName = pkg.packageName;
+        packageInfo.receivers = new ActivityInfo[] {receiver};
+        return packageInfo;
+    }
+
+    private PackageInstaller.Session createSession(int sessionId) throws IOException {
+        List<SimulatedPackage> apks = new ArrayList<>();
+        PackageInstaller.Session session = mock(PackageInstaller.Session.class);
+        doAnswer(invocation -> apks.add(getDownloadedPackage(invocation.getArgument(0))))
+                .when(session).write(anyString(), anyLong(), anyLong(),
+                        any(ParcelFileDescriptor.class));
+        doAnswer(invocation -> {
+            commit(sessionId, apks);
+            return null;
+        }).when(session).commit(any(IntentSender.class));
+        return session;
+    }
+
+    /**
+     * Finishes the install session after the install time of its apks, reporting it both to the
+     * session callbacks and by the package added broadcast.
+     */
+    private void commit(int sessionId, List<SimulatedPackage> apks) {
+        long bytes = 0;
+        for (SimulatedPackage apk : apks) {
+            bytes += apk.sizeBytes;
+        }
+        String packageName = apks.get(0).packageName;
+        mMainHandler.postDelayed(() -> {
+            for (PackageInstaller.SessionCallback callback : new ArrayList<>(mSessionCallbacks)) {
+                callback.onFinished(sessionId, /* success= */ true);
+            }
+            mContext.sendBroadcast(new Intent(Intent.ACTION_PACKAGE_ADDED,
+                    Uri.fromParts("package", packageName, /* fragment= */ null)));
+        }, mProfile.installBaseMillis
+                + bytes * mProfile.installMillisPerMegabyte / BYTES_PER_MEGABYTE);
+    }
+
+    private SimulatedPackage getDownloadedPackage(String fileName) {
+        SimulatedPackage pkg = mPackagesByFileName.get(fileName);
+        if (pkg == null) {
+            throw new IllegalStateException("No package was downloaded to " + fileName);
+        }
+        return pkg;
+    }
+
+    private void setUpDevicePolicyManager() throws Exception {
+        doAnswer(invocation -> {
+            advanceClock(mProfile.provisionDeviceMillis);
+            return null;
+        }).when(mDevicePolicyManager).provisionFullyManagedDevice(
+                any(FullyManagedDeviceProvisioningParams.class));
+        when(mDevicePolicyManager.createAndProvisionManagedProfile(
+                any(ManagedProfileProvisioningParams.class))).thenAnswer(invocation -> {
+                    advanceClock(mProfile.createProfileMillis);
+                    return UserHandle.of(MANAGED_PROFILE_USER_ID);
+                });
+    }
+
+    /**
+     * Moves the clock forward without running what the looper has scheduled meanwhile, as a
+     * blocking call does.
+     */
+    private static void advanceClock(long millis) {
+        ShadowSystemClock.advanceBy(Duration.ofMillis(millis));
+    }
+
+    /**
+     * Returns the bytes allocated by the current thread so far, or 0 if the JVM does not track
+     * them.
+     */
+    private static long getThreadAllocatedBytes() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) bean)
+                    .getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,246 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.managedprovisioning.task.download;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.android.managedprovisioning.model.PackageDownloadInfo;
+import com.android.managedprovisioning.task.wifi.ProvisioningNetwork;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManagerFactory;
+
+@RunWith(RobolectricTestRunner.class)
+public class ConnectionWarmerTest {
+    private static final String KEY_STORE_RESOURCE = "local_https_server.p12";
+    private static final char[] KEY_STORE_PASSWORD = "password".toCharArray();
+    private static final long PACKAGE_SIZE = 12_345_678;
+    private static final String ETAG = "\"v1\"";
+    private static final String COOKIE = "session=1234";
+    private static final int SERVER_READ_TIMEOUT_MILLIS = 500;
+
+    private final List<Runnable> mPendingWork = new ArrayList<>();
+    private final Executor mExecutor = mPendingWork::add;
+    private final ConnectionWarmer mConnectionWarmer =
+            new ConnectionWarmer(new ProvisioningNetwork(), mExecutor);
+    private SSLSocketFactory mDefaultSocketFactory;
+    private LocalHttpsServer mServer;
+
+    @Before
+    public void setUp() throws Exception {
+        SSLContext sslContext = createSslContext();
+        mDefaultSocketFactory = HttpsURLConnection.getDefaultSSLSocketFactory();
+        HttpsURLConnection.setDefaultSSLSocketFactory(sslContext.getSocketFactory());
+        mServer = new LocalHttpsServer(sslContext);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        HttpsURLConnection.setDefaultSSLSocketFactory(mDefaultSocketFactory);
+        mServer.close();
+    }
+
+    @Test
+    public void warmUp_learnsSizeAndEntityTag() throws Exception {
+        PackageDownloadInfo info = createInfo("/dpc.apk");
+
+        mConnectionWarmer.warmUp(info);
+        runPendingWork();
+
+        ConnectionWarmer.Result result = mConnectionWarmer.getResult(info);
+        assertThat(result).isNotNull();
+        assertThat(result.contentLength).isEqualTo(PACKAGE_SIZE);
+        assertThat(result.etag).isEqualTo(ETAG);
+        assertThat(result.acceptsRanges).isTrue();
+        assertThat(mServer.getRequests()).containsExactly("HEAD /dpc.apk cookie: " + COOKIE);
+    }
+
+    @Test
+    public void getResult_warmUpRunning_waitsForIt() throws Exception {
+        PackageDownloadInfo info = createInfo("/dpc.apk");
+        mConnectionWarmer.warmUp(info);
+        Thread warmUpThread = new Thread(this::runPendingWork);
+
+        warmUpThread.start();
+        ConnectionWarmer.Result result = mConnectionWarmer.getResult(info);
+        warmUpThread.join();
+
+        assertThat(result).isNotNull();
+        assertThat(result.etag).isEqualTo(ETAG);
+    }
+
+    @Test
+    public void warmUp_sameLocationTwice_sendsOneRequest() {
+        mConnectionWarmer.warmUp(createInfo("/dpc.apk"));
+        mConnectionWarmer.warmUp(createInfo("/dpc.apk"));
+        runPendingWork();
+
+        mConnectionWarmer.warmUp(createInfo("/dpc.apk"));
+        runPendingWork();
+
+        assertThat(mServer.getRequests()).hasSize(1);
+    }
+
+    @Test
+    public void warmUp_httpError_noResultAndWarmsUpAgain() throws Exception {
+        PackageDownloadInfo info = createInfo("/missing.apk");
+
+        mConnectionWarmer.warmUp(info);
+        runPendingWork();
+
+        assertThat(mConnectionWarmer.getResult(info)).isNull();
+
+        mConnectionWarmer.warmUp(info);
+        runPendingWork();
+
+        assertThat(mServer.getRequests()).hasSize(2);
+    }
+
+    @Test
+    public void getResult_notWarmedUp_returnsNull() throws Exception {
+        assertThat(mConnectionWarmer.getResult(createInfo("/dpc.apk"))).isNull();
+    }
+
+    private void runPendingWork() {
+        while (!mPendingWork.isEmpty()) {
+            mPendingWork.remove(0).run();
+        }
+    }
+
+    private PackageDownloadInfo createInfo(String path) {
+        return new PackageDownloadInfo.Builder()
+                .setLocation("https://localhost:" + mServer.getPort() + path)
+                .setCookieHeader(COOKIE)
+                .setSignatureChecksum(new byte[] {1, 2, 3})
+                .build();
+    }
+
+    private static SSLContext createSslContext() throws GeneralSecurityException, IOException {
+        KeyStore keyStore = KeyStore.getInstance("PKCS12");
+        try (InputStream in = ConnectionWarmerTest.class.getClassLoader()
+                .getResourceAsStream(KEY_STORE_RESOURCE)) {
+            keyStore.load(in, KEY_STORE_PASSWORD);
+        }
+        KeyManagerFactory keyManagerFactory =
+                KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        keyManagerFactory.init(keyStore, KEY_STORE_PASSWORD);
+        TrustManagerFactory trustManagerFactory =
+                TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        trustManagerFactory.init(keyStore);
+        SSLContext sslContext = SSLContext.getInstance("TLS");
+        sslContext.init(keyManagerFactory.getKeyManagers(),
+                trustManagerFactory.getTrustManagers(), /* random= */ null);
+        return sslContext;
+    }
+
+    /**
+     * Stands in for the download host: answers {@code /dpc.apk} with its size, entity tag and
+     * support for range requests and anything else with 404, and records each request as its
+     * method, path and cookie.
+     */
+    private static final class LocalHttpsServer implements AutoCloseable {
+        private final SSLServerSocket mServerSocket;
+        private final List<String> mRequests = Collections.synchronizedList(new ArrayList<>());
+        private final Thread mThread;
+
+        LocalHttpsServer(SSLContext sslContext) throws IOException {
+            // Bound to every address, as localhost may resolve to either loopback address.
+            mServerSocket =
+                    (SSLServerSocket) sslContext.getServerSocketFactory().createServerSocket(0);
+            mThread = new Thread(this::serve, "LocalHttpsServer");
+            mThread.start();
+        }
+
+        int getPort() {
+            return mServerSocket.getLocalPort();
+        }
+
+        List<String> getRequests() {
+            return new ArrayList<>(mRequests);
+        }
+
+        private void serve() {
+            while (!mServerSocket.isClosed()) {
+                try (Socket socket = mServerSocket.accept()) {
+                    // The client keeps the connection alive, so don't wait on it forever.
+                    socket.setSoTimeout(SERVER_READ_TIMEOUT_MILLIS);
+                    serveConnection(socket);
+                } catch (IOException e) {
+                    // The server socket was closed, or the client went away.
+                }
+            }
+        }
+
+        private void serveConnection(Socket socket) throws IOException {
+            BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(socket.getInputStream(), StandardCharsets.US_ASCII));
+            OutputStream out = socket.getOutputStream();
+            String requestLine;
+            while ((requestLine = reader.readLine()) != null && !requestLine.isEmpty()) {
+                String cookie = null;
+                String header;
+                while ((header = reader.readLine()) != null && !header.isEmpty()) {
+                    if (header.regionMatches(true, 0, "Cookie:", 0, 7)) {
+                        cookie = header.substring(7).trim();
+                    }
+                }
+                String[] parts = requestLine.split(" ");
+                mRequests.add(parts[0] + " " + parts[1] + " cookie: " + cookie);
+                String response = "/dpc.apk".equals(parts[1])
+                        ? "HTTP/1.1 200 OK\r\nContent-Length: " + PACKAGE_SIZE
+                                + "\r\nETag: " + ETAG + "\r\nAccept-Ranges: bytes\r\n\r\n"
+                        : "HTTP/1.1 404 Not Found\r\nContent-Length: 0\r\n\r\n";
+                out.write(response.getBytes(StandardCharsets.US_ASCII));
+                out.flush();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            mServerSocket.close();
+            try {
+                mThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
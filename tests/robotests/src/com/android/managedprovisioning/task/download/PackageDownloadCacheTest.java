@@ -0,0 +1,262 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.managedprovisioning.task.download;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.android.managedprovisioning.common.Utils;
+import com.android.managedprovisioning.model.PackageDownloadInfo;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+@RunWith(RobolectricTestRunner.class)
+public class PackageDownloadCacheTest {
+    private static final long NOW = TimeUnit.DAYS.toMillis(1000);
+    private static final long MAX_AGE_MILLIS = TimeUnit.DAYS.toMillis(1);
+    private static final long MAX_SIZE_BYTES = 100;
+    private static final String LOCATION = "http://example.com/dpc.apk";
+    private static final PackageDownloadInfo PACKAGE_CHECKSUM_INFO =
+            new PackageDownloadInfo.Builder()
+                    .setLocation(LOCATION)
+                    .setPackageChecksum(new byte[] {1, 2, 3})
+                    .build();
+    private static final PackageDownloadInfo OTHER_PACKAGE_CHECKSUM_INFO =
+            new PackageDownloadInfo.Builder()
+                    .setLocation(LOCATION)
+                    .setPackageChecksum(new byte[] {4, 5, 6})
+                    .build();
+    private static final PackageDownloadInfo SIGNATURE_CHECKSUM_INFO =
+            new PackageDownloadInfo.Builder()
+                    .setLocation(LOCATION)
+                    .setSignatureChecksum(new byte[] {1, 2, 3})
+                    .build();
+
+    @Rule
+    public final TemporaryFolder mTemporaryFolder = new TemporaryFolder();
+
+    private PackageDownloadCache mCache;
+
+    @Before
+    public void setUp() {
+        mCache = new PackageDownloadCache(mTemporaryFolder.getRoot(), MAX_SIZE_BYTES,
+                MAX_AGE_MILLIS, () -> NOW, new Utils());
+    }
+
+    @Test
+    public void getVerifiedPackage_empty_returnsNull() {
+        assertThat(mCache.getVerifiedPackage(PACKAGE_CHECKSUM_INFO)).isNull();
+    }
+
+    @Test
+    public void getVerifiedPackage_notVerified_returnsNull() throws IOException {
+        download(PACKAGE_CHECKSUM_INFO, 10);
+
+        assertThat(mCache.getVerifiedPackage(PACKAGE_CHECKSUM_INFO)).isNull();
+    }
+
+    @Test
+    public void getVerifiedPackage_verified_returnsPackage() throws IOException {
+        File packageFile = download(PACKAGE_CHECKSUM_INFO, 10);
+        mCache.markVerified(PACKAGE_CHECKSUM_INFO);
+
+        assertThat(mCache.getVerifiedPackage(PACKAGE_CHECKSUM_INFO)).isEqualTo(packageFile);
+        assertThat(mCache.getVerifiedPackage(OTHER_PACKAGE_CHECKSUM_INFO)).isNull();
+    }
+
+    @Test
+    public void evict_removesPackage() throws IOException {
+        download(PACKAGE_CHECKSUM_INFO, 10);
+        mCache.markVerified(PACKAGE_CHECKSUM_INFO);
+
+        mCache.evict(PACKAGE_CHECKSUM_INFO);
+
+        assertThat(mCache.getVerifiedPackage(PACKAGE_CHECKSUM_INFO)).isNull();
+        assertThat(mTemporaryFolder.getRoot().list()).isEmpty();
+    }
+
+    @Test
+    public void getPartialFile_keepsBytesAcrossInstances() throws IOException {
+        writeBytes(mCache.getPartialFile(PACKAGE_CHECKSUM_INFO), 10);
+
+        PackageDownloadCache cache = new PackageDownloadCache(mTemporaryFolder.getRoot(),
+                MAX_SIZE_BYTES, MAX_AGE_MILLIS, () -> NOW, new Utils());
+
+        assertThat(cache.getPartialFile(PACKAGE_CHECKSUM_INFO).length()).isEqualTo(10);
+    }
+
+    @Test
+    public void entityTag_roundTrips() {
+        mCache.writeEntityTag(PACKAGE_CHECKSUM_INFO, "\"abc\"");
+
+        assertThat(mCache.readEntityTag(PACKAGE_CHECKSUM_INFO)).isEqualTo("\"abc\"");
+
+        mCache.writeEntityTag(PACKAGE_CHECKSUM_INFO, null);
+
+        assertThat(mCache.readEntityTag(PACKAGE_CHECKSUM_INFO)).isNull();
+    }
+
+    @Test
+    public void getKey_signatureChecksum_includesLocation() {
+        PackageDownloadInfo otherLocation = new PackageDownloadInfo.Builder()
+                .setLocation("http://example.com/dpc-v2.apk")
+                .setSignatureChecksum(new byte[] {1, 2, 3})
+                .build();
+
+        assertThat(mCache.getKey(SIGNATURE_CHECKSUM_INFO))
+                .isNotEqualTo(mCache.getKey(otherLocation));
+        assertThat(mCache.getKey(SIGNATURE_CHECKSUM_INFO))
+                .isNotEqualTo(mCache.getKey(PACKAGE_CHECKSUM_INFO));
+    }
+
+    @Test
+    public void trim_evictsExpiredEntries() throws IOException {
+        File packageFile = download(PACKAGE_CHECKSUM_INFO, 10);
+        mCache.markVerified(PACKAGE_CHECKSUM_INFO);
+        for (File file : mTemporaryFolder.getRoot().listFiles()) {
+            file.setLastModified(NOW - MAX_AGE_MILLIS - 1);
+        }
+
+        mCache.trim();
+
+        assertThat(packageFile.exists()).isFalse();
+        assertThat(mTemporaryFolder.getRoot().list()).isEmpty();
+    }
+
+    @Test
+    public void trim_evictsLeastRecentlyUsedEntriesAboveMaxSize() throws IOException {
+        File oldPackage = download(PACKAGE_CHECKSUM_INFO, 60);
+        oldPackage.setLastModified(NOW - 1000);
+        File newPackage = download(OTHER_PACKAGE_CHECKSUM_INFO, 60);
+        newPackage.setLastModified(NOW);
+
+        mCache.trim();
+
+        assertThat(oldPackage.exists()).isFalse();
+        assertThat(newPackage.exists()).isTrue();
+    }
+
+    @Test
+    public void trim_oldVerifiedMarker_keepsRecentlyUsedEntry() throws IOException {
+        File packageFile = download(PACKAGE_CHECKSUM_INFO, 10);
+        mCache.markVerified(PACKAGE_CHECKSUM_INFO);
+        for (File file : mTemporaryFolder.getRoot().listFiles()) {
+            file.setLastModified(NOW - MAX_AGE_MILLIS - 1);
+        }
+        packageFile.setLastModified(NOW);
+
+        mCache.trim();
+
+        assertThat(mCache.getVerifiedPackage(PACKAGE_CHECKSUM_INFO)).isEqualTo(packageFile);
+    }
+
+    @Test
+    public void trim_pinnedEntry_kept() throws IOException {
+        File packageFile = download(PACKAGE_CHECKSUM_INFO, 10);
+        mCache.pin(PACKAGE_CHECKSUM_INFO);
+        for (File file : mTemporaryFolder.getRoot().listFiles()) {
+            file.setLastModified(NOW - MAX_AGE_MILLIS - 1);
+        }
+
+        mCache.trim();
+        assertThat(packageFile.exists()).isTrue();
+        mCache.unpin(PACKAGE_CHECKSUM_INFO);
+        mCache.trim();
+
+        assertThat(packageFile.exists()).isFalse();
+    }
+
+    @Test
+    public void trim_partialDownloadBeingWritten_kept() throws IOException {
+        mCache.pin(PACKAGE_CHECKSUM_INFO);
+        File partialFile = mCache.getPartialFile(PACKAGE_CHECKSUM_INFO);
+        writeBytes(partialFile, (int) MAX_SIZE_BYTES + 1);
+
+        mCache.trim();
+
+        assertThat(partialFile.exists()).isTrue();
+    }
+
+    @Test
+    public void getDownloadedPackage_signatureChecksumFromEarlierSession_discarded()
+            throws IOException {
+        download(SIGNATURE_CHECKSUM_INFO, 10);
+        mCache.markVerified(SIGNATURE_CHECKSUM_INFO);
+        PackageDownloadCache nextSession = new PackageDownloadCache(mTemporaryFolder.getRoot(),
+                MAX_SIZE_BYTES, MAX_AGE_MILLIS, () -> NOW, new Utils());
+
+        assertThat(mCache.getDownloadedPackage(SIGNATURE_CHECKSUM_INFO)).isNotNull();
+        assertThat(nextSession.isVerified(SIGNATURE_CHECKSUM_INFO)).isFalse();
+        assertThat(nextSession.getDownloadedPackage(SIGNATURE_CHECKSUM_INFO)).isNull();
+    }
+
+    @Test
+    public void getVerifiedPackage_packageChecksumFromEarlierSession_reused() throws IOException {
+        File packageFile = download(PACKAGE_CHECKSUM_INFO, 10);
+        mCache.markVerified(PACKAGE_CHECKSUM_INFO);
+        PackageDownloadCache nextSession = new PackageDownloadCache(mTemporaryFolder.getRoot(),
+                MAX_SIZE_BYTES, MAX_AGE_MILLIS, () -> NOW, new Utils());
+
+        assertThat(nextSession.getVerifiedPackage(PACKAGE_CHECKSUM_INFO)).isEqualTo(packageFile);
+    }
+
+    @Test
+    public void getDownloadedPackage_marksWholeEntryAsUsed() throws IOException {
+        download(PACKAGE_CHECKSUM_INFO, 10);
+        mCache.markVerified(PACKAGE_CHECKSUM_INFO);
+        for (File file : mTemporaryFolder.getRoot().listFiles()) {
+            file.setLastModified(NOW - 1000);
+        }
+
+        mCache.getDownloadedPackage(PACKAGE_CHECKSUM_INFO);
+
+        for (File file : mTemporaryFolder.getRoot().listFiles()) {
+            assertThat(file.lastModified()).isEqualTo(NOW);
+        }
+    }
+
+    @Test
+    public void discardPartialDownload_removesBytesAndEntityTag() throws IOException {
+        writeBytes(mCache.getPartialFile(PACKAGE_CHECKSUM_INFO), 10);
+        mCache.writeEntityTag(PACKAGE_CHECKSUM_INFO, "\"v1\"");
+
+        mCache.discardPartialDownload(PACKAGE_CHECKSUM_INFO);
+
+        assertThat(mCache.getPartialFile(PACKAGE_CHECKSUM_INFO).exists()).isFalse();
+        assertThat(mCache.readEntityTag(PACKAGE_CHECKSUM_INFO)).isNull();
+    }
+
+    private File download(PackageDownloadInfo info, int size) throws IOException {
+        writeBytes(mCache.getPartialFile(info), size);
+        return mCache.commitDownload(info);
+    }
+
+    private static void writeBytes(File file, int size) throws IOException {
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(new byte[size]);
+        }
+    }
+}
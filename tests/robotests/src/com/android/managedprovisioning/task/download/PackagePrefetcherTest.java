@@ -0,0 +1,327 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.managedprovisioning.task.download;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoMoreInteractions;
+import static org.mockito.Mockito.when;
+
+import android.os.CancellationSignal;
+import android.os.Handler;
+import android.os.Looper;
+
+import com.android.managedprovisioning.common.Utils;
+import com.android.managedprovisioning.model.PackageDownloadInfo;
+import com.android.managedprovisioning.task.wifi.NetworkMonitor;
+import com.android.managedprovisioning.task.wifi.ProvisioningNetwork;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+
+@RunWith(RobolectricTestRunner.class)
+public class PackagePrefetcherTest {
+    private static final String LOCATION = "http://example.com/dpc.apk";
+    private static final byte[] PACKAGE_CONTENTS = "package contents".getBytes();
+    private static final PackageDownloadInfo SIGNATURE_CHECKSUM_INFO =
+            new PackageDownloadInfo.Builder()
+                    .setLocation(LOCATION)
+                    .setSignatureChecksum(new byte[] {1, 2, 3})
+                    .build();
+
+    @Rule
+    public final TemporaryFolder mTemporaryFolder = new TemporaryFolder();
+
+    private final PackageDownloadCache mCache = mock(PackageDownloadCache.class);
+    private final ResumableHttpDownloader mDownloader = mock(ResumableHttpDownloader.class);
+    private final ResumableHttpDownloader.Listener mListener =
+            mock(ResumableHttpDownloader.Listener.class);
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final List<Runnable> mPendingWork = new ArrayList<>();
+    private final ProvisioningNetwork mProvisioningNetwork = new ProvisioningNetwork();
+    private final NetworkMonitor mNetworkMonitor = mock(NetworkMonitor.class);
+    private PackagePrefetcher mPrefetcher;
+    private File mPackageFile;
+
+    @Before
+    public void setUp() throws IOException {
+        when(mCache.getKey(any())).thenReturn("key");
+        mPrefetcher = new PackagePrefetcher(mCache, mDownloader, mPendingWork::add,
+                mProvisioningNetwork);
+        mPackageFile = mTemporaryFolder.newFile();
+        try (FileOutputStream out = new FileOutputStream(mPackageFile)) {
+            out.write(PACKAGE_CONTENTS);
+        }
+    }
+
+    @Test
+    public void prefetch_startsDownloadOnce() {
+        assertThat(mPrefetcher.prefetch(SIGNATURE_CHECKSUM_INFO)).isTrue();
+        assertThat(mPrefetcher.prefetch(SIGNATURE_CHECKSUM_INFO)).isFalse();
+
+        assertThat(mPendingWork).hasSize(1);
+        assertThat(mPrefetcher.isPrefetching(SIGNATURE_CHECKSUM_INFO)).isTrue();
+    }
+
+    @Test
+    public void prefetch_alreadyDownloaded_doesNotDownload() {
+        when(mCache.getDownloadedPackage(SIGNATURE_CHECKSUM_INFO)).thenReturn(mPackageFile);
+
+        mPrefetcher.prefetch(SIGNATURE_CHECKSUM_INFO);
+        verify(mCache, never()).getDownloadedPackage(any());
+        runPendingWork();
+
+        verify(mDownloader, never()).downloadWithRetries(any(), any());
+    }
+
+    @Test
+    public void download_prefetchFailed_downloadsAgain() {
+        mPrefetcher.prefetch(SIGNATURE_CHECKSUM_INFO);
+        mPrefetcher.download(SIGNATURE_CHECKSUM_INFO, mHandler, mListener);
+        when(mDownloader.downloadWithRetries(eq(SIGNATURE_CHECKSUM_INFO), any()))
+                .thenReturn(null, mPackageFile);
+
+        runPendingWork();
+
+        verify(mDownloader, times(2)).downloadWithRetries(eq(SIGNATURE_CHECKSUM_INFO), any());
+        verify(mListener).onDownloadComplete(mPackageFile);
+        verify(mListener, never()).onDownloadFailed();
+    }
+
+    @Test
+    public void download_whilePrefetching_waitsForPrefetch() {
+        mockDownloadResult(SIGNATURE_CHECKSUM_INFO, mPackageFile);
+        mPrefetcher.prefetch(SIGNATURE_CHECKSUM_INFO);
+
+        mPrefetcher.download(SIGNATURE_CHECKSUM_INFO, mHandler, mListener);
+        runPendingWork();
+
+        verify(mDownloader).downloadWithRetries(eq(SIGNATURE_CHECKSUM_INFO), any());
+        verify(mListener).onDownloadComplete(mPackageFile);
+        assertThat(mPrefetcher.isPrefetching(SIGNATURE_CHECKSUM_INFO)).isFalse();
+    }
+
+    @Test
+    public void download_twice_downloadsOnce() {
+        mockDownloadResult(SIGNATURE_CHECKSUM_INFO, mPackageFile);
+        ResumableHttpDownloader.Listener otherListener =
+                mock(ResumableHttpDownloader.Listener.class);
+
+        mPrefetcher.download(SIGNATURE_CHECKSUM_INFO, mHandler, mListener);
+        mPrefetcher.download(SIGNATURE_CHECKSUM_INFO, mHandler, otherListener);
+        runPendingWork();
+
+        verify(mDownloader).downloadWithRetries(eq(SIGNATURE_CHECKSUM_INFO), any());
+        verify(mListener).onDownloadComplete(mPackageFile);
+        verify(otherListener).onDownloadComplete(mPackageFile);
+    }
+
+    @Test
+    public void download_alreadyDownloaded_reportsCachedPackage() {
+        when(mCache.getDownloadedPackage(SIGNATURE_CHECKSUM_INFO)).thenReturn(mPackageFile);
+
+        mPrefetcher.download(SIGNATURE_CHECKSUM_INFO, mHandler, mListener);
+        runPendingWork();
+
+        verify(mDownloader, never()).downloadWithRetries(any(), any());
+        verify(mListener).onDownloadComplete(mPackageFile);
+    }
+
+    @Test
+    public void download_failure_reportsFailure() {
+        mPrefetcher.download(SIGNATURE_CHECKSUM_INFO, mHandler, mListener);
+        runPendingWork();
+
+        verify(mListener).onDownloadFailed();
+        verify(mListener, never()).onDownloadComplete(any());
+    }
+
+    @Test
+    public void stopWaiting_lastWaiter_stopsDownloadAndKeepsBytes() {
+        mPrefetcher.download(SIGNATURE_CHECKSUM_INFO, mHandler, mListener);
+
+        mPrefetcher.stopWaiting(SIGNATURE_CHECKSUM_INFO, mListener);
+        runPendingWork();
+
+        verify(mDownloader).downloadWithRetries(eq(SIGNATURE_CHECKSUM_INFO),
+                argThat(CancellationSignal::isCanceled));
+        verify(mCache, never()).evict(any());
+        verifyNoMoreInteractions(mListener);
+    }
+
+    @Test
+    public void download_afterDownloadWasStopped_downloadsAgain() {
+        mPrefetcher.download(SIGNATURE_CHECKSUM_INFO, mHandler, mListener);
+        mPrefetcher.stopWaiting(SIGNATURE_CHECKSUM_INFO, mListener);
+        ResumableHttpDownloader.Listener otherListener =
+                mock(ResumableHttpDownloader.Listener.class);
+        mPrefetcher.download(SIGNATURE_CHECKSUM_INFO, mHandler, otherListener);
+        when(mDownloader.downloadWithRetries(eq(SIGNATURE_CHECKSUM_INFO),
+                argThat(signal -> !signal.isCanceled()))).thenReturn(mPackageFile);
+
+        runPendingWork();
+
+        verify(otherListener).onDownloadComplete(mPackageFile);
+    }
+
+    @Test
+    public void prefetch_packageChecksumMatches_marksVerified() throws Exception {
+        PackageDownloadInfo info = createPackageChecksumInfo(
+                MessageDigest.getInstance(Utils.SHA256_TYPE).digest(PACKAGE_CONTENTS));
+        mockDownloadResult(info, mPackageFile);
+
+        mPrefetcher.prefetch(info);
+        runPendingWork();
+
+        verify(mCache).markVerified(info);
+    }
+
+    @Test
+    public void prefetch_packageChecksumMismatch_evictsAndDownloadsAgain() {
+        PackageDownloadInfo info = createPackageChecksumInfo(new byte[] {4, 5, 6});
+        mockDownloadResult(info, mPackageFile);
+        mPrefetcher.prefetch(info);
+        mPrefetcher.download(info, mHandler, mListener);
+
+        runPendingWork();
+
+        verify(mCache).evict(info);
+        verify(mCache, never()).markVerified(any());
+        verify(mDownloader, times(2)).downloadWithRetries(eq(info), any());
+        // The verify task reports the mismatch of the fresh download.
+        verify(mListener).onDownloadComplete(mPackageFile);
+    }
+
+    @Test
+    public void cancel_discardsPrefetchedPackage() {
+        mockDownloadResult(SIGNATURE_CHECKSUM_INFO, mPackageFile);
+        mPrefetcher.prefetch(SIGNATURE_CHECKSUM_INFO);
+
+        mPrefetcher.cancel(SIGNATURE_CHECKSUM_INFO);
+        runPendingWork();
+
+        verify(mCache).evict(SIGNATURE_CHECKSUM_INFO);
+        assertThat(mPrefetcher.isPrefetching(SIGNATURE_CHECKSUM_INFO)).isFalse();
+    }
+
+    @Test
+    public void cancel_afterPrefetchFinished_keepsPackage() {
+        mockDownloadResult(SIGNATURE_CHECKSUM_INFO, mPackageFile);
+        mPrefetcher.prefetch(SIGNATURE_CHECKSUM_INFO);
+        runPendingWork();
+
+        mPrefetcher.cancel(SIGNATURE_CHECKSUM_INFO);
+        runPendingWork();
+
+        verify(mCache, never()).evict(any());
+    }
+
+    @Test
+    public void prefetch_pinsEntryUntilFinished() {
+        mockDownloadResult(SIGNATURE_CHECKSUM_INFO, mPackageFile);
+
+        mPrefetcher.prefetch(SIGNATURE_CHECKSUM_INFO);
+        verify(mCache).pin(SIGNATURE_CHECKSUM_INFO);
+        verify(mCache, never()).unpin(any());
+        runPendingWork();
+
+        verify(mCache).unpin(SIGNATURE_CHECKSUM_INFO);
+    }
+
+    @Test
+    public void download_success_keepsEntryPinnedForListener() {
+        mockDownloadResult(SIGNATURE_CHECKSUM_INFO, mPackageFile);
+
+        mPrefetcher.download(SIGNATURE_CHECKSUM_INFO, mHandler, mListener);
+        runPendingWork();
+
+        verify(mListener).onDownloadComplete(mPackageFile);
+        verify(mCache, times(2)).pin(SIGNATURE_CHECKSUM_INFO);
+        verify(mCache, times(1)).unpin(SIGNATURE_CHECKSUM_INFO);
+    }
+
+    @Test
+    public void prefetch_outlivesProvisioning_keepsNetworkUntilFinished() {
+        mockDownloadResult(SIGNATURE_CHECKSUM_INFO, mPackageFile);
+        mProvisioningNetwork.bind(mNetworkMonitor);
+        mPrefetcher.prefetch(SIGNATURE_CHECKSUM_INFO);
+
+        mProvisioningNetwork.unbind();
+        verify(mNetworkMonitor, never()).stopListening();
+        runPendingWork();
+
+        verify(mNetworkMonitor).stopListening();
+    }
+
+    @Test
+    public void download_prefetchFailed_keepsNetworkForSecondDownload() {
+        mProvisioningNetwork.bind(mNetworkMonitor);
+        mPrefetcher.prefetch(SIGNATURE_CHECKSUM_INFO);
+        mPrefetcher.download(SIGNATURE_CHECKSUM_INFO, mHandler, mListener);
+        mProvisioningNetwork.unbind();
+        when(mDownloader.downloadWithRetries(eq(SIGNATURE_CHECKSUM_INFO), any()))
+                .thenReturn(null, mPackageFile);
+
+        mPendingWork.remove(0).run();
+        verify(mNetworkMonitor, never()).stopListening();
+        runPendingWork();
+
+        verify(mNetworkMonitor).stopListening();
+    }
+
+    private void mockDownloadResult(PackageDownloadInfo info, File result) {
+        when(mDownloader.downloadWithRetries(eq(info), any(CancellationSignal.class)))
+                .thenReturn(result);
+    }
+
+    private static PackageDownloadInfo createPackageChecksumInfo(byte[] checksum) {
+        return new PackageDownloadInfo.Builder()
+                .setLocation(LOCATION)
+                .setPackageChecksum(checksum)
+                .build();
+    }
+
+    private void runPendingWork() {
+        while (!mPendingWork.isEmpty()) {
+            List<Runnable> work = new ArrayList<>(mPendingWork);
+            mPendingWork.clear();
+            for (Runnable runnable : work) {
+                runnable.run();
+            }
+        }
+        ShadowLooper.runUiThreadTasksIncludingDelayedTasks();
+    }
+}